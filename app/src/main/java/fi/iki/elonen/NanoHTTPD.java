@@ -10,6 +10,8 @@ import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -23,6 +25,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -100,6 +108,11 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
+    /**
+     * If true, connections are handled by a NioEngine rather than a blocking thread each.
+     */
+    private boolean useNio = false;
+    private NioEngine nioEngine;
 
     /**
      * Constructs an HTTP server on given port.
@@ -151,6 +164,17 @@ public abstract class NanoHTTPD {
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
+        if (useNio) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            myServerSocket = serverChannel.socket();
+            myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+            nioEngine = new NioEngine(this, serverChannel);
+            myThread = new Thread(nioEngine);
+            myThread.setDaemon(true);
+            myThread.setName("NanoHttpd NIO Selector");
+            myThread.start();
+            return;
+        }
         myServerSocket = new ServerSocket();
         myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
 
@@ -162,32 +186,39 @@ public abstract class NanoHTTPD {
                         final Socket finalAccept = myServerSocket.accept();
                         registerConnection(finalAccept);
                         finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
+                        // Responses are buffered and flushed whole, so Nagle's algorithm would only delay them.
+                        finalAccept.setTcpNoDelay(true);
                         final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
+                        try {
+                            asyncRunner.exec(new Runnable() {
+                                @Override
+                                public void run() {
+                                    OutputStream outputStream = null;
+                                    try {
+                                        outputStream = new BufferedOutputStream(finalAccept.getOutputStream());
+                                        TempFileManager tempFileManager = tempFileManagerFactory.create();
+                                        HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
+                                        while (!finalAccept.isClosed()) {
+                                            session.execute();
+                                        }
+                                    } catch (Exception e) {
+                                        // When the socket is closed by the client, we throw our own SocketException
+                                        // to break the  "keep alive" loop above.
+                                        if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                                            e.printStackTrace();
+                                        }
+                                    } finally {
+                                        safeClose(outputStream);
+                                        safeClose(inputStream);
+                                        safeClose(finalAccept);
+                                        unRegisterConnection(finalAccept);
                                     }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
-                                    }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
                                 }
-                            }
-                        });
+                            });
+                        } catch (RejectedExecutionException e) {
+                            // The async runner is saturated - tell the client to try again later.
+                            rejectConnection(finalAccept);
+                        }
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
@@ -198,6 +229,28 @@ public abstract class NanoHTTPD {
         myThread.start();
     }
 
+    /**
+     * Send a 503 Service Unavailable response to a connection that the async runner has no room for, and close it.
+     * This is done on the listener thread, so only a short response is sent and the request is not read.
+     */
+    private void rejectConnection(Socket socket) {
+        try {
+            Response res = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy");
+            res.addHeader("Retry-After", "1");
+            res.addHeader("Connection", "close");
+            res.send(socket.getOutputStream());
+            // Discard whatever the client has sent already, so that closing the socket does not reset the
+            // connection before the client reads the response.
+            InputStream in = socket.getInputStream();
+            while (in.available() > 0 && in.skip(in.available()) > 0) ;
+            socket.shutdownOutput();
+        } catch (IOException e) {
+        } finally {
+            safeClose(socket);
+            unRegisterConnection(socket);
+        }
+    }
+
     /**
      * Stop the server.
      */
@@ -205,6 +258,9 @@ public abstract class NanoHTTPD {
         try {
             safeClose(myServerSocket);
             closeAllConnections();
+            if (nioEngine != null) {
+                nioEngine.wakeup();
+            }
             if (myThread != null) {
                 myThread.join();
             }
@@ -368,6 +424,26 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    AsyncRunner getAsyncRunner() {
+        return asyncRunner;
+    }
+
+    /**
+     * How long an idle kept-alive connection stays open, in milliseconds.
+     */
+    public int getKeepAliveTimeout() {
+        return useNio ? NioEngine.IDLE_TIMEOUT : SOCKET_READ_TIMEOUT;
+    }
+
+    /**
+     * Choose between the blocking engine (a thread from the AsyncRunner for the whole life of each connection) and
+     * the non-blocking NioEngine (one selector thread for all connections, and an AsyncRunner thread only while a
+     * request is being served).   Must be called before start().
+     */
+    public void setUseNio(boolean useNio) {
+        this.useNio = useNio;
+    }
+
     // ------------------------------------------------------------------------------- //
     //
     // Temp file handling strategy.
@@ -383,6 +459,10 @@ public abstract class NanoHTTPD {
         this.tempFileManagerFactory = tempFileManagerFactory;
     }
 
+    TempFileManagerFactory getTempFileManagerFactory() {
+        return tempFileManagerFactory;
+    }
+
     /**
      * HTTP Request methods, with the ability to decode a <code>String</code> back to its enum value.
      */
@@ -401,11 +481,185 @@ public abstract class NanoHTTPD {
 
     /**
      * Pluggable strategy for asynchronously executing requests.
+     * exec() may throw RejectedExecutionException if it cannot run the code, in which case the client is sent a 503
+     * response.
      */
     public interface AsyncRunner {
         void exec(Runnable code);
     }
 
+    /**
+     * An output stream that can send part of a file without copying it, such as a socket channel.
+     */
+    interface FileRegionSink {
+        /**
+         * Send count bytes of channel, from its current position.
+         */
+        void transferFrom(FileChannel channel, long count) throws IOException;
+    }
+
+    /**
+     * A connection that has been switched to the WebSocket protocol (RFC 6455) by a response from
+     * newWebSocketResponse().   The send methods may be called from any thread and never block: each connection has
+     * a limited amount of queued output, and a frame that would go over it is dropped, so one slow client cannot
+     * hold up the others or the caller.
+     */
+    public interface WebSocket {
+        int OPCODE_CONTINUATION = 0x0;
+        int OPCODE_TEXT = 0x1;
+        int OPCODE_BINARY = 0x2;
+        int OPCODE_CLOSE = 0x8;
+        int OPCODE_PING = 0x9;
+        int OPCODE_PONG = 0xA;
+        int CLOSE_NORMAL = 1000;
+        int CLOSE_GOING_AWAY = 1001;
+        int CLOSE_PROTOCOL_ERROR = 1002;
+        int CLOSE_TOO_BIG = 1009;
+        int CLOSE_TRY_AGAIN_LATER = 1013;
+
+        /**
+         * Queue a frame made by makeWebSocketFrame() to be sent.   The same frame may be sent to any number of
+         * connections.
+         *
+         * @return false if the frame was dropped because the connection is closed or has too much output queued.
+         */
+        boolean sendFrame(byte[] frame);
+
+        boolean sendBinary(byte[] payload);
+
+        boolean sendText(String text);
+
+        /**
+         * Send a close frame and close the connection once the output already queued has been sent.
+         */
+        void close(int code, String reason);
+
+        boolean isOpen();
+
+        InetAddress getRemoteAddress();
+
+        /**
+         * Set the most output (in bytes) that may be waiting to be sent before frames are dropped.
+         */
+        void setMaxQueuedBytes(long maxQueuedBytes);
+
+        long getQueuedBytes();
+
+        /**
+         * Number of frames dropped because too much output was queued.
+         */
+        long getDroppedFrames();
+    }
+
+    /**
+     * Receives the events of a WebSocket connection.
+     */
+    public interface WebSocketHandler {
+        /**
+         * Called on the thread that served the upgrade request, once the 101 response has been queued.
+         */
+        void onOpen(WebSocket ws);
+
+        /**
+         * Called with each complete text or binary message from the client.   This runs on the engine's selector
+         * thread, so it must not block.
+         */
+        void onMessage(WebSocket ws, byte[] payload, boolean text);
+
+        /**
+         * Called once, when the connection has closed for any reason.
+         */
+        void onClose(WebSocket ws);
+    }
+
+    /**
+     * An output stream that can take over its connection for the WebSocket protocol after a 101 response.
+     */
+    interface WebSocketSink {
+        void upgrade(WebSocketHandler handler) throws IOException;
+    }
+
+    /**
+     * Return the response that accepts session's request to upgrade to a WebSocket connection, whose events go to
+     * handler, or an error response if it is not a valid WebSocket handshake.   WebSockets need the NioEngine
+     * (setUseNio(true)), which can hold any number of them open without a thread each.
+     */
+    public Response newWebSocketResponse(IHTTPSession session, WebSocketHandler handler) {
+        Map<String, String> headers = session.getHeaders();
+        String key = headers.get("sec-websocket-key");
+        String connection = headers.get("connection");
+        if (session.getMethod() != Method.GET || key == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))
+                || connection == null || !connection.toLowerCase(Locale.US).contains("upgrade")) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Not a WebSocket handshake");
+        }
+        if (!"13".equals(headers.get("sec-websocket-version"))) {
+            Response r = new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unsupported WebSocket version");
+            r.addHeader("Sec-WebSocket-Version", "13");
+            return r;
+        }
+        if (!useNio) {
+            return new Response(Response.Status.NOT_IMPLEMENTED, MIME_PLAINTEXT, "WebSockets need the NIO engine");
+        }
+        Response r = new Response(Response.Status.SWITCH_PROTOCOL, null, (InputStream) null);
+        r.addHeader("Upgrade", "websocket");
+        r.addHeader("Connection", "Upgrade");
+        r.addHeader("Sec-WebSocket-Accept", makeWebSocketAccept(key));
+        r.webSocketHandler = handler;
+        return r;
+    }
+
+    /**
+     * Return the Sec-WebSocket-Accept header value for a handshake's Sec-WebSocket-Key.
+     */
+    static String makeWebSocketAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("ISO-8859-1"));
+            return encodeBase64(digest);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encodeBase64(byte[] data) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length) b |= (data[i + 1] & 0xff) << 8;
+            if (i + 2 < data.length) b |= data[i + 2] & 0xff;
+            sb.append(alphabet.charAt((b >> 18) & 0x3f));
+            sb.append(alphabet.charAt((b >> 12) & 0x3f));
+            sb.append((i + 1 < data.length) ? alphabet.charAt((b >> 6) & 0x3f) : '=');
+            sb.append((i + 2 < data.length) ? alphabet.charAt(b & 0x3f) : '=');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Make an unmasked (server to client) WebSocket frame holding the whole of payload.
+     */
+    public static byte[] makeWebSocketFrame(int opcode, byte[] payload) {
+        int len = payload.length;
+        int headerLen = (len < 126) ? 2 : (len <= 0xffff) ? 4 : 10;
+        byte[] frame = new byte[headerLen + len];
+        frame[0] = (byte) (0x80 | opcode);
+        if (len < 126) {
+            frame[1] = (byte) len;
+        } else if (len <= 0xffff) {
+            frame[1] = 126;
+            frame[2] = (byte) (len >> 8);
+            frame[3] = (byte) len;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) len >> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, frame, headerLen, len);
+        return frame;
+    }
+
     /**
      * Factory to create temp file managers.
      */
@@ -461,6 +715,63 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Threading strategy that runs connections on a bounded pool of threads.
+     * <p/>
+     * <p>Up to maxThreads connections are handled at once, each by one pool thread for as long as the connection
+     * is kept alive.  Further connections wait in a queue of up to maxQueued, and once that is full they are
+     * rejected, so the client gets a 503 response.  Idle threads exit after THREAD_IDLE_MS.</p>
+     */
+    public static class BoundedAsyncRunner implements AsyncRunner {
+        private static final long THREAD_IDLE_MS = 60 * 1000;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong threadCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        public BoundedAsyncRunner(int maxThreads, int maxQueued) {
+            executor = new ThreadPoolExecutor(maxThreads, maxThreads, THREAD_IDLE_MS, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("NanoHttpd Request Processor (#" + threadCount.incrementAndGet() + ")");
+                    return t;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            try {
+                executor.execute(code);
+            } catch (RejectedExecutionException e) {
+                rejectedCount.incrementAndGet();
+                throw e;
+            }
+        }
+
+        /**
+         * Number of threads in the pool, busy or idle.
+         */
+        public int getThreadCount() {
+            return executor.getPoolSize();
+        }
+
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        public int getQueuedCount() {
+            return executor.getQueue().size();
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * <p/>
@@ -558,6 +869,14 @@ public abstract class NanoHTTPD {
          * Use chunkedTransfer
          */
         private boolean chunkedTransfer;
+        /**
+         * Number of bytes of data to send, or -1 to send what data.available() reports.
+         */
+        private long contentLength = -1;
+        /**
+         * For a 101 response from newWebSocketResponse(), the handler of the WebSocket connection.
+         */
+        private WebSocketHandler webSocketHandler;
 
         /**
          * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -631,23 +950,34 @@ public abstract class NanoHTTPD {
 
                 sendConnectionHeaderIfNotAlreadyPresent(pw, header);
 
-                if (requestMethod != Method.HEAD && chunkedTransfer) {
+                if (status == Status.SWITCH_PROTOCOL) {
+                    // No body - what follows belongs to the new protocol.
+                    pw.print("\r\n");
+                    pw.flush();
+                } else if (requestMethod != Method.HEAD && chunkedTransfer) {
                     sendAsChunked(outputStream, pw);
                 } else {
-                    int pending = data != null ? data.available() : 0;
+                    long pending = contentLength >= 0 ? contentLength : (data != null ? data.available() : 0);
                     sendContentLengthHeaderIfNotAlreadyPresent(pw, header, pending);
                     pw.print("\r\n");
                     pw.flush();
-                    sendAsFixedLength(outputStream, pending);
+                    if (requestMethod != Method.HEAD && data instanceof FileInputStream
+                            && outputStream instanceof FileRegionSink) {
+                        ((FileRegionSink) outputStream).transferFrom(((FileInputStream) data).getChannel(), pending);
+                    } else {
+                        sendAsFixedLength(outputStream, pending);
+                    }
                 }
                 outputStream.flush();
-                safeClose(data);
             } catch (IOException ioe) {
                 // Couldn't write? No can do.
+            } finally {
+                // Always close the data, so that a stream being sent to a client that has gone away is released.
+                safeClose(data);
             }
         }
 
-        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size) {
+        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, long size) {
             if (!headerAlreadySent(header, "content-length")) {
                 pw.print("Content-Length: "+ size +"\r\n");
             }
@@ -679,16 +1009,18 @@ public abstract class NanoHTTPD {
                 outputStream.write(String.format("%x\r\n", read).getBytes());
                 outputStream.write(buff, 0, read);
                 outputStream.write(CRLF);
+                // Send each chunk as soon as it is available, in case the data is a live stream.
+                outputStream.flush();
             }
             outputStream.write(String.format("0\r\n\r\n").getBytes());
         }
 
-        private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
+        private void sendAsFixedLength(OutputStream outputStream, long pending) throws IOException {
             if (requestMethod != Method.HEAD && data != null) {
                 int BUFFER_SIZE = 16 * 1024;
                 byte[] buff = new byte[BUFFER_SIZE];
                 while (pending > 0) {
-                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
+                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : (int) pending));
                     if (read <= 0) {
                         break;
                     }
@@ -722,6 +1054,14 @@ public abstract class NanoHTTPD {
             this.data = data;
         }
 
+        /**
+         * Send only the next contentLength bytes of the data (e.g. for part of a file), instead of what
+         * data.available() reports, which is not reliable for large files.
+         */
+        public void setContentLength(long contentLength) {
+            this.contentLength = contentLength;
+        }
+
         public Method getRequestMethod() {
             return requestMethod;
         }
@@ -746,7 +1086,8 @@ public abstract class NanoHTTPD {
             SWITCH_PROTOCOL(101, "Switching Protocols"), OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
                 "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
                 "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"), NOT_IMPLEMENTED(501, "Not Implemented"), SERVICE_UNAVAILABLE(503,
+                "Service Unavailable");
             private final int requestStatus;
             private final String description;
 
@@ -839,6 +1180,11 @@ public abstract class NanoHTTPD {
         private Map<String, String> headers;
         private CookieHandler cookies;
         private String queryParameterString;
+        private String remoteIp;
+        // Whether the connection is to be kept open for another request after this one, and how much of this
+        // request's body has not been read yet.
+        private boolean keepAlive;
+        private long bodyRemaining;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
@@ -850,11 +1196,7 @@ public abstract class NanoHTTPD {
             this.tempFileManager = tempFileManager;
             this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
             this.outputStream = outputStream;
-            String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            headers = new HashMap<String, String>();
-
-            headers.put("remote-addr", remoteIp);
-            headers.put("http-client-ip", remoteIp);
+            remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
         }
 
         @Override
@@ -870,7 +1212,11 @@ public abstract class NanoHTTPD {
                 {
                     int read = -1;
                     try {
-                        read = inputStream.read(buf, 0, BUFSIZE);
+                        // If the next request has already been received (pipelined behind the last one), only
+                        // read what is there - PushbackInputStream would otherwise block reading the socket for
+                        // the rest of the buffer.
+                        int available = inputStream.available();
+                        read = inputStream.read(buf, 0, (available > 0) ? Math.min(available, BUFSIZE) : BUFSIZE);
                     } catch (Exception e) {
                         safeClose(inputStream);
                         safeClose(outputStream);
@@ -896,8 +1242,11 @@ public abstract class NanoHTTPD {
                 }
 
                 parms = new HashMap<String, String>();
-                if(null == headers) {
-                    headers = new HashMap<String, String>();
+                // Each request on a kept-alive connection has its own headers.
+                headers = new HashMap<String, String>();
+                if (remoteIp != null) {
+                    headers.put("remote-addr", remoteIp);
+                    headers.put("http-client-ip", remoteIp);
                 }
 
                 // Create a BufferedReader for parsing the header.
@@ -912,6 +1261,28 @@ public abstract class NanoHTTPD {
                     throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
                 }
 
+                // HTTP/1.1 connections are persistent unless the client says otherwise, HTTP/1.0 ones only if the
+                // client asks.
+                String connectionHeader = headers.get("connection");
+                if ("HTTP/1.1".equalsIgnoreCase(pre.get("protocol"))) {
+                    keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+                } else {
+                    keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+                }
+                bodyRemaining = 0;
+                // Only Content-Length bodies are framed, so a chunked body would be read as the next request.
+                String transferEncoding = headers.get("transfer-encoding");
+                if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding.trim())) {
+                    throw new ResponseException(Response.Status.NOT_IMPLEMENTED, "Transfer-Encoding not supported: " + transferEncoding);
+                }
+                if (headers.containsKey("content-length")) {
+                    try {
+                        bodyRemaining = Long.parseLong(headers.get("content-length"));
+                    } catch (NumberFormatException e) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length.");
+                    }
+                }
+
                 uri = pre.get("uri");
 
                 cookies = new CookieHandler(headers);
@@ -923,7 +1294,32 @@ public abstract class NanoHTTPD {
                 } else {
                     cookies.unloadQueue(r);
                     r.setRequestMethod(method);
+                    if (!keepAlive) {
+                        r.addHeader("Connection", "close");
+                    } else if (r.getHeader("Connection") == null) {
+                        r.addHeader("Keep-Alive", "timeout=" + (getKeepAliveTimeout() / 1000));
+                    }
                     r.send(outputStream);
+                    if (r.webSocketHandler != null && outputStream instanceof WebSocketSink) {
+                        // The connection now belongs to the WebSocket, so there are no more requests to read.
+                        ((WebSocketSink) outputStream).upgrade(r.webSocketHandler);
+                        return;
+                    }
+                    // Skip any of the body that serve() did not read, so the next request starts in the right place.
+                    while (bodyRemaining > 0) {
+                        long skipped = inputStream.skip(bodyRemaining);
+                        if (skipped <= 0) {
+                            if (inputStream.read() < 0) {
+                                break;
+                            }
+                            skipped = 1;
+                        }
+                        bodyRemaining -= skipped;
+                    }
+                    if (!keepAlive || "close".equalsIgnoreCase(r.getHeader("Connection"))) {
+                        safeClose(outputStream);
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
                 }
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
@@ -936,6 +1332,7 @@ public abstract class NanoHTTPD {
                 safeClose(outputStream);
             } catch (ResponseException re) {
                 Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                r.addHeader("Connection", "close");
                 r.send(outputStream);
                 safeClose(outputStream);
             } finally {
@@ -953,12 +1350,15 @@ public abstract class NanoHTTPD {
 
                 long size;
                 if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
-                } else if (splitbyte < rlen) {
+                    size = bodyRemaining;
+                } else if (!keepAlive && splitbyte < rlen) {
+                    // Without a Content-Length, the body is whatever the client sent before closing the
+                    // connection.   On a kept-alive connection, that would be the next request.
                     size = rlen - splitbyte;
                 } else {
                     size = 0;
                 }
+                bodyRemaining = 0;
 
                 // Now read all the body and write it to f
                 byte[] buf = new byte[512];
@@ -1069,10 +1469,11 @@ public abstract class NanoHTTPD {
                 }
 
                 // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
+                // followed by HTTP headers.
                 // NOTE: this now forces header names lowercase since they are
                 // case insensitive and vary by client.
                 if (st.hasMoreTokens()) {
+                    pre.put("protocol", st.nextToken());
                     String line = in.readLine();
                     while (line != null && line.trim().length() > 0) {
                         int p = line.indexOf(':');
@@ -1302,7 +1703,67 @@ public abstract class NanoHTTPD {
 
         @Override
         public final InputStream getInputStream() {
-            return inputStream;
+            // Without a Content-Length, the body of a request on a closing connection is everything up to the end of
+            // the stream - otherwise it must stop where the next request starts.
+            if (!keepAlive && !headers.containsKey("content-length")) {
+                return inputStream;
+            }
+            return new BodyInputStream();
+        }
+
+        /**
+         * The request body as read by serve(), which ends after Content-Length bytes so that it cannot read into the
+         * next request on a kept-alive connection.   Reading it counts down bodyRemaining, so that execute() only
+         * skips the part of the body that serve() did not read.
+         */
+        private class BodyInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                if (bodyRemaining <= 0) {
+                    return -1;
+                }
+                int b = inputStream.read();
+                if (b < 0) {
+                    bodyRemaining = 0;
+                } else {
+                    bodyRemaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (bodyRemaining <= 0) {
+                    return -1;
+                }
+                int n = inputStream.read(b, off, (int) Math.min(len, bodyRemaining));
+                if (n < 0) {
+                    bodyRemaining = 0;
+                } else {
+                    bodyRemaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = inputStream.skip(Math.min(n, Math.max(bodyRemaining, 0)));
+                bodyRemaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(inputStream.available(), Math.max(bodyRemaining, 0));
+            }
+
+            @Override
+            public void close() {
+                // The connection's stream stays open for the next request.
+            }
         }
 
         @Override
@@ -0,0 +1,835 @@
+package fi.iki.elonen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking connection handling for NanoHTTPD, used instead of one blocking thread per connection when
+ * NanoHTTPD.setUseNio(true) is called before start().
+ * <p/>
+ * <p>A single selector thread accepts connections and reads requests.  Once a complete request (headers and
+ * Content-Length body) has arrived it is handed to the server's AsyncRunner, which parses it with the usual
+ * HTTPSession and calls serve().  The response is queued for the selector thread to write, so threads are only
+ * used while a request is being served, and idle keep-alive connections cost nothing but a socket.  Requests on
+ * one connection are served one at a time, in order, so pipelined requests work.</p>
+ * <p/>
+ * <p>Responses whose data is a FileInputStream are sent with FileChannel.transferTo(), so the file is not copied
+ * through the Java heap.</p>
+ * <p/>
+ * <p>After a 101 response from newWebSocketResponse() the connection is handed over to a NioWebSocket.   The
+ * selector thread reads its frames and answers pings and close frames itself, and frames sent to the client are
+ * queued without any thread waiting for them, so an open WebSocket uses no thread.</p>
+ */
+class NioEngine implements Runnable {
+    /**
+     * Connections with no request in progress are closed after this time.
+     */
+    public static final int IDLE_TIMEOUT = 30000;
+    private static final int SWEEP_PERIOD = 1000;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_REQUEST_SIZE = 1024 * 1024;
+    // A worker writing a response waits once this much output is queued, until the client has read some of it.
+    private static final int MAX_QUEUED_OUTPUT = 64 * 1024;
+    // Default limit on the output queued for a WebSocket before frames sent to it are dropped.
+    static final int DEFAULT_WEBSOCKET_QUEUE = 256 * 1024;
+    private static final int MAX_WEBSOCKET_MESSAGE = 64 * 1024;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final NanoHTTPD server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final SelectionKey serverKey;
+    // Set when accept() has failed, until the next sweep - only used by the selector thread.
+    private boolean acceptPaused = false;
+
+    NioEngine(NanoHTTPD server, ServerSocketChannel serverChannel) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select(SWEEP_PERIOD);
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // e.g. a CancelledKeyException from a connection that has just closed.
+                        e.printStackTrace();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        // A failure on one connection closes that connection only, not the whole server.
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                conn.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                conn.read();
+                            }
+                        } catch (RuntimeException e) {
+                            conn.close();
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_PERIOD) {
+                    closeIdleConnections(now);
+                    lastSweep = now;
+                    if (acceptPaused) {
+                        acceptPaused = false;
+                        serverKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // Usually out of file descriptors.   The pending connection stays pending, so stop accepting until
+                // the next sweep rather than spinning on it, and let the connections we have carry on.
+                e.printStackTrace();
+                serverKey.interestOps(0);
+                acceptPaused = true;
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                // Responses are written as whole buffers, so there is nothing to gain from Nagle's algorithm, and it
+                // delays small responses on kept-alive connections.
+                channel.socket().setTcpNoDelay(true);
+                Connection conn = new Connection(channel);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                server.registerConnection(channel.socket());
+            } catch (IOException e) {
+                // The client has probably reset the connection already.
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            if (key.attachment() instanceof Connection) {
+                Connection conn = (Connection) key.attachment();
+                try {
+                    if (conn.webSocket != null) {
+                        conn.webSocket.checkAlive(now);
+                    } else if (conn.isIdle() && now - conn.lastActivity > IDLE_TIMEOUT) {
+                        conn.close();
+                    }
+                } catch (RuntimeException e) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    // Run task on the selector thread.
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Return the length of the request at the start of buf (headers plus Content-Length body), 0 if it is not all
+     * there yet, or -1 if it is too big.   A chunked body is not counted - HTTPSession rejects the request and closes
+     * the connection, so the body is never read as the next request.
+     */
+    static int requestLength(byte[] buf, int len) {
+        int headerEnd = indexOf(buf, len, HEADER_END);
+        if (headerEnd < 0) {
+            return (len > NanoHTTPD.HTTPSession.BUFSIZE) ? -1 : 0;
+        }
+        headerEnd += HEADER_END.length;
+        long contentLength = 0;
+        String headers = new String(buf, 0, headerEnd).toLowerCase(Locale.US);
+        int i = headers.indexOf("\ncontent-length:");
+        if (i >= 0) {
+            int eol = headers.indexOf('\r', i + 1);
+            try {
+                contentLength = Long.parseLong(headers.substring(i + 16, eol).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        long total = headerEnd + contentLength;
+        if (contentLength < 0 || total > MAX_REQUEST_SIZE) {
+            return -1;
+        }
+        return (len >= total) ? (int) total : 0;
+    }
+
+    private static int indexOf(byte[] buf, int len, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= len - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static final class FileRegion {
+        final FileChannel channel;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = count;
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final InetAddress remoteAddress;
+        final ConnectionOutputStream output = new ConnectionOutputStream(this);
+        SelectionKey key;
+        long lastActivity = System.currentTimeMillis();
+        long lastReceived = lastActivity;
+        // Set (by a worker) once the connection has been upgraded to a WebSocket.
+        volatile NioWebSocket webSocket;
+        // Received bytes not yet handed to a worker - only used by the selector thread.
+        byte[] inBuf = new byte[READ_BUFFER_SIZE];
+        int inLen = 0;
+        // The rest is guarded by this.
+        final ArrayDeque<Object> outQueue = new ArrayDeque<Object>();
+        long queuedBytes = 0;
+        boolean busy = false;
+        boolean closeWhenDone = false;
+        boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remoteAddress = channel.socket().getInetAddress();
+        }
+
+        synchronized boolean isIdle() {
+            return !busy && outQueue.isEmpty();
+        }
+
+        void read() {
+            readBuffer.clear();
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                if (webSocket != null) {
+                    close();
+                    return;
+                }
+                synchronized (this) {
+                    // Let a request in progress finish writing its response before closing.
+                    if (busy || !outQueue.isEmpty()) {
+                        closeWhenDone = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        return;
+                    }
+                }
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            lastReceived = lastActivity;
+            if (inLen + n > inBuf.length) {
+                byte[] bigger = new byte[Math.max(inBuf.length * 2, inLen + n)];
+                System.arraycopy(inBuf, 0, bigger, 0, inLen);
+                inBuf = bigger;
+            }
+            readBuffer.flip();
+            readBuffer.get(inBuf, inLen, n);
+            inLen += n;
+            if (webSocket != null) {
+                webSocket.readFrames();
+            } else {
+                startNextRequest();
+            }
+        }
+
+        // If a complete request has arrived, and none is in progress, hand it to a worker.
+        void startNextRequest() {
+            synchronized (this) {
+                if (busy || closed || closeWhenDone) {
+                    return;
+                }
+            }
+            int len = requestLength(inBuf, inLen);
+            if (len < 0) {
+                close();
+                return;
+            }
+            if (len == 0) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                return;
+            }
+            final byte[] request = new byte[len];
+            System.arraycopy(inBuf, 0, request, 0, len);
+            System.arraycopy(inBuf, len, inBuf, 0, inLen - len);
+            inLen -= len;
+            synchronized (this) {
+                busy = true;
+            }
+            // Stop reading until this request is done, so that requests are served in order.
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            try {
+                server.getAsyncRunner().exec(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveRequest(request);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                reject();
+            }
+        }
+
+        // Runs on a worker thread.
+        void serveRequest(byte[] request) {
+            NanoHTTPD.TempFileManager tempFileManager = server.getTempFileManagerFactory().create();
+            NanoHTTPD.HTTPSession session = server.new HTTPSession(tempFileManager,
+                    new ByteArrayInputStream(request), output, remoteAddress);
+            try {
+                session.execute();
+                output.flush();
+            } catch (IOException e) {
+                synchronized (this) {
+                    closeWhenDone = true;
+                }
+            } finally {
+                synchronized (this) {
+                    busy = false;
+                }
+                runOnSelector(new Runnable() {
+                    @Override
+                    public void run() {
+                        requestDone();
+                    }
+                });
+            }
+        }
+
+        // The server has no worker for this request - send a 503 and close the connection.
+        void reject() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            NanoHTTPD.Response res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE,
+                    NanoHTTPD.MIME_PLAINTEXT, "Server busy");
+            res.addHeader("Retry-After", "1");
+            res.addHeader("Connection", "close");
+            res.send(bytes);
+            synchronized (this) {
+                busy = false;
+                closeWhenDone = true;
+            }
+            enqueue(ByteBuffer.wrap(bytes.toByteArray()), bytes.size());
+        }
+
+        void requestDone() {
+            if (closed) {
+                return;
+            }
+            synchronized (this) {
+                if (!outQueue.isEmpty()) {
+                    // write() calls us again once the response has gone.
+                    return;
+                }
+                if (closeWhenDone) {
+                    close();
+                    return;
+                }
+            }
+            lastActivity = System.currentTimeMillis();
+            if (webSocket != null) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // Frames may have arrived with the upgrade request.
+                webSocket.readFrames();
+            } else {
+                startNextRequest();
+            }
+        }
+
+        void enqueue(Object item, long size) {
+            synchronized (this) {
+                outQueue.add(item);
+                queuedBytes += size;
+            }
+            runOnSelector(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+
+        // Write as much of the queued output as the socket will take.   Runs on the selector thread.
+        void write() {
+            try {
+                while (true) {
+                    Object item;
+                    synchronized (this) {
+                        item = outQueue.peek();
+                    }
+                    if (item == null) {
+                        break;
+                    }
+                    long written;
+                    boolean done;
+                    if (item instanceof ByteBuffer) {
+                        ByteBuffer buf = (ByteBuffer) item;
+                        written = channel.write(buf);
+                        done = !buf.hasRemaining();
+                    } else {
+                        FileRegion region = (FileRegion) item;
+                        written = region.channel.transferTo(region.position, region.remaining, channel);
+                        region.position += written;
+                        region.remaining -= written;
+                        done = region.remaining <= 0;
+                    }
+                    synchronized (this) {
+                        queuedBytes -= written;
+                        if (done) {
+                            outQueue.poll();
+                        }
+                        notifyAll();
+                    }
+                    if (!done) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            synchronized (this) {
+                if (busy) {
+                    return;
+                }
+            }
+            requestDone();
+        }
+
+        // Wait until no more than maxQueued bytes of output are waiting to be written.
+        synchronized void awaitQueuedBytes(long maxQueued) throws IOException {
+            while (queuedBytes > maxQueued && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                outQueue.clear();
+                queuedBytes = 0;
+                notifyAll();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            server.unRegisterConnection(channel.socket());
+            if (webSocket != null) {
+                webSocket.handler.onClose(webSocket);
+            }
+        }
+    }
+
+    /**
+     * The output stream a worker writes a response to.   Output is buffered until flush(), which queues it for the
+     * selector thread to write, and waits if too much is already queued.
+     */
+    private final class ConnectionOutputStream extends OutputStream
+            implements NanoHTTPD.FileRegionSink, NanoHTTPD.WebSocketSink {
+        private final Connection conn;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        ConnectionOutputStream(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            buffer.write(b, off, len);
+            if (buffer.size() >= MAX_QUEUED_OUTPUT) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.size() > 0) {
+                synchronized (conn) {
+                    if (conn.closed) {
+                        throw new IOException("Connection closed");
+                    }
+                }
+                conn.enqueue(ByteBuffer.wrap(buffer.toByteArray()), buffer.size());
+                buffer.reset();
+            }
+            conn.awaitQueuedBytes(MAX_QUEUED_OUTPUT);
+        }
+
+        @Override
+        public void transferFrom(FileChannel channel, long count) throws IOException {
+            flush();
+            conn.enqueue(new FileRegion(channel, channel.position(), count), count);
+            // The caller closes the file when we return, so wait until it has all been sent.
+            conn.awaitQueuedBytes(0);
+        }
+
+        @Override
+        public void upgrade(NanoHTTPD.WebSocketHandler handler) throws IOException {
+            // The 101 response goes first, then anything onOpen() sends.
+            flush();
+            NioWebSocket ws = new NioWebSocket(conn, handler);
+            conn.webSocket = ws;
+            handler.onOpen(ws);
+        }
+
+        @Override
+        public void close() {
+            // HTTPSession closes the output stream after an error response, meaning the connection should close.
+            synchronized (conn) {
+                conn.closeWhenDone = true;
+            }
+        }
+    }
+
+    /**
+     * The WebSocket a connection has been upgraded to.   Frames from the client are read by the selector thread;
+     * frames to the client are queued from any thread, and dropped rather than waited for if the client is not
+     * keeping up.
+     */
+    private final class NioWebSocket implements NanoHTTPD.WebSocket {
+        final Connection conn;
+        final NanoHTTPD.WebSocketHandler handler;
+        private volatile long maxQueuedBytes = DEFAULT_WEBSOCKET_QUEUE;
+        private long droppedFrames = 0;
+        private boolean closeSent = false;
+        // A fragmented message being received - only used by the selector thread.
+        private ByteArrayOutputStream message;
+        private boolean messageIsText;
+        private long lastPing = System.currentTimeMillis();
+
+        NioWebSocket(Connection conn, NanoHTTPD.WebSocketHandler handler) {
+            this.conn = conn;
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean sendFrame(byte[] frame) {
+            synchronized (conn) {
+                if (conn.closed || closeSent) {
+                    return false;
+                }
+                if (conn.queuedBytes + frame.length > maxQueuedBytes) {
+                    droppedFrames++;
+                    return false;
+                }
+            }
+            // Each connection gets its own ByteBuffer, but they all share the frame's bytes.
+            conn.enqueue(ByteBuffer.wrap(frame), frame.length);
+            return true;
+        }
+
+        @Override
+        public boolean sendBinary(byte[] payload) {
+            return sendFrame(NanoHTTPD.makeWebSocketFrame(OPCODE_BINARY, payload));
+        }
+
+        @Override
+        public boolean sendText(String text) {
+            try {
+                return sendFrame(NanoHTTPD.makeWebSocketFrame(OPCODE_TEXT, text.getBytes("UTF-8")));
+            } catch (UnsupportedEncodingException e) {
+                return false;
+            }
+        }
+
+        // Control frames are small, and are queued even if data frames are being dropped.
+        private void sendControl(int opcode, byte[] payload) {
+            synchronized (conn) {
+                if (conn.closed || closeSent) {
+                    return;
+                }
+                if (opcode == OPCODE_CLOSE) {
+                    closeSent = true;
+                    conn.closeWhenDone = true;
+                }
+            }
+            byte[] frame = NanoHTTPD.makeWebSocketFrame(opcode, payload);
+            conn.enqueue(ByteBuffer.wrap(frame), frame.length);
+            if (opcode == OPCODE_CLOSE) {
+                // Close at once if nothing is queued - otherwise write() does it once the close frame has gone.
+                runOnSelector(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (conn) {
+                            if (conn.busy) {
+                                // serveRequest() calls requestDone() when it has finished.
+                                return;
+                            }
+                        }
+                        conn.requestDone();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void close(int code, String reason) {
+            byte[] reasonBytes;
+            try {
+                reasonBytes = (reason != null) ? reason.getBytes("UTF-8") : new byte[0];
+            } catch (UnsupportedEncodingException e) {
+                reasonBytes = new byte[0];
+            }
+            int reasonLen = Math.min(reasonBytes.length, 123);
+            byte[] payload = new byte[2 + reasonLen];
+            payload[0] = (byte) (code >> 8);
+            payload[1] = (byte) code;
+            System.arraycopy(reasonBytes, 0, payload, 2, reasonLen);
+            sendControl(OPCODE_CLOSE, payload);
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (conn) {
+                return !conn.closed && !closeSent;
+            }
+        }
+
+        @Override
+        public InetAddress getRemoteAddress() {
+            return conn.remoteAddress;
+        }
+
+        @Override
+        public void setMaxQueuedBytes(long maxQueuedBytes) {
+            this.maxQueuedBytes = maxQueuedBytes;
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            synchronized (conn) {
+                return conn.queuedBytes;
+            }
+        }
+
+        @Override
+        public long getDroppedFrames() {
+            synchronized (conn) {
+                return droppedFrames;
+            }
+        }
+
+        // Ping a client that has sent nothing for a while, and close the connection if it does not answer.
+        // Runs on the selector thread.
+        void checkAlive(long now) {
+            if (now - conn.lastReceived > 2 * IDLE_TIMEOUT) {
+                conn.close();
+            } else if (now - conn.lastReceived > IDLE_TIMEOUT && now - lastPing > IDLE_TIMEOUT) {
+                lastPing = now;
+                sendControl(OPCODE_PING, new byte[0]);
+            }
+        }
+
+        // Handle the complete frames in the connection's input buffer.   Runs on the selector thread.
+        void readFrames() {
+            byte[] buf = conn.inBuf;
+            while (conn.inLen >= 2 && !conn.closed) {
+                boolean fin = (buf[0] & 0x80) != 0;
+                int opcode = buf[0] & 0x0f;
+                boolean masked = (buf[1] & 0x80) != 0;
+                long len = buf[1] & 0x7f;
+                int pos = 2;
+                if (len == 126) {
+                    if (conn.inLen < 4) {
+                        return;
+                    }
+                    len = ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
+                    pos = 4;
+                } else if (len == 127) {
+                    if (conn.inLen < 10) {
+                        return;
+                    }
+                    len = 0;
+                    for (int i = 2; i < 10; i++) {
+                        len = (len << 8) | (buf[i] & 0xff);
+                    }
+                    pos = 10;
+                }
+                if (!masked) {
+                    // Clients must mask their frames.
+                    fail(CLOSE_PROTOCOL_ERROR);
+                    return;
+                }
+                if (len < 0 || len > MAX_WEBSOCKET_MESSAGE) {
+                    fail(CLOSE_TOO_BIG);
+                    return;
+                }
+                int frameLen = pos + 4 + (int) len;
+                if (conn.inLen < frameLen) {
+                    return;
+                }
+                byte[] payload = new byte[(int) len];
+                for (int i = 0; i < len; i++) {
+                    payload[i] = (byte) (buf[pos + 4 + i] ^ buf[pos + (i & 3)]);
+                }
+                System.arraycopy(buf, frameLen, buf, 0, conn.inLen - frameLen);
+                conn.inLen -= frameLen;
+                handleFrame(fin, opcode, payload);
+            }
+        }
+
+        private void handleFrame(boolean fin, int opcode, byte[] payload) {
+            switch (opcode) {
+                case OPCODE_TEXT:
+                case OPCODE_BINARY:
+                    if (message != null) {
+                        fail(CLOSE_PROTOCOL_ERROR);
+                        return;
+                    }
+                    messageIsText = (opcode == OPCODE_TEXT);
+                    if (fin) {
+                        handler.onMessage(this, payload, messageIsText);
+                    } else {
+                        message = new ByteArrayOutputStream();
+                        message.write(payload, 0, payload.length);
+                    }
+                    break;
+                case OPCODE_CONTINUATION:
+                    if (message == null) {
+                        fail(CLOSE_PROTOCOL_ERROR);
+                        return;
+                    }
+                    message.write(payload, 0, payload.length);
+                    if (message.size() > MAX_WEBSOCKET_MESSAGE) {
+                        fail(CLOSE_TOO_BIG);
+                        return;
+                    }
+                    if (fin) {
+                        byte[] whole = message.toByteArray();
+                        message = null;
+                        handler.onMessage(this, whole, messageIsText);
+                    }
+                    break;
+                case OPCODE_PING:
+                    sendControl(OPCODE_PONG, payload);
+                    break;
+                case OPCODE_PONG:
+                    break;
+                case OPCODE_CLOSE:
+                    // Echo the client's status code, then close once it has been sent.
+                    sendControl(OPCODE_CLOSE, (payload.length >= 2) ? new byte[]{payload[0], payload[1]} : new byte[0]);
+                    stopReading();
+                    break;
+                default:
+                    fail(CLOSE_PROTOCOL_ERROR);
+            }
+        }
+
+        private void fail(int code) {
+            close(code, null);
+            stopReading();
+        }
+
+        private void stopReading() {
+            conn.inLen = 0;
+            if (conn.key.isValid()) {
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+    }
+}
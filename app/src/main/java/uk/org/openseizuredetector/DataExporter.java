@@ -0,0 +1,426 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * DataExporter writes the datapoints in a time range of the local database to a CSV file and/or a compact columnar
+ * binary file, on its own background thread, reporting progress to a listener.   SdServer owns the DataExporter, so
+ * an export carries on while the activity that started it is recreated (the new activity just sets a new listener).
+ * Rows are read from LogManager BATCH_SIZE at a time (a keyset page, see LogManager.getRowsPage()), and the columnar
+ * file is written a row group at a time, so the memory used does not depend on the length of the time range.
+ * <p>
+ * The columnar file (COLUMNAR_EXTENSION) is laid out like a (much simplified) Parquet file:
+ * "OSDC", version (byte), number of columns (short), then for each column its name (UTF) and type (byte);
+ * then row groups of up to ROW_GROUP_SIZE rows, each the number of rows (int) followed, for each column, by the
+ * length of its data (int) and the data;
+ * then the footer - for each row group its file offset (long), number of rows (int) and first and last time (long),
+ * then the number of row groups (int), the length of the footer (int) and "OSDC".
+ * TYPE_TIME columns hold seconds since the epoch, and TYPE_INT columns integers, each as the zigzag varint of the
+ * difference from the previous value in the row group, so a time column with a 5 second period takes one byte a row.
+ * TYPE_FLOAT columns hold little endian 32 bit floats (NaN where a datapoint has no value).
+ * All integers outside the column data are big endian.
+ */
+public class DataExporter {
+    private static final String TAG = "DataExporter";
+    public static final int FORMAT_CSV = 1;
+    public static final int FORMAT_COLUMNAR = 2;
+    public static final String CSV_EXTENSION = ".csv";
+    public static final String COLUMNAR_EXTENSION = ".osdc";
+    static final byte[] MAGIC = {'O', 'S', 'D', 'C'};
+    static final int VERSION = 1;
+    static final byte TYPE_TIME = 0;
+    static final byte TYPE_INT = 1;
+    static final byte TYPE_FLOAT = 2;
+    static final int BATCH_SIZE = 500;
+    static final int ROW_GROUP_SIZE = 4096;
+    static final int SPEC_BINS = 10;
+    // The numeric fields of the datapoint JSON (see SdData.toDatapointJSON()) that are exported.   hr and o2Sat are
+    // doubles in SdData, so they are exported as floats.
+    static final String[] INT_FIELDS = {"alarmState"};
+    static final String[] FLOAT_FIELDS = {"hr", "o2Sat", "maxVal", "maxFreq", "specPower", "roiPower", "roiRatio"};
+    private static final String[] DB_COLUMNS = {"id", "dataTime", "status", "dataJSON"};
+
+    private final Executor mCallbackExecutor;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean mCancelled = false;
+    private volatile boolean mExporting = false;
+    private volatile Listener mListener;
+
+    public interface Listener {
+        /**
+         * Called with the fraction (0 to 1) of the time range exported so far, and the number of rows.
+         */
+        void onProgress(double fraction, long nRows);
+
+        /**
+         * Called when the export has finished, with the files written, or with error set if it failed (in which case
+         * any partly written files have been deleted).
+         */
+        void onFinished(Result result, Exception error);
+    }
+
+    public static class Result {
+        public long nRows;
+        public long elapsedMs;
+        public File csvFile;
+        public File columnarFile;
+
+        public double getRowsPerSec() {
+            return (elapsedMs > 0) ? nRows * 1000.0 / elapsedMs : 0;
+        }
+    }
+
+    /**
+     * @param callbackExecutor runs the Listener callbacks - normally posts them to the UI thread.
+     */
+    public DataExporter(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Start exporting the datapoints with dataTime from fromDateStr up to toDateStr ('yyyy-MM-dd HH:mm:ss') to
+     * baseName + CSV_EXTENSION and/or baseName + COLUMNAR_EXTENSION in dir, as selected by formats.   The rows are
+     * read through lm, which is passed in for each export because SdServer replaces its LogManager when it restarts.
+     */
+    public void export(LogManager lm, String fromDateStr, String toDateStr, File dir, String baseName, int formats,
+                       Listener listener) {
+        mCancelled = false;
+        mExporting = true;
+        mListener = listener;
+        mExecutor.execute(() -> {
+            Result result = new Result();
+            if ((formats & FORMAT_CSV) != 0) result.csvFile = new File(dir, baseName + CSV_EXTENSION);
+            if ((formats & FORMAT_COLUMNAR) != 0) result.columnarFile = new File(dir, baseName + COLUMNAR_EXTENSION);
+            Exception error = null;
+            try {
+                run(lm, fromDateStr, toDateStr, result);
+            } catch (Exception e) {
+                Log.e(TAG, "export() - error exporting " + baseName + " - " + e.toString());
+                if (result.csvFile != null) result.csvFile.delete();
+                if (result.columnarFile != null) result.columnarFile.delete();
+                error = e;
+            }
+            final Exception err = error;
+            mCallbackExecutor.execute(() -> {
+                mExporting = false;
+                Listener l = mListener;
+                if (l != null) l.onFinished(result, err);
+            });
+        });
+    }
+
+    /**
+     * Set the listener for the export in progress, or null to stop receiving its callbacks (while the activity
+     * that started it is being recreated, for example).   The export carries on either way.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return true from the start of an export until its onFinished() callback.
+     */
+    public boolean isExporting() {
+        return mExporting;
+    }
+
+    private void notifyProgress(double fraction, long nRows) {
+        mCallbackExecutor.execute(() -> {
+            Listener l = mListener;
+            if (l != null) l.onProgress(fraction, nRows);
+        });
+    }
+
+    /**
+     * Stop the export in progress - it finishes with an error.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    private void run(LogManager lm, String fromDateStr, String toDateStr, Result result) throws Exception {
+        long t0 = System.currentTimeMillis();
+        long fromSecs = parseDataTime(fromDateStr);
+        long toSecs = parseDataTime(toDateStr);
+        Writer csv = null;
+        ColumnarWriter columnar = null;
+        try {
+            if (result.csvFile != null) {
+                csv = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(result.csvFile),
+                        StandardCharsets.UTF_8), 64 * 1024);
+                writeCsvHeader(csv);
+            }
+            if (result.columnarFile != null) columnar = new ColumnarWriter(result.columnarFile);
+            String afterDateStr = fromDateStr;
+            long afterId = -1;
+            double[] floats = new double[FLOAT_FIELDS.length + SPEC_BINS];
+            long[] ints = new long[INT_FIELDS.length];
+            long lastProgressMs = 0;
+            while (true) {
+                if (mCancelled) throw new IOException("Export cancelled");
+                ArrayList<String[]> rows = lm.getRowsPage(LogManager.mDpTableName, DB_COLUMNS, fromDateStr,
+                        toDateStr, afterDateStr, afterId, BATCH_SIZE).get();
+                if (rows == null) throw new IOException("Error reading datapoints");
+                long timeSecs = fromSecs;
+                for (String[] row : rows) {
+                    long id = Long.parseLong(row[0]);
+                    timeSecs = parseDataTime(row[1]);
+                    long status = (row[2] != null) ? Long.parseLong(row[2]) : 0;
+                    parseDataJson(row[3], ints, floats);
+                    if (csv != null) writeCsvRow(csv, id, row[1], status, ints, floats);
+                    if (columnar != null) columnar.addRow(id, timeSecs, status, ints, floats);
+                    result.nRows++;
+                    afterId = id;
+                    afterDateStr = row[1];
+                }
+                if (rows.size() < BATCH_SIZE) break;
+                long now = System.currentTimeMillis();
+                if (now - lastProgressMs > 250) {
+                    lastProgressMs = now;
+                    double fraction = (toSecs > fromSecs)
+                            ? Math.min(1.0, (double) (timeSecs - fromSecs) / (toSecs - fromSecs)) : 0;
+                    notifyProgress(fraction, result.nRows);
+                }
+            }
+            if (csv != null) {
+                csv.close();
+                csv = null;
+            }
+            if (columnar != null) {
+                columnar.close();
+                columnar = null;
+            }
+        } finally {
+            // Only reached with the files still open if there has been an error.
+            if (csv != null) csv.close();
+            if (columnar != null) columnar.abort();
+        }
+        result.elapsedMs = System.currentTimeMillis() - t0;
+        Log.i(TAG, "run() - exported " + result.nRows + " datapoints in " + result.elapsedMs + " ms ("
+                + Math.round(result.getRowsPerSec()) + " rows/s)");
+        notifyProgress(1.0, result.nRows);
+    }
+
+    /**
+     * Return a dataTime ('yyyy-MM-dd HH:mm:ss', local time, as written by LogManager) as seconds since the epoch.
+     * Parsed by hand, as SimpleDateFormat would be most of the cost of exporting a row.
+     */
+    static long parseDataTime(String dataTime) {
+        Calendar cal = CALENDAR.get();
+        cal.clear();
+        cal.set(Integer.parseInt(dataTime.substring(0, 4)), Integer.parseInt(dataTime.substring(5, 7)) - 1,
+                Integer.parseInt(dataTime.substring(8, 10)), Integer.parseInt(dataTime.substring(11, 13)),
+                Integer.parseInt(dataTime.substring(14, 16)), Integer.parseInt(dataTime.substring(17, 19)));
+        return cal.getTimeInMillis() / 1000;
+    }
+
+    private static final ThreadLocal<Calendar> CALENDAR = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            return Calendar.getInstance();
+        }
+    };
+
+    // Fill ints and floats from a datapoint's JSON - fields that are missing are 0 (ints) or NaN (floats).
+    private static void parseDataJson(String dataJson, long[] ints, double[] floats) {
+        Arrays.fill(ints, 0);
+        Arrays.fill(floats, Double.NaN);
+        if (dataJson == null) return;
+        try {
+            JSONObject obj = new JSONObject(dataJson);
+            for (int i = 0; i < INT_FIELDS.length; i++) {
+                ints[i] = obj.optLong(INT_FIELDS[i], 0);
+            }
+            for (int i = 0; i < FLOAT_FIELDS.length; i++) {
+                floats[i] = obj.optDouble(FLOAT_FIELDS[i], Double.NaN);
+            }
+            JSONArray spec = obj.optJSONArray("simpleSpec");
+            for (int i = 0; spec != null && i < SPEC_BINS && i < spec.length(); i++) {
+                floats[FLOAT_FIELDS.length + i] = spec.optDouble(i, Double.NaN);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "parseDataJson() - invalid datapoint JSON - " + e.toString());
+        }
+    }
+
+    private static void writeCsvHeader(Writer w) throws IOException {
+        w.write("id,dataTime,status");
+        for (String f : INT_FIELDS) w.write("," + f);
+        for (String f : FLOAT_FIELDS) w.write("," + f);
+        for (int i = 0; i < SPEC_BINS; i++) w.write(",spec" + i);
+        w.write('\n');
+    }
+
+    private static void writeCsvRow(Writer w, long id, String dataTime, long status, long[] ints, double[] floats)
+            throws IOException {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append(id).append(',').append(dataTime).append(',').append(status);
+        for (long v : ints) sb.append(',').append(v);
+        for (double v : floats) {
+            sb.append(',');
+            if (Double.isNaN(v)) continue;
+            if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+                sb.append((long) v);
+            } else {
+                sb.append((float) v);
+            }
+        }
+        sb.append('\n');
+        w.write(sb.toString());
+    }
+
+    /**
+     * Writes the columnar file described above, buffering one row group at a time.
+     */
+    static class ColumnarWriter {
+        private final File mFile;
+        private final DataOutputStream mOut;
+        private final int mNColumns = 3 + INT_FIELDS.length + FLOAT_FIELDS.length + SPEC_BINS;
+        private final ByteArrayOutputStream[] mColumns = new ByteArrayOutputStream[mNColumns];
+        private final long[] mPrev = new long[mNColumns];
+        private final ByteArrayOutputStream mFooter = new ByteArrayOutputStream();
+        private long mOffset;
+        private int mRows = 0;
+        private int mGroups = 0;
+        private long mFirstTime;
+        private long mLastTime;
+
+        ColumnarWriter(File file) throws IOException {
+            mFile = file;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            mOut.write(MAGIC);
+            mOut.writeByte(VERSION);
+            mOut.writeShort(mNColumns);
+            writeColumn("id", TYPE_INT);
+            writeColumn("dataTime", TYPE_TIME);
+            writeColumn("status", TYPE_INT);
+            for (String f : INT_FIELDS) writeColumn(f, TYPE_INT);
+            for (String f : FLOAT_FIELDS) writeColumn(f, TYPE_FLOAT);
+            for (int i = 0; i < SPEC_BINS; i++) writeColumn("spec" + i, TYPE_FLOAT);
+            for (int i = 0; i < mNColumns; i++) mColumns[i] = new ByteArrayOutputStream(ROW_GROUP_SIZE * 4);
+            mOffset = mOut.size();
+        }
+
+        private void writeColumn(String name, byte type) throws IOException {
+            mOut.writeUTF(name);
+            mOut.writeByte(type);
+        }
+
+        void addRow(long id, long timeSecs, long status, long[] ints, double[] floats) throws IOException {
+            if (mRows == 0) mFirstTime = timeSecs;
+            mLastTime = timeSecs;
+            int c = 0;
+            putDelta(c++, id);
+            putDelta(c++, timeSecs);
+            putDelta(c++, status);
+            for (long v : ints) putDelta(c++, v);
+            for (double v : floats) {
+                int bits = Float.floatToIntBits((float) v);
+                ByteArrayOutputStream col = mColumns[c++];
+                col.write(bits);
+                col.write(bits >>> 8);
+                col.write(bits >>> 16);
+                col.write(bits >>> 24);
+            }
+            if (++mRows >= ROW_GROUP_SIZE) flushRowGroup();
+        }
+
+        // Write v as the zigzag varint of its difference from the previous value in column c.
+        private void putDelta(int c, long v) {
+            long d = v - mPrev[c];
+            mPrev[c] = v;
+            long z = (d << 1) ^ (d >> 63);
+            ByteArrayOutputStream col = mColumns[c];
+            while ((z & ~0x7fL) != 0) {
+                col.write((int) ((z & 0x7f) | 0x80));
+                z >>>= 7;
+            }
+            col.write((int) z);
+        }
+
+        private void flushRowGroup() throws IOException {
+            if (mRows == 0) return;
+            DataOutputStream footer = new DataOutputStream(mFooter);
+            footer.writeLong(mOffset);
+            footer.writeInt(mRows);
+            footer.writeLong(mFirstTime);
+            footer.writeLong(mLastTime);
+            mOut.writeInt(mRows);
+            for (int i = 0; i < mNColumns; i++) {
+                mOut.writeInt(mColumns[i].size());
+                mColumns[i].writeTo(mOut);
+                mColumns[i].reset();
+                mPrev[i] = 0;
+            }
+            mOffset = mOut.size();
+            mRows = 0;
+            mGroups++;
+        }
+
+        void close() throws IOException {
+            flushRowGroup();
+            mOut.write(mFooter.toByteArray());
+            mOut.writeInt(mGroups);
+            mOut.writeInt(mFooter.size() + 4);
+            mOut.write(MAGIC);
+            mOut.close();
+        }
+
+        void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "abort() - " + e.toString());
+            }
+            mFile.delete();
+        }
+    }
+}
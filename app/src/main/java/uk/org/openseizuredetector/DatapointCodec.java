@@ -0,0 +1,115 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * DatapointCodec produces the compact datapoint upload format (COMPACT_FORMAT), used instead of the original format
+ * when the server says it supports it.
+ * The original format sends the datapoint as a JSON string inside the dataJSON field, so the raw data arrays of
+ * decimal numbers are escaped and encoded twice.   The compact format sends the datapoint as a nested JSON object, and
+ * replaces each raw data array with an object {"enc": "int16-delta", "n": <length>, "b64": <base64 data>}, where the
+ * data is the samples rounded to 16 bit integers (the accelerometer values are in milli-g, so this loses nothing
+ * significant), each stored as the difference from the previous sample, little endian.   Differences are taken
+ * modulo 2^16, so decoding is exact for any 16 bit values, and small differences compress well with gzip.
+ */
+public class DatapointCodec {
+    private static final String TAG = "DatapointCodec";
+    public static final String COMPACT_FORMAT = "osd-compact-1";
+    public static final String INT16_DELTA = "int16-delta";
+    private static final String[] RAW_KEYS = {"rawData", "rawData3D"};
+
+    /**
+     * Return the compact upload item for the datapoint dataObj (a row of the datapoints table, with dataJSON holding
+     * the datapoint data as a JSON string).
+     */
+    public static JSONObject makeCompactDatapointJson(JSONObject dataObj, String eventId, Object idempotencyKey)
+            throws JSONException {
+        JSONObject data = new JSONObject(dataObj.toString());
+        data.remove(WebApiConnection.IDEMPOTENCY_KEY);
+        encodeRawArrays(data);
+        String dataJSON = data.optString("dataJSON", null);
+        if (dataJSON != null) {
+            try {
+                JSONObject inner = new JSONObject(dataJSON);
+                encodeRawArrays(inner);
+                data.put("dataJSON", inner);
+            } catch (JSONException e) {
+                Log.w(TAG, "makeCompactDatapointJson() - dataJSON is not a JSON object - sending it unchanged");
+            }
+        }
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("eventId", String.valueOf(eventId));
+        jsonObject.put("dataTime", dataObj.getString("dataTime"));
+        jsonObject.put("dataFormat", COMPACT_FORMAT);
+        jsonObject.put("data", data);
+        if (idempotencyKey != null) {
+            jsonObject.put(WebApiConnection.IDEMPOTENCY_KEY, idempotencyKey);
+        }
+        return jsonObject;
+    }
+
+    private static void encodeRawArrays(JSONObject obj) throws JSONException {
+        for (String key : RAW_KEYS) {
+            JSONArray arr = obj.optJSONArray(key);
+            if (arr == null) continue;
+            JSONObject enc = new JSONObject();
+            enc.put("enc", INT16_DELTA);
+            enc.put("n", arr.length());
+            enc.put("b64", encodeInt16Delta(arr));
+            obj.put(key, enc);
+        }
+    }
+
+    static String encodeInt16Delta(JSONArray values) {
+        ByteBuffer buf = ByteBuffer.allocate(2 * values.length()).order(ByteOrder.LITTLE_ENDIAN);
+        short prev = 0;
+        for (int i = 0; i < values.length(); i++) {
+            long v = Math.round(values.optDouble(i, 0));
+            short s = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+            buf.putShort((short) (s - prev));
+            prev = s;
+        }
+        return Base64.encodeToString(buf.array(), Base64.NO_WRAP);
+    }
+
+    static double[] decodeInt16Delta(String b64) {
+        ByteBuffer buf = ByteBuffer.wrap(Base64.decode(b64, Base64.NO_WRAP)).order(ByteOrder.LITTLE_ENDIAN);
+        double[] values = new double[buf.remaining() / 2];
+        short prev = 0;
+        for (int i = 0; i < values.length; i++) {
+            prev = (short) (prev + buf.getShort());
+            values[i] = prev;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * DatapointWal is a small crash-safe write ahead log for datapoints.   Every datapoint is written here (and fsync'ed)
+ * before it is queued for the main database, so if the process is killed before the database insert happens the
+ * datapoint can be replayed the next time LogManager starts.
+ * <p>
+ * The log is a single file holding a header followed by variable length records, each holding:
+ * - payload length (int)
+ * - CRC32 of the sequence number and payload (int)
+ * - sequence number (long)
+ * - payload
+ * The header records the sequence number of the last record known to be safely in the database (the checkpoint);
+ * on start-up any valid record newer than the checkpoint is returned by readUncommitted() for replay.
+ * Whenever every record has been checkpointed the next one is written straight after the header again, so the file
+ * only grows while the database is behind, and never beyond maxSize.   Anything left after the last record written
+ * is either older than the checkpoint or fails its checksum, so is ignored.
+ */
+public class DatapointWal {
+    private static final String TAG = "DatapointWal";
+    private static final int MAGIC = 0x4F534457;   // "OSDW"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int COMMITTED_SEQ_POS = 16;
+    private final int mMaxSize;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private long mWritePos = HEADER_SIZE;
+    private long mScanPos;   // Just after the last record scan() returned.
+    private long mLastSeq = 0;
+    private long mCommittedSeq = 0;
+
+    public static class Record {
+        public final long seq;
+        public final byte[] payload;
+
+        Record(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    public DatapointWal(File file, int maxSize) throws IOException {
+        Log.d(TAG, "DatapointWal() - file=" + file + ", maxSize=" + maxSize);
+        mMaxSize = maxSize;
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+        if (mFile.length() >= HEADER_SIZE) {
+            mChannel.read(hdr, 0);
+            hdr.flip();
+        }
+        if (hdr.remaining() == HEADER_SIZE && hdr.getInt(0) == MAGIC && hdr.getInt(4) == VERSION) {
+            mCommittedSeq = hdr.getLong(COMMITTED_SEQ_POS);
+            for (Record r : scan()) {
+                if (r.seq > mLastSeq) {
+                    mLastSeq = r.seq;
+                    // Carry on after the newest record, so it is not overwritten before it has been replayed.
+                    mWritePos = mScanPos;
+                }
+            }
+            if (mLastSeq < mCommittedSeq) mLastSeq = mCommittedSeq;
+        } else {
+            Log.i(TAG, "DatapointWal() - initialising new log file");
+            mFile.setLength(0);
+            hdr.clear();
+            hdr.putInt(0, MAGIC);
+            hdr.putInt(4, VERSION);
+            hdr.putInt(8, mMaxSize);
+            hdr.putLong(COMMITTED_SEQ_POS, 0);
+            mChannel.write(hdr, 0);
+            mChannel.force(true);
+        }
+        Log.i(TAG, "DatapointWal() - lastSeq=" + mLastSeq + ", committedSeq=" + mCommittedSeq);
+    }
+
+    /**
+     * Write payload to the log and fsync it.
+     *
+     * @return the sequence number of the new record - pass it to markCommitted() once the datapoint is in the database.
+     * @throws IOException if the write fails, or the records not yet in the database would take the log over maxSize.
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        if (mLastSeq == mCommittedSeq) {
+            mWritePos = HEADER_SIZE;
+        }
+        int recSize = RECORD_HEADER_SIZE + payload.length;
+        if (mWritePos + recSize > mMaxSize) {
+            throw new IOException("Write ahead log full - " + (mLastSeq - mCommittedSeq)
+                    + " records waiting for the database, new record of " + payload.length + " bytes");
+        }
+        long seq = mLastSeq + 1;
+        CRC32 crc = new CRC32();
+        crc.update(longToBytes(seq));
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(recSize);
+        buf.putInt(payload.length);
+        buf.putInt((int) crc.getValue());
+        buf.putLong(seq);
+        buf.put(payload);
+        buf.flip();
+        long pos = mWritePos;
+        while (buf.hasRemaining()) {
+            pos += mChannel.write(buf, pos);
+        }
+        mChannel.force(false);
+        mWritePos = pos;
+        mLastSeq = seq;
+        return seq;
+    }
+    /**
+     * Record that all records up to and including seq are safely stored in the database.
+     */
+    public synchronized void markCommitted(long seq) throws IOException {
+        if (seq <= mCommittedSeq) return;
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putLong(0, seq);
+        mChannel.write(b, COMMITTED_SEQ_POS);
+        mChannel.force(false);
+        mCommittedSeq = seq;
+    }
+
+    /**
+     * Return the valid records newer than the checkpoint, oldest first.
+     */
+    public synchronized List<Record> readUncommitted() throws IOException {
+        ArrayList<Record> recs = new ArrayList<>();
+        for (Record r : scan()) {
+            if (r.seq > mCommittedSeq) recs.add(r);
+        }
+        Collections.sort(recs, (Record a, Record b) -> Long.compare(a.seq, b.seq));
+        return recs;
+    }
+
+    public synchronized long getCommittedSeq() {
+        return mCommittedSeq;
+    }
+
+    public synchronized long getLastSeq() {
+        return mLastSeq;
+    }
+
+    public synchronized void close() {
+        try {
+            mChannel.close();
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() - " + e.toString());
+        }
+    }
+
+    /**
+     * Read the records from the start of the log, stopping at the first one without a valid checksum (a partially
+     * written record, or the remains of an older one).
+     */
+    private List<Record> scan() throws IOException {
+        ArrayList<Record> recs = new ArrayList<>();
+        long fileSize = mChannel.size();
+        long pos = HEADER_SIZE;
+        ByteBuffer recHdr = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (pos + RECORD_HEADER_SIZE <= fileSize) {
+            recHdr.clear();
+            readFully(recHdr, pos);
+            int len = recHdr.getInt(0);
+            if (len <= 0 || pos + RECORD_HEADER_SIZE + len > Math.min(fileSize, mMaxSize)) break;
+            int storedCrc = recHdr.getInt(4);
+            long seq = recHdr.getLong(8);
+            ByteBuffer payload = ByteBuffer.allocate(len);
+            readFully(payload, pos + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(longToBytes(seq));
+            crc.update(payload.array());
+            if ((int) crc.getValue() != storedCrc) break;
+            recs.add(new Record(seq, payload.array()));
+            pos += RECORD_HEADER_SIZE + len;
+            mScanPos = pos;
+        }
+        return recs;
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (mChannel.read(buf, pos + buf.position()) < 0) break;
+        }
+    }
+
+    private static byte[] longToBytes(long v) {
+        return ByteBuffer.allocate(8).putLong(v).array();
+    }
+}
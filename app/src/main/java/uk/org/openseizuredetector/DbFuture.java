@@ -0,0 +1,162 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * DbFuture is a minimal CompletableFuture-like result holder for database operations run by OsdDbExecutor.
+ * (CompletableFuture itself needs API 24, and we still support API 23).
+ * Callbacks registered with thenAccept() are run on the callback executor supplied when the future is
+ * created (normally the UI thread), so callers can update views directly, as they could with AsyncTask.onPostExecute().
+ * Transformations registered with thenApply() or thenCompose() run on whichever thread completes the future, so
+ * they may safely do further database work.
+ */
+public class DbFuture<T> {
+    private final Executor mCallbackExecutor;
+    private final ArrayList<Runnable> mListeners = new ArrayList<>();
+    private boolean mDone = false;
+    private T mValue;
+    private Throwable mError;
+
+    public interface Callback<T> {
+        void accept(T retVal);
+    }
+
+    public interface Transform<T, U> {
+        U apply(T val) throws Exception;
+    }
+
+    public DbFuture(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Return a future that is already complete with value val.
+     */
+    public static <T> DbFuture<T> completed(Executor callbackExecutor, T val) {
+        DbFuture<T> f = new DbFuture<>(callbackExecutor);
+        f.complete(val);
+        return f;
+    }
+
+    public void complete(T val) {
+        finish(val, null);
+    }
+
+    public void completeExceptionally(Throwable t) {
+        finish(null, t);
+    }
+
+    private void finish(T val, Throwable t) {
+        ArrayList<Runnable> listeners;
+        synchronized (this) {
+            if (mDone) return;
+            mValue = val;
+            mError = t;
+            mDone = true;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+            notifyAll();
+        }
+        for (Runnable r : listeners) r.run();
+    }
+
+    private void addListener(Runnable r) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(r);
+                return;
+            }
+        }
+        r.run();
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Call callback with the result on the callback executor.   If the operation failed, callback receives null,
+     * which is the same convention as the old SelectQueryTask callbacks.
+     */
+    public DbFuture<T> thenAccept(Callback<T> callback) {
+        addListener(() -> mCallbackExecutor.execute(() -> callback.accept(mError == null ? mValue : null)));
+        return this;
+    }
+
+    /**
+     * Return a new future that completes with fn applied to the result of this one.
+     */
+    public <U> DbFuture<U> thenApply(Transform<T, U> fn) {
+        DbFuture<U> next = new DbFuture<>(mCallbackExecutor);
+        addListener(() -> {
+            if (mError != null) {
+                next.completeExceptionally(mError);
+                return;
+            }
+            try {
+                next.complete(fn.apply(mValue));
+            } catch (Exception e) {
+                next.completeExceptionally(e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Return a new future that completes when the future returned by fn (applied to the result of this one) completes.
+     */
+    public <U> DbFuture<U> thenCompose(Transform<T, DbFuture<U>> fn) {
+        DbFuture<U> next = new DbFuture<>(mCallbackExecutor);
+        addListener(() -> {
+            if (mError != null) {
+                next.completeExceptionally(mError);
+                return;
+            }
+            try {
+                DbFuture<U> inner = fn.apply(mValue);
+                inner.addListener(() -> {
+                    if (inner.mError != null) next.completeExceptionally(inner.mError);
+                    else next.complete(inner.mValue);
+                });
+            } catch (Exception e) {
+                next.completeExceptionally(e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Block until the result is available - must not be called on the UI thread.
+     */
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (!mDone) wait();
+            if (mError != null) throw new ExecutionException(mError);
+            return mValue;
+        }
+    }
+}
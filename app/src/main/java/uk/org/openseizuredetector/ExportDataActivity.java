@@ -10,8 +10,12 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.DatePicker;
 import android.widget.EditText;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.TimePicker;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
 public class ExportDataActivity extends AppCompatActivity
@@ -23,6 +27,8 @@ public class ExportDataActivity extends AppCompatActivity
     EditText mDateTxt;
     EditText mTimeTxt;
     EditText mDurationTxt;
+    ProgressBar mProgressBar;
+    TextView mStatusTxt;
 
     int mYear;
     int mMonth;
@@ -33,6 +39,8 @@ public class ExportDataActivity extends AppCompatActivity
 
     OsdUtil mUtil;
     Handler mHandler;
+    SdServiceConnection mConnection;
+    DataExporter mExporter;   // belongs to SdServer, so that an export carries on if this activity is recreated.
 
 
     @Override
@@ -52,6 +60,9 @@ public class ExportDataActivity extends AppCompatActivity
         mDateTxt = (EditText)findViewById(R.id.endDateText);
         mTimeTxt = (EditText)findViewById(R.id.endTimeText);
         mDurationTxt = (EditText)findViewById(R.id.durationText);
+        mProgressBar = (ProgressBar)findViewById(R.id.exportProgressBar);
+        mStatusTxt = (TextView)findViewById(R.id.exportStatusText);
+        mConnection = new SdServiceConnection(getApplicationContext());
 
         // Get Current Date
         final Calendar c = Calendar.getInstance();
@@ -68,6 +79,106 @@ public class ExportDataActivity extends AppCompatActivity
 
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mUtil.bindToServer(getApplicationContext(), mConnection);
+        waitForConnection();
+    }
+
+    // Once bound to the service, show the progress of an export that was started before this activity was
+    // (re)created.
+    private void waitForConnection() {
+        if (isDestroyed()) return;
+        if (!mConnection.mBound || mConnection.mSdServer == null) {
+            mHandler.postDelayed(this::waitForConnection, 100);
+            return;
+        }
+        DataExporter exporter = mConnection.mSdServer.getDataExporter();
+        if (exporter.isExporting()) {
+            mExporter = exporter;
+            mExportBtn.setEnabled(false);
+            mStatusTxt.setText("Exporting...");
+            mExporter.setListener(mExportListener);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mUtil.unbindFromServer(getApplicationContext(), mConnection);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacksAndMessages(null);
+        // Leave the export running in the service - only stop it calling back into this activity.
+        if (mExporter != null) mExporter.setListener(null);
+    }
+
+    /**
+     * Export the datapoints from mDuration hours before the selected end date/time up to it, to a CSV file and a
+     * columnar file in the data storage folder (so they are also listed by the web server's /logs).
+     */
+    private void startExport() {
+        if (!mConnection.mBound || mConnection.mSdServer == null || mConnection.mSdServer.mLm == null) {
+            mUtil.showToast("Not connected to the OpenSeizureDetector service - can not export data");
+            return;
+        }
+        Calendar cal = Calendar.getInstance();
+        cal.set(mYear, mMonth, mDay, mHour, mMinute, 0);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String toDateStr = dateFormat.format(cal.getTime());
+        String baseName = "osd_export_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(cal.getTime());
+        cal.add(Calendar.SECOND, (int) -Math.round(mDuration * 3600));
+        String fromDateStr = dateFormat.format(cal.getTime());
+        Log.i(TAG, "startExport() - from " + fromDateStr + " to " + toDateStr);
+
+        mExporter = mConnection.mSdServer.getDataExporter();
+        if (mExporter.isExporting()) {
+            mUtil.showToast("An export is already running");
+            return;
+        }
+        mExportBtn.setEnabled(false);
+        mProgressBar.setProgress(0);
+        mStatusTxt.setText("Exporting...");
+        mExporter.export(mConnection.mSdServer.mLm, fromDateStr, toDateStr, mUtil.getDataStorageDir(), baseName,
+                DataExporter.FORMAT_CSV | DataExporter.FORMAT_COLUMNAR, mExportListener);
+    }
+
+    private final DataExporter.Listener mExportListener = new DataExporter.Listener() {
+        @Override
+        public void onProgress(double fraction, long nRows) {
+            mProgressBar.setProgress((int) Math.round(fraction * 100));
+            mStatusTxt.setText(String.format("%d datapoints exported", nRows));
+        }
+
+        @Override
+        public void onFinished(DataExporter.Result result, Exception error) {
+            mExportBtn.setEnabled(true);
+            if (error != null) {
+                mStatusTxt.setText("Export failed - " + error.getMessage());
+                mUtil.showToast("Export failed - " + error.getMessage());
+                return;
+            }
+            String msg = String.format("Exported %d datapoints (%.0f rows/s) to %s", result.nRows,
+                    result.getRowsPerSec(), fileNames(result.csvFile, result.columnarFile));
+            mStatusTxt.setText(msg);
+            mUtil.showToast(msg);
+        }
+    };
+
+    private static String fileNames(File... files) {
+        StringBuilder sb = new StringBuilder();
+        for (File f : files) {
+            if (f == null) continue;
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(f.getName());
+        }
+        return sb.toString();
+    }
+
     @Override
     public void onClick(View view) {
         Log.v(TAG, "onClick()");
@@ -102,12 +213,13 @@ public class ExportDataActivity extends AppCompatActivity
         if (view == mExportBtn) {
             mDateTxt.setText(String.format("%02d-%02d-%04d",mDay, mMonth+1, mYear));
             mTimeTxt.setText(String.format("%02d:%02d:%02d", mHour, mMinute, 00));
-            mDuration = Double.parseDouble(mDurationTxt.getText().toString());
-
-
-            mUtil.showToast(String.format("EndDate=%s %s, Duration=%3.1f hrs",
-                    mDateTxt.getText().toString(), mTimeTxt.getText().toString() ,mDuration));
-
+            try {
+                mDuration = Double.parseDouble(mDurationTxt.getText().toString());
+            } catch (NumberFormatException e) {
+                mUtil.showToast("Invalid duration");
+                return;
+            }
+            startExport();
         }
     }
 }
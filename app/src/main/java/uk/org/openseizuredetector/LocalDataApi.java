@@ -0,0 +1,337 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * LocalDataApi serves the data stored in the local database by LogManager through SdWebServer, so that a carer can
+ * page through the history from another device:
+ * GET /api/datapoints?from=&to=&fields=&limit=&page=
+ * GET /api/events?from=&to=&fields=&limit=&page=
+ * from and to are 'yyyy-MM-dd HH:mm:ss' (or a prefix of it, such as a date), or milliseconds since the epoch, and
+ * default to the whole database.   fields is a comma separated list of the table columns (id, dataTime, status, ...)
+ * and/or keys of the dataJSON object to return - by default every column is returned, with dataJSON as the object
+ * 'data'.   A page holds up to limit rows, and ends with 'next', the URL of the next page, or null if this is the last.
+ * The response is streamed - rows are read from the database BATCH_SIZE at a time as it is sent, so the memory used
+ * does not depend on the size of the page.
+ */
+public class LocalDataApi {
+    private static final String TAG = "LocalDataApi";
+    public static final String DATAPOINTS_PATH = "/api/datapoints";
+    public static final String EVENTS_PATH = "/api/events";
+    static final int DEFAULT_PAGE_SIZE = 1000;
+    static final int MAX_PAGE_SIZE = 10000;
+    static final int BATCH_SIZE = 100;
+    private static final String[] DATAPOINT_COLUMNS = {"id", "dataTime", "status", "dataJSON", "uploaded"};
+    private static final String[] EVENT_COLUMNS = {"id", "dataTime", "status", "type", "subType", "notes",
+            "dataJSON", "uploaded"};
+    private static final List<String> NUMERIC_COLUMNS = Arrays.asList("id", "status");
+    private static final String MIN_DATE = "0000";
+    private static final String MAX_DATE = "9999";
+    private static final Pattern DATE_PATTERN =
+            Pattern.compile("\\d{4}-\\d{2}-\\d{2}([ T]\\d{2}(:\\d{2}(:\\d{2})?)?)?");
+    private static final Pattern FIELD_PATTERN = Pattern.compile("[A-Za-z0-9_]+");
+    private final LogManager mLm;
+
+    public LocalDataApi(LogManager lm) {
+        mLm = lm;
+    }
+
+    public NanoHTTPD.Response serve(String uri, Map<String, String> parameters) {
+        String table;
+        String[] tableColumns;
+        String name;
+        if (uri.equals(DATAPOINTS_PATH)) {
+            table = LogManager.mDpTableName;
+            tableColumns = DATAPOINT_COLUMNS;
+            name = "datapoints";
+        } else if (uri.equals(EVENTS_PATH)) {
+            table = LogManager.mEventsTableName;
+            tableColumns = EVENT_COLUMNS;
+            name = "events";
+        } else {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT,
+                    "Unknown API " + uri);
+        }
+        Page page;
+        try {
+            page = new Page(uri, name, table, tableColumns, parameters);
+        } catch (IllegalArgumentException e) {
+            Log.v(TAG, "serve() - bad request " + uri + " " + parameters + " - " + e.getMessage());
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT,
+                    e.getMessage());
+        }
+        NanoHTTPD.Response res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "application/json", page);
+        res.setChunkedTransfer(true);
+        res.addHeader("Cache-Control", "no-cache");
+        return res;
+    }
+
+    /**
+     * Return date as a dataTime string - it may be a dataTime, a prefix of one, or milliseconds since the epoch.
+     */
+    static String parseDate(String date, String defaultDate) {
+        if (date == null || date.trim().isEmpty()) return defaultDate;
+        date = date.trim();
+        if (date.matches("\\d+")) {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(Long.parseLong(date)));
+        }
+        if (!DATE_PATTERN.matcher(date).matches()) {
+            throw new IllegalArgumentException("Invalid date " + date);
+        }
+        return date.replace('T', ' ');
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One page of results, as an InputStream of JSON that reads the next batch of rows from the database whenever
+     * it has sent the previous one.
+     */
+    private class Page extends InputStream {
+        private final String mUri;
+        private final String mName;
+        private final String mTable;
+        private final String[] mColumns;
+        // null to return every column.
+        private final String[] mFields;
+        private final boolean mDataFields;
+        private final String mFrom;
+        private final String mTo;
+        private final int mLimit;
+        private String mAfterDate;
+        private long mAfterId = -1;
+        private int mCount = 0;
+        private boolean mStarted = false;
+        private boolean mFinished = false;
+        private byte[] mBuf = new byte[0];
+        private int mPos = 0;
+
+        Page(String uri, String name, String table, String[] tableColumns, Map<String, String> parameters) {
+            mUri = uri;
+            mName = name;
+            mTable = table;
+            mFrom = parseDate(parameters.get("from"), MIN_DATE);
+            mTo = parseDate(parameters.get("to"), MAX_DATE);
+            mAfterDate = mFrom;
+            try {
+                String limit = parameters.get("limit");
+                mLimit = (limit == null) ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit");
+            }
+            if (mLimit < 1 || mLimit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit must be from 1 to " + MAX_PAGE_SIZE);
+            }
+            String page = parameters.get("page");
+            if (page != null && !page.isEmpty()) {
+                // The page token is the dataTime and id of the last row of the previous page.
+                int comma = page.lastIndexOf(',');
+                try {
+                    mAfterDate = parseDate(page.substring(0, Math.max(comma, 0)), null);
+                    mAfterId = Long.parseLong(page.substring(comma + 1));
+                } catch (IllegalArgumentException | NullPointerException e) {
+                    throw new IllegalArgumentException("Invalid page " + page);
+                }
+            }
+            List<String> columnList = Arrays.asList(tableColumns);
+            String fields = parameters.get("fields");
+            if (fields == null || fields.trim().isEmpty()) {
+                mFields = null;
+                mColumns = tableColumns;
+                mDataFields = true;
+            } else {
+                mFields = fields.split(",");
+                // id and dataTime are always read, to make the page token.
+                ArrayList<String> columns = new ArrayList<>(Arrays.asList("id", "dataTime"));
+                boolean dataFields = false;
+                for (int i = 0; i < mFields.length; i++) {
+                    mFields[i] = mFields[i].trim();
+                    if (!FIELD_PATTERN.matcher(mFields[i]).matches()) {
+                        throw new IllegalArgumentException("Invalid field " + mFields[i]);
+                    }
+                    if (!columnList.contains(mFields[i])) {
+                        dataFields = true;
+                    } else if (!columns.contains(mFields[i])) {
+                        columns.add(mFields[i]);
+                    }
+                }
+                // dataJSON is only read if it is needed, as it is most of the size of each row.
+                if (dataFields && !columns.contains("dataJSON")) columns.add("dataJSON");
+                mColumns = columns.toArray(new String[0]);
+                mDataFields = dataFields;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            while (mPos >= mBuf.length) {
+                if (mFinished) return -1;
+                mBuf = nextBatch().getBytes(StandardCharsets.UTF_8);
+                mPos = 0;
+            }
+            int n = Math.min(len, mBuf.length - mPos);
+            System.arraycopy(mBuf, mPos, buf, off, n);
+            mPos += n;
+            return n;
+        }
+
+        private String nextBatch() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            if (!mStarted) {
+                sb.append("{\"").append(mName).append("\":[");
+                mStarted = true;
+            }
+            int batchSize = Math.min(BATCH_SIZE, mLimit - mCount);
+            ArrayList<String[]> rows = null;
+            if (batchSize > 0) {
+                try {
+                    rows = mLm.getRowsPage(mTable, mColumns, mFrom, mTo, mAfterDate, mAfterId, batchSize).get();
+                } catch (Exception e) {
+                    rows = null;
+                }
+                if (rows == null) {
+                    // Ending the chunked response early tells the client that the page is incomplete.
+                    Log.e(TAG, "nextBatch() - error reading " + mTable);
+                    throw new IOException("Error reading " + mTable);
+                }
+                for (String[] row : rows) {
+                    if (mCount > 0) sb.append(',');
+                    appendRow(sb, row);
+                    mCount++;
+                    mAfterId = Long.parseLong(row[0]);
+                    mAfterDate = row[1];
+                }
+            }
+            if (rows == null || rows.size() < batchSize || mCount >= mLimit) {
+                boolean more = (rows != null && rows.size() == batchSize);
+                sb.append("],\"count\":").append(mCount).append(",\"next\":");
+                sb.append(more ? JSONObject.quote(nextUrl()) : "null").append('}');
+                mFinished = true;
+            }
+            return sb.toString();
+        }
+
+        private String nextUrl() {
+            StringBuilder sb = new StringBuilder(mUri).append("?from=").append(encode(mFrom))
+                    .append("&to=").append(encode(mTo))
+                    .append("&limit=").append(mLimit);
+            if (mFields != null) sb.append("&fields=").append(encode(TextUtils.join(",", mFields)));
+            sb.append("&page=").append(encode(mAfterDate + "," + mAfterId));
+            return sb.toString();
+        }
+
+        private void appendRow(StringBuilder sb, String[] row) {
+            if (mFields == null) {
+                // Every column, with dataJSON (which is already JSON) copied in as it is rather than parsed.
+                sb.append('{');
+                for (int i = 0; i < mColumns.length; i++) {
+                    if (i > 0) sb.append(',');
+                    String value = row[i];
+                    if (mColumns[i].equals("dataJSON")) {
+                        sb.append("\"data\":");
+                        appendJson(sb, value);
+                    } else {
+                        sb.append(JSONObject.quote(mColumns[i])).append(':');
+                        appendValue(sb, mColumns[i], value);
+                    }
+                }
+                sb.append('}');
+                return;
+            }
+            List<String> columnList = Arrays.asList(mColumns);
+            JSONObject data = null;
+            if (mDataFields) {
+                String dataJson = row[columnList.indexOf("dataJSON")];
+                try {
+                    data = (dataJson != null) ? new JSONObject(dataJson) : null;
+                } catch (JSONException e) {
+                    data = null;
+                }
+            }
+            sb.append('{');
+            for (int i = 0; i < mFields.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(JSONObject.quote(mFields[i])).append(':');
+                int col = columnList.indexOf(mFields[i]);
+                if (col >= 0 && mFields[i].equals("dataJSON")) {
+                    appendJson(sb, row[col]);
+                } else if (col >= 0) {
+                    appendValue(sb, mFields[i], row[col]);
+                } else {
+                    Object value = (data != null) ? data.opt(mFields[i]) : null;
+                    sb.append(value == null ? "null"
+                            : (value instanceof String) ? JSONObject.quote((String) value) : value.toString());
+                }
+            }
+            sb.append('}');
+        }
+
+        private void appendJson(StringBuilder sb, String value) {
+            boolean isJson = value != null && (value.startsWith("{") || value.startsWith("["));
+            sb.append(isJson ? value : (value == null ? "null" : JSONObject.quote(value)));
+        }
+
+        private void appendValue(StringBuilder sb, String column, String value) {
+            if (value == null) {
+                sb.append("null");
+            } else if (NUMERIC_COLUMNS.contains(column)) {
+                sb.append(value);
+            } else {
+                sb.append(JSONObject.quote(value));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * LogFileTail is an InputStream of the bytes of a log file from a given offset, which, when it reaches the end of the
+ * file, waits for more to be appended (like tail -f) rather than ending.   SdWebServer sends it to a client using
+ * chunked transfer encoding for /logs/(file)?tail=(offset), so that a remote viewer can follow a log by asking only
+ * for what it has not already got.
+ * The stream ends when nothing has been appended for IDLE_TIMEOUT_MS (the client then asks again from its new
+ * offset), when the file gets shorter than what has been sent (it has been replaced), or when it is closed.
+ */
+public class LogFileTail extends InputStream {
+    private static final String TAG = "LogFileTail";
+    static final long POLL_MS = 500;
+    static final long IDLE_TIMEOUT_MS = 30 * 1000;
+    private final RandomAccessFile mFile;
+    private long mPos;
+    private long mLastDataTime;
+    private boolean mClosed = false;
+
+    public LogFileTail(File file, long offset) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mPos = offset;
+        mLastDataTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Offset in the file of the next byte to be read.
+     */
+    public synchronized long getPosition() {
+        return mPos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        while (true) {
+            synchronized (this) {
+                if (mClosed) return -1;
+                long length = mFile.length();
+                if (length < mPos) {
+                    Log.i(TAG, "read() - file is shorter than offset " + mPos + " - ending");
+                    return -1;
+                }
+                if (length > mPos) {
+                    mFile.seek(mPos);
+                    int n = mFile.read(buf, off, (int) Math.min(len, length - mPos));
+                    if (n > 0) {
+                        mPos += n;
+                        mLastDataTime = System.currentTimeMillis();
+                        return n;
+                    }
+                }
+                if (System.currentTimeMillis() - mLastDataTime > IDLE_TIMEOUT_MS) return -1;
+                try {
+                    wait(POLL_MS);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            notifyAll();
+        }
+        mFile.close();
+    }
+}
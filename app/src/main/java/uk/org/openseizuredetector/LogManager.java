@@ -22,14 +22,12 @@
 */
 package uk.org.openseizuredetector;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.os.AsyncTask;
 import android.os.CountDownTimer;
 import android.os.Handler;
 import android.util.Log;
@@ -38,13 +36,25 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.DateFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 //import static android.database.sqlite.SQLiteDatabase.openOrCreateDatabase;
 
@@ -67,34 +77,60 @@ import java.util.HashMap;
 public class LogManager {
     static final private String TAG = "LogManager";
     //private String mDbName = "osdData";
-    final static private String mDpTableName = "datapoints";
-    final static private String mEventsTableName = "events";
+    final static String mDpTableName = "datapoints";
+    final static String mEventsTableName = "events";
+    final static String mEventDpTableName = "event_datapoints";  // Links each event to the datapoints around it.
     private boolean mLogRemote;
     private boolean mLogRemoteMobile;
     private String mAuthToken;
     static private SQLiteDatabase mOsdDb = null;   // SQLite Database for data and log entries.
-    private RemoteLogTimer mRemoteLogTimer;
+    static private OsdDbExecutor mDbExecutor = null;  // Runs database queries and writes in the background.
+    static private OsdStatementCache mStmtCache = null;  // Compiled statements for the frequently used inserts and updates.
+    static private UploadOutbox mOutbox = null;   // Persistent queue of events and datapoints to upload.
+    static private RawSampleJournal mRawJournal = null;  // Raw accelerometer data - SQLite only holds the analysis results.
+    final static private String RAW_JOURNAL_DIR = "rawJournal";
+    static private DatapointWal mWal = null;   // Crash-safe log of datapoints that may not have reached the database yet.
+    final static private String WAL_FILE = "datapoints.wal";
+    // Enough for a few minutes of datapoints waiting for the database, even with their raw data in the JSON.
+    final static private int WAL_MAX_SIZE = 4 * 1024 * 1024;
+    static private ExecutorService mWalExecutor = null;   // Writes (and fsyncs) the write ahead log.
+    final static private String SQL_COUNT_DATAPOINT_BY_RAWTIME = "SELECT COUNT(*) FROM " + mDpTableName
+            + " WHERE dataTime=? AND dataJSON LIKE ?";
+    final static private String SQL_INSERT_DATAPOINT = "INSERT INTO " + mDpTableName
+            + "(dataTime, status, dataJSON, uploaded) VALUES(?, ?, ?, ?)";
+    final static private String SQL_INSERT_EVENT = "INSERT INTO " + mEventsTableName
+            + "(dataTime, status, type, subType, notes, dataJSON) VALUES(?, ?, ?, ?, ?, ?)";
+    final static private String SQL_SET_DATAPOINT_UPLOADED = "UPDATE " + mDpTableName + " SET uploaded=? WHERE id=?";
+    final static private String SQL_SET_DATAPOINT_STATUS = "UPDATE " + mDpTableName + " SET status=? WHERE id=?";
+    final static private String SQL_SET_EVENT_UPLOADED = "UPDATE " + mEventsTableName + " SET uploaded=? WHERE id=?";
+    final static private String SQL_SELECT_EVENT_BY_ID = "SELECT * FROM " + mEventsTableName + " WHERE id=?";
+    final static private String SQL_SELECT_DATAPOINT_BY_ID = "SELECT * FROM " + mDpTableName + " WHERE id=?";
+    // dataTime is stored as 'yyyy-MM-dd HH:mm:ss', so SQLite's datetime() can do the event window arithmetic.
+    final static private String SQL_LINK_EVENT_TO_DATAPOINTS = "INSERT OR IGNORE INTO " + mEventDpTableName
+            + "(eventId, datapointId) SELECT ?, id FROM " + mDpTableName
+            + " WHERE dataTime>=datetime(?, ?) AND dataTime<=datetime(?, ?)";
+    final static private String SQL_LINK_DATAPOINT_TO_EVENTS = "INSERT OR IGNORE INTO " + mEventDpTableName
+            + "(eventId, datapointId) SELECT id, ? FROM " + mEventsTableName
+            + " WHERE dataTime>=datetime(?, ?) AND dataTime<=datetime(?, ?)";
+    final static private String SQL_PRUNE_EVENT_DATAPOINTS = "DELETE FROM " + mEventDpTableName
+            + " WHERE eventId NOT IN (SELECT id FROM " + mEventsTableName + ")"
+            + " OR datapointId NOT IN (SELECT id FROM " + mDpTableName + ")";
+    private UploadScheduler mUploadScheduler;
     private static Context mContext;
     private OsdUtil mUtil;
     public static WebApiConnection mWac;
     public static final boolean USE_FIREBASE_BACKEND = false;
 
-    private boolean mUploadInProgress;
+    // Local IDs of the events being uploaded, so that an event is only uploaded once.   Only used on the main thread.
+    private final HashSet<Long> mEventsUploading = new HashSet<>();
+    private int mMaxConcurrentEventUploads = 3;
     private long mEventDuration = 120;   // event duration in seconds - uploads datapoints that cover this time range centred on the event time.
     public long mDataRetentionPeriod = 1; // Prunes the local db so it only retains data younger than this duration (in days)
     private long mRemoteLogPeriod = 60; // Period in seconds between uploads to the remote server.
-    private ArrayList<JSONObject> mDatapointsToUploadList;
-    private String mCurrentEventRemoteId;
-    private long mCurrentEventLocalId = -1;
-    private int mCurrentDatapointId;
     private long mAutoPrunePeriod = 3600;  // Prune the database every hour
     private boolean mAutoPruneDb;
     private AutoPruneTimer mAutoPruneTimer;
 
-    public interface CursorCallback {
-        void accept(Cursor retVal);
-    }
-
     public interface ArrayListCallback {
         void accept(ArrayList<HashMap<String, String>> retVal);
     }
@@ -123,6 +159,7 @@ public class LogManager {
 
         mUtil = new OsdUtil(mContext, handler);
         openDb();
+        replayWal();
         Log.i(TAG, "Starting Remote Database Interface");
         if (USE_FIREBASE_BACKEND) {
             mWac = new WebApiConnection_firebase(mContext);
@@ -133,10 +170,10 @@ public class LogManager {
         mWac.setStoredToken(mAuthToken);
 
         if (mLogRemote) {
-            Log.i(TAG, "Starting Remote Log Timer");
-            startRemoteLogTimer();
+            Log.i(TAG, "Starting Upload Scheduler");
+            startUploadScheduler();
         } else {
-            Log.i(TAG, "mLogRemote is false - not starting remote log timer");
+            Log.i(TAG, "mLogRemote is false - not starting upload scheduler");
         }
 
         if (mAutoPruneDb) {
@@ -241,6 +278,22 @@ public class LogManager {
             if (mOsdDb == null) {
                 Log.i(TAG, "openDb: mOsdDb is null - initialising");
                 mOsdDb = new OsdDbHelper(mContext).getWritableDatabase();
+                mDbExecutor = new OsdDbExecutor(mOsdDb, "OsdData");
+                mStmtCache = new OsdStatementCache(mOsdDb);
+                mOutbox = new UploadOutbox(mStmtCache);
+                try {
+                    mRawJournal = new RawSampleJournal(new File(mContext.getFilesDir(), RAW_JOURNAL_DIR));
+                } catch (IOException e) {
+                    Log.e(TAG, "openDb: Failed to open raw sample journal - raw data will be stored in the database: " + e.toString());
+                    mRawJournal = null;
+                }
+                try {
+                    mWal = new DatapointWal(new File(mContext.getFilesDir(), WAL_FILE), WAL_MAX_SIZE);
+                    mWalExecutor = Executors.newSingleThreadExecutor(new OsdDbExecutor.NamedThreadFactory("OsdData-wal"));
+                } catch (IOException e) {
+                    Log.e(TAG, "openDb: Failed to open datapoint write ahead log: " + e.toString());
+                    mWal = null;
+                }
             } else {
                 Log.i(TAG, "openDb: mOsdDb has been initialised already so not doing anything");
             }
@@ -276,47 +329,315 @@ public class LogManager {
     }
 
 
+    public void writeDatapointToLocalDb(SdData sdData) {
+        writeDatapointToLocalDb(SdDataSnapshot.of(sdData));
+    }
+
     /**
-     * Write data to local database
-     * FIXME - I am sure we should not be using raw SQL Srings to do this!
+     * Write data to local database.
+     * The datapoint is serialised on the calling thread (re-using the snapshot's serialisation if it has already
+     * been made).   It is then written to the crash-safe write ahead log on the log's own thread, so the fsync does not
+     * hold up the caller (often the main thread), and the database insert is done on the database writer thread,
+     * after which the write ahead log is checkpointed.
+     * The raw accelerometer data is written to the RawSampleJournal rather than into the datapoint JSON;
+     * the datapoint records the journal timestamp as 'rawTimeMs' so restoreRawData() can find it again.
      */
-    public void writeDatapointToLocalDb(SdData sdData) {
+    public void writeDatapointToLocalDb(SdDataSnapshot snapshot) {
         //Log.v(TAG, "writeDatapointToLocalDb()");
         Date curDate = new Date();
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
-        String dateStr = dateFormat.format(curDate);
-        String SQLStr = "SQLStr";
-
         if (mOsdDb == null) {
             Log.e(TAG, "writeDatapointToLocalDb(): mOsdDb is null - doing nothing");
             return;
         }
+        DatapointRecord rec = new DatapointRecord();
+        rec.dateStr = dateFormat.format(curDate);
+        rec.alarmState = snapshot.getAlarmState();
+        rec.rawTimeMs = curDate.getTime();
+        boolean useJournal = (mRawJournal != null);
+        rec.datapointJSON = addRawTime(snapshot.getDatapointJson(!useJournal), rec.rawTimeMs);
+        rec.settingsJSON = (rec.alarmState != 0) ? snapshot.getSettingsJson() : null;
+        if (useJournal) {
+            // The snapshot's arrays are never modified, so they do not need copying.
+            SdData sdData = snapshot.getData();
+            rec.nSamp = sdData.mNsamp;
+            rec.sampleFreq = (int) sdData.mSampleFreq;
+            rec.rawData = sdData.rawData;
+            rec.rawData3D = sdData.rawData3D;
+        }
+        final DatapointWal wal = mWal;
+        final ExecutorService walExecutor = mWalExecutor;
+        final OsdDbExecutor dbExecutor = mDbExecutor;
+        if (wal == null || walExecutor == null) {
+            dbExecutor.write((SQLiteDatabase db) -> {
+                storeDatapoint(rec);
+                return null;
+            });
+            return;
+        }
+        // The log's thread queues the database writes in the order the datapoints were logged.
+        walExecutor.execute(() -> {
+            long walSeq = -1;
+            try {
+                walSeq = wal.append(rec.toBytes());
+            } catch (IOException e) {
+                Log.e(TAG, "writeDatapointToLocalDb(): Error writing to write ahead log: " + e.toString());
+            }
+            final long seq = walSeq;
+            dbExecutor.write((SQLiteDatabase db) -> {
+                storeDatapoint(rec);
+                if (seq >= 0) wal.markCommitted(seq);
+                return null;
+            });
+        });
+    }
+
+    /**
+     * Write a datapoint (and an event if it is an alarm state) to the database, and its raw data to the raw sample
+     * journal.   Must be called on the database writer thread.
+     */
+    private void storeDatapoint(DatapointRecord rec) {
         try {
-            // Write Datapoint to database
-            SQLStr = "INSERT INTO " + mDpTableName
-                    + "(dataTime, status, dataJSON, uploaded)"
-                    + " VALUES("
-                    + "'" + dateStr + "',"
-                    + sdData.alarmState + ","
-                    + DatabaseUtils.sqlEscapeString(sdData.toDatapointJSON()) + ","
-                    + 0
-                    + ")";
-            mOsdDb.execSQL(SQLStr);
-            Log.v(TAG, "writeDatapointToLocalDb(): datapoint written to database");
-
-            if (sdData.alarmState != 0) {
-                Log.i(TAG, "writeDatapointToLocalDb(): adding event to local DB");
-                createLocalEvent(dateStr,sdData.alarmState,null, null, null, sdData.toSettingsJSON());
+            if (mRawJournal != null && rec.rawData != null) {
+                boolean journalled = false;
+                try {
+                    journalled = mRawJournal.append(rec.rawTimeMs, rec.nSamp, rec.sampleFreq, rec.rawData, rec.rawData3D);
+                } catch (IOException e) {
+                    Log.e(TAG, "storeDatapoint(): Error writing raw sample journal: " + e.toString());
+                }
+                if (!journalled) {
+                    // The journal only accepts increasing timestamps, so a window recorded after the clock has been
+                    // put back (or in the same ms as the last one) is kept in the datapoint instead.
+                    Log.w(TAG, "storeDatapoint(): raw data not journalled - storing it in the datapoint");
+                    rec.datapointJSON = addRawData(rec.datapointJSON, rec.rawData, rec.rawData3D);
+                }
+            }
+            // Write Datapoint to database, and add it to any recent events whose window it falls in.
+            long dpId = mStmtCache.executeInsert(SQL_INSERT_DATAPOINT, rec.dateStr, rec.alarmState, rec.datapointJSON, 0);
+            Log.v(TAG, "storeDatapoint(): datapoint written to database");
+            if (dpId != -1) {
+                mStmtCache.executeInsert(SQL_LINK_DATAPOINT_TO_EVENTS, dpId,
+                        rec.dateStr, getEventWindowModifier(-1), rec.dateStr, getEventWindowModifier(1));
+            }
+
+            if (rec.alarmState != 0) {
+                Log.i(TAG, "storeDatapoint(): adding event to local DB");
+                createLocalEvent(rec.dateStr, rec.alarmState, null, null, null, rec.settingsJSON);
             }
         } catch (SQLException e) {
             Log.e(TAG, "writeToLocalDb(): Error Writing Data: " + e.toString());
-            Log.e(TAG, "SQLStr was " + SQLStr);
         } catch (NullPointerException e) {
             Log.e(TAG, "writeToLocalDb(): Null Pointer Exception: " + e.toString());
         }
     }
 
+    /**
+     * Replay any datapoints that were written to the write ahead log but may not have reached the database
+     * (because the process was killed), then checkpoint the log.   The log is read on its own thread before any new
+     * datapoints are logged, and the records are stored on the database writer thread before any new datapoints are.
+     */
+    private void replayWal() {
+        if (mWal == null || mDbExecutor == null) return;
+        mWalExecutor.execute(() -> {
+            final List<DatapointWal.Record> recs;
+            try {
+                recs = mWal.readUncommitted();
+            } catch (IOException e) {
+                Log.e(TAG, "replayWal(): Error reading write ahead log: " + e.toString());
+                return;
+            }
+            if (recs.isEmpty()) return;
+            mDbExecutor.write((SQLiteDatabase db) -> {
+                long startMillis = System.currentTimeMillis();
+                int nReplayed = 0;
+                for (DatapointWal.Record r : recs) {
+                    try {
+                        DatapointRecord rec = DatapointRecord.fromBytes(r.payload);
+                        // The database insert may have happened before the checkpoint was written, so check first.
+                        long n = mStmtCache.simpleQueryForLong(SQL_COUNT_DATAPOINT_BY_RAWTIME, rec.dateStr,
+                                "%\"rawTimeMs\":" + rec.rawTimeMs + "%");
+                        if (n == 0) {
+                            storeDatapoint(rec);
+                            nReplayed++;
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "replayWal(): Error decoding record " + r.seq + ": " + e.toString());
+                    }
+                    mWal.markCommitted(r.seq);
+                }
+                Log.i(TAG, "replayWal(): replayed " + nReplayed + " of " + recs.size() + " uncommitted datapoints in "
+                        + (System.currentTimeMillis() - startMillis) + " ms");
+                return null;
+            });
+        });
+    }
+
+    /**
+     * The data needed to store one datapoint, in a form that can be written to the write ahead log.
+     */
+    static class DatapointRecord {
+        String dateStr;
+        long alarmState;
+        long rawTimeMs;
+        String datapointJSON;
+        String settingsJSON;
+        int nSamp;
+        int sampleFreq;
+        double[] rawData;
+        double[] rawData3D;
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(16384);
+            DataOutputStream out = new DataOutputStream(bos);
+            writeString(out, dateStr);
+            out.writeLong(alarmState);
+            out.writeLong(rawTimeMs);
+            writeString(out, datapointJSON);
+            writeString(out, settingsJSON);
+            out.writeInt(nSamp);
+            out.writeInt(sampleFreq);
+            writeFloats(out, rawData);
+            writeFloats(out, rawData3D);
+            out.flush();
+            return bos.toByteArray();
+        }
+
+        static DatapointRecord fromBytes(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            DatapointRecord rec = new DatapointRecord();
+            rec.dateStr = readString(in);
+            rec.alarmState = in.readLong();
+            rec.rawTimeMs = in.readLong();
+            rec.datapointJSON = readString(in);
+            rec.settingsJSON = readString(in);
+            rec.nSamp = in.readInt();
+            rec.sampleFreq = in.readInt();
+            rec.rawData = readFloats(in);
+            rec.rawData3D = readFloats(in);
+            return rec;
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) return null;
+            byte[] b = new byte[len];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        // Raw data is stored as floats, the same precision as the raw sample journal.
+        private static void writeFloats(DataOutputStream out, double[] d) throws IOException {
+            if (d == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(d.length);
+            for (double v : d) out.writeFloat((float) v);
+        }
+
+        private static double[] readFloats(DataInputStream in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) return null;
+            double[] d = new double[len];
+            for (int i = 0; i < len; i++) d[i] = in.readFloat();
+            return d;
+        }
+    }
+
+    private static String addRawTime(String datapointJSON, long rawTimeMs) {
+        try {
+            JSONObject jsonObj = new JSONObject(datapointJSON);
+            jsonObj.put("rawTimeMs", rawTimeMs);
+            return jsonObj.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "addRawTime(): Error parsing datapoint JSON: " + e.toString());
+            return datapointJSON;
+        }
+    }
+
+    /**
+     * Takes a JSON array of datapoints (as produced by cursor2Json()) and re-inserts the rawData and rawData3D arrays
+     * from the RawSampleJournal into the dataJSON of any datapoints that refer to it, so the uploaded data is the
+     * same as it was when the raw data was stored in the database.
+     *
+     * @return JSON String of the datapoints with the raw data included.
+     */
+    static String restoreRawData(String datapointsJsonStr) {
+        if (datapointsJsonStr == null || mRawJournal == null) return datapointsJsonStr;
+        try {
+            JSONArray dataArr = new JSONArray(datapointsJsonStr);
+            for (int i = 0; i < dataArr.length(); i++) {
+                restoreDatapointRawData(dataArr.getJSONObject(i));
+            }
+            return dataArr.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "restoreRawData(): Error restoring raw data: " + e.toString());
+            return datapointsJsonStr;
+        }
+    }
+
+    /**
+     * Re-attach the raw data to a single datapoint (in the form produced by cursor2Json()).
+     */
+    static void restoreDatapointRawData(JSONObject dpObj) {
+        if (dpObj == null || mRawJournal == null) return;
+        try {
+            JSONObject dataObj = new JSONObject(dpObj.getString("dataJSON"));
+            if (!dataObj.has("rawTimeMs") || dataObj.has("rawData")) return;
+            ByteBuffer rec = mRawJournal.readRecord(dataObj.getLong("rawTimeMs"));
+            if (rec == null) {
+                Log.w(TAG, "restoreDatapointRawData(): raw data for datapoint " + dpObj.optString("id") + " not found in journal");
+                return;
+            }
+            double[] rawData = new double[RawSampleJournal.N_RAW];
+            double[] rawData3D = new double[3 * RawSampleJournal.N_RAW];
+            RawSampleJournal.getRawData(rec, rawData);
+            RawSampleJournal.getRawData3D(rec, rawData3D);
+            putRawData(dataObj, rawData, rawData3D);
+            dataObj.remove("rawTimeMs");
+            dpObj.put("dataJSON", dataObj.toString());
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "restoreDatapointRawData(): Error restoring raw data: " + e.toString());
+        }
+    }
+
+    private static void putRawData(JSONObject dataObj, double[] rawData, double[] rawData3D) throws JSONException {
+        JSONArray rawArr = new JSONArray();
+        for (double v : rawData) rawArr.put(v);
+        dataObj.put("rawData", rawArr);
+        if (rawData3D != null) {
+            JSONArray raw3DArr = new JSONArray();
+            for (double v : rawData3D) raw3DArr.put(v);
+            dataObj.put("rawData3D", raw3DArr);
+        }
+    }
+
+    /**
+     * Return datapointJSON with the raw data arrays added, for a datapoint whose raw data is not in the journal.
+     * rawTimeMs is kept, as replayWal() uses it to find datapoints that have already been stored.
+     */
+    private static String addRawData(String datapointJSON, double[] rawData, double[] rawData3D) {
+        try {
+            JSONObject dataObj = new JSONObject(datapointJSON);
+            putRawData(dataObj, rawData, rawData3D);
+            return dataObj.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "addRawData(): Error adding raw data to datapoint JSON: " + e.toString());
+            return datapointJSON;
+        }
+    }
+
     public boolean createLocalEvent(String dataTime, long status) {
         return (createLocalEvent(dataTime, status, null, null, null, null));
     }
@@ -325,30 +646,24 @@ public class LogManager {
         // Expects dataTime to be in format: SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         Log.d(TAG, "createLocalEvent() - dataTime=" + dataTime + ", status=" + status + ", dataJSON="+dataJSON);
         // Write Event to database
-        //String SQLStr = "INSERT INTO " + mEventsTableName
-        //        + "(dataTime, status, type, subtype, notes, dataJSON)"
-        //        + " VALUES("
-        //        + "'" + dataTime + "',"
-        //        + status + ","
-        //       + "'" + type + "',"
-        //        + "'" + subType + "',"
-        //        + "'" + desc + "',"
-        //        + "'" + dataJSON + "'"
-        //        + ")";
-        //mOsdDb.execSQL(SQLStr);
-        ContentValues values = new ContentValues();
-        values.put("dataTime", dataTime);
-        values.put("status", status);
-        values.put("type", type);
-        values.put("subType",subType);
-        values.put("notes",desc);
-        values.put("dataJSON", dataJSON);
-
-        long newRowId = mOsdDb.insert(mEventsTableName, null, values);
+        long newRowId = mStmtCache.executeInsert(SQL_INSERT_EVENT, dataTime, status, type, subType, desc, dataJSON);
         Log.d(TAG, "Created Row ID"+newRowId);
+        if (newRowId != -1) {
+            // Link the event to the datapoints we already have - later ones are linked as they are stored.
+            mStmtCache.executeInsert(SQL_LINK_EVENT_TO_DATAPOINTS, newRowId,
+                    dataTime, getEventWindowModifier(-1), dataTime, getEventWindowModifier(1));
+        }
         return true;
     }
 
+    /**
+     * Returns an SQLite datetime() modifier for the start (sign=-1) or end (sign=1) of the mEventDuration window
+     * centred on an event.
+     */
+    private String getEventWindowModifier(int sign) {
+        return (sign < 0 ? "-" : "+") + (mEventDuration / 2) + " seconds";
+    }
+
     /**
      * Returns a json representation of locally stored event 'id'.
      *
@@ -357,15 +672,16 @@ public class LogManager {
      */
     public String getLocalEventById(long id) {
         Log.d(TAG, "getLocalEventById() - id=" + id);
-        Cursor c;
+        Cursor c = null;
         String retVal;
         try {
-            String selectStr = "select * from " + mEventsTableName + " where id=" + id + ";";
-            c = mOsdDb.rawQuery(selectStr, null);
+            c = mOsdDb.rawQuery(SQL_SELECT_EVENT_BY_ID, new String[]{String.valueOf(id)});
             retVal = eventCursor2Json(c);
         } catch (Exception e) {
             Log.d(TAG, "getLocalEventById(): Error Querying Database: " + e.getLocalizedMessage());
             retVal = null;
+        } finally {
+            if (c != null) c.close();
         }
         Log.d(TAG, "getLocalEventById() - returning " + retVal);
         return (retVal);
@@ -380,15 +696,16 @@ public class LogManager {
      */
     public String getDatapointById(long id) {
         Log.d(TAG, "getDatapointById() - id=" + id);
-        Cursor c;
+        Cursor c = null;
         String retVal;
         try {
-            String selectStr = "select * from " + mDpTableName + " where id=" + id + ";";
-            c = mOsdDb.rawQuery(selectStr, null);
+            c = mOsdDb.rawQuery(SQL_SELECT_DATAPOINT_BY_ID, new String[]{String.valueOf(id)});
             retVal = cursor2Json(c);
         } catch (Exception e) {
             Log.d(TAG, "getDatapointById(): Error Querying Database: " + e.getLocalizedMessage());
             retVal = null;
+        } finally {
+            if (c != null) c.close();
         }
         return (retVal);
     }
@@ -406,10 +723,7 @@ public class LogManager {
             Log.e(TAG, "setDatapointToUploaded() - mOsdDb is null - not doing anything");
             return false;
         }
-        ContentValues cv = new ContentValues();
-        cv.put("uploaded", eventId);
-        int nRowsUpdated = mOsdDb.update(mDpTableName, cv, "id = ?",
-                new String[]{String.format("%d", id)});
+        int nRowsUpdated = mStmtCache.executeUpdateDelete(SQL_SET_DATAPOINT_UPLOADED, eventId, id);
         return (nRowsUpdated == 1);
     }
 
@@ -422,11 +736,7 @@ public class LogManager {
      */
     public boolean setDatapointStatus(Long id, int statusVal) {
         Log.d(TAG, "setDatapointStatus() - id=" + id + ", statusVal=" + statusVal);
-        //Cursor c = null;
-        ContentValues cv = new ContentValues();
-        cv.put("status", statusVal);
-        int nRowsUpdated = mOsdDb.update(mDpTableName, cv, "id = ?",
-                new String[]{String.format("%d", id)});
+        int nRowsUpdated = mStmtCache.executeUpdateDelete(SQL_SET_DATAPOINT_STATUS, statusVal, id);
 
         return (nRowsUpdated == 1);
     }
@@ -435,89 +745,136 @@ public class LogManager {
     /**
      * Return a JSON string representing all the datapoints between startDate and endDate
      *
-     * @return True on successful start or false if call fails.
+     * @return a DbFuture that completes with the JSON string, or null if the query fails.
      */
-    public boolean getDatapointsByDate(String startDateStr, String endDateStr, WebApiConnection.StringCallback callback) {
+    public DbFuture<String> getDatapointsByDate(String startDateStr, String endDateStr) {
         Log.d(TAG, "getDatapointsbyDate() - startDateStr=" + startDateStr + ", endDateStr=" + endDateStr);
         String[] columns = {"*"};
         String whereClause = "DataTime>? AND DataTime<?";
         String[] whereArgs = {startDateStr, endDateStr};
-        new SelectQueryTask(mDpTableName, columns, whereClause, whereArgs,
-                null, null, "dataTime DESC", (Cursor cursor) -> {
-            Log.v(TAG, "getDataPointsByDate - returned " + cursor);
-            if (cursor != null) {
-                callback.accept(cursor2Json(cursor));
-            } else {
-                callback.accept(null);
+        return mDbExecutor.query(mDpTableName, columns, whereClause, whereArgs,
+                null, null, "dataTime DESC", null, this::cursor2Json);
+    }
+
+    /**
+     * Return a page of the rows of table (mDpTableName or mEventsTableName) with dataTime from fromDateStr up to (but
+     * not including) toDateStr, in (dataTime, id) order, starting after the row (afterDateStr, afterId).   This is
+     * keyset pagination, so each page is a range scan of the dataTime index however far into the results it starts,
+     * rather than skipping an OFFSET number of rows.   Pass afterDateStr=fromDateStr and afterId=-1 for the first page.
+     *
+     * @return a DbFuture that completes with the values of columns for each row, as strings, or null if the query fails.
+     */
+    public DbFuture<ArrayList<String[]>> getRowsPage(String table, String[] columns, String fromDateStr,
+                                                    String toDateStr, String afterDateStr, long afterId, int limit) {
+        String lowerDateStr = (afterDateStr.compareTo(fromDateStr) > 0) ? afterDateStr : fromDateStr;
+        String whereClause = "dataTime>=? AND dataTime<? AND (dataTime>? OR id>?)";
+        String[] whereArgs = {lowerDateStr, toDateStr, afterDateStr, String.valueOf(afterId)};
+        return mDbExecutor.query(table, columns, whereClause, whereArgs,
+                null, null, "dataTime ASC, id ASC", String.valueOf(limit), (Cursor c) -> {
+            ArrayList<String[]> rows = new ArrayList<>(c.getCount());
+            while (!c.isAfterLast()) {
+                String[] row = new String[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    row[i] = c.getString(i);
+                }
+                rows.add(row);
+                c.moveToNext();
             }
-        }).execute();
+            return rows;
+        });
+    }
+
+    public boolean getDatapointsByDate(String startDateStr, String endDateStr, WebApiConnection.StringCallback callback) {
+        getDatapointsByDate(startDateStr, endDateStr).thenAccept(callback::accept);
         return (true);
     }
 
 
     /**
-     * Return an array list of objects representing the events in the database by calling the specified callback function.
+     * Return an array list of objects representing the events in the database.
      *
      * @param includeWarnings - whether to include warnings in the list of events, or just alarm conditions.
-     * @return True on successful start or false if call fails.
+     * @return a DbFuture that completes with the list of events.
      */
-    public boolean getEventsList(boolean includeWarnings, ArrayListCallback callback) {
+    public DbFuture<ArrayList<HashMap<String, String>>> getEventsList(boolean includeWarnings) {
         Log.v(TAG, "getEventsList - includeWarnings=" + includeWarnings);
-        ArrayList<HashMap<String, String>> eventsList = new ArrayList<>();
-
         String[] whereArgs = getEventWhereArgs(includeWarnings);
         String whereClause = getEventWhereClause(includeWarnings);
         //sqlStr = "SELECT * from " + mDbTableName + " where Status in (" + statusListStr + ") order by dataTime desc;";
-        String[] columns = {"*"};
-        new SelectQueryTask(mEventsTableName, columns, whereClause, whereArgs,
-                null, null, "dataTime DESC", (Cursor cursor) -> {
-            Log.v(TAG, "getEventsList - returned " + cursor);
-            if (cursor != null) {
-                Log.v(TAG, "getEventsList - returned " + cursor.getCount() + " records");
-                while (!cursor.isAfterLast()) {
-                    HashMap<String, String> event = new HashMap<>();
-                    //event.put("id", cursor.getString(cursor.getColumnIndex("id")));
-                    event.put("dataTime", cursor.getString(cursor.getColumnIndex("dataTime")));
-                    int status = cursor.getInt(cursor.getColumnIndex("status"));
-                    String statusStr = mUtil.alarmStatusToString(status);
-                    event.put("status", statusStr);
-                    event.put("uploaded", cursor.getString(cursor.getColumnIndex("uploaded")));
-                    //event.put("dataJSON", cursor.getString(cursor.getColumnIndex("dataJSON")));
-                    eventsList.add(event);
-                    cursor.moveToNext();
-                }
+        String[] columns = {"dataTime", "status", "uploaded"};
+        return mDbExecutor.query(mEventsTableName, columns, whereClause, whereArgs,
+                null, null, "dataTime DESC", null, (Cursor cursor) -> {
+            ArrayList<HashMap<String, String>> eventsList = new ArrayList<>();
+            Log.v(TAG, "getEventsList - returned " + cursor.getCount() + " records");
+            while (!cursor.isAfterLast()) {
+                HashMap<String, String> event = new HashMap<>();
+                event.put("dataTime", cursor.getString(cursor.getColumnIndex("dataTime")));
+                int status = cursor.getInt(cursor.getColumnIndex("status"));
+                String statusStr = mUtil.alarmStatusToString(status);
+                event.put("status", statusStr);
+                event.put("uploaded", cursor.getString(cursor.getColumnIndex("uploaded")));
+                eventsList.add(event);
+                cursor.moveToNext();
             }
-            callback.accept(eventsList);
-        }).execute();
+            return eventsList;
+        });
+    }
+
+    /**
+     * Return an array list of objects representing the events in the database by calling the specified callback function.
+     *
+     * @param includeWarnings - whether to include warnings in the list of events, or just alarm conditions.
+     * @return True on successful start or false if call fails.
+     */
+    public boolean getEventsList(boolean includeWarnings, ArrayListCallback callback) {
+        getEventsList(includeWarnings).thenAccept((ArrayList<HashMap<String, String>> eventsList) -> {
+            // Callers expect an empty list rather than null if the query fails.
+            callback.accept(eventsList == null ? new ArrayList<>() : eventsList);
+        });
         return (true);
     }
 
 
     /**
-     * pruneLocalDb() removes data that is older than mLocalDbMaxAgeDays days
+     * pruneLocalDb() removes data that is older than mLocalDbMaxAgeDays days.   The deletes run on the database
+     * writer thread; the returned future completes with the number of events deleted.
      */
-    public int pruneLocalDb() {
+    public DbFuture<Integer> pruneLocalDb() {
         Log.d(TAG, "pruneLocalDb()");
-        int retVal = 0;
         long currentDateMillis = new Date().getTime();
         long endDateMillis = currentDateMillis - 24 * 3600 * 1000 * mDataRetentionPeriod;
         //long endDateMillis = currentDateMillis - 3600*1000* mDataRetentionPeriod;  // Using hours rather than days for testing
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         String endDateStr = dateFormat.format(new Date(endDateMillis));
         String[] tableNames = new String[]{mDpTableName, mEventsTableName};
-        for (String tableName : tableNames) {
-            Log.i(TAG, "pruneLocalDb - pruning table " + tableName);
+        return mDbExecutor.write((SQLiteDatabase db) -> {
+            int retVal = 0;
+            for (String tableName : tableNames) {
+                Log.i(TAG, "pruneLocalDb - pruning table " + tableName);
+                try {
+                    String selectStr = "DataTime<=?";
+                    String[] selectArgs = {endDateStr};
+                    retVal = db.delete(tableName, selectStr, selectArgs);
+                } catch (Exception e) {
+                    Log.d(TAG, "Error deleting data " + e.toString());
+                    retVal = 0;
+                }
+                Log.d(TAG, String.format("pruneLocalDb() - deleted %d records from table %s", retVal, tableName));
+            }
             try {
-                String selectStr = "DataTime<=?";
-                String[] selectArgs = {endDateStr};
-                retVal = mOsdDb.delete(tableName, selectStr, selectArgs);
+                int nOutbox = mOutbox.prune();
+                Log.d(TAG, String.format("pruneLocalDb() - deleted %d upload outbox items", nOutbox));
+                int nLinks = mStmtCache.executeUpdateDelete(SQL_PRUNE_EVENT_DATAPOINTS);
+                Log.d(TAG, String.format("pruneLocalDb() - deleted %d event datapoint links", nLinks));
             } catch (Exception e) {
-                Log.d(TAG, "Error deleting data " + e.toString());
-                retVal = 0;
+                Log.d(TAG, "Error deleting event datapoint links " + e.toString());
             }
-            Log.d(TAG, String.format("pruneLocalDb() - deleted %d records from table %s", retVal, tableName));
-        }
-        return (retVal);
+            if (mRawJournal != null) {
+                int nSegs = mRawJournal.pruneOlderThan(endDateMillis);
+                Log.d(TAG, String.format("pruneLocalDb() - deleted %d raw sample journal segments", nSegs));
+            }
+            return (retVal);
+        });
     }
 
     /**
@@ -533,10 +890,7 @@ public class LogManager {
             Log.e(TAG, "setEventToUploaded() - mOsdDb is null - not doing anything");
             return false;
         }
-        ContentValues cv = new ContentValues();
-        cv.put("uploaded", remoteEventId);
-        int nRowsUpdated = mOsdDb.update(mEventsTableName, cv, "id = ?",
-                new String[]{String.format("%d", localEventId)});
+        int nRowsUpdated = mStmtCache.executeUpdateDelete(SQL_SET_EVENT_UPLOADED, remoteEventId, localEventId);
         return (nRowsUpdated == 1);
     }
 
@@ -545,45 +899,55 @@ public class LogManager {
      * Return the ID of the next event (alarm, warning, fall etc that needs to be uploaded (alarm or warning condition and has not yet been uploaded.
      *
      * @param includeWarnings - whether to include warnings in the list of events, or just alarm conditions.
-     * @return True on successful start or false if call fails.
+     * @return a DbFuture that completes with the event id, or -1 if there are no events to upload.
      */
-    public boolean getNextEventToUpload(boolean includeWarnings, WebApiConnection.LongCallback callback) {
-        Log.v(TAG, "getNextEventToUpload - includeWarnings=" + includeWarnings);
+    public DbFuture<Long> getNextEventToUpload(boolean includeWarnings) {
+        return getEventsToUpload(includeWarnings, 1).thenApply((ArrayList<Long> eventIds) ->
+                eventIds.isEmpty() ? Long.valueOf(-1) : eventIds.get(0));
+    }
 
-        String[] whereArgsStatus = getEventWhereArgs(includeWarnings);
-        String whereClauseStatus = getEventWhereClause(includeWarnings);
-        String[] columns = {"*"};
+    /**
+     * Return the IDs of up to maxEvents events that need to be uploaded, newest first.
+     *
+     * @param includeWarnings - whether to include warnings in the list of events, or just alarm conditions.
+     * @return a DbFuture that completes with the (possibly empty) list of event ids.
+     */
+    public DbFuture<ArrayList<Long>> getEventsToUpload(boolean includeWarnings, int maxEvents) {
+        Log.v(TAG, "getEventsToUpload - includeWarnings=" + includeWarnings + ", maxEvents=" + maxEvents);
+        String[] columns = {"id"};
+        String whereClause = getEventsToUploadWhereClause(includeWarnings);
+        String[] whereArgs = getEventsToUploadWhereArgs(includeWarnings);
+        return mDbExecutor.query(mEventsTableName, columns, whereClause, whereArgs,
+                null, null, "dataTime DESC", String.valueOf(maxEvents), (Cursor cursor) -> {
+            ArrayList<Long> eventIds = new ArrayList<>();
+            while (!cursor.isAfterLast()) {
+                eventIds.add(cursor.getLong(0));
+                cursor.moveToNext();
+            }
+            Log.d(TAG, "getEventsToUpload(): ids=" + eventIds);
+            return eventIds;
+        });
+    }
 
-        // Do not try to upload very recent events so that we have chance to record the post-event data before uploading it.
-        long currentDateMillis = new Date().getTime();
-        long endDateMillis = currentDateMillis - 1000 * mEventDuration;
+    // Events that need uploading have not been uploaded, and are not very recent, so that we have chance to record
+    // the post-event data before uploading it.
+    private String getEventsToUploadWhereClause(boolean includeWarnings) {
+        return getEventWhereClause(includeWarnings) + " AND uploaded is null AND DataTime<?";
+    }
+
+    private String[] getEventsToUploadWhereArgs(boolean includeWarnings) {
+        String[] whereArgsStatus = getEventWhereArgs(includeWarnings);
+        long endDateMillis = new Date().getTime() - 1000 * mEventDuration;
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String endDateStr = dateFormat.format(new Date(endDateMillis));
-        String whereClauseUploaded = "uploaded is null";
-        String whereClauseDate = "DataTime<?";
-        String whereClause = whereClauseStatus + " AND " + whereClauseUploaded + " AND " + whereClauseDate;
-
-        String[] whereArgs = new String[whereArgsStatus.length + 1];
-        for (int i = 0; i < whereArgsStatus.length; i++) {
-            whereArgs[i] = whereArgsStatus[i];
-        }
-        whereArgs[whereArgsStatus.length] = endDateStr;
-        new SelectQueryTask(mEventsTableName, columns, whereClause, whereArgs,
-                null, null, "dataTime DESC", (Cursor cursor) -> {
-            Long recordId = new Long(-1);
-            if (cursor != null) {
-                Log.v(TAG, "getNextEventToUpload - returned " + cursor.getCount() + " records");
-                cursor.moveToFirst();
-                if (cursor.getCount() == 0) {
-                    Log.v(TAG, "getNextEventToUpload() - no events to Upload - exiting");
-                    recordId = new Long(-1);
-                } else {
-                    recordId = cursor.getLong(0);
-                    Log.d(TAG, "getNextEventToUpload(): id=" + recordId);
-                }
-            }
-            callback.accept(recordId);
-        }).execute();
+        String[] whereArgs = Arrays.copyOf(whereArgsStatus, whereArgsStatus.length + 1);
+        whereArgs[whereArgsStatus.length] = dateFormat.format(new Date(endDateMillis));
+        return whereArgs;
+    }
+
+    public boolean getNextEventToUpload(boolean includeWarnings, WebApiConnection.LongCallback callback) {
+        getNextEventToUpload(includeWarnings).thenAccept((Long recordId) -> {
+            callback.accept(recordId == null ? Long.valueOf(-1) : recordId);
+        });
         return (true);
     }
 
@@ -596,138 +960,75 @@ public class LogManager {
      */
     public boolean getNearestDatapointToDate(String dateStr, WebApiConnection.LongCallback callback) {
         Log.v(TAG, "getNextEventToDate - dateStr=" + dateStr);
-        String[] columns = {"*", "(julianday(dataTime)-julianday(datetime('" + dateStr + "'))) as ddiff"};
+        String[] columns = {"id", "(julianday(dataTime)-julianday(datetime(?))) as ddiff"};
         //SQLStr = "SELECT *, (julianday(dataTime)-julianday(datetime('" + dateStr + "'))) as ddiff from " + mDbTableName + " order by ABS(ddiff) asc;";
         String orderByStr = "ABS(ddiff) asc";
-        new SelectQueryTask(mDpTableName, columns, null, null,
-                null, null, orderByStr, (Cursor cursor) -> {
-            Log.v(TAG, "getEventsNearestDatapointToDate - returned " + cursor);
-            Long recordId = new Long(-1);
-            if (cursor != null) {
-                Log.v(TAG, "getNearestDatapointToDate - returned " + cursor.getCount() + " records");
-                cursor.moveToFirst();
-                if (cursor.getCount() == 0) {
-                    Log.v(TAG, "getNearestDatapointToDate() - no events to Upload - exiting");
-                    recordId = new Long(-1);
-                } else {
-                    String recordStr = cursor.getString(3);
-                    recordId = cursor.getLong(0);
-                    Log.d(TAG, "getNearestDatapointToDate(): id=" + recordId + ", recordStr=" + recordStr);
+        mDbExecutor.read((SQLiteDatabase db) -> {
+            Cursor cursor = db.rawQuery("SELECT " + columns[0] + ", " + columns[1] + " FROM " + mDpTableName
+                    + " ORDER BY " + orderByStr + " LIMIT 1", new String[]{dateStr});
+            try {
+                if (!cursor.moveToFirst()) {
+                    Log.v(TAG, "getNearestDatapointToDate() - no datapoints found - exiting");
+                    return Long.valueOf(-1);
                 }
+                long recordId = cursor.getLong(0);
+                Log.d(TAG, "getNearestDatapointToDate(): id=" + recordId);
+                return Long.valueOf(recordId);
+            } finally {
+                cursor.close();
             }
-            callback.accept(recordId);
-        }).execute();
+        }).thenAccept((Long recordId) -> {
+            callback.accept(recordId == null ? Long.valueOf(-1) : recordId);
+        });
         return (true);
     }
 
 
     /**
-     * Return the number of events stored in the local database (via a callback).
+     * Return the number of events stored in the local database.
      *
      * @param includeWarnings - whether to include warnings in the list of events, or just alarm conditions.
-     * @return True on successful start or false if call fails.
+     * @return a DbFuture that completes with the number of events.
      */
-    public boolean getLocalEventsCount(boolean includeWarnings, WebApiConnection.LongCallback callback) {
-        //Log.v(TAG, "getLocalEventsCount- includeWarnings=" + includeWarnings);
+    public DbFuture<Long> getLocalEventsCount(boolean includeWarnings) {
         String[] whereArgs = getEventWhereArgs(includeWarnings);
         String whereClause = getEventWhereClause(includeWarnings);
-        String[] columns = {"*"};
-        new SelectQueryTask(mEventsTableName, columns, whereClause, whereArgs,
-                null, null, null, (Cursor cursor) -> {
-            //Log.v(TAG, "getLocalEventsCount - returned " + cursor);
-            Long eventCount = Long.valueOf(0);
-            if (cursor != null) {
-                eventCount = Long.valueOf(cursor.getCount());
-                Log.v(TAG, "getLocalEventsCount - returned " + eventCount + " records");
-            }
-            callback.accept(eventCount);
-        }).execute();
-        return (true);
+        return mDbExecutor.read((SQLiteDatabase db) ->
+                DatabaseUtils.queryNumEntries(db, mEventsTableName, whereClause, whereArgs));
     }
 
     /**
-     * Return the number of datapoints stored in the local database (via a callback).
+     * Return the number of events stored in the local database (via a callback).
      *
+     * @param includeWarnings - whether to include warnings in the list of events, or just alarm conditions.
      * @return True on successful start or false if call fails.
      */
-    public boolean getLocalDatapointsCount(WebApiConnection.LongCallback callback) {
-        //Log.v(TAG, "getLocalDatapointsCount");
-        String[] whereArgs = null;
-        String whereClause = null;
-        String[] columns = {"*"};
-        new SelectQueryTask(mDpTableName, columns, whereClause, whereArgs,
-                null, null, null, (Cursor cursor) -> {
-            //Log.v(TAG, "getLocalDatapointsCount - returned " + cursor);
-            Long eventCount = Long.valueOf(0);
-            if (cursor != null) {
-                eventCount = Long.valueOf(cursor.getCount());
-                Log.v(TAG, "getLocalDatapointsCount - returned " + eventCount + " records");
-            }
-            callback.accept(eventCount);
-        }).execute();
+    public boolean getLocalEventsCount(boolean includeWarnings, WebApiConnection.LongCallback callback) {
+        getLocalEventsCount(includeWarnings).thenAccept((Long eventCount) -> {
+            callback.accept(eventCount == null ? Long.valueOf(0) : eventCount);
+        });
         return (true);
     }
 
-
     /**
-     * Executes the sqlite query (=SELECT statement)
-     * Use as new SelectQueryTask(xxx,xxx,xx,xxxx).execute()
+     * Return the number of datapoints stored in the local database.
+     *
+     * @return a DbFuture that completes with the number of datapoints.
      */
-    static private class SelectQueryTask extends AsyncTask<Void, Void, Cursor> {
-        // Based on https://stackoverflow.com/a/21120199/2104584
-        String mTable;
-        String[] mColumns;
-        String mSelection;
-        String[] mSelectionArgs;
-        String mGroupBy;
-        String mHaving;
-        String mOrderBy;
-        CursorCallback mCallback;
-
-        //query(String table, String[] columns, String selection, String[] selectionArgs,
-        // String groupBy, String having, String orderBy)
-        SelectQueryTask(String table, String[] columns, String selection, String[] selectionArgs,
-                        String groupBy, String having, String orderBy, CursorCallback callback) {
-            // list all the parameters like in normal class define
-            this.mTable = table;
-            this.mColumns = columns;
-            this.mSelection = selection;
-            this.mSelectionArgs = selectionArgs;
-            this.mGroupBy = groupBy;
-            this.mHaving = having;
-            this.mOrderBy = orderBy;
-            this.mCallback = callback;
-
-        }
-
-        @Override
-        protected Cursor doInBackground(Void... params) {
-            //Log.v(TAG, "runSelect.doInBackground()");
-            Log.v(TAG, "SelectQueryTask.doInBackground: mTable=" + mTable + ", mColumns=" + Arrays.toString(mColumns)
-                    + ", mSelection=" + mSelection + ", mSelectionArgs=" + Arrays.toString(mSelectionArgs) + ", mGroupBy=" + mGroupBy
-                    + ", mHaving =" + mHaving + ", mOrderBy=" + mOrderBy);
-
-            try {
-                Cursor resultSet = mOsdDb.query(mTable, mColumns, mSelection,
-                        mSelectionArgs, mGroupBy, mHaving, mOrderBy);
-                resultSet.moveToFirst();
-                return (resultSet);
-            } catch (SQLException e) {
-                Log.e(TAG, "SelectQueryTask.doInBackground(): Error selecting Data: " + e.toString());
-                return (null);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "SelectQueryTask.doInBackground(): Illegal Argument Exception: " + e.toString());
-                return (null);
-            } catch (NullPointerException e) {
-                Log.e(TAG, "SelectQueryTask.doInBackground(): Null Pointer Exception: " + e.toString());
-                return (null);
-            }
-        }
+    public DbFuture<Long> getLocalDatapointsCount() {
+        return mDbExecutor.read((SQLiteDatabase db) -> DatabaseUtils.queryNumEntries(db, mDpTableName));
+    }
 
-        @Override
-        protected void onPostExecute(final Cursor result) {
-            mCallback.accept(result);
-        }
+    /**
+     * Return the number of datapoints stored in the local database (via a callback).
+     *
+     * @return True on successful start or false if call fails.
+     */
+    public boolean getLocalDatapointsCount(WebApiConnection.LongCallback callback) {
+        getLocalDatapointsCount().thenAccept((Long datapointsCount) -> {
+            callback.accept(datapointsCount == null ? Long.valueOf(0) : datapointsCount);
+        });
+        return (true);
     }
 
 
@@ -775,8 +1076,8 @@ public class LogManager {
             return;
         }
 
-        if (mUploadInProgress) {
-            Log.v(TAG, "writeToRemoteServer(): Upload already in progress, not starting another upload");
+        if (mEventsUploading.size() >= mMaxConcurrentEventUploads) {
+            Log.v(TAG, "writeToRemoteServer(): Uploads already in progress, not starting another upload");
             return;
         }
 
@@ -788,205 +1089,272 @@ public class LogManager {
     /**
      * Upload a batch of seizure detector data records to the server..
      * Uses the webApiConnection class to upload the data in the background.
-     * It searches the local database for the oldest event that has not been uploaded and uploads it.
-     * eventCallback is called when the event is created.
+     * New events that need uploading are added to the persistent upload outbox, then an EventUpload is started for
+     * each event in the outbox that has work due, so that up to mMaxConcurrentEventUploads events are being uploaded
+     * at once.
      */
     public void uploadSdData() {
-        //int eventId = -1;
-        //Log.v(TAG, "uploadSdData()");
-        // First try uploading full alarms, and only if we do not have any of those, upload warnings.
-        //boolean warningsArr[] = {false, true};
         // Upload everything - alarms and warnings - we can sort it out in post-processing the data!
-        boolean warningsArr[] = {true};
-        for (int n = 0; n < warningsArr.length; n++) {
-            boolean warningsVal = warningsArr[n];
-            Log.i(TAG, "uploadSdData(): warningsVal=" + warningsVal);
-            if (mUploadInProgress) {
-                Log.d(TAG, "uploadSdData - upload already in progress - not doing anything");
-                return;
+        boolean warningsVal = true;
+        if (mEventsUploading.size() >= mMaxConcurrentEventUploads) {
+            Log.d(TAG, "uploadSdData - " + mEventsUploading.size() + " uploads already in progress - not doing anything");
+            return;
+        }
+        String whereClause = getEventsToUploadWhereClause(warningsVal);
+        String[] whereArgs = getEventsToUploadWhereArgs(warningsVal);
+        long nowMs = System.currentTimeMillis();
+        // Ask for enough events to fill the free upload slots even if some of them are already being uploaded.
+        int maxEvents = mMaxConcurrentEventUploads + mEventsUploading.size();
+        mDbExecutor.write((SQLiteDatabase db) -> {
+            mOutbox.enqueueEvents(db, whereClause, whereArgs, nowMs);
+            UploadOutbox.Stats stats = mOutbox.getStats(db, nowMs);
+            Log.i(TAG, "uploadSdData() - upload backlog: " + stats);
+            return mOutbox.getDueEvents(db, nowMs, maxEvents);
+        }).thenAccept((ArrayList<Long> eventIds) -> {
+            if (eventIds == null) return;
+            int nStarted = 0;
+            for (Long eventId : eventIds) {
+                if (mEventsUploading.size() >= mMaxConcurrentEventUploads) break;
+                if (mEventsUploading.contains(eventId)) continue;
+                Log.i(TAG, "uploadSdData() - starting upload of eventId=" + eventId);
+                mEventsUploading.add(eventId);
+                new EventUpload(eventId).start();
+                nStarted++;
             }
-            mUploadInProgress = true;
-            getNextEventToUpload(warningsVal, (Long eventId) -> {
-                if (eventId != -1) {
-                    Log.i(TAG, "uploadSdData() - next Event to Upload eventId=" + eventId);
-                    String eventJsonStr = getLocalEventById(eventId);
-                    Log.v(TAG, "uploadSdData() - event to upload eventJsonStr=" + eventJsonStr);
-                    //int eventType;
-                    JSONObject eventObj;
-                    int eventAlarmStatus;
-                    String eventDateStr;
-                    Date eventDate;
-                    String eventType;
-                    String eventSubType;
-                    String eventDesc;
-                    String eventDataJSON;
-                    try {
-                        JSONArray datapointJsonArr = new JSONArray(eventJsonStr);
-                        eventObj = datapointJsonArr.getJSONObject(0);  // We only look at the first (and hopefully only) item in the array.
-                        eventAlarmStatus = Integer.parseInt(eventObj.getString("status"));
-                        eventDateStr = eventObj.getString("dataTime");
-                        eventType = eventObj.getString("type");
-                        eventSubType = eventObj.getString("subType");
-                        if (eventObj.has("desc"))
-                            eventDesc = eventObj.getString("desc");
-                        else
-                            eventDesc = "";
-                        eventDataJSON = eventObj.getString("dataJSON");
-                        Log.d(TAG, "uploadSdData - data from local DB is:" + eventJsonStr + ", eventAlarmStatus="
-                                + eventAlarmStatus + ", eventDateStr=" + eventDateStr);
-                    } catch (JSONException e) {
-                        Log.e(TAG, "uploadSdData(): ERROR parsing event JSON Data" + eventJsonStr);
-                        e.printStackTrace();
-                        mUploadInProgress = false;
-                        return;
-                    } catch (NullPointerException e) {
-                        Log.e(TAG, "uploadSdData(): ERROR null pointer exception parsing event JSON Data: " + eventJsonStr);
-                        e.printStackTrace();
-                        mUploadInProgress = false;
-                        return;
-                    }
-                    try {
-                        eventDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(eventDateStr);
-                    } catch (ParseException e) {
-                        Log.e(TAG, "UploadSdData(): Error parsing date " + eventDateStr);
-                        mUploadInProgress = false;
-                        return;
-                    }
-
-                    Log.i(TAG, "uploadSdData - calling mWac.createEvent");
-                    mCurrentEventLocalId = eventId;
-                    mWac.createEvent(eventAlarmStatus, eventDate, eventType, eventSubType, eventDesc, eventDataJSON, this::createEventCallback);
-                } else {
-                    Log.v(TAG, "uploadSdData - no data to upload "); //(warnings="+warningsVal+")");
-                    mUploadInProgress = false;
+            if (nStarted == 0) {
+                Log.v(TAG, "uploadSdData - no data to upload ");
+            }
+            if (mUploadScheduler != null) {
+                mUploadScheduler.setBacklog(eventIds.size());
+                if (nStarted > 0) {
+                    mUploadScheduler.onUploadsStarted();
+                } else if (mEventsUploading.isEmpty()) {
+                    mUploadScheduler.onUploadsIdle();
                 }
-            });
-        }
+            }
+        });
     }
 
+    public void setMaxConcurrentEventUploads(int maxConcurrentEventUploads) {
+        mMaxConcurrentEventUploads = Math.max(1, maxConcurrentEventUploads);
+    }
 
-    // Mark the relevant member variables to show we are not cuurrently doing an upload, so a new one can be
-    // started if necessary.
-    public void finishUpload() {
-        mCurrentEventRemoteId = null;
-        mCurrentEventLocalId = -1;
-        mCurrentDatapointId = -1;
-        mDatapointsToUploadList = null;
-        mUploadInProgress = false;
+    /**
+     * Return the size and age of the upload backlog held in the outbox.
+     */
+    public DbFuture<UploadOutbox.Stats> getUploadBacklogStats() {
+        return mDbExecutor.read((SQLiteDatabase db) -> mOutbox.getStats(db, System.currentTimeMillis()));
     }
 
-    // Called by WebApiConnection when a new event record is created.
-    // Once the event is created it queries the local database to find the datapoints associated with the event
-    // and uploads those as a batch of data points.
-    public void createEventCallback(String eventId) {
-        Log.v(TAG, "createEventCallback(): " + eventId);
-        Log.v(TAG, "createEventCallback(): Retrieving remote event details");
-        mWac.getEvent(eventId, new WebApiConnection.JSONObjectCallback() {
-            @Override
-            public void accept(JSONObject eventObj) {
-                if (eventObj == null) {
-                    Log.e(TAG, "createEventCallback() - eventObj is null - failed to create event");
-                    mUtil.showToast("Error Creating Remote Event");
-                } else {
-                    Log.v(TAG, "createEventCallback() - eventObj=" + eventObj.toString());
-                    Date eventDate;
-                    String eventDateStr = "";
-                    try {
-                        String dateStr = eventObj.getString("dataTime");
-                        eventDate = mUtil.string2date(dateStr);
-                    } catch (JSONException | NullPointerException e) {
-                        Log.e(TAG, "createEventCallback() - Error parsing JSONObject: " + eventObj.toString());
-                        finishUpload();
-                        return;
-                    }
-                    if (eventDate != null) {
-                        Log.v(TAG, "createEventCallback() EventId=" + eventId + ", eventDateStr=" + eventDateStr + ", eventDate=" + eventDate);
-                        mUploadInProgress = true;
-                        long eventDateMillis = eventDate.getTime();
-                        long startDateMillis = eventDateMillis - 1000 * mEventDuration / 2;
-                        long endDateMillis = eventDateMillis + 1000 * mEventDuration / 2;
-                        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-
-                        getDatapointsByDate(
-                                dateFormat.format(new Date(startDateMillis)),
-                                dateFormat.format(new Date(endDateMillis)),
-                                (String datapointsJsonStr) -> {
-                                    //Log.v(TAG, "createEventCallback() - datapointsJsonStr=" + datapointsJsonStr);
-                                    JSONArray dataObj;
-                                    mDatapointsToUploadList = new ArrayList<JSONObject>();
-
-                                    try {
-                                        //DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-                                        dataObj = new JSONArray(datapointsJsonStr);
-                                        Log.v(TAG, "createEventCallback() - datapointsObj length=" + dataObj.length());
-                                        for (int i = 0; i < dataObj.length(); i++) {
-                                            mDatapointsToUploadList.add(dataObj.getJSONObject(i));
-                                        }
-                                    } catch (JSONException | NullPointerException e) {
-                                        Log.v(TAG, "createEventCallback(): Error Creating JSON Object from string " + datapointsJsonStr);
-                                        dataObj = null;
-                                        finishUpload();
-                                    }
-                                    // This starts the process of uploading the datapoints, one at a time.
-                                    mCurrentEventRemoteId = eventId;
-                                    Log.v(TAG, "createEventCallback() - starting datapoints upload with eventId " + mCurrentEventRemoteId +
-                                            " Uploading " + mDatapointsToUploadList.size() + " datapoints");
-                                    uploadNextDatapoint();
-
-                                });
-                    } else {
-                        Log.e(TAG, "createEventCallback() - Error - event date is null - not doing anything");
-                        mUtil.showToast("Error uploading event - date is null");
-                        finishUpload();
-                    }
+    /**
+     * The upload of one local event from the upload outbox:  create the remote event (unless that was done before
+     * the upload was interrupted), then upload the event's datapoints that are due, recording the result of every
+     * attempt in the outbox.   When no datapoints are left pending the event is marked as uploaded; otherwise the
+     * failed ones are retried by a later EventUpload once their backoff has expired.
+     * Several EventUploads can run at once.   All of their callbacks run on the main thread, which is what makes it
+     * safe for them to share mEventsUploading without locking.   Overlapping events share local datapoints, but each
+     * remote event gets its own copy of them.
+     */
+    private class EventUpload {
+        private final long mLocalEventId;
+        private UploadOutbox.Item mEventItem;
+        private final ArrayList<UploadOutbox.Item> mItems = new ArrayList<>();
+
+        EventUpload(long localEventId) {
+            mLocalEventId = localEventId;
+        }
+
+        void start() {
+            mDbExecutor.read((SQLiteDatabase db) -> mOutbox.getEventItem(db, mLocalEventId))
+                    .thenAccept((UploadOutbox.Item eventItem) -> {
+                        if (eventItem == null) {
+                            Log.e(TAG, "EventUpload - event " + mLocalEventId + " is not in the upload outbox");
+                            finish();
+                            return;
+                        }
+                        mEventItem = eventItem;
+                        if (eventItem.status == UploadOutbox.STATUS_SENT) {
+                            // The remote event was created before the upload was interrupted - carry on from the
+                            // first datapoint that has not been sent.
+                            Log.i(TAG, "EventUpload - resuming upload of event " + mLocalEventId);
+                            uploadDatapoints();
+                        } else {
+                            mDbExecutor.read((SQLiteDatabase db) -> getLocalEventById(mLocalEventId))
+                                    .thenAccept(this::createRemoteEvent);
+                        }
+                    });
+        }
+
+        private void createRemoteEvent(String eventJsonStr) {
+            if (eventJsonStr == null) {
+                Log.e(TAG, "EventUpload - failed to read local event " + mLocalEventId);
+                finish();
+                return;
+            }
+            Log.v(TAG, "EventUpload - event to upload eventJsonStr=" + eventJsonStr);
+            JSONObject eventObj;
+            int eventAlarmStatus;
+            String eventDateStr;
+            Date eventDate;
+            String eventType;
+            String eventSubType;
+            String eventDesc;
+            String eventDataJSON;
+            try {
+                JSONArray eventJsonArr = new JSONArray(eventJsonStr);
+                if (eventJsonArr.length() == 0) {
+                    // The event has been pruned from the database.
+                    complete();
+                    return;
+                }
+                eventObj = eventJsonArr.getJSONObject(0);  // We only look at the first (and hopefully only) item in the array.
+                if (eventObj.getString("uploaded").length() > 0) {
+                    Log.i(TAG, "EventUpload - event " + mLocalEventId + " has already been uploaded");
+                    complete();
+                    return;
                 }
+                eventAlarmStatus = Integer.parseInt(eventObj.getString("status"));
+                eventDateStr = eventObj.getString("dataTime");
+                eventType = eventObj.getString("type");
+                eventSubType = eventObj.getString("subType");
+                if (eventObj.has("desc"))
+                    eventDesc = eventObj.getString("desc");
+                else
+                    eventDesc = "";
+                eventDataJSON = eventObj.getString("dataJSON");
+                eventDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(eventDateStr);
+            } catch (JSONException | NullPointerException | NumberFormatException | ParseException e) {
+                Log.e(TAG, "EventUpload: ERROR parsing event JSON Data" + eventJsonStr + ": " + e.toString());
+                finish();
+                return;
             }
-        });
-    }
+            Log.i(TAG, "EventUpload - calling mWac.createEvent");
+            if (!mWac.createEvent(eventAlarmStatus, eventDate, eventType, eventSubType, eventDesc, eventDataJSON,
+                    mEventItem.idempotencyKey, this::eventCreated)) {
+                eventCreated(null);
+            }
+        }
 
-    // takes the next datapoint of the list mDatapointsToUploadList and uploads it to the remote server.
-    // datapointCallback is called when the upload is complete.
-    public void uploadNextDatapoint() {
-        //Log.v(TAG, "uploadNextDatapoint()");
-        if (mDatapointsToUploadList != null) {
-            if (mDatapointsToUploadList.size() > 0) {
-                mUploadInProgress = true;
+        // Called by WebApiConnection when the remote event is created (remoteEventId is null if that failed).
+        private void eventCreated(String remoteEventId) {
+            long nowMs = System.currentTimeMillis();
+            mDbExecutor.write((SQLiteDatabase db) -> {
+                // Marking the event SENT and adding its datapoints must happen together - a SENT event is never
+                // picked up again, so if the process died in between its datapoints would never be uploaded.
+                db.beginTransaction();
                 try {
-                    mCurrentDatapointId = mDatapointsToUploadList.get(0).getInt("id");
-                } catch (JSONException | NullPointerException e) {
-                    Log.e(TAG, "uploadNextDatapoint(): Error reading currentDatapointID from mDatapointsToUploadList[0]" + e.getMessage());
-                    Log.e(TAG, "uploadNextDatapoint(): Removing mDatapointsToUploadList[0] and trying the next datapoint");
-                    mDatapointsToUploadList.remove(0);
-                    uploadNextDatapoint();
+                    mOutbox.recordResult(mEventItem, remoteEventId != null, remoteEventId, nowMs);
+                    if (remoteEventId != null) {
+                        mOutbox.enqueueDatapoints(mLocalEventId, nowMs);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                return Boolean.TRUE;
+            }).thenAccept((Boolean committed) -> {
+                if (committed == null) {
+                    // The transaction was rolled back, so no datapoints were queued - uploading now would find none
+                    // pending and mark the event as uploaded.   The event stays pending (with the same idempotency
+                    // key) and is retried by a later upload pass.
+                    Log.e(TAG, "EventUpload - failed to record the remote event for local event " + mLocalEventId);
+                    finish();
+                } else if (remoteEventId == null) {
+                    Log.e(TAG, "EventUpload - failed to create remote event for local event " + mLocalEventId
+                            + " - attempt " + mEventItem.attempts);
+                    finish();
+                } else {
+                    uploadDatapoints();
                 }
+            });
+        }
 
-                Log.v(TAG, "uploadNextDatapoint() - " + mDatapointsToUploadList.size() + " datapoints to upload.  Uploading datapoint ID:" + mCurrentDatapointId);
-                mWac.createDatapoint(mDatapointsToUploadList.get(0), mCurrentEventRemoteId, this::datapointCallback);
+        // Read the datapoints that are due from the outbox, and upload them.   The raw data is re-attached from the raw
+        // sample journal on the database thread.
+        private void uploadDatapoints() {
+            long nowMs = System.currentTimeMillis();
+            mDbExecutor.read((SQLiteDatabase db) -> mOutbox.getDueDatapoints(db, mLocalEventId, nowMs))
+                    .thenApply((ArrayList<UploadOutbox.Item> items) -> {
+                        for (UploadOutbox.Item item : items) restoreDatapointRawData(item.datapoint);
+                        return items;
+                    })
+                    .thenAccept((ArrayList<UploadOutbox.Item> items) -> {
+                        if (items == null) {
+                            finish();
+                            return;
+                        }
+                        ArrayList<JSONObject> dataObjs = new ArrayList<>();
+                        for (UploadOutbox.Item item : items) {
+                            try {
+                                item.datapoint.put(WebApiConnection.IDEMPOTENCY_KEY, item.idempotencyKey);
+                            } catch (JSONException e) {
+                                Log.e(TAG, "EventUpload - error adding idempotency key: " + e.toString());
+                            }
+                            mItems.add(item);
+                            dataObjs.add(item.datapoint);
+                        }
+                        Log.v(TAG, "EventUpload - uploading " + dataObjs.size() + " datapoints with remote eventId "
+                                + mEventItem.remoteId);
+                        if (!mWac.createDatapoints(dataObjs, mEventItem.remoteId, this::datapointsUploaded)) {
+                            datapointsUploaded(new ArrayList<>());
+                        }
+                    });
+        }
 
-            } else {
-                Log.i(TAG, "uploadNextDatapoint() - All datapoints uploaded!");
-                setEventToUploaded(mCurrentEventLocalId, mCurrentEventRemoteId);
-                finishUpload();
-            }
-        } else {
-            Log.w(TAG, "uploadNextDatapoint - mDatapointsToUploadList is null - I don't thin this should have happened!");
+        // results has one entry per datapoint, which is null if that datapoint was not created.
+        private void datapointsUploaded(List<String> results) {
+            long nowMs = System.currentTimeMillis();
+            mDbExecutor.write((SQLiteDatabase db) -> {
+                int nUploaded = 0;
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < mItems.size(); i++) {
+                        UploadOutbox.Item item = mItems.get(i);
+                        boolean ok = i < results.size() && results.get(i) != null;
+                        mOutbox.recordResult(item, ok, null, nowMs);
+                        if (ok) {
+                            setDatapointToUploaded((int) item.datapointId, mEventItem.remoteId);
+                            nUploaded++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                Log.i(TAG, "EventUpload - uploaded " + nUploaded + " of " + mItems.size() + " datapoints for event "
+                        + mLocalEventId);
+                return mOutbox.countPendingDatapoints(mLocalEventId);
+            }).thenAccept((Long nPending) -> {
+                if (nPending != null && nPending == 0) {
+                    complete();
+                } else {
+                    Log.i(TAG, "EventUpload - " + nPending + " datapoints of event " + mLocalEventId + " still to upload");
+                    finish();
+                }
+            });
         }
-    }
 
-    // Called by WebApiConnection when a new datapoint is created.   It assumes that we have just created
-    // a datapoint based on mDatapointsToUploadList(0) so removes that from the list and calls UploadDatapoint()
-    // to upload the next one.
-    public void datapointCallback(String datapointStr) {
-        Log.v(TAG, "datapointCallback() dataPointId=" + mCurrentDatapointId + " remote datapointID=" + datapointStr + ", mCurrentEventId=" + mCurrentEventRemoteId);
-        if (mDatapointsToUploadList != null) {
-            if (mDatapointsToUploadList.size() > 0) {
-                mDatapointsToUploadList.remove(0);
+        // Every datapoint has been sent (or given up on), so mark the event as uploaded and remove it from the outbox.
+        private void complete() {
+            mDbExecutor.write((SQLiteDatabase db) -> {
+                if (mEventItem != null && mEventItem.remoteId != null) {
+                    setEventToUploaded(mLocalEventId, mEventItem.remoteId);
+                }
+                mOutbox.deleteEvent(mLocalEventId);
+                return null;
+            }).thenAccept((Object unused) -> {
+                finish();
+                // Keep the pipeline full while there is a backlog of events.
+                uploadSdData();
+            });
+        }
+
+        private void finish() {
+            mEventsUploading.remove(mLocalEventId);
+            if (mEventsUploading.isEmpty() && mUploadScheduler != null) {
+                mUploadScheduler.onUploadsIdle();
             }
-        } else {
-            Log.w(TAG, "datapointCallback - mDatapointsToUploadList is null - I don't thin this should have happened!");
         }
-        setDatapointToUploaded(mCurrentDatapointId, mCurrentEventRemoteId);
-        uploadNextDatapoint();
     }
 
 
@@ -998,8 +1366,38 @@ public class LogManager {
      * unless it was the last instance.
      */
     public static void close() {
-        mOsdDb.close();
-        mOsdDb = null;
+        if (mWalExecutor != null) {
+            // Let the datapoints already being logged reach the database writer before it is shut down.
+            mWalExecutor.shutdown();
+            try {
+                mWalExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWalExecutor = null;
+        }
+        if (mDbExecutor != null) {
+            // The executor is kept rather than set to null:  callbacks that are still queued on the main thread
+            // (uploads in progress, network responses) may submit more work, which it now rejects with a logged
+            // error and a null result instead of throwing a NullPointerException.   openDb() replaces it.
+            mDbExecutor.shutdown();
+        }
+        if (mStmtCache != null) {
+            mStmtCache.close();
+            mStmtCache = null;
+        }
+        if (mRawJournal != null) {
+            mRawJournal.close();
+            mRawJournal = null;
+        }
+        if (mWal != null) {
+            mWal.close();
+            mWal = null;
+        }
+        if (mOsdDb != null) {
+            mOsdDb.close();
+            mOsdDb = null;
+        }
         if (mWac != null) {
             Log.i(TAG, "Stopping Remote Database Interface");
             mWac.close();
@@ -1008,34 +1406,45 @@ public class LogManager {
 
     public void stop() {
         // Stop the timers and shutdown the remote API connection.
-        stopRemoteLogTimer();
+        stopUploadScheduler();
         stopAutoPruneTimer();
     }
 
     /*
-     * Start the timer that will upload data to the remote server after a given period.
+     * Start the scheduler that will upload data to the remote server - nominally every mRemoteLogPeriod seconds,
+     * but adapted to the network state and upload backlog.
      */
-    private void startRemoteLogTimer() {
-        if (mRemoteLogTimer != null) {
-            Log.i(TAG, "startRemoteLogTimer -timer already running - cancelling it");
-            mRemoteLogTimer.cancel();
-            mRemoteLogTimer = null;
-        }
-        Log.i(TAG, "startRemoteLogTimer() - starting RemoteLogTimer");
-        mRemoteLogTimer =
-                new RemoteLogTimer(mRemoteLogPeriod * 1000, 1000);
-        mRemoteLogTimer.start();
+    private void startUploadScheduler() {
+        if (mUploadScheduler != null) {
+            Log.i(TAG, "startUploadScheduler - scheduler already running - stopping it");
+            mUploadScheduler.stop();
+            mUploadScheduler = null;
+        }
+        Log.i(TAG, "startUploadScheduler() - starting UploadScheduler");
+        mUploadScheduler = new UploadScheduler(this::writeToRemoteServer, mRemoteLogPeriod);
+        mUploadScheduler.onNetworkChanged(mUtil.isNetworkConnected(), !mUtil.isActiveNetworkMetered());
+        mUploadScheduler.start();
     }
 
 
     /*
-     * Cancel the remote logging timer to prevent attempts to upload to remote database.
+     * Stop the upload scheduler to prevent attempts to upload to remote database.
+     */
+    public void stopUploadScheduler() {
+        if (mUploadScheduler != null) {
+            Log.i(TAG, "stopUploadScheduler(): stopping Upload Scheduler");
+            mUploadScheduler.stop();
+            mUploadScheduler = null;
+        }
+    }
+
+    /**
+     * Called by SdServer when it receives a connectivity change broadcast, so that uploads start soon after a
+     * network becomes available rather than waiting for the next scheduled pass.
      */
-    public void stopRemoteLogTimer() {
-        if (mRemoteLogTimer != null) {
-            Log.i(TAG, "stopRemoteLogTimer(): cancelling Remote Log timer");
-            mRemoteLogTimer.cancel();
-            mRemoteLogTimer = null;
+    public void onNetworkChanged() {
+        if (mUploadScheduler != null) {
+            mUploadScheduler.onNetworkChanged(mUtil.isNetworkConnected(), !mUtil.isActiveNetworkMetered());
         }
     }
 
@@ -1070,7 +1479,9 @@ public class LogManager {
 
     public static class OsdDbHelper extends SQLiteOpenHelper {
         // If you change the database schema, you must increment the database version.
-        public static final int DATABASE_VERSION = 1;
+        public static final int DATABASE_VERSION = 3;
+        // Used to link existing events to their datapoints when upgrading from version 1.
+        private static final long DEFAULT_EVENT_WINDOW_SECS = 60;
         public static final String DATABASE_NAME = "OsdData.db";
         private static final String TAG = "LogManager.OsdDbHelper";
 
@@ -1079,6 +1490,13 @@ public class LogManager {
             Log.d(TAG, "OsdDbHelper constructor");
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Write ahead logging lets the OsdDbExecutor reader threads query the database while the writer thread
+            // is inserting new datapoints.
+            db.enableWriteAheadLogging();
+        }
+
         public void onCreate(SQLiteDatabase db) {
             Log.i(TAG, "onCreate - TableName=" + mDpTableName);
             String SQLStr = "CREATE TABLE IF NOT EXISTS " + mDpTableName + "("
@@ -1101,13 +1519,44 @@ public class LogManager {
                     + "uploaded TEXT"  // stores the id of the event in the remote dabase if uploaded, otherwise empty
                     + ");";
             db.execSQL(SQLStr);
+            createEventDatapointsTable(db);
+            UploadOutbox.createTable(db);
+        }
+
+        private void createEventDatapointsTable(SQLiteDatabase db) {
+            Log.i(TAG, "createEventDatapointsTable - TableName=" + mEventDpTableName);
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + mEventDpTableName + "("
+                    + "eventId INTEGER,"
+                    + "datapointId INTEGER,"
+                    + "PRIMARY KEY (eventId, datapointId)"
+                    + ");");
+            // The link queries select datapoints and events by time.
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + mDpTableName + "_dataTime ON " + mDpTableName + "(dataTime);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + mEventsTableName + "_dataTime ON " + mEventsTableName + "(dataTime);");
         }
 
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // This database is only a cache for online data, so its upgrade policy is
-            // to simply to discard the data and start over
-            Log.i(TAG, "onUpgrade()");
+            // Upgrades from a known version keep the data; anything else (including a downgrade) discards the
+            // datapoints and the upload state and starts over.
+            Log.i(TAG, "onUpgrade() - oldVersion=" + oldVersion + ", newVersion=" + newVersion);
+            if (oldVersion >= 1 && newVersion > oldVersion) {
+                // Versions 2 and 3 only add tables, so keep the data.
+                if (oldVersion < 2) {
+                    // Link the existing events to their datapoints.
+                    createEventDatapointsTable(db);
+                    db.execSQL("INSERT OR IGNORE INTO " + mEventDpTableName + "(eventId, datapointId)"
+                            + " SELECT e.id, d.id FROM " + mEventsTableName + " e JOIN " + mDpTableName + " d"
+                            + " ON d.dataTime>=datetime(e.dataTime, '-" + DEFAULT_EVENT_WINDOW_SECS + " seconds')"
+                            + " AND d.dataTime<=datetime(e.dataTime, '+" + DEFAULT_EVENT_WINDOW_SECS + " seconds');");
+                }
+                if (oldVersion < 3 && newVersion >= 3) {
+                    UploadOutbox.createTable(db);
+                }
+                return;
+            }
             db.execSQL("Drop table if exists " + mDpTableName + ";");
+            db.execSQL("Drop table if exists " + mEventDpTableName + ";");
+            db.execSQL("Drop table if exists " + UploadOutbox.TABLE_NAME + ";");
             onCreate(db);
         }
 
@@ -1118,29 +1567,6 @@ public class LogManager {
     }
 
 
-    /**
-     * Upload recorded data to the remote database periodically.
-     */
-    private class RemoteLogTimer extends CountDownTimer {
-        public RemoteLogTimer(long startTime, long interval) {
-            super(startTime, interval);
-        }
-
-        @Override
-        public void onTick(long l) {
-            // Do Nothing
-        }
-
-        @Override
-        public void onFinish() {
-            Log.d(TAG, "mRemoteLogTimer - onFinish - uploading data to remote database");
-            writeToRemoteServer();
-            // Restart this timer.
-            start();
-        }
-
-    }
-
     /**
      * Prune the database periodically.
      */
@@ -0,0 +1,151 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * A Volley HTTP stack that sends requests with an OkHttpClient, so that Volley requests use the shared connection
+ * pool in OsdHttpClient instead of HttpURLConnection.
+ */
+public class OkHttpStack extends BaseHttpStack {
+    private static final String CONTENT_TYPE = "Content-Type";
+    private final OkHttpClient mClient;
+
+    public OkHttpStack(OkHttpClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        int timeoutMs = request.getTimeoutMs();
+        OkHttpClient client = mClient;
+        if (timeoutMs != mClient.readTimeoutMillis()) {
+            // Derived clients share the connection pool, so this is cheap.
+            client = mClient.newBuilder()
+                    .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+
+        Map<String, String> headers = new HashMap<>(additionalHeaders);
+        headers.putAll(request.getHeaders());
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(request.getUrl());
+        String contentType = request.getBodyContentType();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (CONTENT_TYPE.equalsIgnoreCase(header.getKey())) {
+                // As in Volley's HurlStack, a Content-Type header overrides the request's body content type.
+                contentType = header.getValue();
+            } else {
+                builder.header(header.getKey(), header.getValue());
+            }
+        }
+        setMethod(builder, request, contentType);
+
+        Response response = client.newCall(builder.build()).execute();
+        List<Header> responseHeaders = new ArrayList<>();
+        Headers h = response.headers();
+        for (int i = 0; i < h.size(); i++) {
+            responseHeaders.add(new Header(h.name(i), h.value(i)));
+        }
+        ResponseBody body = response.body();
+        if (body == null) {
+            response.close();
+            return new HttpResponse(response.code(), responseHeaders);
+        }
+        // Volley reads and closes the stream, which returns the connection to the pool.
+        return new HttpResponse(response.code(), responseHeaders, (int) body.contentLength(), body.byteStream());
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setMethod(okhttp3.Request.Builder builder, Request<?> request, String contentType)
+            throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Request.Method.DEPRECATED_GET_OR_POST:
+                byte[] postBody = request.getPostBody();
+                if (postBody != null) {
+                    builder.post(RequestBody.create(MediaType.parse(request.getPostBodyContentType()), postBody));
+                } else {
+                    builder.get();
+                }
+                break;
+            case Request.Method.GET:
+                builder.get();
+                break;
+            case Request.Method.DELETE:
+                builder.delete(createBody(request, contentType, false));
+                break;
+            case Request.Method.POST:
+                builder.post(createBody(request, contentType, true));
+                break;
+            case Request.Method.PUT:
+                builder.put(createBody(request, contentType, true));
+                break;
+            case Request.Method.HEAD:
+                builder.head();
+                break;
+            case Request.Method.OPTIONS:
+                builder.method("OPTIONS", null);
+                break;
+            case Request.Method.TRACE:
+                builder.method("TRACE", null);
+                break;
+            case Request.Method.PATCH:
+                builder.patch(createBody(request, contentType, true));
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    // POST, PUT and PATCH must have a body, even if it is empty.
+    private static RequestBody createBody(Request<?> request, String contentType, boolean required)
+            throws AuthFailureError {
+        byte[] body = request.getBody();
+        if (body == null) {
+            if (!required) return null;
+            body = new byte[0];
+        }
+        return RequestBody.create(MediaType.parse(contentType), body);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OsdDbExecutor runs database operations in the background, replacing the old AsyncTask based SelectQueryTask classes.
+ * - All writes go through a single writer thread, so they are serialised and never contend with each other.
+ * - Reads run on a small pool of reader threads (the database should have write ahead logging enabled so that
+ *   readers do not block the writer).
+ * - Results are returned as DbFuture objects whose thenAccept() callbacks run on the UI thread.
+ * - Queries are given a CursorReader which converts the Cursor into a plain java object on the background thread;
+ *   the cursor is always closed by the executor, so callers never see a live Cursor.
+ */
+public class OsdDbExecutor {
+    private static final String TAG = "OsdDbExecutor";
+    private static final int N_READERS = 2;
+    private static final long SHUTDOWN_TIMEOUT_MS = 1000;
+    private final SQLiteDatabase mDb;
+    private final ExecutorService mWriteExecutor;
+    private final ExecutorService mReadExecutor;
+    private final Executor mCallbackExecutor;
+
+    public interface CursorReader<T> {
+        T read(Cursor c);
+    }
+
+    public interface DbWork<T> {
+        T run(SQLiteDatabase db) throws Exception;
+    }
+
+    public OsdDbExecutor(SQLiteDatabase db, String name) {
+        this(db, name, new Handler(Looper.getMainLooper())::post);
+    }
+
+    public OsdDbExecutor(SQLiteDatabase db, String name, Executor callbackExecutor) {
+        Log.d(TAG, "OsdDbExecutor constructor - name=" + name);
+        mDb = db;
+        mCallbackExecutor = callbackExecutor;
+        mWriteExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory(name + "-writer"));
+        mReadExecutor = Executors.newFixedThreadPool(N_READERS, new NamedThreadFactory(name + "-reader"));
+    }
+
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * Run a query equivalent to SQLiteDatabase.query() on a reader thread, converting the result using reader.
+     * The cursor is closed before the returned future completes.
+     */
+    public <T> DbFuture<T> query(String table, String[] columns, String selection, String[] selectionArgs,
+                                 String groupBy, String having, String orderBy, String limit,
+                                 CursorReader<T> reader) {
+        return read((SQLiteDatabase db) -> {
+            Log.v(TAG, "query: table=" + table + ", columns=" + Arrays.toString(columns)
+                    + ", selection=" + selection + ", selectionArgs=" + Arrays.toString(selectionArgs) + ", groupBy=" + groupBy
+                    + ", having =" + having + ", orderBy=" + orderBy + ", limit=" + limit);
+            Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+            try {
+                c.moveToFirst();
+                return reader.read(c);
+            } finally {
+                c.close();
+            }
+        });
+    }
+
+    /**
+     * Run a read-only operation on one of the reader threads.
+     */
+    public <T> DbFuture<T> read(DbWork<T> work) {
+        return submit(mReadExecutor, work);
+    }
+
+    /**
+     * Run an operation that modifies the database on the single writer thread.
+     */
+    public <T> DbFuture<T> write(DbWork<T> work) {
+        return submit(mWriteExecutor, work);
+    }
+
+    private <T> DbFuture<T> submit(ExecutorService executor, DbWork<T> work) {
+        DbFuture<T> f = new DbFuture<>(mCallbackExecutor);
+        try {
+            executor.execute(() -> {
+                try {
+                    f.complete(work.run(mDb));
+                } catch (Exception e) {
+                    Log.e(TAG, "submit(): Error running database operation: " + e.toString());
+                    f.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "submit(): executor has been shut down - " + e.toString());
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    /**
+     * Stop accepting new work.  Work that has already been submitted is given a short time to finish so that
+     * the database can be closed safely afterwards.
+     */
+    public void shutdown() {
+        Log.i(TAG, "shutdown()");
+        mReadExecutor.shutdown();
+        mWriteExecutor.shutdown();
+        try {
+            mWriteExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            mReadExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "shutdown(): interrupted waiting for database operations to finish");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(0);
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.Volley;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * OsdHttpClient holds the single OkHttpClient used for all of the app's HTTP traffic - the Volley queues used to talk
+ * to the remote web API, and SdDataSourceNetwork polling another phone's web server.   Sharing one client means
+ * sharing one connection pool, so connections are kept alive and re-used between requests (and multiplexed over
+ * HTTP/2 where the server supports it, which needs TLS, so in practice only the remote web API), rather than each
+ * request paying for a new TCP (and TLS) handshake.
+ * Clients with different timeouts are derived from the shared one with forTimeouts(), and still share its pool.
+ */
+public class OsdHttpClient {
+    private static final String TAG = "OsdHttpClient";
+    static final int MAX_IDLE_CONNECTIONS = 5;
+    static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+    static final long DEFAULT_TIMEOUT_MS = 10 * 1000;
+    private static OkHttpClient mClient;
+
+    public static synchronized OkHttpClient getClient() {
+        if (mClient == null) {
+            Log.i(TAG, "getClient() - creating shared HTTP client");
+            mClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .connectTimeout(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .readTimeout(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .writeTimeout(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .retryOnConnectionFailure(true)
+                    .build();
+        }
+        return mClient;
+    }
+
+    /**
+     * Return a client with the given timeouts that shares the connection pool of the shared client.
+     */
+    public static OkHttpClient forTimeouts(long connectTimeoutMs, long readTimeoutMs) {
+        return getClient().newBuilder()
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Create a Volley request queue that sends its requests using the shared client.
+     */
+    public static RequestQueue newRequestQueue(Context context) {
+        return Volley.newRequestQueue(context, new OkHttpStack(getClient()));
+    }
+
+    /**
+     * GET url using client and return the response body as a string.   The whole body is read so that the connection
+     * can go back to the pool.
+     *
+     * @throws IOException if the request fails or the server does not return a 2xx status.
+     */
+    public static String get(OkHttpClient client, String url) throws IOException {
+        Request request = new Request.Builder().url(url).get().build();
+        Response response = client.newCall(request).execute();
+        try {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("HTTP " + response.code() + " from " + url);
+            }
+            return body.string();
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Number of connections (idle or in use) in the shared pool.
+     */
+    public static int getConnectionCount() {
+        return getClient().connectionPool().connectionCount();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * OsdStatementCache keeps a small LRU cache of compiled SQLiteStatements for the frequently used inserts and updates,
+ * so SQLite does not have to parse and plan the same SQL every time we write a datapoint or log entry.
+ * Values are always passed as bound parameters, never concatenated into the SQL string.
+ * SQLiteStatement is not thread safe, so binding and executing a statement is done while holding the cache lock.
+ * (Parameterised SELECT queries run with rawQuery() benefit from the per-connection statement cache in
+ * SQLiteDatabase itself, so they do not need to go through this class).
+ */
+public class OsdStatementCache {
+    private static final String TAG = "OsdStatementCache";
+    private static final int MAX_STATEMENTS = 16;
+    private final SQLiteDatabase mDb;
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    public OsdStatementCache(SQLiteDatabase db) {
+        mDb = db;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(MAX_STATEMENTS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > MAX_STATEMENTS) {
+                    Log.v(TAG, "removeEldestEntry() - closing " + eldest.getKey());
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Execute an INSERT statement with the given parameter values.
+     *
+     * @return the row ID of the inserted row, or -1 on failure.
+     */
+    public synchronized long executeInsert(String sql, Object... args) {
+        SQLiteStatement stmt = bind(sql, args);
+        return stmt.executeInsert();
+    }
+
+    /**
+     * Execute an UPDATE or DELETE statement with the given parameter values.
+     *
+     * @return the number of rows affected.
+     */
+    public synchronized int executeUpdateDelete(String sql, Object... args) {
+        SQLiteStatement stmt = bind(sql, args);
+        return stmt.executeUpdateDelete();
+    }
+
+    /**
+     * Execute a statement that returns a single numeric value (such as SELECT COUNT(*)).
+     */
+    public synchronized long simpleQueryForLong(String sql, Object... args) {
+        SQLiteStatement stmt = bind(sql, args);
+        return stmt.simpleQueryForLong();
+    }
+
+    public synchronized int size() {
+        return mStatements.size();
+    }
+
+    public synchronized void close() {
+        Log.d(TAG, "close() - closing " + mStatements.size() + " statements");
+        Iterator<SQLiteStatement> it = mStatements.values().iterator();
+        while (it.hasNext()) {
+            it.next().close();
+        }
+        mStatements.clear();
+    }
+
+    private SQLiteStatement bind(String sql, Object[] args) {
+        SQLiteStatement stmt = mStatements.get(sql);
+        if (stmt == null) {
+            Log.v(TAG, "bind() - compiling " + sql);
+            stmt = mDb.compileStatement(sql);
+            mStatements.put(sql, stmt);
+        }
+        stmt.clearBindings();
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            // SQLite parameter indices start at 1.
+            if (arg == null) {
+                stmt.bindNull(i + 1);
+            } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short) {
+                stmt.bindLong(i + 1, ((Number) arg).longValue());
+            } else if (arg instanceof Boolean) {
+                stmt.bindLong(i + 1, ((Boolean) arg) ? 1 : 0);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                stmt.bindDouble(i + 1, ((Number) arg).doubleValue());
+            } else if (arg instanceof byte[]) {
+                stmt.bindBlob(i + 1, (byte[]) arg);
+            } else {
+                stmt.bindString(i + 1, arg.toString());
+            }
+        }
+        return stmt;
+    }
+}
@@ -33,14 +33,12 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
@@ -62,7 +60,6 @@ import java.net.NetworkInterface;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -94,6 +91,10 @@ public class OsdUtil {
     private static final String mSysLogTableName = "SysLog";
     //private LogManager mLm;
     static private SQLiteDatabase mSysLogDb = null;   // SQLite Database for data and log entries.
+    static private OsdDbExecutor mSysLogDbExecutor = null;  // Runs syslog queries in the background.
+    static private OsdStatementCache mSysLogStmtCache = null;  // Compiled statement for syslog inserts.
+    private static final String SQL_INSERT_LOG_ENTRY = "INSERT INTO " + mSysLogTableName
+            + "(dataTime, logLevel, dataJSON, uploaded) VALUES(?, ?, ?, ?)";
     private final static Long mMinPruneInterval = new Long(5 * 60 * 1000); // minimum time between syslog pruning is 5 minutes
     private static Long mLastPruneMillis = new Long(0);   // Record of the last time we pruned the syslog db.
 
@@ -294,6 +295,12 @@ public class OsdUtil {
         }
     }
 
+    public boolean isActiveNetworkMetered() {
+        // return true if the active network may cost the user money (e.g. mobile data), otherwise false.
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return cm.isActiveNetworkMetered();
+    }
+
     public boolean isNetworkConnected() {
         // return true if we have a network connection, otherwise false.
         ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -512,6 +519,8 @@ public class OsdUtil {
             if (mSysLogDb == null) {
                 Log.i(TAG,"openDb: mSysLogDb is null - initialising");
                 mSysLogDb = new OsdSysLogHelper(mContext).getWritableDatabase();
+                mSysLogDbExecutor = new OsdDbExecutor(mSysLogDb, "OsdSysLog");
+                mSysLogStmtCache = new OsdStatementCache(mSysLogDb);
             } else {
                 Log.i(TAG,"openDb: mSysLogDb has been initialised already so not doing anything");
             }
@@ -544,8 +553,7 @@ public class OsdUtil {
     }
 
     /**
-     * Write syslog string to local database
-     * FIXME - I am sure we should not be using raw SQL Srings to do this!
+     * Write syslog string to local database, using a cached parameterised insert statement.
      */
     public void writeLogEntryToLocalDb(String logText, String statusVal) {
         Log.v(TAG, "writeLogEntryToLocalDb()");
@@ -553,24 +561,14 @@ public class OsdUtil {
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
         String dateStr = dateFormat.format(curDate);
-        String SQLStr = "SQLStr";
 
         try {
-            SQLStr = "INSERT INTO " + mSysLogTableName
-                    + "(dataTime, logLevel, dataJSON, uploaded)"
-                    + " VALUES("
-                    + "'" + dateStr + "',"
-                    + DatabaseUtils.sqlEscapeString(statusVal) + ","
-                    + DatabaseUtils.sqlEscapeString(logText) + ","
-                    + 0
-                    + ")";
-            mSysLogDb.execSQL(SQLStr);
+            mSysLogStmtCache.executeInsert(SQL_INSERT_LOG_ENTRY, dateStr, statusVal, logText, 0);
             Log.v(TAG, "syslog entry written to database: "+logText);
             pruneSysLogDb();
 
         } catch (SQLException e) {
             Log.e(TAG, "writeLogEngryToLocalDb(): Error Writing Data: " + e.toString());
-            Log.e(TAG, "SQLStr was " + SQLStr);
         }
 
     }
@@ -582,93 +580,27 @@ public class OsdUtil {
      */
     public boolean getSysLogList(Consumer<ArrayList<HashMap<String, String>>> callback) {
         Log.v(TAG, "getSysLogList");
-        ArrayList<HashMap<String, String>> eventsList = new ArrayList<>();
-
-        String whereClause = "";
-        String[] whereArgs = {};
-        String[] columns = {"*"};
-        new SelectQueryTask(mSysLogTableName, columns, null, null,
-                null, null, "dataTime DESC", (Cursor cursor) -> {
-            Log.v(TAG, "getSysLogList - returned " + cursor);
-            if (cursor != null) {
-                Log.v(TAG, "getSysLogList - returned " + cursor.getCount() + " records");
-                while (!cursor.isAfterLast()) {
-                    HashMap<String, String> event = new HashMap<>();
-                    //event.put("id", cursor.getString(cursor.getColumnIndex("id")));
-                    event.put("dataTime", cursor.getString(cursor.getColumnIndex("dataTime")));
-                    String loglevel = cursor.getString(cursor.getColumnIndex("logLevel"));
-                    event.put("loglevel", loglevel);
-                    event.put("dataJSON", cursor.getString(cursor.getColumnIndex("dataJSON")));
-                    //event.put("dataJSON", cursor.getString(cursor.getColumnIndex("dataJSON")));
-                    eventsList.add(event);
-                    cursor.moveToNext();
-                }
+        String[] columns = {"dataTime", "logLevel", "dataJSON"};
+        mSysLogDbExecutor.query(mSysLogTableName, columns, null, null,
+                null, null, "dataTime DESC", null, (Cursor cursor) -> {
+            ArrayList<HashMap<String, String>> eventsList = new ArrayList<>();
+            Log.v(TAG, "getSysLogList - returned " + cursor.getCount() + " records");
+            while (!cursor.isAfterLast()) {
+                HashMap<String, String> event = new HashMap<>();
+                event.put("dataTime", cursor.getString(cursor.getColumnIndex("dataTime")));
+                String loglevel = cursor.getString(cursor.getColumnIndex("logLevel"));
+                event.put("loglevel", loglevel);
+                event.put("dataJSON", cursor.getString(cursor.getColumnIndex("dataJSON")));
+                eventsList.add(event);
+                cursor.moveToNext();
             }
-            callback.accept(eventsList);
-        }).execute();
+            return eventsList;
+        }).thenAccept((ArrayList<HashMap<String, String>> eventsList) -> {
+            callback.accept(eventsList == null ? new ArrayList<>() : eventsList);
+        });
         return (true);
     }
 
-    /**
-     * Executes the sqlite query (=SELECT statement)
-     * Use as new SelectQueryTask(xxx,xxx,xx,xxxx).execute()
-     *
-     */
-    static private class SelectQueryTask extends AsyncTask<Void, Void, Cursor> {
-        // Based on https://stackoverflow.com/a/21120199/2104584
-        String mTable;
-        String[] mColumns;
-        String mSelection;
-        String[] mSelectionArgs;
-        String mGroupBy;
-        String mHaving;
-        String mOrderBy;
-        Consumer<Cursor> mCallback;
-
-        //query(String table, String[] columns, String selection, String[] selectionArgs,
-        // String groupBy, String having, String orderBy)
-        SelectQueryTask(String table, String[] columns, String selection, String[] selectionArgs,
-                        String groupBy, String having, String orderBy, Consumer<Cursor> callback) {
-            // list all the parameters like in normal class define
-            this.mTable = table;
-            this.mColumns = columns;
-            this.mSelection = selection;
-            this.mSelectionArgs = selectionArgs;
-            this.mGroupBy = groupBy;
-            this.mHaving = having;
-            this.mOrderBy = orderBy;
-            this.mCallback = callback;
-
-        }
-
-        @Override
-        protected Cursor doInBackground(Void... params) {
-            Log.v(TAG, "runSelect.doInBackground()");
-            Log.v(TAG, "SelectQueryTask.doInBackground: mTable=" + mTable + ", mColumns=" + Arrays.toString(mColumns)
-                    + ", mSelection=" + mSelection + ", mSelectionArgs=" + Arrays.toString(mSelectionArgs) + ", mGroupBy=" + mGroupBy
-                    + ", mHaving =" + mHaving + ", mOrderBy=" + mOrderBy);
-
-            try {
-                Cursor resultSet = mSysLogDb.query(mTable, mColumns, mSelection,
-                        mSelectionArgs, mGroupBy, mHaving, mOrderBy);
-                resultSet.moveToFirst();
-                return (resultSet);
-            } catch (SQLException e) {
-                Log.e(TAG, "SelectQueryTask.doInBackground(): Error selecting Data: " + e.toString());
-                return (null);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "SelectQueryTask.doInBackground(): Illegal Argument Exception: " + e.toString());
-                return (null);
-            }
-        }
-
-        @Override
-        protected void onPostExecute(final Cursor result) {
-            mCallback.accept(result);
-        }
-    }
-
-
 
     /**
      * pruneSysLogDb() removes data that is older than 7 days
@@ -713,6 +645,11 @@ public class OsdUtil {
             Log.d(TAG, "OsdSysLogHelper constructor");
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.enableWriteAheadLogging();
+        }
+
         public void onCreate(SQLiteDatabase db) {
             Log.i(TAG, "onCreate - TableName=" + mSysLogTableName);
             String SQLStr = "CREATE TABLE IF NOT EXISTS " + mSysLogTableName + "("
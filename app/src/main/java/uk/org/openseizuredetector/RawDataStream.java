@@ -0,0 +1,155 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * RawDataStream pushes the raw accelerometer data of each analysis window to the clients of SdWebServer's /rawstream
+ * WebSocket endpoint, for researchers who want live raw data (/data and /stream leave it out).
+ * Each window is sent as one binary message, made once and shared by all clients, with this little-endian layout
+ * (the same encoding as a RawSampleJournal record):
+ * int64 time the window was published (ms), int32 sequence number, int32 nSamp, int32 sample frequency (Hz),
+ * nSamp float32 rawData values, then 3 * nSamp float32 rawData3D values (x, y, z for each sample).
+ * A gap in the sequence numbers means windows were dropped: each client may only have MAX_QUEUED_BYTES of messages
+ * waiting to be sent, and further windows are dropped for that client until it catches up, so publish() never waits
+ * for a slow client.   Open WebSockets do not use a thread, so many more clients are allowed than for /stream.
+ */
+public class RawDataStream implements NanoHTTPD.WebSocketHandler {
+    private static final String TAG = "RawDataStream";
+    static final int MAX_SUBSCRIBERS = 64;
+    // About 8 windows of 5 seconds of 100 Hz data.
+    static final int MAX_QUEUED_BYTES = 64 * 1024;
+    static final int HEADER_SIZE = 20;
+    private final ArrayList<NanoHTTPD.WebSocket> mSubscribers = new ArrayList<>();
+    private int mSeq = 0;
+    private long mDroppedFrames = 0;
+
+    @Override
+    public void onOpen(NanoHTTPD.WebSocket ws) {
+        synchronized (this) {
+            if (mSubscribers.size() < MAX_SUBSCRIBERS) {
+                ws.setMaxQueuedBytes(MAX_QUEUED_BYTES);
+                mSubscribers.add(ws);
+                Log.i(TAG, "onOpen() - " + mSubscribers.size() + " subscribers");
+                if (ws.isOpen()) return;
+                // It closed before it was added, so onClose() has already been called.
+                mSubscribers.remove(ws);
+                return;
+            }
+        }
+        Log.w(TAG, "onOpen() - too many subscribers");
+        ws.close(NanoHTTPD.WebSocket.CLOSE_TRY_AGAIN_LATER, "Too many subscribers");
+    }
+
+    @Override
+    public void onMessage(NanoHTTPD.WebSocket ws, byte[] payload, boolean text) {
+        // The stream only goes one way - anything the client sends is ignored.
+        Log.v(TAG, "onMessage() - ignoring " + payload.length + " byte message");
+    }
+
+    @Override
+    public void onClose(NanoHTTPD.WebSocket ws) {
+        synchronized (this) {
+            if (!mSubscribers.remove(ws)) return;
+            mDroppedFrames += ws.getDroppedFrames();
+            Log.i(TAG, "onClose() - " + mSubscribers.size() + " subscribers");
+        }
+    }
+
+    public synchronized int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /**
+     * Number of messages that have been dropped because a client was not keeping up, over all clients.
+     */
+    public synchronized long getDroppedFrames() {
+        long dropped = mDroppedFrames;
+        for (NanoHTTPD.WebSocket ws : mSubscribers) {
+            dropped += ws.getDroppedFrames();
+        }
+        return dropped;
+    }
+
+    /**
+     * Send the raw data of sdData to every subscriber.   This only queues the data, so it is safe to call from the
+     * analysis thread.   sdData must not be modified afterwards (use a snapshot's data).
+     */
+    public void publish(SdData sdData) {
+        ArrayList<NanoHTTPD.WebSocket> subscribers;
+        byte[] frame;
+        synchronized (this) {
+            if (mSubscribers.isEmpty()) return;
+            mSeq++;
+            byte[] payload = encode(sdData, System.currentTimeMillis(), mSeq);
+            if (payload == null) return;
+            frame = NanoHTTPD.makeWebSocketFrame(NanoHTTPD.WebSocket.OPCODE_BINARY, payload);
+            subscribers = new ArrayList<>(mSubscribers);
+        }
+        for (NanoHTTPD.WebSocket ws : subscribers) {
+            ws.sendFrame(frame);
+        }
+    }
+
+    /**
+     * Close every subscriber's connection.
+     */
+    public void closeAll() {
+        ArrayList<NanoHTTPD.WebSocket> subscribers;
+        synchronized (this) {
+            subscribers = new ArrayList<>(mSubscribers);
+        }
+        for (NanoHTTPD.WebSocket ws : subscribers) {
+            ws.close(NanoHTTPD.WebSocket.CLOSE_GOING_AWAY, "Server stopping");
+        }
+    }
+
+    /**
+     * Return the message for one window of raw data, or null if sdData has none.
+     */
+    static byte[] encode(SdData sdData, long timeMs, int seq) {
+        if (sdData.rawData == null) return null;
+        int nSamp = Math.min(sdData.mNsamp, sdData.rawData.length);
+        if (nSamp <= 0) return null;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 16 * nSamp).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(timeMs);
+        buf.putInt(seq);
+        buf.putInt(nSamp);
+        buf.putInt((int) sdData.mSampleFreq);
+        for (int i = 0; i < nSamp; i++) {
+            buf.putFloat((float) sdData.rawData[i]);
+        }
+        double[] raw3D = sdData.rawData3D;
+        for (int i = 0; i < 3 * nSamp; i++) {
+            buf.putFloat((raw3D != null && i < raw3D.length) ? (float) raw3D[i] : 0f);
+        }
+        return buf.array();
+    }
+}
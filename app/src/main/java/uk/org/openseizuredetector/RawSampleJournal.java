@@ -0,0 +1,341 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * RawSampleJournal is an append-only store for the raw accelerometer data, kept alongside the SQLite database
+ * (which then only needs to hold the analysis results and events).
+ * <p>
+ * The journal is a directory of segment files, each named raw_&lt;first timestamp&gt;.seg.   Each segment is a fixed
+ * size file that is memory mapped, and holds a header followed by up to RECORDS_PER_SEGMENT fixed size records.
+ * One record holds one analysis window:
+ * - timestamp (ms since epoch, long)  - 0 marks an unused slot.
+ * - number of valid samples (int)
+ * - sample frequency (int)
+ * - N_RAW float magnitude samples
+ * - 3 * N_RAW float x,y,z samples
+ * Records are appended in timestamp order, so a time range is found by choosing the segments whose range overlaps
+ * the request (the segment index) and binary searching the timestamps within each segment.
+ * Reads return read-only slices of the mapped segments, so no data is copied until it is decoded.
+ */
+public class RawSampleJournal {
+    private static final String TAG = "RawSampleJournal";
+    public static final int N_RAW = 500;       // samples per window - matches SdData.rawData.
+    public static final int RECORDS_PER_SEGMENT = 720;   // 1 hour of 5 second windows.
+    private static final int MAGIC = 0x4F534452;   // "OSDR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = RECORD_HEADER_SIZE + 4 * N_RAW + 4 * 3 * N_RAW;
+    private static final long SEGMENT_SIZE = HEADER_SIZE + (long) RECORD_SIZE * RECORDS_PER_SEGMENT;
+    private static final int MAX_MAPPED_SEGMENTS = 4;
+
+    private final File mDir;
+    // Segment index - first timestamp in each segment to the segment file.
+    private final TreeMap<Long, File> mSegmentFiles = new TreeMap<>();
+    // Recently used read-only mappings of closed segments.
+    private final LinkedHashMap<File, MappedByteBuffer> mMapped =
+            new LinkedHashMap<File, MappedByteBuffer>(MAX_MAPPED_SEGMENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, MappedByteBuffer> eldest) {
+                    return size() > MAX_MAPPED_SEGMENTS;
+                }
+            };
+    private File mActiveFile = null;
+    private MappedByteBuffer mActive = null;
+    private int mActiveCount = 0;
+    private long mLastTimestamp = 0;
+
+    public RawSampleJournal(File dir) throws IOException {
+        Log.d(TAG, "RawSampleJournal() - dir=" + dir);
+        mDir = dir;
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create journal directory " + dir);
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Long firstTs = parseSegmentName(f.getName());
+                if (firstTs != null) mSegmentFiles.put(firstTs, f);
+            }
+        }
+        if (!mSegmentFiles.isEmpty()) {
+            // Re-open the newest segment for appending.
+            openActive(mSegmentFiles.lastEntry().getValue());
+        }
+        Log.i(TAG, "RawSampleJournal() - " + mSegmentFiles.size() + " segments, active segment holds " + mActiveCount + " records");
+    }
+
+    /**
+     * Append one window of raw data.   Timestamps must increase - records that are not newer than the last one
+     * written are rejected so that the binary search stays valid (and so replaying a record is harmless).
+     *
+     * @return true if the record was written.
+     */
+    public synchronized boolean append(long timestampMs, int nSamp, int sampleFreq, double[] rawData, double[] rawData3D)
+            throws IOException {
+        if (timestampMs <= 0 || timestampMs <= mLastTimestamp) {
+            Log.w(TAG, "append() - rejecting out of order timestamp " + timestampMs + ", last=" + mLastTimestamp);
+            return false;
+        }
+        if (mActive == null || mActiveCount >= RECORDS_PER_SEGMENT) {
+            rollover(timestampMs);
+        }
+        int pos = HEADER_SIZE + mActiveCount * RECORD_SIZE;
+        ByteBuffer rec = mActive.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        rec.position(pos + 8);
+        rec.putInt(nSamp);
+        rec.putInt(sampleFreq);
+        for (int i = 0; i < N_RAW; i++) {
+            rec.putFloat((rawData != null && i < rawData.length) ? (float) rawData[i] : 0f);
+        }
+        for (int i = 0; i < 3 * N_RAW; i++) {
+            rec.putFloat((rawData3D != null && i < rawData3D.length) ? (float) rawData3D[i] : 0f);
+        }
+        // The timestamp is written last so a partially written record is never visible as a valid one.
+        rec.putLong(pos, timestampMs);
+        mActiveCount++;
+        mLastTimestamp = timestampMs;
+        return true;
+    }
+
+    /**
+     * Return read-only views of all records with fromMs <= timestamp <= toMs, oldest first.
+     * The returned buffers are slices of the mapped segment files - decode them with the static helpers.
+     */
+    public synchronized List<ByteBuffer> readRange(long fromMs, long toMs) throws IOException {
+        ArrayList<ByteBuffer> result = new ArrayList<>();
+        if (fromMs > toMs) return result;
+        Long startKey = mSegmentFiles.floorKey(fromMs);
+        if (startKey == null) startKey = fromMs;
+        for (Map.Entry<Long, File> e : mSegmentFiles.subMap(startKey, true, toMs, true).entrySet()) {
+            ByteBuffer seg = mapForRead(e.getValue());
+            int n = countRecords(seg);
+            int i = lowerBound(seg, n, fromMs);
+            for (; i < n; i++) {
+                long ts = seg.getLong(HEADER_SIZE + i * RECORD_SIZE);
+                if (ts > toMs) break;
+                ByteBuffer dup = seg.duplicate();
+                dup.position(HEADER_SIZE + i * RECORD_SIZE);
+                dup.limit(HEADER_SIZE + (i + 1) * RECORD_SIZE);
+                result.add(dup.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the record with exactly the given timestamp, or null if it is not in the journal.
+     */
+    public ByteBuffer readRecord(long timestampMs) throws IOException {
+        List<ByteBuffer> recs = readRange(timestampMs, timestampMs);
+        return recs.isEmpty() ? null : recs.get(0);
+    }
+
+    /**
+     * Delete whole segments whose newest record is older than cutoffMs.
+     *
+     * @return the number of segments deleted.
+     */
+    public synchronized int pruneOlderThan(long cutoffMs) {
+        int nDeleted = 0;
+        Iterator<Map.Entry<Long, File>> it = mSegmentFiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, File> e = it.next();
+            Long nextKey = mSegmentFiles.higherKey(e.getKey());
+            // A segment ends before the next one starts, so if the next one starts before the cutoff, this one
+            // holds nothing we need to keep.   The active segment is never deleted.
+            if (nextKey == null || nextKey > cutoffMs || e.getValue().equals(mActiveFile)) break;
+            mMapped.remove(e.getValue());
+            if (e.getValue().delete()) {
+                nDeleted++;
+            } else {
+                Log.w(TAG, "pruneOlderThan() - failed to delete " + e.getValue());
+            }
+            it.remove();
+        }
+        Log.d(TAG, "pruneOlderThan() - deleted " + nDeleted + " segments");
+        return nDeleted;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegmentFiles.size();
+    }
+
+    public synchronized void close() {
+        if (mActive != null) mActive.force();
+        mActive = null;
+        mActiveFile = null;
+        mMapped.clear();
+    }
+
+    public static long getTimestamp(ByteBuffer rec) {
+        return rec.getLong(0);
+    }
+
+    public static int getNSamp(ByteBuffer rec) {
+        return rec.getInt(8);
+    }
+
+    public static int getSampleFreq(ByteBuffer rec) {
+        return rec.getInt(12);
+    }
+
+    /**
+     * Decode the magnitude samples of record rec into rawData (which should hold N_RAW values).
+     */
+    public static void getRawData(ByteBuffer rec, double[] rawData) {
+        for (int i = 0; i < N_RAW && i < rawData.length; i++) {
+            rawData[i] = rec.getFloat(RECORD_HEADER_SIZE + 4 * i);
+        }
+    }
+
+    /**
+     * Decode the x,y,z samples of record rec into rawData3D (which should hold 3 * N_RAW values).
+     */
+    public static void getRawData3D(ByteBuffer rec, double[] rawData3D) {
+        int base = RECORD_HEADER_SIZE + 4 * N_RAW;
+        for (int i = 0; i < 3 * N_RAW && i < rawData3D.length; i++) {
+            rawData3D[i] = rec.getFloat(base + 4 * i);
+        }
+    }
+
+    private void rollover(long firstTimestamp) throws IOException {
+        if (mActive != null) {
+            mActive.force();
+        }
+        File f = new File(mDir, "raw_" + firstTimestamp + ".seg");
+        Log.i(TAG, "rollover() - starting new segment " + f.getName());
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(SEGMENT_SIZE);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putInt(8, RECORD_SIZE);
+            buf.putInt(12, RECORDS_PER_SEGMENT);
+            mActive = buf;
+        } finally {
+            raf.close();   // The mapping remains valid after the file is closed.
+        }
+        mActiveFile = f;
+        mActiveCount = 0;
+        mSegmentFiles.put(firstTimestamp, f);
+    }
+
+    private void openActive(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            if (raf.length() != SEGMENT_SIZE) {
+                Log.w(TAG, "openActive() - " + f.getName() + " has unexpected size - starting a new segment on next write");
+                return;
+            }
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt(0) != MAGIC || buf.getInt(8) != RECORD_SIZE) {
+                Log.w(TAG, "openActive() - " + f.getName() + " has an invalid header - starting a new segment on next write");
+                return;
+            }
+            mActive = buf;
+            mActiveFile = f;
+            mActiveCount = countRecords(buf);
+            if (mActiveCount > 0) {
+                mLastTimestamp = buf.getLong(HEADER_SIZE + (mActiveCount - 1) * RECORD_SIZE);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private ByteBuffer mapForRead(File f) throws IOException {
+        if (f.equals(mActiveFile)) return mActive;
+        MappedByteBuffer buf = mMapped.get(f);
+        if (buf == null) {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+            } finally {
+                raf.close();
+            }
+            mMapped.put(f, buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Number of valid records in a segment - the first slot with a zero timestamp marks the end of the data.
+     */
+    private static int countRecords(ByteBuffer seg) {
+        int capacity = (int) ((seg.capacity() - HEADER_SIZE) / RECORD_SIZE);
+        int lo = 0;
+        int hi = capacity;
+        // Records are written in order, so the used slots are a prefix of the segment.
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (seg.getLong(HEADER_SIZE + mid * RECORD_SIZE) != 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Index of the first record in seg with timestamp >= ts.
+     */
+    private static int lowerBound(ByteBuffer seg, int n, long ts) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (seg.getLong(HEADER_SIZE + mid * RECORD_SIZE) < ts) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static Long parseSegmentName(String name) {
+        if (!name.startsWith("raw_") || !name.endsWith(".seg")) return null;
+        try {
+            return Long.parseLong(name.substring(4, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
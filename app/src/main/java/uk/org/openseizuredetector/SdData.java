@@ -32,14 +32,19 @@ import android.util.Log;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
+import uk.org.openseizuredetector.core.WatchData;
+
 /* based on http://stackoverflow.com/questions/2139134/how-to-send-an-object-from-one-android-activity-to-another-using-intents */
 
-public class SdData implements Parcelable {
+/**
+ * The fields received from the watch, and its alarm status, are in WatchData (in :core), which also parses the
+ * watch's messages.
+ */
+public class SdData extends WatchData implements Parcelable {
     private final static String TAG = "SdData";
     private final static int N_RAW_DATA = 500;  // 5 seconds at 100 Hz.
     /* Analysis settings */
     public String phoneAppVersion = "";
-    public boolean haveSettings = false;   // flag to say if we have received settings or not.
     public boolean haveData = false; // flag to say we have received data.
     public short mDataUpdatePeriod;
     public short mMutePeriod;
@@ -49,8 +54,6 @@ public class SdData implements Parcelable {
     public short mFallThreshMax;
     public short mFallWindow;
     public long mSdMode;
-    public long mSampleFreq;
-    public long analysisPeriod;
     public long alarmFreqMin;
     public long alarmFreqMax;
     public long nMin;
@@ -59,7 +62,6 @@ public class SdData implements Parcelable {
     public long alarmTime;
     public long alarmThresh;
     public long alarmRatioThresh;
-    public long batteryPc;
 
     /* Heart Rate Alarm Settings */
     public boolean mHRAlarmActive = false;
@@ -74,26 +76,13 @@ public class SdData implements Parcelable {
 
     /* Watch App Settings */
     public String dataSourceName = "";
-    public String watchPartNo = "";
-    public String watchFwVersion = "";
-    public String watchSdVersion = "";
-    public String watchSdName = "";
-
-
-    public double rawData[];
-    public double rawData3D[];
-    int mNsamp = 0;
 
     /* Analysis results */
     public Time dataTime = null;
-    public long alarmState;
-    public boolean alarmStanding = false;
-    public boolean fallAlarmStanding = false;
     public long maxVal;
     public long maxFreq;
     public long specPower;
     public long roiPower;
-    public String alarmPhrase;
     public int simpleSpec[];
     public boolean watchConnected = false;
     public boolean watchAppRunning = false;
@@ -101,11 +90,9 @@ public class SdData implements Parcelable {
 
     public boolean mHRAlarmStanding = false;
     public boolean mHRFaultStanding = false;
-    public double mHR = 0;
 
     public boolean mO2SatAlarmStanding = false;
     public boolean mO2SatFaultStanding = false;
-    public double mO2Sat = 0;
 
 
     public SdData() {
@@ -115,6 +102,70 @@ public class SdData implements Parcelable {
         dataTime = new Time(Time.getCurrentTimezone());
     }
 
+    /**
+     * Create a copy of other, which does not share any arrays or other mutable objects with it.
+     */
+    public SdData(SdData other) {
+        phoneAppVersion = other.phoneAppVersion;
+        haveSettings = other.haveSettings;
+        haveWatchInfo = other.haveWatchInfo;
+        haveData = other.haveData;
+        mDataUpdatePeriod = other.mDataUpdatePeriod;
+        mMutePeriod = other.mMutePeriod;
+        mManAlarmPeriod = other.mManAlarmPeriod;
+        mFallActive = other.mFallActive;
+        mFallThreshMin = other.mFallThreshMin;
+        mFallThreshMax = other.mFallThreshMax;
+        mFallWindow = other.mFallWindow;
+        mSdMode = other.mSdMode;
+        mSampleFreq = other.mSampleFreq;
+        analysisPeriod = other.analysisPeriod;
+        alarmFreqMin = other.alarmFreqMin;
+        alarmFreqMax = other.alarmFreqMax;
+        nMin = other.nMin;
+        nMax = other.nMax;
+        warnTime = other.warnTime;
+        alarmTime = other.alarmTime;
+        alarmThresh = other.alarmThresh;
+        alarmRatioThresh = other.alarmRatioThresh;
+        batteryPc = other.batteryPc;
+        mHRAlarmActive = other.mHRAlarmActive;
+        mHRNullAsAlarm = other.mHRNullAsAlarm;
+        mHRThreshMin = other.mHRThreshMin;
+        mHRThreshMax = other.mHRThreshMax;
+        mO2SatAlarmActive = other.mO2SatAlarmActive;
+        mO2SatNullAsAlarm = other.mO2SatNullAsAlarm;
+        mO2SatThreshMin = other.mO2SatThreshMin;
+        dataSourceName = other.dataSourceName;
+        watchPartNo = other.watchPartNo;
+        watchFwVersion = other.watchFwVersion;
+        watchSdVersion = other.watchSdVersion;
+        watchSdName = other.watchSdName;
+        mNsamp = other.mNsamp;
+        mMute = other.mMute;
+        alarmState = other.alarmState;
+        alarmStanding = other.alarmStanding;
+        fallAlarmStanding = other.fallAlarmStanding;
+        maxVal = other.maxVal;
+        maxFreq = other.maxFreq;
+        specPower = other.specPower;
+        roiPower = other.roiPower;
+        alarmPhrase = other.alarmPhrase;
+        watchConnected = other.watchConnected;
+        watchAppRunning = other.watchAppRunning;
+        serverOK = other.serverOK;
+        mHRAlarmStanding = other.mHRAlarmStanding;
+        mHRFaultStanding = other.mHRFaultStanding;
+        mHR = other.mHR;
+        mO2SatAlarmStanding = other.mO2SatAlarmStanding;
+        mO2SatFaultStanding = other.mO2SatFaultStanding;
+        mO2Sat = other.mO2Sat;
+        rawData = (other.rawData != null) ? other.rawData.clone() : null;
+        rawData3D = (other.rawData3D != null) ? other.rawData3D.clone() : null;
+        simpleSpec = (other.simpleSpec != null) ? other.simpleSpec.clone() : null;
+        dataTime = (other.dataTime != null) ? new Time(other.dataTime) : null;
+    }
+
     /*
      * Intialise this SdData object from a JSON String
      * FIXME - add O2saturation with checking in case it is not included in the data
@@ -175,6 +226,15 @@ public class SdData implements Parcelable {
     }
 
     public String toDatapointJSON() {
+        return toDatapointJSON(true);
+    }
+
+    /**
+     * Return a JSON representation of the data to be stored as a datapoint.
+     * @param includeRawData - if false, the rawData and rawData3D arrays are omitted (used when the raw data
+     *                       is stored separately in the RawSampleJournal).
+     */
+    public String toDatapointJSON(boolean includeRawData) {
         String retval;
         retval = "SdData.toDatapointJSON() Output";
         try {
@@ -201,18 +261,20 @@ public class SdData implements Parcelable {
                 arr.put(simpleSpec[i]);
             }
             jsonObj.put("simpleSpec", arr);
-            JSONArray rawArr = new JSONArray();
-            for (int i = 0; i < rawData.length; i++) {
-                rawArr.put(rawData[i]);
-            }
-            //Log.v(TAG,"rawData[0]="+rawData[0]+", rawArr[0]="+rawArr.getDouble(0));
-            jsonObj.put("rawData", rawArr);
+            if (includeRawData) {
+                JSONArray rawArr = new JSONArray();
+                for (int i = 0; i < rawData.length; i++) {
+                    rawArr.put(rawData[i]);
+                }
+                //Log.v(TAG,"rawData[0]="+rawData[0]+", rawArr[0]="+rawArr.getDouble(0));
+                jsonObj.put("rawData", rawArr);
 
-            JSONArray raw3DArr = new JSONArray();
-            for (int i = 0; i < rawData3D.length; i++) {
-                raw3DArr.put(rawData3D[i]);
+                JSONArray raw3DArr = new JSONArray();
+                for (int i = 0; i < rawData3D.length; i++) {
+                    raw3DArr.put(rawData3D[i]);
+                }
+                jsonObj.put("rawData3D", raw3DArr);
             }
-            jsonObj.put("rawData3D", raw3DArr);
 
             retval = jsonObj.toString();
             Log.v(TAG,"retval rawData="+retval);
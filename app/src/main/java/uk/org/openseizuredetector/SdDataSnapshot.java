@@ -0,0 +1,120 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SdDataSnapshot is an immutable copy of the SdData produced by one SdServer.onSdDataReceived(), shared by everything
+ * that uses that update - the web server, its /stream clients, the local database and the log.
+ * Each serialisation of the data is made the first time it is asked for and then re-used, so however many web
+ * clients poll between updates, the JSON is only built once per update.
+ */
+public final class SdDataSnapshot {
+    private static final AtomicLong mSerialisationCount = new AtomicLong();
+    private final SdData mSdData;
+    private String mStatusJson;
+    private String mDatapointJson;
+    private String mDatapointJsonNoRaw;
+    private String mSettingsJson;
+    private String mCsv;
+
+    private SdDataSnapshot(SdData sdData) {
+        mSdData = sdData;
+    }
+
+    /**
+     * Return a snapshot of sdData as it is now - later changes to sdData do not affect it.
+     */
+    public static SdDataSnapshot of(SdData sdData) {
+        return new SdDataSnapshot(new SdData(sdData));
+    }
+
+    /**
+     * The data in this snapshot.   It is shared, so must not be modified.
+     */
+    SdData getData() {
+        return mSdData;
+    }
+
+    public long getAlarmState() {
+        return mSdData.alarmState;
+    }
+
+    /**
+     * The status JSON served by the web server's /data endpoint (SdData.toString()).
+     */
+    public synchronized String getStatusJson() {
+        if (mStatusJson == null) {
+            mSerialisationCount.incrementAndGet();
+            mStatusJson = mSdData.toString();
+        }
+        return mStatusJson;
+    }
+
+    public synchronized String getDatapointJson(boolean includeRawData) {
+        if (includeRawData) {
+            if (mDatapointJson == null) {
+                mSerialisationCount.incrementAndGet();
+                mDatapointJson = mSdData.toDatapointJSON(true);
+            }
+            return mDatapointJson;
+        }
+        if (mDatapointJsonNoRaw == null) {
+            mSerialisationCount.incrementAndGet();
+            mDatapointJsonNoRaw = mSdData.toDatapointJSON(false);
+        }
+        return mDatapointJsonNoRaw;
+    }
+
+    public synchronized String getSettingsJson() {
+        if (mSettingsJson == null) {
+            mSerialisationCount.incrementAndGet();
+            mSettingsJson = mSdData.toSettingsJSON();
+        }
+        return mSettingsJson;
+    }
+
+    /**
+     * The CSV summary of the data, without the raw accelerometer data.
+     */
+    public synchronized String getCsv() {
+        if (mCsv == null) {
+            mSerialisationCount.incrementAndGet();
+            mCsv = mSdData.toCSVString(false);
+        }
+        return mCsv;
+    }
+
+    /**
+     * The number of serialisations made by all snapshots, for measuring how often the data is serialised.
+     */
+    public static long getSerialisationCount() {
+        return mSerialisationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getStatusJson();
+    }
+}
@@ -34,15 +34,13 @@ import android.text.format.Time;
 import android.util.Log;
 import android.widget.Toast;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.jtransforms.fft.DoubleFFT_1D;
-
 import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import uk.org.openseizuredetector.core.SeizureAnalyser;
+import uk.org.openseizuredetector.core.WatchData;
+
 interface SdDataReceiver {
     public void onSdDataReceived(SdData sdData);
 
@@ -72,7 +70,6 @@ public abstract class SdDataSource {
     private String TAG = "SdDataSource";
 
     private short mDebug;
-    private short mFreqCutoff = 12;
     private short mDisplaySpectrum;
     private short mDataUpdatePeriod;
     private short mMutePeriod;
@@ -92,13 +89,8 @@ public abstract class SdDataSource {
     private short mFallWindow;
     private int mMute;  // !=0 means muted by keypress on watch.
 
-    // Values for SD_MODE
-    private int SIMPLE_SPEC_FMAX = 10;
-
-    private int ACCEL_SCALE_FACTOR = 1000;  // Amount by which to reduce analysis results to scale to be comparable to analysis on Pebble.
-
-
-    private int mAlarmCount;
+    // The seizure detection algorithm itself, which does not depend on Android.
+    protected SeizureAnalyser mAnalyser = new SeizureAnalyser();
     protected String mBleDeviceAddr;
     protected String mBleDeviceName;
 
@@ -180,6 +172,17 @@ public abstract class SdDataSource {
 
     }
 
+    /**
+     * Prepare the datasource to analyse data passed to updateFromJSON(), without starting the status, fault check and
+     * settings timers - used by SdDeviceHub, which checks its devices itself rather than with three timer threads
+     * per device.
+     */
+    public void startPassive() {
+        Log.v(TAG, "startPassive()");
+        updatePrefs();
+        mDataStatusTime = new Time(Time.getCurrentTimezone());
+    }
+
     /**
      * Stop the datasource from updating
      */
@@ -249,70 +252,15 @@ public abstract class SdDataSource {
     // Returns a message string that is passed back to the watch.
     public String updateFromJSON(String jsonStr) {
         String retVal = "undefined";
-        String watchPartNo;
-        String watchFwVersion;
-        String sdVersion;
-        String sdName;
-        JSONArray accelVals = null;
-        JSONArray accelVals3D = null;
         Log.v(TAG, "updateFromJSON - " + jsonStr);
 
         try {
-            JSONObject mainObject = new JSONObject(jsonStr);
-            //JSONObject dataObject = mainObject.getJSONObject("dataObj");
-            JSONObject dataObject = mainObject;
-            String dataTypeStr = dataObject.getString("dataType");
+            // WatchData (in :core) parses the message into mSdData.
+            String dataTypeStr = mSdData.parseWatchJSON(jsonStr);
             Log.v(TAG, "updateFromJSON - dataType=" + dataTypeStr);
-            if (dataTypeStr.equals("raw")) {
-                Log.v(TAG, "updateFromJSON - processing raw data");
-                try {
-                    mSdData.mHR = dataObject.getDouble("HR");
-                } catch (JSONException e) {
-                    // if we get 'null' HR (For example if the heart rate is not working)
-                    mSdData.mHR = -1;
-                }
-                try {
-                    mSdData.mO2Sat = dataObject.getDouble("O2sat");
-                } catch (JSONException e) {
-                    // if we get 'null' O2 Saturation (For example if the oxygen sensor is not working)
-                    mSdData.mO2Sat = -1;
-                }
-                try {
-                    mMute = dataObject.getInt("Mute");
-                } catch (JSONException e) {
-                    // if we get 'null' HR (For example if the heart rate is not working)
-                    mMute = 0;
-                }
-                accelVals = dataObject.getJSONArray("data");
-                Log.v(TAG, "Received " + accelVals.length() + " acceleration values, rawData Length is " + mSdData.rawData.length);
-                if (accelVals.length() > mSdData.rawData.length) {
-                    mUtil.writeToSysLogFile("ERROR:  Received " + accelVals.length() + " acceleration values, but rawData storage length is "
-                            + mSdData.rawData.length);
-                }
-                int i;
-                for (i = 0; i < accelVals.length(); i++) {
-                    mSdData.rawData[i] = accelVals.getDouble(i);
-                }
-                mSdData.mNsamp = accelVals.length();
-                //Log.d(TAG,"accelVals[0]="+accelVals.getDouble(0)+", mSdData.rawData[0]="+mSdData.rawData[0]);
-                try {
-                    accelVals3D = dataObject.getJSONArray("data3D");
-                    Log.v(TAG, "Received " + accelVals3D.length() + " acceleration 3D values, rawData Length is " + mSdData.rawData3D.length);
-                    if (accelVals3D.length() > mSdData.rawData3D.length) {
-                        mUtil.writeToSysLogFile("ERROR:  Received " + accelVals3D.length() + " 3D acceleration values, but rawData3D storage length is "
-                                + mSdData.rawData3D.length);
-                    }
-                    for (i = 0; i < accelVals3D.length(); i++) {
-                        mSdData.rawData3D[i] = accelVals3D.getDouble(i);
-                    }
-                } catch (JSONException e) {
-                    // If we get an error, just set rawData3D to zero
-                    Log.i(TAG,"updateFromJSON - error parsing 3D data - setting it to zero");
-                    for (i = 0; i < mSdData.rawData3D.length; i++) {
-                        mSdData.rawData3D[i] = 0.;
-                    }
-                }
-
+            if (dataTypeStr.equals(WatchData.DATA_TYPE_RAW)) {
+                Log.v(TAG, "updateFromJSON - processing raw data - received " + mSdData.mNsamp + " acceleration values");
+                mMute = mSdData.mMute;
                 mWatchAppRunningCheck = true;
                 doAnalysis();
 
@@ -321,35 +269,24 @@ public abstract class SdDataSource {
                 } else {
                     retVal = "OK";
                 }
-            } else if (dataTypeStr.equals("settings")) {
+            } else if (dataTypeStr.equals(WatchData.DATA_TYPE_SETTINGS)) {
                 Log.v(TAG, "updateFromJSON - processing settings");
-                mSamplePeriod = (short) dataObject.getInt("analysisPeriod");
-                mSampleFreq = (short) dataObject.getInt("sampleFreq");
-                mSdData.batteryPc = (short) dataObject.getInt("battery");
+                mSamplePeriod = (short) mSdData.analysisPeriod;
+                mSampleFreq = (short) mSdData.mSampleFreq;
+                // Each window of data adds the watch's analysis period to the alarm count.
+                mAnalyser.setAlarmTimes(mWarnTime, mAlarmTime, mSamplePeriod);
                 Log.v(TAG, "updateFromJSON - mSamplePeriod=" + mSamplePeriod + " mSampleFreq=" + mSampleFreq);
                 mUtil.writeToSysLogFile("SDDataSource.updateFromJSON - Settings Received");
                 mUtil.writeToSysLogFile("    * mSamplePeriod=" + mSamplePeriod + " mSampleFreq=" + mSampleFreq);
                 mUtil.writeToSysLogFile("    * batteryPc = " + mSdData.batteryPc);
-
-                try {
-                    watchPartNo = dataObject.getString("watchPartNo");
-                    watchFwVersion = dataObject.getString("watchFwVersion");
-                    sdVersion = dataObject.getString("sdVersion");
-                    sdName = dataObject.getString("sdName");
-                    mUtil.writeToSysLogFile("    * sdName = " + sdName + " version " + sdVersion);
-                    mUtil.writeToSysLogFile("    * watchPartNo = " + watchPartNo + " fwVersion " + watchFwVersion);
-                    mSdData.watchPartNo = watchPartNo;
-                    mSdData.watchFwVersion = watchFwVersion;
-                    mSdData.watchSdVersion = sdVersion;
-                    mSdData.watchSdName = sdName;
-                } catch (Exception e) {
-                    Log.e(TAG, "updateFromJSON - Error Parsing V3.2 JSON String - " + e.toString());
-                    mUtil.writeToSysLogFile("updateFromJSON - Error Parsing V3.2 JSON String - " + jsonStr + " - " + e.toString());
+                if (mSdData.haveWatchInfo) {
+                    mUtil.writeToSysLogFile("    * sdName = " + mSdData.watchSdName + " version " + mSdData.watchSdVersion);
+                    mUtil.writeToSysLogFile("    * watchPartNo = " + mSdData.watchPartNo + " fwVersion " + mSdData.watchFwVersion);
+                } else {
+                    Log.e(TAG, "updateFromJSON - Error Parsing V3.2 JSON String - no watch information");
+                    mUtil.writeToSysLogFile("updateFromJSON - Error Parsing V3.2 JSON String - " + jsonStr + " - no watch information");
                     mUtil.writeToSysLogFile("          This is probably because of an out of date watch app - please upgrade!");
-                    e.printStackTrace();
                 }
-                mSdData.haveSettings = true;
-                mSdData.mSampleFreq = mSampleFreq;
                 mWatchAppRunningCheck = true;
                 retVal = "OK";
             } else {
@@ -359,11 +296,9 @@ public abstract class SdDataSource {
         } catch (Exception e) {
             Log.e(TAG, "updateFromJSON - Error Parsing JSON String - " + jsonStr + " - " + e.toString());
             mUtil.writeToSysLogFile("updateFromJSON - Error Parsing JSON String - " + jsonStr + " - " + e.toString());
-            mUtil.writeToSysLogFile("updateFromJSON: Exception at Line Number: " + e.getCause().getStackTrace()[0].getLineNumber() + ", " + e.getCause().getStackTrace()[0].toString());
-            if (accelVals == null) {
-                mUtil.writeToSysLogFile("updateFromJSON: accelVals is null when exception thrown");
-            } else {
-                mUtil.writeToSysLogFile("updateFromJSON: Received " + accelVals.length() + " acceleration values");
+            StackTraceElement[] stackTrace = e.getStackTrace();
+            if (stackTrace.length > 0) {
+                mUtil.writeToSysLogFile("updateFromJSON: Exception at Line Number: " + stackTrace[0].getLineNumber() + ", " + stackTrace[0].toString());
             }
             e.printStackTrace();
             retVal = "ERROR";
@@ -371,88 +306,21 @@ public abstract class SdDataSource {
         return (retVal);
     }
 
-    /**
-     * Calculate the magnitude of entry i in the fft array fft
-     *
-     * @param fft
-     * @param i
-     * @return magnitude ( Re*Re + Im*Im )
-     */
-    private double getMagnitude(double[] fft, int i) {
-        double mag;
-        mag = (fft[2 * i] * fft[2 * i] + fft[2 * i + 1] * fft[2 * i + 1]);
-        return mag;
-    }
-
     /**
      * doAnalysis() - analyse the data if the accelerometer data array mAccData
      * and populate the output data structure mSdData
      */
     protected void doAnalysis() {
-        int nMin = 0;
-        int nMax = 0;
-        int nFreqCutoff = 0;
-        double[] fft = null;
         try {
             // FIXME - Use specified sampleFreq, not this hard coded one
             mSampleFreq = 25;
-            double freqRes = 1.0 * mSampleFreq / mSdData.mNsamp;
-            Log.v(TAG, "doAnalysis(): mSampleFreq=" + mSampleFreq + " mNSamp=" + mSdData.mNsamp + ": freqRes=" + freqRes);
-            // Set the frequency bounds for the analysis in fft output bin numbers.
-            nMin = (int) (mAlarmFreqMin / freqRes);
-            nMax = (int) (mAlarmFreqMax / freqRes);
-            Log.v(TAG, "doAnalysis(): mAlarmFreqMin=" + mAlarmFreqMin + ", nMin=" + nMin
-                    + ", mAlarmFreqMax=" + mAlarmFreqMax + ", nMax=" + nMax);
-            // Calculate the bin number of the cutoff frequency
-            nFreqCutoff = (int) (mFreqCutoff / freqRes);
-            Log.v(TAG, "mFreqCutoff = " + mFreqCutoff + ", nFreqCutoff=" + nFreqCutoff);
-
-            DoubleFFT_1D fftDo = new DoubleFFT_1D(mSdData.mNsamp);
-            fft = new double[mSdData.mNsamp * 2];
-            ///System.arraycopy(mAccData, 0, fft, 0, mNsamp);
-            System.arraycopy(mSdData.rawData, 0, fft, 0, mSdData.mNsamp);
-            fftDo.realForward(fft);
-
-            // Calculate the whole spectrum power (well a value equivalent to it that avoids square root calculations
-            // and zero any readings that are above the frequency cutoff.
-            double specPower = 0;
-            for (int i = 1; i < mSdData.mNsamp / 2; i++) {
-                if (i <= nFreqCutoff) {
-                    specPower = specPower + getMagnitude(fft, i);
-                } else {
-                    fft[2 * i] = 0.;
-                    fft[2 * i + 1] = 0.;
-                }
-            }
-            //Log.v(TAG,"specPower = "+specPower);
-            //specPower = specPower/(mSdData.mNsamp/2);
-            specPower = specPower / mSdData.mNsamp / 2;
-            //Log.v(TAG,"specPower = "+specPower);
-
-            // Calculate the Region of Interest power and power ratio.
-            double roiPower = 0;
-            for (int i = nMin; i < nMax; i++) {
-                roiPower = roiPower + getMagnitude(fft, i);
-            }
-            roiPower = roiPower / (nMax - nMin);
-            double roiRatio = 10 * roiPower / specPower;
-
-            // Calculate the simplified spectrum - power in 1Hz bins.
-            double[] simpleSpec = new double[SIMPLE_SPEC_FMAX + 1];
-            for (int ifreq = 0; ifreq < SIMPLE_SPEC_FMAX; ifreq++) {
-                int binMin = (int) (1 + ifreq / freqRes);    // add 1 to loose dc component
-                int binMax = (int) (1 + (ifreq + 1) / freqRes);
-                simpleSpec[ifreq] = 0;
-                for (int i = binMin; i < binMax; i++) {
-                    simpleSpec[ifreq] = simpleSpec[ifreq] + getMagnitude(fft, i);
-                }
-                simpleSpec[ifreq] = simpleSpec[ifreq] / (binMax - binMin);
-            }
+            Log.v(TAG, "doAnalysis(): mSampleFreq=" + mSampleFreq + " mNSamp=" + mSdData.mNsamp);
+            SeizureAnalyser.Result result = mAnalyser.analyse(mSdData.rawData, mSdData.mNsamp, mSampleFreq);
 
             // Populate the mSdData structure to communicate with the main SdServer service.
             mDataStatusTime.setToNow();
-            mSdData.specPower = (long) specPower / ACCEL_SCALE_FACTOR;
-            mSdData.roiPower = (long) roiPower / ACCEL_SCALE_FACTOR;
+            mSdData.specPower = result.specPower;
+            mSdData.roiPower = result.roiPower;
             mSdData.dataTime.setToNow();
             mSdData.maxVal = 0;   // not used
             mSdData.maxFreq = 0;  // not used
@@ -462,10 +330,7 @@ public abstract class SdDataSource {
             mSdData.alarmFreqMin = mAlarmFreqMin;
             mSdData.alarmFreqMax = mAlarmFreqMax;
             // note mSdData.batteryPc is set from settings data in updateFromJSON()
-            // FIXME - I haven't worked out why dividing by 1000 seems necessary to get the graph on scale - we don't seem to do that with the Pebble.
-            for (int i = 0; i < SIMPLE_SPEC_FMAX; i++) {
-                mSdData.simpleSpec[i] = (int) simpleSpec[i] / ACCEL_SCALE_FACTOR;
-            }
+            System.arraycopy(result.simpleSpec, 0, mSdData.simpleSpec, 0, SeizureAnalyser.SIMPLE_SPEC_FMAX);
             Log.v(TAG, "simpleSpec = " + Arrays.toString(mSdData.simpleSpec));
 
             // Because we have received data, set flag to show watch app running.
@@ -473,12 +338,8 @@ public abstract class SdDataSource {
         } catch (Exception e) {
             Log.e(TAG, "doAnalysis - Exception during Analysis");
             mUtil.writeToSysLogFile("doAnalysis - Exception during analysis - " + e.toString());
-            mUtil.writeToSysLogFile("doAnalysis: Exception at Line Number: " + e.getCause().getStackTrace()[0].getLineNumber() + ", " + e.getCause().getStackTrace()[0].toString());
             mUtil.writeToSysLogFile("doAnalysis: mSdData.mNsamp="+mSdData.mNsamp);
-            mUtil.writeToSysLogFile("doAnalysis: alarmFreqMin="+mAlarmFreqMin+" nMin="+nMin);
-            mUtil.writeToSysLogFile("doAnalysis: alarmFreqMax="+mAlarmFreqMax+" nMax="+nMax);
-            mUtil.writeToSysLogFile("doAnalysis: nFreqCutoff.="+nFreqCutoff);
-            mUtil.writeToSysLogFile("doAnalysis: fft.length="+fft.length);
+            mUtil.writeToSysLogFile("doAnalysis: alarmFreqMin="+mAlarmFreqMin+" alarmFreqMax="+mAlarmFreqMax);
             mWatchAppRunningCheck = false;
         }
 
@@ -501,43 +362,13 @@ public abstract class SdDataSource {
      * Sets mSdData.alarmState and mSdData.hrAlarmStanding
      */
     private void alarmCheck() {
-        boolean inAlarm;
         // Avoid potential divide by zero issue
         if (mSdData.specPower == 0)
             mSdData.specPower = 1;
         Log.v(TAG, "alarmCheck() - roiPower="+mSdData.roiPower+" specPower="+ mSdData.specPower+" ratio="+10*mSdData.roiPower/ mSdData.specPower);
-        // Is the current set of data representing an alarm state?
-        if ((mSdData.roiPower > mAlarmThresh) && ((10 * mSdData.roiPower / mSdData.specPower) > mAlarmRatioThresh)) {
-            inAlarm = true;
-        } else {
-            inAlarm = false;
-        }
-
         // set the alarmState to Alarm, Warning or OK, depending on the current state and previous ones.
-        if (inAlarm) {
-            mAlarmCount += mSamplePeriod;
-            if (mAlarmCount > mAlarmTime) {
-                // full alarm
-                mSdData.alarmState = 2;
-            } else if (mAlarmCount > mWarnTime) {
-                // warning
-                mSdData.alarmState = 1;
-            }
-        } else {
-            // If we are not in an ALARM state, revert back to WARNING, otherwise
-            // revert back to OK.
-            if (mSdData.alarmState == 2) {
-                // revert to warning
-                mSdData.alarmState = 1;
-                mAlarmCount = mWarnTime + 1;  // pretend we have only just entered warning state.
-            } else {
-                // revert to OK
-                mSdData.alarmState = 0;
-                mAlarmCount = 0;
-            }
-        }
-
-        Log.v(TAG, "alarmCheck(): inAlarm=" + inAlarm + ", alarmState = " + mSdData.alarmState + " alarmCount=" + mAlarmCount + " mWarnTime=" + mWarnTime+ " mAlarmTime=" + mAlarmTime);
+        mSdData.alarmState = mAnalyser.alarmCheck(mSdData.roiPower, mSdData.specPower, mSdData.alarmState);
+        Log.v(TAG, "alarmCheck(): alarmState = " + mSdData.alarmState + " alarmCount=" + mAnalyser.getAlarmCount() + " mWarnTime=" + mWarnTime+ " mAlarmTime=" + mAlarmTime);
 
     }
 
@@ -616,44 +447,23 @@ public abstract class SdDataSource {
      * Called from clock_tick_handler()
      */
     public void fallCheck() {
-        int i, j;
-        double minAcc, maxAcc;
-
-        long fallWindowSamp = (mFallWindow * mSdData.mSampleFreq) / 1000; // Convert ms to samples.
+        long fallWindowSamp = mAnalyser.getFallWindowSamples(mSdData.mSampleFreq);
         Log.v(TAG, "check_fall() - fallWindowSamp=" + fallWindowSamp);
-        // Move window through sample buffer, checking for fall.
         // Note - not resetting fallAlarmStanding means that fall alarms will always latch until the 'Accept Alarm' button
         // is pressed.
-        //mSdData.fallAlarmStanding = false;
         if (mFallActive) {
             mSdData.mFallActive = true;
-            for (i = 0; i < mSdData.mNsamp - fallWindowSamp; i++) {  // i = window start point
-                // Find max and min acceleration within window.
-                minAcc = mSdData.rawData[i];
-                maxAcc = mSdData.rawData[i];
-                for (j = 0; j < fallWindowSamp; j++) {  // j = position within window
-                    if (mSdData.rawData[i + j] < minAcc) minAcc = mSdData.rawData[i + j];
-                    if (mSdData.rawData[i + j] > maxAcc) maxAcc = mSdData.rawData[i + j];
-                }
-                Log.d(TAG, "check_fall() - minAcc=" + minAcc +" (mFallThreshMin="+mFallThreshMin+ "), maxAcc=" + maxAcc+" (mFallThreshMax="+mFallThreshMax+")") ;
-                if ((minAcc < mFallThreshMin) && (maxAcc > mFallThreshMax)) {
-                    Log.d(TAG, "check_fall() ****FALL DETECTED***** minAcc=" + minAcc + ", maxAcc=" + maxAcc);
-                    Log.d(TAG, "check_fall() - ****FALL DETECTED****");
-                    mSdData.fallAlarmStanding = true;
-                    return;
-                }
-                if (mMute != 0) {
-                    Log.v(TAG, "Mute Active - setting fall alarm to mute");
-                    mSdData.fallAlarmStanding = false;
-                }
+            if (mAnalyser.checkFall(mSdData.rawData, mSdData.mNsamp, mSdData.mSampleFreq)) {
+                Log.d(TAG, "check_fall() - ****FALL DETECTED****");
+                mSdData.fallAlarmStanding = true;
+            } else if (mMute != 0 && mSdData.mNsamp > fallWindowSamp) {
+                Log.v(TAG, "Mute Active - setting fall alarm to mute");
+                mSdData.fallAlarmStanding = false;
             }
         } else {
             mSdData.mFallActive = false;
             Log.v(TAG, "check_fall - mFallActive is false - doing nothing");
         }
-        //if (debug) APP_LOG(APP_LOG_LEVEL_DEBUG,"check_fall() - minAcc=%d, maxAcc=%d",
-        //	  minAcc,maxAcc);
-
     }
 
     /**
@@ -720,7 +530,7 @@ public abstract class SdDataSource {
         if (!mWatchAppRunningCheck &&
                 (tdiff > (mDataUpdatePeriod + mAppRestartTimeout) * 1000)) {
             //Log.v(TAG, "faultCheck() - watch app not running so not doing anything");
-            mAlarmCount = 0;
+            mAnalyser.resetAlarmCount();
         }
     }
 
@@ -893,6 +703,11 @@ public abstract class SdDataSource {
                 Log.v(TAG, "updatePrefs() O2SatThreshMin = " + mSdData.mO2SatThreshMin);
                 mUtil.writeToSysLogFile( "updatePrefs() O2SatThreshMin = " + mSdData.mO2SatThreshMin);
 
+                mAnalyser.setFrequencyBand(mAlarmFreqMin, mAlarmFreqMax);
+                mAnalyser.setAlarmThresholds(mAlarmThresh, mAlarmRatioThresh);
+                mAnalyser.setAlarmTimes(mWarnTime, mAlarmTime, mSamplePeriod);
+                mAnalyser.setFallThresholds(mFallThreshMin, mFallThreshMax, mFallWindow);
+
             } else {
                 Log.v(TAG, "updatePrefs() - prefStr is null - WHY????");
                 mUtil.writeToSysLogFile("SDDataSource.updatePrefs() - prefStr is null - WHY??");
@@ -13,11 +13,21 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.Iterator;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
 /**
  * Created by graham on 22/11/15.
  */
@@ -29,6 +39,26 @@ public class SdDataSourceNetwork extends SdDataSource {
     private int mConnnectTimeoutPeriod = 5000;
     private int mReadTimeoutPeriod = 5000;
     private String mServerIP = "unknown";
+    // Uses the shared connection pool, so successive polls re-use the same connection to the server.
+    private OkHttpClient mHttpClient;
+    private static final int LATENCY_LOG_POLLS = 100;
+    private int mPollCount = 0;
+    private long mPollTimeTotalNs = 0;
+    // The server's /stream endpoint pushes each new SdData as it is produced.   We use it when it is available, and
+    // fall back to polling /data if it is not (e.g. an older version of the app) or the stream drops, trying the
+    // stream again every STREAM_RETRY_MS.
+    private static final long STREAM_RETRY_MS = 60 * 1000;
+    private OkHttpClient mStreamClient;
+    private Thread mStreamThread;
+    private volatile Call mStreamCall;
+    private volatile boolean mStopped = true;
+    // The ETag and JSON of the last /data response, so that we only download what has changed since then.
+    private String mDataEtag = null;
+    private JSONObject mDataObj = null;
+    private String mDataJson = null;
+    private int mStreamEventCount = 0;
+    private long mStreamLatencyTotalMs = 0;
+    private long mStreamLatencyMaxMs = 0;
 
     private int ALARM_STATE_NETFAULT = 7;
 
@@ -43,10 +73,39 @@ public class SdDataSourceNetwork extends SdDataSource {
         Log.v(TAG,"start(): calling updatePrefs()");
         mUtil.writeToSysLogFile("SdDataSourceNetwork().start()");
         updatePrefs();
+        mHttpClient = OsdHttpClient.forTimeouts(mConnnectTimeoutPeriod, mReadTimeoutPeriod);
+        // The server sends a heartbeat every HEARTBEAT_MS, so a longer silence means the connection has gone.
+        mStreamClient = OsdHttpClient.forTimeouts(mConnnectTimeoutPeriod, 3 * SdDataStream.HEARTBEAT_MS);
 
-        // Start timer to retrieve seizure detector data regularly.
         mStatusTime = new Time(Time.getCurrentTimezone());
         mStatusTime.setToNow();
+        mStopped = false;
+        if (mStreamThread == null) {
+            Log.v(TAG, "start(): starting stream thread");
+            mStreamThread = new Thread(this::runStream, "SdDataSourceNetwork stream");
+            mStreamThread.setDaemon(true);
+            mStreamThread.start();
+        }
+    }
+
+    @Override public void stop() {
+        mUtil.writeToSysLogFile("SdDataSourceNetwork().stop()");
+        mStopped = true;
+        if (mStreamThread != null) {
+            Log.v(TAG, "stop(): stopping stream thread");
+            Call call = mStreamCall;
+            if (call != null) call.cancel();
+            mStreamThread.interrupt();
+            mStreamThread = null;
+        }
+        stopPolling();
+    }
+
+    /*
+     * Start timer to retrieve seizure detector data regularly.
+     */
+    private synchronized void startPolling() {
+        if (mStopped) return;
         if (mDataUpdateTimer ==null) {
             Log.v(TAG,"start(): starting data update timer");
             mDataUpdateTimer = new Timer();
@@ -59,12 +118,9 @@ public class SdDataSourceNetwork extends SdDataSource {
         } else {
             Log.v(TAG,"start(): data update timer already running.");
         }
-
-
     }
 
-    @Override public void stop() {
-        mUtil.writeToSysLogFile("SdDataSourceNetwork().stop()");
+    private synchronized void stopPolling() {
         // Stop the data update timer
         if (mDataUpdateTimer !=null) {
             Log.v(TAG,"stop(): cancelling status timer");
@@ -72,7 +128,104 @@ public class SdDataSourceNetwork extends SdDataSource {
             mDataUpdateTimer.purge();
             mDataUpdateTimer = null;
         }
+    }
 
+    private void runStream() {
+        String url = "http://" + mServerIP + ":8080/stream";
+        while (!mStopped) {
+            try {
+                readStream(url);
+            } catch (IOException e) {
+                Log.v(TAG, "runStream() - stream not available - " + e.toString());
+            }
+            if (mStopped) break;
+            // Poll until we can re-connect to the stream.
+            Log.i(TAG, "runStream() - falling back to polling");
+            startPolling();
+            try {
+                Thread.sleep(STREAM_RETRY_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        Log.v(TAG, "runStream() - exiting");
+    }
+
+    /**
+     * Read Server-Sent Events from url until the stream ends or we are stopped.
+     *
+     * @throws IOException if the server does not provide a stream, or the connection fails.
+     */
+    private void readStream(String url) throws IOException {
+        Request request = new Request.Builder().url(url).header("Accept", SdDataStream.MIME_TYPE).build();
+        Call call = mStreamClient.newCall(request);
+        mStreamCall = call;
+        Response response = call.execute();
+        try {
+            ResponseBody body = response.body();
+            String contentType = response.header("Content-Type", "");
+            if (!response.isSuccessful() || body == null || !contentType.startsWith(SdDataStream.MIME_TYPE)) {
+                // Older versions of the app reply to unknown URIs with a JSON message.
+                throw new IOException("No stream - HTTP " + response.code() + ", " + contentType);
+            }
+            Log.i(TAG, "readStream() - connected to " + url);
+            BufferedSource source = body.source();
+            StringBuilder data = new StringBuilder();
+            String line;
+            while (!mStopped && (line = source.readUtf8Line()) != null) {
+                if (line.startsWith("data:")) {
+                    data.append(line.substring(5).trim());
+                } else if (line.isEmpty() && data.length() > 0) {
+                    onStreamEvent(data.toString());
+                    data.setLength(0);
+                }
+            }
+        } finally {
+            response.close();
+            mStreamCall = null;
+        }
+    }
+
+    private void onStreamEvent(String eventJson) {
+        // We have a working stream, so polling is not needed.
+        stopPolling();
+        try {
+            JSONObject eventObj = new JSONObject(eventJson);
+            logStreamLatency(System.currentTimeMillis() - eventObj.getLong("ts"));
+            SdData sdData = makeSdData(eventObj.getJSONObject("sdData").toString());
+            mHandler.post(() -> mSdDataReceiver.onSdDataReceived(sdData));
+        } catch (JSONException e) {
+            Log.e(TAG, "onStreamEvent() - error parsing event - " + e.toString());
+        }
+    }
+
+    // Log the mean and maximum time from the server publishing an event to us receiving it every LATENCY_LOG_POLLS
+    // events.   This relies on the two phones' clocks agreeing, which they normally do to well within a second.
+    private void logStreamLatency(long latencyMs) {
+        mStreamEventCount++;
+        mStreamLatencyTotalMs += latencyMs;
+        mStreamLatencyMaxMs = Math.max(mStreamLatencyMaxMs, latencyMs);
+        if (mStreamEventCount >= LATENCY_LOG_POLLS) {
+            Log.i(TAG, "onStreamEvent() - mean latency " + (mStreamLatencyTotalMs / mStreamEventCount) + " ms, max "
+                    + mStreamLatencyMaxMs + " ms over " + mStreamEventCount + " events (polling every "
+                    + mDataUpdatePeriod + " ms adds a mean of " + (mDataUpdatePeriod / 2) + " ms)");
+            mStreamEventCount = 0;
+            mStreamLatencyTotalMs = 0;
+            mStreamLatencyMaxMs = 0;
+        }
+    }
+
+    // Create an SdData from the JSON received from the server.
+    private SdData makeSdData(String json) {
+        SdData sdData = new SdData();
+        sdData.fromJSON(json);
+        // Populate mSdData using the received data.
+        sdData.serverOK = true;
+        if (sdData.batteryPc>0) {
+            sdData.haveSettings = true;
+        }
+        mStatusTime.setToNow();
+        return sdData;
     }
 
 
@@ -122,7 +275,7 @@ public class SdDataSourceNetwork extends SdDataSource {
             // params comes from the execute() call: params[0] is the url.
             sdData = new SdData();
             try {
-                String result = downloadUrl(urls[0]);
+                String result = downloadDataJson(urls[0]);
                 if (result.startsWith("Unable to retrieve web page")) {
                     Log.v(TAG,"doInBackground() - Unable to retrieve data");
                     sdData.serverOK = false;
@@ -133,13 +286,7 @@ public class SdDataSourceNetwork extends SdDataSource {
                     Log.v(TAG,"doInBackground(): No Connection to Server - sdData = "+sdData.toString());
                 } else {
                     Log.v(TAG,"doInBackground - result = "+result);
-                    sdData.fromJSON(result);
-                    // Populate mSdData using the received data.
-                    sdData.serverOK = true;
-                    if (sdData.batteryPc>0) {
-                        sdData.haveSettings = true;
-                    }
-                    mStatusTime.setToNow();
+                    sdData = makeSdData(result);
                     Log.v(TAG,"doInBackground(): sdData = "+sdData.toString());
                 }
                 return (sdData);
@@ -196,38 +343,82 @@ public class SdDataSourceNetwork extends SdDataSource {
 
 
 
-    // Given a URL, establishes an HttpUrlConnection and retrieves
-    // the web page content as a InputStream, which it returns as
-    // a string.
+    // Given a URL, retrieves the web page content using the shared HTTP client, and returns it as a string.
+    // The whole response is read, so that the connection can be re-used for the next poll.
     private String downloadUrl(String myurl) throws IOException {
-        InputStream is = null;
-        // Only retrieve the first 2048 characters of the retrieved
-        // web page content.
-        int len = 2048;
+        if (mHttpClient == null) {
+            mHttpClient = OsdHttpClient.forTimeouts(mConnnectTimeoutPeriod, mReadTimeoutPeriod);
+        }
+        long t0 = System.nanoTime();
+        String contentAsString = OsdHttpClient.get(mHttpClient, myurl);
+        logPollTime(System.nanoTime() - t0);
+        return contentAsString;
+    }
 
+    /**
+     * Return the current SdData JSON from the server's /data url.   We send the ETag of the last response, so the
+     * server only sends the fields that have changed (or nothing at all), and merge them into the last response.
+     * Older servers ignore the ETag and send the whole object each time.
+     */
+    private synchronized String downloadDataJson(String url) throws IOException {
+        if (mHttpClient == null) {
+            mHttpClient = OsdHttpClient.forTimeouts(mConnnectTimeoutPeriod, mReadTimeoutPeriod);
+        }
+        Request.Builder builder = new Request.Builder();
+        if (mDataEtag != null && mDataObj != null) {
+            builder.url(HttpUrl.get(url).newBuilder().addQueryParameter("since", mDataEtag).build());
+            builder.header("If-None-Match", mDataEtag);
+        } else {
+            builder.url(url);
+        }
+        long t0 = System.nanoTime();
+        Response response = mHttpClient.newCall(builder.build()).execute();
         try {
-            URL url = new URL(myurl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setReadTimeout(mReadTimeoutPeriod /* milliseconds */);
-            conn.setConnectTimeout(mConnnectTimeoutPeriod /* milliseconds */);
-            conn.setRequestMethod("GET");
-            conn.setDoInput(true);
-            // Starts the query
-            conn.connect();
-            int response = conn.getResponseCode();
-            Log.d(TAG, "downloadUrl(): The response is: " + response);
-            is = conn.getInputStream();
-
-            // Convert the InputStream into a string
-            String contentAsString = readInputStream(is, len);
-            return contentAsString;
-
-            // Makes sure that the InputStream is closed after the app is
-            // finished using it.
-        } finally {
-            if (is != null) {
-                is.close();
+            if (response.code() == 304 && mDataJson != null) {
+                return mDataJson;
+            }
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("HTTP " + response.code() + " from " + url);
             }
+            JSONObject dataObj = new JSONObject(body.string());
+            String deltaFrom = dataObj.optString(SdWebServer.DELTA_FROM, null);
+            if (deltaFrom != null && deltaFrom.equals(mDataEtag) && mDataObj != null) {
+                Iterator<String> keys = dataObj.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (key.equals(SdWebServer.DELTA_FROM)) continue;
+                    if (dataObj.isNull(key)) {
+                        mDataObj.remove(key);
+                    } else {
+                        mDataObj.put(key, dataObj.get(key));
+                    }
+                }
+            } else {
+                mDataObj = dataObj;
+            }
+            mDataEtag = response.header("ETag");
+            mDataJson = mDataObj.toString();
+            return mDataJson;
+        } catch (JSONException e) {
+            mDataEtag = null;
+            mDataObj = null;
+            throw new IOException("Invalid data from " + url + " - " + e.toString());
+        } finally {
+            response.close();
+            logPollTime(System.nanoTime() - t0);
+        }
+    }
+
+    // Log the mean request time every LATENCY_LOG_POLLS requests, to show the effect of connection re-use.
+    private synchronized void logPollTime(long ns) {
+        mPollCount++;
+        mPollTimeTotalNs += ns;
+        if (mPollCount >= LATENCY_LOG_POLLS) {
+            Log.i(TAG, "downloadUrl() - mean request time " + (mPollTimeTotalNs / mPollCount / 1000) + " us over "
+                    + mPollCount + " requests, " + OsdHttpClient.getConnectionCount() + " pooled connections");
+            mPollCount = 0;
+            mPollTimeTotalNs = 0;
         }
     }
 
@@ -0,0 +1,171 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * SdDataStream pushes each new SdData to the clients of SdWebServer's /stream endpoint as a Server-Sent Events
+ * (text/event-stream) stream, so that a remote phone using SdDataSourceNetwork sees a new alarm state as soon as it
+ * is produced instead of at its next poll.
+ * Each client gets a Subscriber, an InputStream that NanoHTTPD sends to the client using chunked transfer encoding;
+ * reads block until there is a new event, or send a comment line every HEARTBEAT_MS so that dead connections are
+ * noticed (the write fails, NanoHTTPD closes the stream, and the subscriber is removed).
+ * Each event looks like:
+ * id: (sequence number)
+ * data: {"ts": (time published in ms), "sdData": (SdData JSON)}
+ * (blank line)
+ */
+public class SdDataStream {
+    private static final String TAG = "SdDataStream";
+    public static final String MIME_TYPE = "text/event-stream";
+    static final long HEARTBEAT_MS = 15 * 1000;
+    static final int MAX_SUBSCRIBERS = 8;
+    // A subscriber that has fallen this many events behind is too slow - old events are dropped.
+    static final int MAX_QUEUED_EVENTS = 16;
+    private final ArrayList<Subscriber> mSubscribers = new ArrayList<>();
+    private long mSeq = 0;
+
+    /**
+     * Return a new subscriber, whose stream starts with initialSdDataJson (if it is not null), or null if there are
+     * already MAX_SUBSCRIBERS.
+     */
+    public synchronized Subscriber subscribe(String initialSdDataJson) {
+        if (mSubscribers.size() >= MAX_SUBSCRIBERS) {
+            Log.w(TAG, "subscribe() - too many subscribers");
+            return null;
+        }
+        Subscriber s = new Subscriber();
+        if (initialSdDataJson != null) {
+            s.offer(makeEvent(initialSdDataJson));
+        }
+        mSubscribers.add(s);
+        Log.i(TAG, "subscribe() - " + mSubscribers.size() + " subscribers");
+        return s;
+    }
+
+    public synchronized int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /**
+     * Send sdDataJson (a single line of JSON) to every subscriber.
+     */
+    public void publish(String sdDataJson) {
+        ArrayList<Subscriber> subscribers;
+        byte[] event;
+        synchronized (this) {
+            if (mSubscribers.isEmpty()) return;
+            event = makeEvent(sdDataJson);
+            subscribers = new ArrayList<>(mSubscribers);
+        }
+        for (Subscriber s : subscribers) {
+            s.offer(event);
+        }
+    }
+
+    /**
+     * Close every subscriber's stream, ending the responses.
+     */
+    public void closeAll() {
+        ArrayList<Subscriber> subscribers;
+        synchronized (this) {
+            subscribers = new ArrayList<>(mSubscribers);
+        }
+        for (Subscriber s : subscribers) {
+            s.close();
+        }
+    }
+
+    private byte[] makeEvent(String sdDataJson) {
+        mSeq++;
+        return ("id: " + mSeq + "\ndata: {\"ts\":" + System.currentTimeMillis() + ",\"sdData\":" + sdDataJson
+                + "}\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private synchronized void remove(Subscriber s) {
+        mSubscribers.remove(s);
+        Log.i(TAG, "remove() - " + mSubscribers.size() + " subscribers");
+    }
+
+    public class Subscriber extends InputStream {
+        private final ArrayDeque<byte[]> mEvents = new ArrayDeque<>();
+        private byte[] mCurrent = null;
+        private int mPos = 0;
+        private boolean mClosed = false;
+
+        private synchronized void offer(byte[] event) {
+            if (mClosed) return;
+            if (mEvents.size() >= MAX_QUEUED_EVENTS) {
+                mEvents.poll();
+            }
+            mEvents.add(event);
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public synchronized int read(byte[] buf, int off, int len) throws IOException {
+            if (mCurrent == null || mPos >= mCurrent.length) {
+                long deadline = System.currentTimeMillis() + HEARTBEAT_MS;
+                while (mEvents.isEmpty() && !mClosed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) break;
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                }
+                if (mClosed) return -1;
+                mCurrent = mEvents.isEmpty() ? ": keepalive\n\n".getBytes(StandardCharsets.UTF_8) : mEvents.poll();
+                mPos = 0;
+            }
+            int n = Math.min(len, mCurrent.length - mPos);
+            System.arraycopy(mCurrent, mPos, buf, off, n);
+            mPos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                notifyAll();
+            }
+            remove(this);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * SdDeviceHub lets one SdWebServer take data from several watches at once (for example one phone receiving from
+ * several wearers in a care home).   A watch names itself with a device id (POST /data?device=<id>, or an
+ * X-OSD-Device header), and each device gets its own data source - an SdDataSourceGarmin, so its own SdData,
+ * analysis and alarm counters - created when its first data arrives.
+ * The devices are shared out between SHARDS worker threads (one per processor).   All of a device's work runs on its
+ * worker, so its data is analysed in the order it arrived without any locking, while different devices are analysed
+ * in parallel.
+ * Each device has its own alarm state: the listener is told about every window in which a device is in WARNING,
+ * ALARM or FALL, and when a device has sent nothing for FAULT_TIMEOUT_MS.   A fall alarm stays until it is accepted
+ * with acceptAlarm().   getStatusJson() gives the state of every device, and the worst of them.
+ * A device that never sends a window of data within FAULT_TIMEOUT_MS, or has sent nothing for DEVICE_EXPIRY_MS, is
+ * removed, so ids that are used once (or made up) do not keep real watches out once there are MAX_DEVICES.
+ */
+public class SdDeviceHub {
+    private static final String TAG = "SdDeviceHub";
+    static final int MAX_DEVICES = 32;
+    static final int SHARDS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // A device that has sent no data for this long is shown as a fault.
+    static final long FAULT_TIMEOUT_MS = 30 * 1000;
+    // A device that has been in FAULT this long is forgotten.
+    static final long DEVICE_EXPIRY_MS = 30 * 60 * 1000;
+    // Data from a device is refused while this many of its earlier posts are still waiting for its worker.
+    static final int MAX_PENDING = 2;
+    static final long CHECK_PERIOD_MS = 5 * 1000;
+    // Each watch is asked to re-send its settings this often, as SdDataSource's settings timer does.
+    static final long SETTINGS_PERIOD_MS = 60 * 1000;
+    private static final Pattern DEVICE_ID = Pattern.compile("[A-Za-z0-9_.:-]{1,64}");
+
+    public interface Listener {
+        /**
+         * Called (on a worker thread) for each window in which device deviceId is in WARNING, ALARM or FALL
+         * (snapshot's alarmPhrase), and once when it goes into FAULT.
+         */
+        void onDeviceAlarm(String deviceId, SdDataSnapshot snapshot);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final ExecutorService[] mShards = new ExecutorService[SHARDS];
+    private final ScheduledExecutorService mChecker;
+    private final LinkedHashMap<String, Device> mDevices = new LinkedHashMap<>();
+    private int mNextShard = 0;
+    private boolean mStopped = false;
+
+    public SdDeviceHub(Context context, Handler handler, Listener listener) {
+        mContext = context;
+        mHandler = handler;
+        mListener = listener;
+        for (int i = 0; i < SHARDS; i++) {
+            mShards[i] = Executors.newSingleThreadExecutor(new OsdDbExecutor.NamedThreadFactory(TAG + "-" + i));
+        }
+        mChecker = Executors.newSingleThreadScheduledExecutor(new OsdDbExecutor.NamedThreadFactory(TAG + "-check"));
+        mChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkDevices(System.currentTimeMillis());
+            }
+        }, CHECK_PERIOD_MS, CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+        Log.i(TAG, "SdDeviceHub() - " + SHARDS + " workers");
+    }
+
+    public static boolean isValidDeviceId(String deviceId) {
+        return deviceId != null && DEVICE_ID.matcher(deviceId).matches();
+    }
+
+    /**
+     * Pass jsonStr (the body of a POST /data request) from device deviceId to its data source, creating it if this
+     * is the device's first data.   The future gives the reply for the watch, as SdDataSource.updateFromJSON().
+     *
+     * @throws RejectedExecutionException if there are already MAX_DEVICES devices, MAX_PENDING posts from this device
+     *                                    are still waiting, or the hub has been stopped.
+     */
+    public Future<String> submit(String deviceId, final String jsonStr) {
+        final Device device = getDevice(deviceId);
+        if (device.pending.incrementAndGet() > MAX_PENDING) {
+            device.pending.decrementAndGet();
+            throw new RejectedExecutionException("Busy");
+        }
+        try {
+            return device.shard.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        if (device.source == null) {
+                            device.createSource();
+                        }
+                        return device.source.updateFromJSON(jsonStr);
+                    } finally {
+                        device.pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            device.pending.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Forget device deviceId - if it sends more data it starts again as a new device.
+     *
+     * @return false if there is no such device.
+     */
+    public synchronized boolean removeDevice(String deviceId) {
+        if (mDevices.remove(deviceId) == null) return false;
+        Log.i(TAG, "removeDevice(" + deviceId + ") - " + mDevices.size() + " devices");
+        return true;
+    }
+
+    /**
+     * Clear the alarm (including a latched fall alarm) of device deviceId.
+     *
+     * @return false if there is no such device.
+     */
+    public boolean acceptAlarm(String deviceId) {
+        final Device device;
+        synchronized (this) {
+            device = mDevices.get(deviceId);
+        }
+        if (device == null) return false;
+        try {
+            device.shard.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (device.source == null) return;
+                    SdData sdData = device.source.mSdData;
+                    Log.i(TAG, "acceptAlarm(" + device.id + ")");
+                    sdData.alarmStanding = false;
+                    sdData.fallAlarmStanding = false;
+                    if (sdData.alarmState != 4) {
+                        sdData.classify();
+                    }
+                    device.snapshot = SdDataSnapshot.of(sdData);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped.
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized int getDeviceCount() {
+        return mDevices.size();
+    }
+
+    /**
+     * The latest data from device deviceId, or null if it is unknown or has not sent any yet.
+     */
+    public SdDataSnapshot getSnapshot(String deviceId) {
+        Device device;
+        synchronized (this) {
+            device = mDevices.get(deviceId);
+        }
+        return (device != null) ? device.snapshot : null;
+    }
+
+    /**
+     * Return the combined status of all devices:
+     * {"alarmState": (worst state of any device), "alarmPhrase": ..., "nDevices": n,
+     * "devices": [{"id", "alarmState", "alarmPhrase", "dataTime" (ms of last data), "windows", "HR", "O2Sat",
+     * "batteryPc"}, ...]}
+     */
+    public String getStatusJson() {
+        ArrayList<Device> devices;
+        synchronized (this) {
+            devices = new ArrayList<>(mDevices.values());
+        }
+        try {
+            JSONObject status = new JSONObject();
+            JSONArray arr = new JSONArray();
+            long worstState = 0;
+            String worstPhrase = "OK";
+            for (Device device : devices) {
+                SdDataSnapshot snapshot = device.snapshot;
+                JSONObject obj = new JSONObject();
+                obj.put("id", device.id);
+                obj.put("dataTime", device.lastDataMs);
+                obj.put("windows", device.nWindows);
+                if (snapshot != null) {
+                    SdData sdData = snapshot.getData();
+                    obj.put("alarmState", sdData.alarmState);
+                    obj.put("alarmPhrase", sdData.alarmPhrase);
+                    obj.put("HR", sdData.mHR);
+                    obj.put("O2Sat", sdData.mO2Sat);
+                    obj.put("batteryPc", sdData.batteryPc);
+                    if (severity(sdData.alarmState, sdData.alarmPhrase) > severity(worstState, worstPhrase)) {
+                        worstState = sdData.alarmState;
+                        worstPhrase = sdData.alarmPhrase;
+                    }
+                } else {
+                    obj.put("alarmState", 0);
+                    obj.put("alarmPhrase", "WAITING");
+                }
+                arr.put(obj);
+            }
+            status.put("alarmState", worstState);
+            status.put("alarmPhrase", worstPhrase);
+            status.put("nDevices", devices.size());
+            status.put("devices", arr);
+            return status.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "getStatusJson() - " + e.toString());
+            return "{}";
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            mStopped = true;
+        }
+        mChecker.shutdownNow();
+        for (ExecutorService shard : mShards) {
+            shard.shutdown();
+        }
+        Log.i(TAG, "stop()");
+    }
+
+    private synchronized Device getDevice(String deviceId) {
+        if (mStopped) {
+            throw new RejectedExecutionException("Stopped");
+        }
+        Device device = mDevices.get(deviceId);
+        if (device == null) {
+            if (mDevices.size() >= MAX_DEVICES) {
+                throw new RejectedExecutionException("Too many devices");
+            }
+            // New devices go to each worker in turn, which spreads them evenly.
+            device = new Device(deviceId, mShards[mNextShard]);
+            mNextShard = (mNextShard + 1) % SHARDS;
+            mDevices.put(deviceId, device);
+            Log.i(TAG, "getDevice() - new device " + deviceId + ", " + mDevices.size() + " devices");
+        }
+        return device;
+    }
+
+    // Remove devices that have expired, mark ones that have stopped sending data as faults, and ask for settings
+    // periodically.
+    void checkDevices(final long now) {
+        ArrayList<Device> devices;
+        synchronized (this) {
+            Iterator<Device> it = mDevices.values().iterator();
+            while (it.hasNext()) {
+                Device device = it.next();
+                if (device.isExpired(now)) {
+                    Log.i(TAG, "checkDevices() - removing " + device.id + " - no data for " + (now - device.lastDataMs)
+                            + " ms");
+                    it.remove();
+                }
+            }
+            devices = new ArrayList<>(mDevices.values());
+        }
+        for (final Device device : devices) {
+            try {
+                device.shard.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.check(now);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    // How serious a device's state is, for choosing the worst.
+    private static int severity(long alarmState, String alarmPhrase) {
+        if ("FALL".equals(alarmPhrase) || "ALARM".equals(alarmPhrase)) return 4;
+        if ("WARNING".equals(alarmPhrase)) return 3;
+        if (alarmState == 4) return 2;
+        if (alarmState == 6) return 1;
+        return 0;
+    }
+
+    private final class Device implements SdDataReceiver {
+        final String id;
+        final ExecutorService shard;
+        // Only used on the shard's thread.
+        SdDataSource source;
+        private long lastSettingsRequestMs;
+        // Read by other threads.
+        volatile SdDataSnapshot snapshot;
+        volatile long lastDataMs = System.currentTimeMillis();
+        volatile long nWindows = 0;
+        final AtomicInteger pending = new AtomicInteger(0);
+
+        Device(String id, ExecutorService shard) {
+            this.id = id;
+            this.shard = shard;
+            lastSettingsRequestMs = lastDataMs;
+        }
+
+        void createSource() {
+            source = new SdDataSourceGarmin(mContext, mHandler, this);
+            source.mName = "Garmin:" + id;
+            source.startPassive();
+        }
+
+        // Called by source.doAnalysis() for each window of data.
+        @Override
+        public void onSdDataReceived(SdData sdData) {
+            sdData.classify();
+            SdDataSnapshot snap = SdDataSnapshot.of(sdData);
+            snapshot = snap;
+            lastDataMs = System.currentTimeMillis();
+            nWindows++;
+            String phrase = sdData.alarmPhrase;
+            if (mListener != null
+                    && ("WARNING".equals(phrase) || "ALARM".equals(phrase) || "FALL".equals(phrase))) {
+                mListener.onDeviceAlarm(id, snap);
+            }
+        }
+
+        @Override
+        public void onSdDataFault(SdData sdData) {
+            // The hub checks for faults itself (check()), as the source's status timer is not running.
+        }
+
+        boolean isExpired(long now) {
+            return now - lastDataMs > ((nWindows == 0) ? FAULT_TIMEOUT_MS : DEVICE_EXPIRY_MS);
+        }
+
+        void check(long now) {
+            if (source == null) return;
+            SdData sdData = source.mSdData;
+            if (now - lastSettingsRequestMs > SETTINGS_PERIOD_MS) {
+                sdData.haveSettings = false;
+                lastSettingsRequestMs = now;
+            }
+            if (now - lastDataMs > FAULT_TIMEOUT_MS && sdData.alarmState != 4) {
+                Log.w(TAG, "check() - no data from " + id + " for " + (now - lastDataMs) + " ms");
+                sdData.alarmState = 4;
+                sdData.alarmPhrase = "FAULT";
+                sdData.alarmStanding = false;
+                sdData.watchAppRunning = false;
+                SdDataSnapshot snap = SdDataSnapshot.of(sdData);
+                snapshot = snap;
+                if (mListener != null) {
+                    mListener.onDeviceAlarm(id, snap);
+                }
+            }
+        }
+    }
+}
@@ -79,7 +79,7 @@ import java.util.Timer;
  * and
  * http://developer.android.com/guide/components/services.html#ExtendingService
  */
-public class SdServer extends Service implements SdDataReceiver {
+public class SdServer extends Service implements SdDataReceiver, SdDeviceHub.Listener {
     private String mUuidStr = "0f675b21-5a36-4fe7-9761-fd0c691651f3";  // UUID to Identify OSD.
 
     // Notification ID
@@ -112,6 +112,9 @@ public class SdServer extends Service implements SdDataReceiver {
     private LocationFinder mLocationFinder = null;
     public SdDataSource mSdDataSource;
     public SdData mSdData = null;
+    // An immutable copy of mSdData made once per update, whose serialisations are shared by the web server, the
+    // database and the log.
+    public SdDataSnapshot mSdDataSnapshot = null;
     public String mSdDataSourceName = "undefined";  // The name of the data soruce specified in the preferences.
     private boolean mLatchAlarms = false;
     private int mLatchAlarmPeriod = 0;
@@ -153,6 +156,7 @@ public class SdServer extends Service implements SdDataReceiver {
     private final IBinder mBinder = new SdBinder();
 
     public LogManager mLm;
+    private DataExporter mDataExporter;
 
     /**
      * class to handle binding the MainApp activity to this service
@@ -448,6 +452,10 @@ public class SdServer extends Service implements SdDataReceiver {
             mUtil.writeToSysLogFile("SdServer.onDestroy() -error " + e.toString());
         }
 
+        if (mDataExporter != null) {
+            mDataExporter.shutdown();
+            mDataExporter = null;
+        }
         if (mLm != null) {
             Log.d(TAG, "Closing Down Log Manager");
             mLm.stop();
@@ -571,7 +579,7 @@ public class SdServer extends Service implements SdDataReceiver {
      * @param sdData
      */
     public void onSdDataReceived(SdData sdData) {
-        Log.v(TAG, "onSdDataReceived() - " + sdData.toString());
+        Log.v(TAG, "onSdDataReceived() - alarmState=" + sdData.alarmState);
         Log.v(TAG, "onSdDataReceived(), sdData.fallAlarmStanding=" + sdData.fallAlarmStanding);
 
         if (sdData.alarmState == 0) {
@@ -764,12 +772,46 @@ public class SdServer extends Service implements SdDataReceiver {
         mSdData.dataSourceName = mSdDataSourceName;
         mSdData.phoneAppVersion = mUtil.getAppVersionName();
 
-        if (webServer != null) webServer.setSdData(mSdData);
-        Log.v(TAG, "onSdDataReceived() - setting mSdData to " + mSdData.toString());
+        mSdDataSnapshot = SdDataSnapshot.of(mSdData);
+
+        if (webServer != null) webServer.setSdData(mSdDataSnapshot);
+        Log.v(TAG, "onSdDataReceived() - setting mSdData to " + mSdDataSnapshot.getStatusJson());
 
         logData();
     }
 
+    /**
+     * Return the DataExporter used by ExportDataActivity.   It belongs to the service rather than the activity, so an
+     * export is not cancelled when the activity is recreated (on a screen rotation, for example).
+     */
+    public DataExporter getDataExporter() {
+        if (mDataExporter == null) mDataExporter = new DataExporter(mHandler::post);
+        return mDataExporter;
+    }
+
+    /**
+     * Called by the web server's SdDeviceHub when one of the other watches sending data to us is in an alarm state
+     * (or has stopped sending data).   These do not change our own alarm state - the combined status is shown by the
+     * web server's /devices endpoint - so we only sound the alarm.
+     */
+    @Override
+    public void onDeviceAlarm(final String deviceId, final SdDataSnapshot snapshot) {
+        final String phrase = snapshot.getData().alarmPhrase;
+        Log.i(TAG, "onDeviceAlarm() - device " + deviceId + ": " + phrase);
+        mUtil.writeToSysLogFile("SdServer.onDeviceAlarm() - device " + deviceId + ": " + phrase);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if ("WARNING".equals(phrase)) {
+                    warningBeep();
+                } else if ("FAULT".equals(phrase)) {
+                    faultWarningBeep();
+                } else {
+                    alarmBeep();
+                }
+            }
+        });
+    }
 
     // Called by SdDataSource when a fault condition is detected.
     public void onSdDataFault(SdData sdData) {
@@ -778,7 +820,8 @@ public class SdServer extends Service implements SdDataReceiver {
         mSdData.alarmState = 4;  // set fault alarm state.
         mSdData.alarmPhrase = "FAULT";
         mSdData.alarmStanding = false;
-        if (webServer != null) webServer.setSdData(mSdData);
+        mSdDataSnapshot = SdDataSnapshot.of(mSdData);
+        if (webServer != null) webServer.setSdData(mSdDataSnapshot);
         // We only take action to warn the user and re-start the data source to attempt to fix it
         // ourselves if we have been in a fault condition for a while - signified by the mFaultTimerCompleted
         // flag.
@@ -1130,6 +1173,9 @@ public class SdServer extends Service implements SdDataReceiver {
                 mUtil.writeToSysLogFile("Network State Changed - No Active Network");
                 mUtil.showToast(getString(R.string.no_active_network));
             }
+            if (mLm != null) {
+                mLm.onNetworkChanged();
+            }
         }
     }
 
@@ -1142,7 +1188,7 @@ public class SdServer extends Service implements SdDataReceiver {
             if (mLm != null) {
                 Log.v(TAG, "logData() - writing data to Database");
                 //writeToSD();
-                mLm.writeDatapointToLocalDb(mSdData);
+                mLm.writeDatapointToLocalDb((mSdDataSnapshot != null) ? mSdDataSnapshot : SdDataSnapshot.of(mSdData));
             } else {
                 Log.e(TAG, "logData() - mLm is null - this should not happen");
             }
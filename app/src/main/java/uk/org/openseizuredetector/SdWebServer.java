@@ -1,21 +1,29 @@
 package uk.org.openseizuredetector;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.os.Handler;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import fi.iki.elonen.NanoHTTPD;
 
@@ -27,15 +35,62 @@ import fi.iki.elonen.NanoHTTPD;
 public class SdWebServer extends NanoHTTPD {
     private String TAG = "WebServer";
     private SdData mSdData;
+    private SdDataSnapshot mSnapshot;
     private SdServer mSdServer;
     private Context mContext;
     private Handler mHandler;
     private OsdUtil mUtil;
+    private final SdDataStream mStream = new SdDataStream();
+    // WebSocket clients of /rawstream, sent the raw data of each analysis window.
+    private final RawDataStream mRawStream = new RawDataStream();
+    // Connections are handled by NanoHTTPD's non-blocking engine, so idle kept-alive connections do not use a
+    // thread.   Each request being served (or open /stream) uses one thread from a bounded pool, so a misbehaving
+    // client cannot make us start an unlimited number of threads.   There are enough threads for every /stream
+    // subscriber plus as many requests again, and when the pool and its queue are full new requests get a 503
+    // response.
+    static final int MAX_THREADS = 2 * SdDataStream.MAX_SUBSCRIBERS;
+    static final int MAX_QUEUED_REQUESTS = 32;
+    private final BoundedAsyncRunner mAsyncRunner = new BoundedAsyncRunner(MAX_THREADS, MAX_QUEUED_REQUESTS);
+    // Each setSdData() is a new version of the data, identified by an ETag, so that a poller can ask for /data only
+    // if it has changed (If-None-Match), or for only the fields that have changed since the version it has
+    // (/data?since=<ETag>).   The JSON of each version is made once by its SdDataSnapshot, and the last few
+    // versions are kept to make deltas from.
+    static final String DELTA_FROM = "deltaFrom";
+    private static final int DATA_HISTORY_SIZE = 8;
+    private final String mEtagPrefix = Long.toString(System.currentTimeMillis(), 36);
+    private long mDataVersion = 0;
+    private final LinkedHashMap<String, String> mDataHistory = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > DATA_HISTORY_SIZE;
+        }
+    };
+    // Deltas from earlier versions to the current one - every viewer that polled the same version gets the same delta.
+    private final HashMap<String, String> mDeltaCache = new HashMap<>();
+    // The static files of the web interface, kept in memory with their gzipped versions and ETags.
+    private WebAssetCache mAssetCache;
+    // Clients following a log file (/logs/<file>?tail=) - each uses a thread while it is open, so they are limited
+    // to leave threads free for /stream clients and ordinary requests.
+    static final int MAX_LOG_TAILS = 4;
+    private final HashSet<LogFileTail> mLogTails = new HashSet<>();
+    // Watches that name themselves when POSTing to /data each have their own data source, in the device hub.
+    // The hub takes well under a millisecond to analyse a window, so this is only reached if a worker is stuck - it
+    // is kept short as the request holds a web server worker while it waits.
+    static final long DEVICE_REPLY_TIMEOUT_MS = 2 * 1000;
+    private SdDeviceHub mDeviceHub;
+    private boolean mStopped = false;
 
     public SdWebServer(Context context, SdData sdData, SdServer sdServer) {
         // Set the port to listen on (8080)
-        super(8080);
-        mSdData = sdData;
+        this(context, sdData, sdServer, 8080);
+    }
+
+    public SdWebServer(Context context, SdData sdData, SdServer sdServer, int port) {
+        super(port);
+        setAsyncRunner(mAsyncRunner);
+        setUseNio(true);
+        mSnapshot = SdDataSnapshot.of(sdData);
+        mSdData = mSnapshot.getData();
         mContext = context;
         mSdServer = sdServer;
         mHandler = new Handler();
@@ -43,8 +98,105 @@ public class SdWebServer extends NanoHTTPD {
     }
 
     public void setSdData(SdData sdData) {
+        setSdData(SdDataSnapshot.of(sdData));
+    }
+
+    public void setSdData(SdDataSnapshot snapshot) {
         // Log.v(TAG, "setSdData()");
-        mSdData = sdData;
+        synchronized (this) {
+            mSnapshot = snapshot;
+            mSdData = snapshot.getData();
+            mDataVersion++;
+            mDeltaCache.clear();
+        }
+        // Push the new data to any /stream clients.
+        if (mStream.getSubscriberCount() > 0) {
+            mStream.publish(getDataJson());
+        }
+        mRawStream.publish(snapshot.getData());
+    }
+
+    private synchronized String getDataEtag() {
+        return "\"" + mEtagPrefix + "-" + mDataVersion + "\"";
+    }
+
+    private synchronized String getDataJson() {
+        String json = mSnapshot.getStatusJson();
+        String etag = getDataEtag();
+        if (!mDataHistory.containsKey(etag)) {
+            mDataHistory.put(etag, json);
+        }
+        return json;
+    }
+
+    /**
+     * Return a JSON object containing the fields of the current data that differ from the version with the given
+     * ETag (removed fields are null), plus DELTA_FROM set to that ETag, or null if we no longer have that version.
+     */
+    private synchronized String getDataDelta(String etag) {
+        String delta = mDeltaCache.get(etag);
+        if (delta != null) return delta;
+        String baseJson = mDataHistory.get(etag);
+        if (baseJson == null) return null;
+        try {
+            JSONObject baseObj = new JSONObject(baseJson);
+            JSONObject currentObj = new JSONObject(getDataJson());
+            JSONObject deltaObj = new JSONObject();
+            deltaObj.put(DELTA_FROM, etag);
+            Iterator<String> keys = currentObj.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                Object value = currentObj.get(key);
+                Object baseValue = baseObj.opt(key);
+                if (baseValue == null || !baseValue.toString().equals(value.toString())) {
+                    deltaObj.put(key, value);
+                }
+            }
+            keys = baseObj.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!currentObj.has(key)) deltaObj.put(key, JSONObject.NULL);
+            }
+            delta = deltaObj.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "getDataDelta() - error making delta - " + e.toString());
+            return null;
+        }
+        mDeltaCache.put(etag, delta);
+        return delta;
+    }
+
+    BoundedAsyncRunner getAsyncRunner() {
+        return mAsyncRunner;
+    }
+
+    RawDataStream getRawDataStream() {
+        return mRawStream;
+    }
+
+    @Override
+    public void stop() {
+        mStream.closeAll();
+        mRawStream.closeAll();
+        synchronized (this) {
+            mStopped = true;
+            if (mDeviceHub != null) {
+                // Kept, so requests still being served see a stopped hub rather than starting a new one.
+                mDeviceHub.stop();
+            }
+        }
+        ArrayList<LogFileTail> tails;
+        synchronized (mLogTails) {
+            tails = new ArrayList<>(mLogTails);
+        }
+        for (LogFileTail tail : tails) {
+            try {
+                tail.close();
+            } catch (IOException e) {
+                Log.e(TAG, "stop() - error closing log tail - " + e.toString());
+            }
+        }
+        super.stop();
     }
 
     @Override
@@ -90,20 +242,46 @@ public class SdWebServer extends NanoHTTPD {
                 switch (method) {
                     case GET:
                         //Log.v(TAG,"WebServer.serve() - Returning data");
+                        String etag;
+                        boolean notModified;
+                        String since = parameters.get("since");
                         try {
-                            Log.v(TAG, "WebServer.serve() - GET /data - sending " + mSdData.toString());
-                            answer = mSdData.toString();
+                            synchronized (this) {
+                                etag = getDataEtag();
+                                answer = getDataJson();
+                                notModified = etag.equals(header.get("if-none-match"));
+                                String delta = (since != null && !notModified) ? getDataDelta(since) : null;
+                                if (delta != null) answer = delta;
+                            }
                         } catch (Exception ex) {
                             Log.v(TAG, "Error Creating Data Object - " + ex.toString());
                             answer = "{'msg': 'Error Creating Data Object'}";
+                            break;
                         }
-                        break;
+                        if (notModified) {
+                            Log.v(TAG, "WebServer.serve() - GET /data - not modified");
+                            res = new NanoHTTPD.Response(Response.Status.NOT_MODIFIED, responseMimeType, "");
+                        } else {
+                            Log.v(TAG, "WebServer.serve() - GET /data - sending " + answer);
+                            res = new NanoHTTPD.Response(answer);
+                            res.setMimeType(responseMimeType);
+                        }
+                        res.addHeader("ETag", etag);
+                        res.addHeader("Cache-Control", "no-cache");
+                        return res;
                     case POST:
                         Log.v(TAG, "WebServer.serve() - POST /data - receiving data from device: parameters=" + parameters.toString());
                         Log.v(TAG, "              header=" + header.toString());
                         Log.v(TAG, "              files=" + files.toString());
                         String postData = files.get("postData");
                         Log.v(TAG, "              postData=" + postData);
+                        String deviceId = parameters.get("device");
+                        if (deviceId == null) deviceId = header.get("x-osd-device");
+                        if (deviceId != null) {
+                            // One of several watches sharing this server - it has its own data source.
+                            String dataObj = parameters.get("dataObj");
+                            return serveDeviceData(deviceId, (dataObj != null) ? dataObj : postData);
+                        }
                         if (mSdServer.mSdDataSourceName.equals("Garmin")) {
                             // Send the data to the SdDataSource so the app can pick it up.
                             if (parameters.get("dataObj") != null) {
@@ -123,6 +301,23 @@ public class SdWebServer extends NanoHTTPD {
                 }
                 break;
 
+            case "/stream":
+                // Server-Sent Events stream of SdData - the response stays open, and each new SdData is sent as an event.
+                SdDataStream.Subscriber subscriber = mStream.subscribe(getDataJson());
+                if (subscriber == null) {
+                    return new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Too many stream clients");
+                }
+                Log.v(TAG, "WebServer.serve() - GET /stream - starting event stream");
+                res = new NanoHTTPD.Response(Response.Status.OK, SdDataStream.MIME_TYPE, subscriber);
+                res.addHeader("Cache-Control", "no-cache");
+                res.setChunkedTransfer(true);
+                return res;
+
+            case "/rawstream":
+                // WebSocket - each analysis window's raw data is sent as a binary message (see RawDataStream).
+                Log.v(TAG, "WebServer.serve() - GET /rawstream - upgrading to WebSocket");
+                return newWebSocketResponse(session, mRawStream);
+
             case "/settings":
                 switch (method) {
                     case GET:
@@ -184,6 +379,12 @@ public class SdWebServer extends NanoHTTPD {
                 }
                 break;
 
+            case "/devices":
+                // Combined status of the watches using the device hub.
+                res = new NanoHTTPD.Response(Response.Status.OK, responseMimeType, getDeviceHub().getStatusJson());
+                res.addHeader("Cache-Control", "no-cache");
+                return res;
+
             case "/acceptalarm":
                 Log.v(TAG, "WebServer.serve() - Accepting alarm");
                 mSdServer.acceptAlarm();
@@ -198,10 +399,19 @@ public class SdWebServer extends NanoHTTPD {
                         uri.startsWith("/css/") ||
                         uri.startsWith("/img/")) {
                     //Log.v(TAG,"Serving File");
-                    return serveFile(uri);
+                    return serveFile(uri, header);
+                } else if (uri.startsWith("/devices/")) {
+                    return serveDevice(uri, method);
+                } else if (uri.startsWith("/api/")) {
+                    // History from the local database, streamed a page at a time.
+                    if (mSdServer == null || mSdServer.mLm == null) {
+                        return new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT,
+                                "Local database not available");
+                    }
+                    return new LocalDataApi(mSdServer.mLm).serve(uri, parameters);
                 } else if (uri.startsWith("/logs")) {
                     Log.v(TAG, "WebServer.serve() - serving data logs - uri=" + uri);
-                    NanoHTTPD.Response resp = serveLogFile(uri);
+                    NanoHTTPD.Response resp = serveLogFile(uri, header, parameters);
                     Log.v(TAG, "WebServer.serve() - response = " + resp.toString());
                     return resp;
                 } else {
@@ -217,10 +427,80 @@ public class SdWebServer extends NanoHTTPD {
     }
 
 
+    /**
+     * Pass the data POSTed to /data by device deviceId to its data source in the device hub, and return the reply for
+     * the watch.
+     */
+    private Response serveDeviceData(String deviceId, String jsonStr) {
+        if (!SdDeviceHub.isValidDeviceId(deviceId)) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid device id");
+        }
+        if (jsonStr == null) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "No data");
+        }
+        String answer;
+        try {
+            answer = getDeviceHub().submit(deviceId, jsonStr).get(DEVICE_REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "serveDeviceData(" + deviceId + ") - rejected - " + e.getMessage());
+            return new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, e.getMessage());
+        } catch (TimeoutException e) {
+            Log.w(TAG, "serveDeviceData(" + deviceId + ") - timed out");
+            return new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Timed out");
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "serveDeviceData(" + deviceId + ") - " + e.toString());
+            return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error processing data");
+        }
+        Response res = new Response(answer);
+        res.setMimeType("application/json");
+        return res;
+    }
+
+    /**
+     * GET /devices/<id> returns the latest data from device id, DELETE /devices/<id> forgets it, and
+     * POST /devices/<id>/accept accepts its alarm.
+     */
+    private Response serveDevice(String uri, Method method) {
+        String[] parts = uri.substring("/devices/".length()).split("/");
+        String deviceId = parts[0];
+        if (parts.length == 1 && method == Method.GET) {
+            SdDataSnapshot snapshot = getDeviceHub().getSnapshot(deviceId);
+            if (snapshot == null) {
+                return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "No data from device " + deviceId);
+            }
+            Response res = new Response(Response.Status.OK, "application/json", snapshot.getStatusJson());
+            res.addHeader("Cache-Control", "no-cache");
+            return res;
+        }
+        if (parts.length == 1 && method == Method.DELETE) {
+            if (!getDeviceHub().removeDevice(deviceId)) {
+                return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Unknown device " + deviceId);
+            }
+            return new Response(Response.Status.OK, "application/json", "{\"msg\": \"Device Removed\"}");
+        }
+        if (parts.length == 2 && parts[1].equals("accept") && method == Method.POST) {
+            if (!getDeviceHub().acceptAlarm(deviceId)) {
+                return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Unknown device " + deviceId);
+            }
+            return new Response(Response.Status.OK, "application/json", "{\"msg\": \"Alarm Accepted\"}");
+        }
+        return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Unknown URI: " + uri);
+    }
+
+    synchronized SdDeviceHub getDeviceHub() {
+        if (mDeviceHub == null) {
+            mDeviceHub = new SdDeviceHub(mContext, mHandler, mSdServer);
+            if (mStopped) {
+                mDeviceHub.stop();
+            }
+        }
+        return mDeviceHub;
+    }
+
     /**
      * Return a file from the external storage folder
      */
-    NanoHTTPD.Response serveLogFile(String uri) {
+    NanoHTTPD.Response serveLogFile(String uri, Map<String, String> header, Map<String, String> parameters) {
         NanoHTTPD.Response res;
         InputStream ip = null;
         String uripart;
@@ -264,13 +544,18 @@ public class SdWebServer extends NanoHTTPD {
 
             uripart = uriParts.nextToken();  // This will just be /logs
             uripart = uriParts.nextToken();  // this is the requested file.
-            String fname = mUtil.getDataStorageDir().toString() + "/" + uripart;
-            Log.v(TAG, "serveLogFile - uri=" + uri + ", fname=" + fname);
-            ip = new FileInputStream(fname);
-            String mimeStr = "text/html";
-            res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
-                    mimeStr, ip);
-            res.addHeader("Content-Length", "" + ip.available());
+            File file = new File(mUtil.getDataStorageDir(), uripart);
+            Log.v(TAG, "serveLogFile - uri=" + uri + ", fname=" + file);
+            if (!file.isFile()) {
+                return new NanoHTTPD.Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT,
+                        "serveLogFile(): File not found " + uri);
+            }
+            String tail = parameters.get("tail");
+            if (tail != null) {
+                res = serveLogTail(file, tail.trim());
+            } else {
+                res = serveLogRange(file, header.get("range"), header.get("if-range"));
+            }
         } catch (IOException ex) {
             Log.v(TAG, "serveLogFile(): Error Opening File - " + ex.toString());
             res = new NanoHTTPD.Response("serveLogFile(): Error Opening file " + uri);
@@ -279,28 +564,152 @@ public class SdWebServer extends NanoHTTPD {
     }
 
     /**
-     * Return a file from the apps /assets folder
+     * Return the whole of a log file, or the part of it asked for by a Range header (a single range of bytes, as used to
+     * resume a download).   A log that is still being written changes, so If-Range is honoured to stop a client joining
+     * parts of two versions.
+     */
+    private NanoHTTPD.Response serveLogRange(File file, String range, String ifRange) throws IOException {
+        long length = file.length();
+        String etag = "\"" + Long.toString(file.lastModified(), 36) + "-" + Long.toString(length, 36) + "\"";
+        if (ifRange != null && !ifRange.trim().equals(etag)) range = null;
+        long[] r = (range != null) ? parseRange(range, length) : null;
+        if (r != null && r.length == 0) {
+            Log.v(TAG, "serveLogRange() - range " + range + " not satisfiable, length=" + length);
+            NanoHTTPD.Response res = new NanoHTTPD.Response(Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "");
+            res.addHeader("Content-Range", "bytes */" + length);
+            return res;
+        }
+        long start = (r != null) ? r[0] : 0;
+        long count = (r != null) ? r[1] - r[0] + 1 : length;
+        FileInputStream ip = new FileInputStream(file);
+        ip.getChannel().position(start);
+        NanoHTTPD.Response res = new NanoHTTPD.Response(
+                (r != null) ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
+                WebAssetCache.getMimeType(file.getName()), ip);
+        // The length is taken from the file, rather than from available(), which is an int.
+        res.setContentLength(count);
+        if (r != null) res.addHeader("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+        res.addHeader("Accept-Ranges", "bytes");
+        res.addHeader("ETag", etag);
+        res.addHeader("Cache-Control", "no-cache");
+        return res;
+    }
+
+    /**
+     * Parse a Range header for a file of the given length.   Returns {first byte, last byte}, an empty array if the
+     * range is not satisfiable, or null if the header should be ignored (it is malformed, or asks for several ranges,
+     * which we do not support) and the whole file sent.
      */
-    NanoHTTPD.Response serveFile(String uri) {
+    static long[] parseRange(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) return null;
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // bytes=-n is the last n bytes.
+                long n = Long.parseLong(last);
+                if (n <= 0) return new long[0];
+                start = Math.max(0, length - n);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                if (!last.isEmpty() && Long.parseLong(last) < start) return null;
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+            if (start >= length) return new long[0];
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return a chunked response that sends a log file from offset (or, if offset is empty, from its current end, or if
+     * it is negative, from that many bytes before its end), and then whatever is appended to it, until nothing has
+     * been appended for LogFileTail.IDLE_TIMEOUT_MS.   The X-Log-Offset header gives the offset the data starts at, so
+     * the client can ask again from where it got to.
+     */
+    private NanoHTTPD.Response serveLogTail(File file, String offsetStr) throws IOException {
+        long length = file.length();
+        long offset;
+        try {
+            offset = offsetStr.isEmpty() ? length : Long.parseLong(offsetStr);
+        } catch (NumberFormatException e) {
+            return new NanoHTTPD.Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid tail offset");
+        }
+        if (offset < 0) offset = Math.max(0, length + offset);
+        if (offset > length) {
+            // The file has been replaced since the client last saw it.
+            NanoHTTPD.Response res = new NanoHTTPD.Response(Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "");
+            res.addHeader("Content-Range", "bytes */" + length);
+            return res;
+        }
+        LogFileTail stream;
+        synchronized (mLogTails) {
+            if (mLogTails.size() >= MAX_LOG_TAILS) {
+                return new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Too many log followers");
+            }
+            stream = new LogFileTail(file, offset) {
+                @Override
+                public void close() throws IOException {
+                    synchronized (mLogTails) {
+                        mLogTails.remove(this);
+                    }
+                    super.close();
+                }
+            };
+            mLogTails.add(stream);
+        }
+        Log.v(TAG, "serveLogTail() - following " + file.getName() + " from " + offset);
+        NanoHTTPD.Response res = new NanoHTTPD.Response(Response.Status.OK,
+                WebAssetCache.getMimeType(file.getName()), stream);
+        res.setChunkedTransfer(true);
+        res.addHeader("X-Log-Offset", Long.toString(offset));
+        res.addHeader("Cache-Control", "no-cache");
+        return res;
+    }
+
+    /**
+     * Return a file from the apps /assets/www folder, gzipped if the client accepts it, or a 304 (Not Modified)
+     * response if the client already has this version of it.
+     */
+    NanoHTTPD.Response serveFile(String uri, Map<String, String> header) {
         NanoHTTPD.Response res;
-        InputStream ip = null;
+        WebAssetCache.Asset asset;
         try {
-            if (ip != null) ip.close();
-            String assetPath = "www";
-            String fname = assetPath + uri;
-            //Log.v(TAG,"serveFile - uri="+uri+", fname="+fname);
-            AssetManager assetManager = mContext.getResources().getAssets();
-            ip = assetManager.open(fname);
-            String mimeStr = "text/html";
-            res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
-                    mimeStr, ip);
-            res.addHeader("Content-Length", "" + ip.available());
+            asset = getAssetCache().get(uri);
         } catch (IOException ex) {
             Log.v(TAG, "serveFile(): Error Opening File - " + ex.toString());
-            res = new NanoHTTPD.Response("serveFile(): Error Opening file " + uri);
+            return new NanoHTTPD.Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT,
+                    "serveFile(): Error Opening file " + uri);
+        }
+        boolean gzip = asset.gzipData != null && WebAssetCache.acceptsGzip(header.get("accept-encoding"));
+        if (asset.matches(header.get("if-none-match"))) {
+            res = new NanoHTTPD.Response(Response.Status.NOT_MODIFIED, asset.mimeType, "");
+        } else {
+            // The data is a ByteArrayInputStream, so NanoHTTPD sends the exact Content-Length.
+            res = new NanoHTTPD.Response(Response.Status.OK, asset.mimeType,
+                    new ByteArrayInputStream(gzip ? asset.gzipData : asset.data));
+            if (gzip) res.addHeader("Content-Encoding", "gzip");
         }
+        res.addHeader("ETag", gzip ? asset.gzipEtag : asset.etag);
+        res.addHeader("Cache-Control", asset.cacheControl);
+        if (asset.gzipData != null) res.addHeader("Vary", "Accept-Encoding");
         return (res);
     }
 
+    synchronized WebAssetCache getAssetCache() {
+        if (mAssetCache == null) {
+            mAssetCache = new WebAssetCache(mContext.getResources().getAssets(), "www");
+        }
+        return mAssetCache;
+    }
+
 
 }
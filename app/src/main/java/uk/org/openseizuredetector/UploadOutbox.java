@@ -0,0 +1,300 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * UploadOutbox is a durable queue of the work needed to upload events and their datapoints to the remote server,
+ * stored in the upload_outbox table of the local database so that an interrupted upload can be resumed after a
+ * restart.
+ * <p>
+ * Each event has one row with datapointId=EVENT_ITEM for creating the remote event, and once that has been done, one
+ * row per datapoint to upload.   Every row has its own status, attempt count, time of the next attempt and an
+ * idempotency key that is sent with each attempt, so a request that reached the server but whose response was lost
+ * can be retried safely.   Failed attempts are retried with exponential backoff and jitter, until MAX_ATTEMPTS.
+ * <p>
+ * Reads take the SQLiteDatabase passed to OsdDbExecutor work; writes use the statement cache and must be done on the
+ * OsdDbExecutor writer thread.
+ */
+public class UploadOutbox {
+    private static final String TAG = "UploadOutbox";
+    public static final String TABLE_NAME = "upload_outbox";
+    public static final int STATUS_PENDING = 0;
+    public static final int STATUS_SENT = 1;
+    public static final int STATUS_FAILED = 2;
+    public static final long EVENT_ITEM = 0;   // datapointId of the row for the event itself (datapoint ids start at 1).
+    static final int MAX_ATTEMPTS = 12;
+    static final long BASE_RETRY_DELAY_MS = 30 * 1000;
+    static final long MAX_RETRY_DELAY_MS = 3600 * 1000;
+
+    // SQLite can generate the random idempotency keys itself, so whole events can be queued with one statement.
+    private static final String NEW_KEY = "lower(hex(randomblob(16)))";
+    private static final String SQL_ENQUEUE_DATAPOINTS = "INSERT OR IGNORE INTO " + TABLE_NAME
+            + "(eventId, datapointId, idempotencyKey, status, attempts, nextAttemptMs, createdMs)"
+            + " SELECT ed.eventId, ed.datapointId, " + NEW_KEY + ", " + STATUS_PENDING + ", 0, 0, ?"
+            + " FROM " + LogManager.mEventDpTableName + " ed JOIN " + LogManager.mDpTableName + " d ON d.id=ed.datapointId"
+            + " WHERE ed.eventId=?";
+    private static final String SQL_SELECT_DUE_EVENTS = "SELECT eventId FROM " + TABLE_NAME
+            + " WHERE status=" + STATUS_PENDING + " AND nextAttemptMs<=? GROUP BY eventId ORDER BY MIN(createdMs) LIMIT ?";
+    private static final String SQL_SELECT_EVENT_ITEM = "SELECT * FROM " + TABLE_NAME
+            + " WHERE eventId=? AND datapointId=" + EVENT_ITEM;
+    private static final String SQL_SELECT_DUE_DATAPOINTS = "SELECT o.*, d.dataTime, d.status AS dpStatus, d.dataJSON"
+            + " FROM " + TABLE_NAME + " o JOIN " + LogManager.mDpTableName + " d ON d.id=o.datapointId"
+            + " WHERE o.eventId=? AND o.datapointId<>" + EVENT_ITEM + " AND o.status=" + STATUS_PENDING
+            + " AND o.nextAttemptMs<=? ORDER BY d.dataTime";
+    private static final String SQL_MARK_SENT = "UPDATE " + TABLE_NAME
+            + " SET status=" + STATUS_SENT + ", remoteId=?, attempts=? WHERE id=?";
+    private static final String SQL_MARK_RETRY = "UPDATE " + TABLE_NAME + " SET attempts=?, nextAttemptMs=? WHERE id=?";
+    private static final String SQL_MARK_FAILED = "UPDATE " + TABLE_NAME
+            + " SET status=" + STATUS_FAILED + ", attempts=? WHERE id=?";
+    private static final String SQL_COUNT_PENDING_DATAPOINTS = "SELECT COUNT(*) FROM " + TABLE_NAME
+            + " WHERE eventId=? AND datapointId<>" + EVENT_ITEM + " AND status=" + STATUS_PENDING;
+    private static final String SQL_DELETE_EVENT = "DELETE FROM " + TABLE_NAME + " WHERE eventId=?";
+    private static final String SQL_PRUNE = "DELETE FROM " + TABLE_NAME
+            + " WHERE eventId NOT IN (SELECT id FROM " + LogManager.mEventsTableName + ")";
+    private static final String SQL_STATS = "SELECT COUNT(DISTINCT eventId), SUM(datapointId<>" + EVENT_ITEM + "),"
+            + " MIN(createdMs) FROM " + TABLE_NAME + " WHERE status=" + STATUS_PENDING;
+    private static final String SQL_COUNT_FAILED = "SELECT COUNT(*) FROM " + TABLE_NAME
+            + " WHERE status=" + STATUS_FAILED;
+
+    private final OsdStatementCache mStmtCache;
+    private final Random mRandom = new Random();
+
+    /**
+     * One row of the outbox.   For datapoint rows read by getDueDatapoints(), datapoint holds the datapoint in the same
+     * form as LogManager.cursor2Json() produces.
+     */
+    public static class Item {
+        public long id;
+        public long eventId;
+        public long datapointId;
+        public String idempotencyKey;
+        public int status;
+        public String remoteId;
+        public int attempts;
+        public long nextAttemptMs;
+        public JSONObject datapoint;
+    }
+
+    /**
+     * A summary of the upload backlog.
+     */
+    public static class Stats {
+        public long nEvents;
+        public long nDatapoints;
+        public long nFailed;
+        public long oldestAgeMs;
+
+        @Override
+        public String toString() {
+            return "events=" + nEvents + ", datapoints=" + nDatapoints + ", failed=" + nFailed
+                    + ", oldest=" + (oldestAgeMs / 1000) + "s";
+        }
+    }
+
+    public UploadOutbox(OsdStatementCache stmtCache) {
+        mStmtCache = stmtCache;
+    }
+
+    public static void createTable(SQLiteDatabase db) {
+        Log.i(TAG, "createTable - TableName=" + TABLE_NAME);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "("
+                + "id INTEGER PRIMARY KEY,"
+                + "eventId INTEGER,"          // local event id
+                + "datapointId INTEGER,"      // local datapoint id, or EVENT_ITEM for the event itself
+                + "idempotencyKey TEXT,"
+                + "status INT,"
+                + "remoteId TEXT,"            // id of the remote event once it has been created
+                + "attempts INT,"
+                + "nextAttemptMs INTEGER,"    // do not retry before this time
+                + "createdMs INTEGER,"
+                + "UNIQUE (eventId, datapointId)"
+                + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_due ON " + TABLE_NAME + "(status, nextAttemptMs);");
+    }
+
+    /**
+     * Queue the events selected by whereClause (a WHERE clause on the events table) for upload, unless they are
+     * already in the outbox.
+     */
+    public void enqueueEvents(SQLiteDatabase db, String whereClause, String[] whereArgs, long nowMs) {
+        Object[] args = new Object[whereArgs.length + 1];
+        args[0] = nowMs;
+        System.arraycopy(whereArgs, 0, args, 1, whereArgs.length);
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME
+                + "(eventId, datapointId, idempotencyKey, status, attempts, nextAttemptMs, createdMs)"
+                + " SELECT id, " + EVENT_ITEM + ", " + NEW_KEY + ", " + STATUS_PENDING + ", 0, 0, ?"
+                + " FROM " + LogManager.mEventsTableName + " WHERE " + whereClause, args);
+    }
+
+    /**
+     * Queue the datapoints linked to eventId - called once the remote event exists.   A remote datapoint belongs to
+     * one remote event, so a datapoint shared by overlapping events is queued (and uploaded) once for each of them,
+     * even if it has already been uploaded with another event.
+     */
+    public long enqueueDatapoints(long eventId, long nowMs) {
+        return mStmtCache.executeUpdateDelete(SQL_ENQUEUE_DATAPOINTS, nowMs, eventId);
+    }
+
+    /**
+     * Return the ids of up to maxEvents events that have an item due to be attempted, oldest first.
+     */
+    public ArrayList<Long> getDueEvents(SQLiteDatabase db, long nowMs, int maxEvents) {
+        ArrayList<Long> eventIds = new ArrayList<>();
+        Cursor c = db.rawQuery(SQL_SELECT_DUE_EVENTS, new String[]{String.valueOf(nowMs), String.valueOf(maxEvents)});
+        try {
+            while (c.moveToNext()) {
+                eventIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return eventIds;
+    }
+
+    /**
+     * Return the outbox row for the event itself, or null if the event is not in the outbox.
+     */
+    public Item getEventItem(SQLiteDatabase db, long eventId) {
+        Cursor c = db.rawQuery(SQL_SELECT_EVENT_ITEM, new String[]{String.valueOf(eventId)});
+        try {
+            return c.moveToNext() ? readItem(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return the pending datapoints of eventId that are due to be attempted, in time order.
+     */
+    public ArrayList<Item> getDueDatapoints(SQLiteDatabase db, long eventId, long nowMs) {
+        ArrayList<Item> items = new ArrayList<>();
+        Cursor c = db.rawQuery(SQL_SELECT_DUE_DATAPOINTS, new String[]{String.valueOf(eventId), String.valueOf(nowMs)});
+        try {
+            while (c.moveToNext()) {
+                Item item = readItem(c);
+                item.datapoint = new JSONObject();
+                try {
+                    item.datapoint.put("id", String.valueOf(item.datapointId));
+                    item.datapoint.put("dataTime", c.getString(c.getColumnIndex("dataTime")));
+                    item.datapoint.put("status", c.getString(c.getColumnIndex("dpStatus")));
+                    item.datapoint.put("dataJSON", c.getString(c.getColumnIndex("dataJSON")));
+                } catch (JSONException e) {
+                    Log.e(TAG, "getDueDatapoints() - error creating datapoint JSON: " + e.toString());
+                }
+                items.add(item);
+            }
+        } finally {
+            c.close();
+        }
+        return items;
+    }
+
+    /**
+     * Record the outcome of an attempt to send item.   On failure the item is rescheduled with exponential backoff, or
+     * marked as failed once it has used up MAX_ATTEMPTS attempts.
+     */
+    public void recordResult(Item item, boolean ok, String remoteId, long nowMs) {
+        item.attempts++;
+        if (ok) {
+            item.status = STATUS_SENT;
+            item.remoteId = remoteId;
+            mStmtCache.executeUpdateDelete(SQL_MARK_SENT, remoteId, item.attempts, item.id);
+        } else if (item.attempts >= MAX_ATTEMPTS) {
+            Log.w(TAG, "recordResult() - giving up on event " + item.eventId + " datapoint " + item.datapointId
+                    + " after " + item.attempts + " attempts");
+            item.status = STATUS_FAILED;
+            mStmtCache.executeUpdateDelete(SQL_MARK_FAILED, item.attempts, item.id);
+        } else {
+            item.nextAttemptMs = nowMs + getRetryDelay(item.attempts, mRandom);
+            mStmtCache.executeUpdateDelete(SQL_MARK_RETRY, item.attempts, item.nextAttemptMs, item.id);
+        }
+    }
+
+    public long countPendingDatapoints(long eventId) {
+        return mStmtCache.simpleQueryForLong(SQL_COUNT_PENDING_DATAPOINTS, eventId);
+    }
+
+    /**
+     * Remove an event that has been completely uploaded (or given up on) from the outbox.
+     */
+    public void deleteEvent(long eventId) {
+        mStmtCache.executeUpdateDelete(SQL_DELETE_EVENT, eventId);
+    }
+
+    /**
+     * Remove the outbox rows of events that have been pruned from the database.
+     */
+    public int prune() {
+        return mStmtCache.executeUpdateDelete(SQL_PRUNE);
+    }
+
+    public Stats getStats(SQLiteDatabase db, long nowMs) {
+        Stats stats = new Stats();
+        Cursor c = db.rawQuery(SQL_STATS, null);
+        try {
+            if (c.moveToNext()) {
+                stats.nEvents = c.getLong(0);
+                stats.nDatapoints = c.isNull(1) ? 0 : c.getLong(1);
+                stats.oldestAgeMs = c.isNull(2) ? 0 : nowMs - c.getLong(2);
+            }
+        } finally {
+            c.close();
+        }
+        stats.nFailed = mStmtCache.simpleQueryForLong(SQL_COUNT_FAILED);
+        return stats;
+    }
+
+    /**
+     * Delay before the next attempt after attempts failed attempts:  exponential backoff from BASE_RETRY_DELAY_MS up
+     * to MAX_RETRY_DELAY_MS, with "equal jitter" - a random delay between half and all of that - so that items which
+     * failed together do not all retry together.
+     */
+    static long getRetryDelay(int attempts, Random random) {
+        long delay = BASE_RETRY_DELAY_MS << Math.min(Math.max(attempts - 1, 0), 16);
+        delay = Math.min(delay, MAX_RETRY_DELAY_MS);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private static Item readItem(Cursor c) {
+        Item item = new Item();
+        item.id = c.getLong(c.getColumnIndex("id"));
+        item.eventId = c.getLong(c.getColumnIndex("eventId"));
+        item.datapointId = c.getLong(c.getColumnIndex("datapointId"));
+        item.idempotencyKey = c.getString(c.getColumnIndex("idempotencyKey"));
+        item.status = c.getInt(c.getColumnIndex("status"));
+        item.remoteId = c.getString(c.getColumnIndex("remoteId"));
+        item.attempts = c.getInt(c.getColumnIndex("attempts"));
+        item.nextAttemptMs = c.getLong(c.getColumnIndex("nextAttemptMs"));
+        return item;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * UploadScheduler decides when LogManager should next try to upload data to the remote server, replacing the fixed
+ * period RemoteLogTimer.
+ * - When there is nothing to upload the period doubles after each pass, up to MAX_PERIOD_MS.
+ * - When there is a backlog on an unmetered network the period drops to MIN_PERIOD_MS so the backlog is cleared
+ * quickly; on a metered network it stays at the configured period so uploads are batched into fewer radio wake-ups.
+ * - A connectivity change schedules a pass after COALESCE_MS (so that a burst of broadcasts only causes one pass),
+ * and no passes are made while there is no network other than an occasional check in case a broadcast was missed.
+ * <p>
+ * It also estimates how long the radio is kept active by uploads (the time uploads are in progress plus a tail
+ * of RADIO_TAIL_MS after each burst, which is roughly how long a cellular radio stays in its high power state after
+ * the last packet), and logs it once a day alongside the number of passes the fixed timer would have made.
+ * All methods must be called on the main thread.
+ */
+public class UploadScheduler {
+    private static final String TAG = "UploadScheduler";
+    static final long MIN_PERIOD_MS = 15 * 1000;
+    static final long MAX_PERIOD_MS = 30 * 60 * 1000;
+    static final long COALESCE_MS = 5 * 1000;
+    static final long RADIO_TAIL_MS = 10 * 1000;
+    static final long STATS_PERIOD_MS = 24 * 3600 * 1000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mUploadPass;
+    private final long mBasePeriodMs;
+    private long mPeriodMs;
+    private boolean mRunning = false;
+    private boolean mConnected = true;
+    private boolean mUnmetered = false;
+    private int mBacklog = 0;
+
+    // Radio usage statistics.
+    private long mStatsStartMs;
+    private long mActiveSinceMs = -1;   // time the current burst of uploads started, or -1 if uploads are idle.
+    private long mRadioOffMs = 0;       // estimated time the radio drops out of its high power state.
+    private long mRadioActiveMs = 0;
+    private int mRadioWakeups = 0;
+    private int mPasses = 0;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            mPasses++;
+            // Re-schedule now in case the pass does not start any uploads (e.g. because of the network state) -
+            // onUploadsIdle() replaces this with the adapted period once the pass has finished.
+            schedule(mConnected ? mPeriodMs : MAX_PERIOD_MS);
+            mUploadPass.run();
+        }
+    };
+
+    /**
+     * @param uploadPass    run on the main thread each time an upload pass is due.
+     * @param basePeriodSec the configured upload period.
+     */
+    public UploadScheduler(Runnable uploadPass, long basePeriodSec) {
+        mUploadPass = uploadPass;
+        mBasePeriodMs = Math.max(basePeriodSec * 1000, MIN_PERIOD_MS);
+        mPeriodMs = mBasePeriodMs;
+        mStatsStartMs = SystemClock.elapsedRealtime();
+    }
+
+    public void start() {
+        Log.i(TAG, "start() - base period " + mBasePeriodMs + " ms");
+        mRunning = true;
+        schedule(mPeriodMs);
+    }
+
+    public void stop() {
+        Log.i(TAG, "stop() - " + getRadioStats());
+        mRunning = false;
+        mHandler.removeCallbacks(mTick);
+    }
+
+    /**
+     * Called when connectivity changes.
+     *
+     * @param connected  true if there is a usable network.
+     * @param unmetered  true if the network is not metered (e.g. Wifi).
+     */
+    public void onNetworkChanged(boolean connected, boolean unmetered) {
+        Log.v(TAG, "onNetworkChanged() - connected=" + connected + ", unmetered=" + unmetered);
+        boolean improved = connected && (!mConnected || (unmetered && !mUnmetered));
+        mConnected = connected;
+        mUnmetered = unmetered;
+        if (!mRunning) return;
+        if (improved) {
+            mPeriodMs = mBasePeriodMs;
+            schedule(COALESCE_MS);
+        } else if (!connected) {
+            schedule(MAX_PERIOD_MS);
+        }
+    }
+
+    /**
+     * Record the number of events that were found waiting to be uploaded by the last pass.
+     */
+    public void setBacklog(int nEvents) {
+        mBacklog = nEvents;
+    }
+
+    /**
+     * Called when uploads start - the radio is assumed to be active from now until RADIO_TAIL_MS after
+     * onUploadsIdle().
+     */
+    public void onUploadsStarted() {
+        if (mActiveSinceMs >= 0) return;
+        mActiveSinceMs = SystemClock.elapsedRealtime();
+        if (mActiveSinceMs > mRadioOffMs) {
+            mRadioWakeups++;
+        }
+    }
+
+    /**
+     * Called when no uploads are in progress at the end of a pass - adapts the period and schedules the next pass.
+     */
+    public void onUploadsIdle() {
+        long now = SystemClock.elapsedRealtime();
+        if (mActiveSinceMs >= 0) {
+            long radioOffMs = now + RADIO_TAIL_MS;
+            mRadioActiveMs += radioOffMs - Math.max(mActiveSinceMs, mRadioOffMs);
+            mRadioOffMs = radioOffMs;
+            mActiveSinceMs = -1;
+        }
+        if (mBacklog == 0) {
+            mPeriodMs = Math.min(mPeriodMs * 2, MAX_PERIOD_MS);
+        } else if (mUnmetered) {
+            mPeriodMs = MIN_PERIOD_MS;
+        } else {
+            mPeriodMs = mBasePeriodMs;
+        }
+        Log.v(TAG, "onUploadsIdle() - backlog=" + mBacklog + ", next pass in " + mPeriodMs + " ms");
+        if (now - mStatsStartMs >= STATS_PERIOD_MS) {
+            Log.i(TAG, "onUploadsIdle() - " + getRadioStats());
+            mStatsStartMs = now;
+            mRadioActiveMs = 0;
+            mRadioWakeups = 0;
+            mPasses = 0;
+        }
+        if (mRunning) {
+            schedule(mPeriodMs);
+        }
+    }
+
+    public long getPeriodMs() {
+        return mPeriodMs;
+    }
+
+    public long getRadioActiveMs() {
+        return mRadioActiveMs;
+    }
+
+    public int getRadioWakeups() {
+        return mRadioWakeups;
+    }
+
+    public String getRadioStats() {
+        long elapsedMs = SystemClock.elapsedRealtime() - mStatsStartMs;
+        return "radio active " + mRadioActiveMs / 1000 + " s in " + mRadioWakeups + " wake-ups, " + mPasses
+                + " upload passes in the last " + elapsedMs / 1000 + " s (a fixed timer would have made "
+                + elapsedMs / mBasePeriodMs + " passes)";
+    }
+
+    private void schedule(long delayMs) {
+        mHandler.removeCallbacks(mTick);
+        mHandler.postDelayed(mTick, delayMs);
+    }
+}
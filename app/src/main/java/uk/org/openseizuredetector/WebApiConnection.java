@@ -35,6 +35,7 @@ import java.io.UnsupportedEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -48,6 +49,10 @@ public abstract class WebApiConnection {
     protected OsdUtil mUtil;
     private String TAG = "WebApiConnection";
     private String mAuthToken;
+    // Field of a datapoint JSONObject holding the key that identifies repeated attempts to upload it.
+    public static final String IDEMPOTENCY_KEY = "idempotencyKey";
+    // Maximum number of createDatapoint() requests in flight at once - Volley uses four network threads by default.
+    private int mMaxDatapointsInFlight = 4;
 
 
     public interface JSONObjectCallback {
@@ -62,6 +67,10 @@ public abstract class WebApiConnection {
         public void accept(Long retVal);
     }
 
+    public interface StringListCallback {
+        public void accept(List<String> retVals);
+    }
+
     public WebApiConnection(Context context) {
         mContext = context;
         mUtil = new OsdUtil(mContext, new Handler());
@@ -79,6 +88,14 @@ public abstract class WebApiConnection {
     public abstract boolean createEvent(final int osdAlarmState, final Date eventDate, final String type, final String subType,
                                         final String eventDesc, final String dataJSON, StringCallback callback);
 
+    // As createEvent() above, but idempotencyKey identifies repeated attempts to create the same event, so the server
+    // can return the existing event rather than creating a duplicate.   Backends that do not support it ignore the key.
+    public boolean createEvent(final int osdAlarmState, final Date eventDate, final String type, final String subType,
+                               final String eventDesc, final String dataJSON, final String idempotencyKey,
+                               StringCallback callback) {
+        return createEvent(osdAlarmState, eventDate, type, subType, eventDesc, dataJSON, callback);
+    }
+
     // calls function callback with a JSONObject representation of the event with id 'eventId'
     public abstract boolean getEvent(String eventId, JSONObjectCallback callback);
 
@@ -95,6 +112,75 @@ public abstract class WebApiConnection {
 
     public abstract boolean createDatapoint(JSONObject dataObj, String eventId, StringCallback callback);
 
+    /**
+     * Create several datapoints associated with remote event eventId.
+     * Calls callback with a list of results in the same order as dataObjs - each entry is what createDatapoint() would
+     * have passed to its callback, or null if that datapoint was not created.
+     * This default implementation uses one createDatapoint() request per datapoint, keeping up to
+     * mMaxDatapointsInFlight of them in flight at once; subclasses override it to use a bulk request.
+     *
+     * @return true if the upload was started, or false if it failed to start.
+     */
+    public boolean createDatapoints(List<JSONObject> dataObjs, String eventId, StringListCallback callback) {
+        Log.v(TAG, "createDatapoints() - uploading " + dataObjs.size() + " datapoints, up to "
+                + mMaxDatapointsInFlight + " at a time");
+        new DatapointUploader(dataObjs, eventId, callback).start();
+        return (true);
+    }
+
+    public void setMaxDatapointsInFlight(int maxDatapointsInFlight) {
+        mMaxDatapointsInFlight = Math.max(1, maxDatapointsInFlight);
+    }
+
+    /**
+     * Uploads a list of datapoints with one createDatapoint() request each, keeping up to mMaxDatapointsInFlight
+     * requests in flight.   Requests can complete in any order, so each result is stored at its datapoint's index.
+     * All of the callbacks are delivered on the main thread, so no locking is needed.
+     */
+    private class DatapointUploader {
+        private final List<JSONObject> mDataObjs;
+        private final String mEventId;
+        private final StringListCallback mCallback;
+        private final String[] mResults;
+        private int mNextIdx = 0;
+        private int mNCompleted = 0;
+
+        DatapointUploader(List<JSONObject> dataObjs, String eventId, StringListCallback callback) {
+            mDataObjs = dataObjs;
+            mEventId = eventId;
+            mCallback = callback;
+            mResults = new String[dataObjs.size()];
+        }
+
+        void start() {
+            if (mDataObjs.isEmpty()) {
+                mCallback.accept(new ArrayList<>());
+                return;
+            }
+            sendMore();
+        }
+
+        private void sendMore() {
+            while (mNextIdx < mDataObjs.size() && mNextIdx - mNCompleted < mMaxDatapointsInFlight) {
+                final int idx = mNextIdx++;
+                boolean started = createDatapoint(mDataObjs.get(idx), mEventId, (String retVal) -> onResult(idx, retVal));
+                if (!started) {
+                    onResult(idx, null);
+                }
+            }
+        }
+
+        private void onResult(int idx, String retVal) {
+            mResults[idx] = retVal;
+            mNCompleted++;
+            if (mNCompleted == mDataObjs.size()) {
+                mCallback.accept(Arrays.asList(mResults));
+            } else {
+                sendMore();
+            }
+        }
+    }
+
     /**
      * Retrieve the file containing the standard event types from the server.
      * Calls the specified callback function, passing a JSONObject as a parameter when the data has been received and parsed.
@@ -11,18 +11,24 @@ import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
 import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 
 // This class is intended to handle all interactions with the OSD WebAPI
@@ -33,10 +39,31 @@ public class WebApiConnection_osdapi extends WebApiConnection {
     private String mUrlBase = "https://osdApi.ddns.net";
     private String TAG = "WebApiConnection_osdapi";
     RequestQueue mQueue;
+    // Limits on the size of a bulk datapoint upload request (before compression).
+    static final int BULK_MAX_ITEMS = 50;
+    static final int BULK_MAX_BYTES = 512 * 1024;
+    // Set when the server replied that it does not have the bulk datapoints endpoint, so we go back to one request per
+    // datapoint - until BULK_RETRY_MS later, in case the server has been upgraded meanwhile.
+    static final long BULK_RETRY_MS = 3600 * 1000;
+    private long mBulkUnsupportedMs = 0;
+    // What the server has told us it supports - the compact datapoint format and gzip compressed requests are only
+    // used if /api/capabilities/ lists them, so older servers get the original format.  null until we have asked.
+    static final long CAPABILITIES_RETRY_MS = 3600 * 1000;
+    private Boolean mCompactFormatSupported = null;
+    private boolean mGzipSupported = false;
+    // Whether the server de-duplicates datapoints by an idempotencyKey field in the request body - the
+    // Idempotency-Key header is always sent, as servers that do not use it ignore it.
+    private boolean mIdempotencySupported = false;
+    private long mCapabilitiesCheckMs = 0;
 
     public WebApiConnection_osdapi(Context context) {
         super(context);
-        mQueue = Volley.newRequestQueue(context);
+        mQueue = OsdHttpClient.newRequestQueue(context);
+    }
+
+    public WebApiConnection_osdapi(Context context, String urlBase) {
+        this(context);
+        mUrlBase = urlBase;
     }
 
     public void close() {
@@ -129,6 +156,13 @@ public class WebApiConnection_osdapi extends WebApiConnection {
     // Create a new event in the remote database, based on the provided parameters.
     public boolean createEvent(final int osdAlarmState, final Date eventDate, final String type, final String subType,
                                final String eventDesc, final String dataJSON, StringCallback callback) {
+        return createEvent(osdAlarmState, eventDate, type, subType, eventDesc, dataJSON, null, callback);
+    }
+
+    @Override
+    public boolean createEvent(final int osdAlarmState, final Date eventDate, final String type, final String subType,
+                               final String eventDesc, final String dataJSON, final String idempotencyKey,
+                               StringCallback callback) {
         Log.v(TAG, "createEvent()");
         String urlStr = mUrlBase + "/api/events/";
         Log.v(TAG, "urlStr=" + urlStr);
@@ -200,6 +234,9 @@ public class WebApiConnection_osdapi extends WebApiConnection {
                 Map<String, String> params = new HashMap<String, String>();
                 params.put("Content-Type", "application/json; charset=UTF-8");
                 params.put("Authorization", "Token " + getStoredToken());
+                if (idempotencyKey != null) {
+                    params.put("Idempotency-Key", idempotencyKey);
+                }
                 return params;
             }
 
@@ -444,18 +481,17 @@ public class WebApiConnection_osdapi extends WebApiConnection {
             return (false);
         }
 
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        JSONObject jsonObject = new JSONObject();
+        final String idempotencyKey = dataObj.optString(IDEMPOTENCY_KEY, null);
+        final String dataStr = makeDatapointJson(dataObj, eventId).toString();
+        Log.v(TAG, "createDatapoint - dataStr=" + dataStr);
+        final boolean useGzip = mGzipSupported;
+        final byte[] body;
         try {
-            //jsonObject.put("userId", -1);
-            jsonObject.put("eventId", String.valueOf(eventId));
-            jsonObject.put("dataTime", dataObj.getString("dataTime"));
-            jsonObject.put("dataJSON", dataObj.toString());
-        } catch (JSONException e) {
-            Log.e(TAG, "Error generating event JSON string");
+            body = useGzip ? gzip(dataStr) : dataStr.getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.e(TAG, "createDatapoint() - Error compressing request: " + e.toString());
+            return (false);
         }
-        final String dataStr = jsonObject.toString();
-        Log.v(TAG, "createDatapoint - dataStr=" + dataStr);
 
 
         StringRequest req = new StringRequest(Request.Method.POST, urlStr,
@@ -496,23 +532,276 @@ public class WebApiConnection_osdapi extends WebApiConnection {
                 Map<String, String> params = new HashMap<String, String>();
                 params.put("Content-Type", "application/json; charset=UTF-8");
                 params.put("Authorization", "Token " + getStoredToken());
+                if (idempotencyKey != null) {
+                    params.put("Idempotency-Key", idempotencyKey);
+                }
+                if (useGzip) {
+                    params.put("Content-Encoding", "gzip");
+                }
                 return params;
             }
 
             @Override
             public byte[] getBody() throws AuthFailureError {
-                try {
-                    return dataStr == null ? null : dataStr.getBytes("utf-8");
-                } catch (UnsupportedEncodingException uee) {
-                    VolleyLog.wtf("Unsupported Encoding while trying to get the bytes of %s using %s", dataStr, "utf-8");
-                    return null;
+                return body;
+            }
+        };
+
+        mQueue.add(req);
+        return (true);
+
+    }
+
+    private JSONObject makeDatapointJson(JSONObject dataObj, String eventId) {
+        Object idempotencyKey = mIdempotencySupported ? dataObj.opt(IDEMPOTENCY_KEY) : null;
+        if (Boolean.TRUE.equals(mCompactFormatSupported)) {
+            try {
+                return DatapointCodec.makeCompactDatapointJson(dataObj, eventId, idempotencyKey);
+            } catch (JSONException e) {
+                Log.e(TAG, "makeDatapointJson() - Error generating compact datapoint - using original format: " + e.toString());
+            }
+        }
+        JSONObject jsonObject = new JSONObject();
+        try {
+            //jsonObject.put("userId", -1);
+            jsonObject.put("eventId", String.valueOf(eventId));
+            jsonObject.put("dataTime", dataObj.getString("dataTime"));
+            // The idempotency key is sent alongside the datapoint rather than as part of its data, so send a copy of
+            // the datapoint without it - the caller's object is not changed.
+            ArrayList<String> names = new ArrayList<>();
+            Iterator<String> keys = dataObj.keys();
+            while (keys.hasNext()) {
+                String name = keys.next();
+                if (!name.equals(IDEMPOTENCY_KEY)) names.add(name);
+            }
+            jsonObject.put("dataJSON", new JSONObject(dataObj, names.toArray(new String[0])).toString());
+            if (idempotencyKey != null) {
+                jsonObject.put(IDEMPOTENCY_KEY, idempotencyKey);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error generating event JSON string");
+        }
+        return jsonObject;
+    }
+
+    /**
+     * Create several datapoints using the bulk datapoints endpoint.   The datapoints are split into chunks of at most
+     * BULK_MAX_ITEMS datapoints or BULK_MAX_BYTES bytes, and each chunk is sent as a single POST of a JSON array
+     * (gzip compressed if the server accepts that).   The server replies with an array of the created datapoints in
+     * the same order.   If the server does not support the bulk endpoint we fall back to uploading the datapoints one
+     * at a time, and try the bulk endpoint again after BULK_RETRY_MS.
+     */
+    @Override
+    public boolean createDatapoints(List<JSONObject> dataObjs, String eventId, StringListCallback callback) {
+        Log.v(TAG, "createDatapoints() - " + dataObjs.size() + " datapoints");
+        if (!isLoggedIn()) {
+            Log.v(TAG, "not logged in - doing nothing");
+            return (false);
+        }
+        if (mCompactFormatSupported == null
+                && System.currentTimeMillis() - mCapabilitiesCheckMs > CAPABILITIES_RETRY_MS) {
+            // Find out which upload formats the server supports first.   If the upload cannot be started after all
+            // (e.g. we have been logged out meanwhile), the caller must still be told that nothing was created.
+            return checkUploadCapabilities(() -> {
+                if (!createDatapoints(dataObjs, eventId, callback)) {
+                    callback.accept(new ArrayList<>());
                 }
+            });
+        }
+        if (mBulkUnsupportedMs != 0 && System.currentTimeMillis() - mBulkUnsupportedMs < BULK_RETRY_MS) {
+            return super.createDatapoints(dataObjs, eventId, callback);
+        }
+        ArrayList<JSONObject> items = new ArrayList<>(dataObjs.size());
+        for (JSONObject dataObj : dataObjs) {
+            items.add(makeDatapointJson(dataObj, eventId));
+        }
+        List<JSONArray> chunks = makeChunks(items, BULK_MAX_ITEMS, BULK_MAX_BYTES);
+        Log.v(TAG, "createDatapoints() - sending " + chunks.size() + " bulk requests");
+        createNextDatapointChunk(chunks, dataObjs, eventId, new ArrayList<>(dataObjs.size()), callback);
+        return (true);
+    }
+
+    private void createNextDatapointChunk(List<JSONArray> chunks, List<JSONObject> dataObjs, String eventId,
+                                          ArrayList<String> results, StringListCallback callback) {
+        if (results.size() == dataObjs.size()) {
+            callback.accept(results);
+            return;
+        }
+        String urlStr = mUrlBase + "/api/datapoints/bulk/";
+        JSONArray chunk = chunks.remove(0);
+        // Only compress the request if the server has said it accepts gzip.
+        final boolean useGzip = mGzipSupported;
+        final byte[] body;
+        try {
+            body = useGzip ? gzip(chunk.toString()) : chunk.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.e(TAG, "createNextDatapointChunk() - Error compressing request: " + e.toString());
+            while (results.size() < dataObjs.size()) results.add(null);
+            callback.accept(results);
+            return;
+        }
+        Log.v(TAG, "createNextDatapointChunk() - " + chunk.length() + " datapoints, " + body.length + " bytes");
+
+        StringRequest req = new StringRequest(Request.Method.POST, urlStr,
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        mServerConnectionOk = true;
+                        JSONArray createdArr = null;
+                        try {
+                            createdArr = new JSONArray(response);
+                        } catch (JSONException e) {
+                            Log.e(TAG, "createNextDatapointChunk() - Error parsing response: " + response);
+                        }
+                        // Map the results back to the datapoints in the chunk by position.
+                        for (int i = 0; i < chunk.length(); i++) {
+                            JSONObject created = (createdArr != null) ? createdArr.optJSONObject(i) : null;
+                            results.add(created != null ? created.toString() : null);
+                        }
+                        createNextDatapointChunk(chunks, dataObjs, eventId, results, callback);
+                    }
+                },
+                new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        int statusCode = (error != null && error.networkResponse != null) ? error.networkResponse.statusCode : -1;
+                        Log.e(TAG, "Create Datapoints Error: status=" + statusCode + ", " + error);
+                        if (statusCode == 404 || statusCode == 405) {
+                            // An older server without the bulk endpoint - upload the rest one at a time.
+                            Log.w(TAG, "createNextDatapointChunk() - bulk upload not supported - uploading datapoints individually");
+                            mBulkUnsupportedMs = System.currentTimeMillis();
+                            List<JSONObject> remaining = dataObjs.subList(results.size(), dataObjs.size());
+                            WebApiConnection_osdapi.super.createDatapoints(remaining, eventId, (List<String> retVals) -> {
+                                results.addAll(retVals);
+                                callback.accept(results);
+                            });
+                            return;
+                        }
+                        mServerConnectionOk = false;
+                        while (results.size() < dataObjs.size()) results.add(null);
+                        callback.accept(results);
+                    }
+                }) {
+            @Override
+            public String getBodyContentType() {
+                return "application/json; charset=UTF-8";
+            }
+
+            @Override
+            public Map<String, String> getHeaders() throws AuthFailureError {
+                Map<String, String> params = new HashMap<String, String>();
+                if (useGzip) {
+                    params.put("Content-Encoding", "gzip");
+                }
+                params.put("Authorization", "Token " + getStoredToken());
+                return params;
+            }
+
+            @Override
+            public byte[] getBody() throws AuthFailureError {
+                return body;
+            }
+        };
+
+        mQueue.add(req);
+    }
+
+    /**
+     * Ask the server which datapoint formats and request content encodings it accepts, then call onDone (whatever the
+     * outcome).   The reply is expected to look like
+     * {"datapointFormats": ["json", "osd-compact-1"], "contentEncodings": ["gzip"], "idempotencyKeys": true}.
+     * A server without the capabilities endpoint only understands the original format, so a 404 reply means we never
+     * use the compact format;  if the request fails for another reason we use the original format and ask again
+     * after CAPABILITIES_RETRY_MS.
+     */
+    public boolean checkUploadCapabilities(Runnable onDone) {
+        Log.v(TAG, "checkUploadCapabilities()");
+        String urlStr = mUrlBase + "/api/capabilities/";
+        mCapabilitiesCheckMs = System.currentTimeMillis();
+
+        StringRequest req = new StringRequest(Request.Method.GET, urlStr,
+                new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        Log.v(TAG, "checkUploadCapabilities.onResponse(): Response is: " + response);
+                        mServerConnectionOk = true;
+                        try {
+                            JSONObject capsObj = new JSONObject(response);
+                            mCompactFormatSupported = jsonArrayContains(capsObj.optJSONArray("datapointFormats"),
+                                    DatapointCodec.COMPACT_FORMAT);
+                            mGzipSupported = jsonArrayContains(capsObj.optJSONArray("contentEncodings"), "gzip");
+                            mIdempotencySupported = capsObj.optBoolean("idempotencyKeys", false);
+                        } catch (JSONException e) {
+                            Log.e(TAG, "checkUploadCapabilities.onResponse(): Error: " + e.getMessage());
+                            mCompactFormatSupported = false;
+                            mGzipSupported = false;
+                            mIdempotencySupported = false;
+                        }
+                        Log.i(TAG, "checkUploadCapabilities() - compact format supported=" + mCompactFormatSupported
+                                + ", gzip supported=" + mGzipSupported + ", idempotency keys=" + mIdempotencySupported);
+                        onDone.run();
+                    }
+                },
+                new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        int statusCode = (error != null && error.networkResponse != null) ? error.networkResponse.statusCode : -1;
+                        Log.w(TAG, "checkUploadCapabilities.onErrorResponse() - status=" + statusCode);
+                        if (statusCode == 404) {
+                            mCompactFormatSupported = false;
+                            mGzipSupported = false;
+                            mIdempotencySupported = false;
+                        }
+                        onDone.run();
+                    }
+                }) {
+            @Override
+            public Map<String, String> getHeaders() throws AuthFailureError {
+                Map<String, String> params = new HashMap<String, String>();
+                params.put("Authorization", "Token " + getStoredToken());
+                return params;
             }
         };
 
         mQueue.add(req);
         return (true);
+    }
+
+    private static boolean jsonArrayContains(JSONArray arr, String value) {
+        if (arr == null) return false;
+        for (int i = 0; i < arr.length(); i++) {
+            if (value.equals(arr.optString(i))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Split items into JSON arrays of at most maxItems items and (unless a single item is bigger) maxBytes bytes.
+     */
+    static List<JSONArray> makeChunks(List<JSONObject> items, int maxItems, int maxBytes) {
+        ArrayList<JSONArray> chunks = new ArrayList<>();
+        JSONArray chunk = new JSONArray();
+        int chunkBytes = 2;  // The enclosing [ ]
+        for (JSONObject item : items) {
+            int itemBytes = item.toString().getBytes(StandardCharsets.UTF_8).length + 1;
+            if (chunk.length() > 0 && (chunk.length() >= maxItems || chunkBytes + itemBytes > maxBytes)) {
+                chunks.add(chunk);
+                chunk = new JSONArray();
+                chunkBytes = 2;
+            }
+            chunk.put(item);
+            chunkBytes += itemBytes;
+        }
+        if (chunk.length() > 0) chunks.add(chunk);
+        return chunks;
+    }
 
+    static byte[] gzip(String str) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(bos);
+        gz.write(str.getBytes(StandardCharsets.UTF_8));
+        gz.close();
+        return bos.toByteArray();
     }
 
     /**
@@ -0,0 +1,253 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * WebAssetCache holds the static files of the web interface (the app's assets/www folder) in memory for SdWebServer,
+ * so that a page load does not re-read jquery.mobile etc. from the asset manager and re-send them in full each time.
+ * Each Asset is read once and keeps its bytes, a gzipped copy (for text types, made when the asset is first loaded)
+ * and a strong ETag made from a hash of its content.   The most recently used assets are kept, up to MAX_CACHE_BYTES.
+ */
+public class WebAssetCache {
+    private static final String TAG = "WebAssetCache";
+    static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+    // Small files are not worth compressing - the gzip header and the Content-Encoding header use most of the saving.
+    private static final int MIN_GZIP_SIZE = 256;
+    // Third party libraries only change when the app is upgraded, so browsers may keep them for a week without asking.
+    // The app's own pages and scripts (osd_*) must be re-validated so that a new version of the app is picked up.
+    static final String CACHE_CONTROL_LIBRARY = "public, max-age=604800";
+    static final String CACHE_CONTROL_REVALIDATE = "no-cache";
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+
+    static {
+        MIME_TYPES.put("html", "text/html; charset=utf-8");
+        MIME_TYPES.put("htm", "text/html; charset=utf-8");
+        MIME_TYPES.put("css", "text/css; charset=utf-8");
+        MIME_TYPES.put("js", "application/javascript; charset=utf-8");
+        MIME_TYPES.put("json", "application/json; charset=utf-8");
+        MIME_TYPES.put("map", "application/json; charset=utf-8");
+        MIME_TYPES.put("md", "text/markdown; charset=utf-8");
+        MIME_TYPES.put("txt", "text/plain; charset=utf-8");
+        MIME_TYPES.put("csv", "text/csv; charset=utf-8");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("wav", "audio/wav");
+    }
+
+    private final AssetManager mAssetManager;
+    private final String mRoot;
+    private final LinkedHashMap<String, Asset> mCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long mCacheBytes = 0;
+    private int mLoadCount = 0;
+
+    public static class Asset {
+        public final String path;
+        public final String mimeType;
+        public final String cacheControl;
+        public final byte[] data;
+        // null if the asset is not worth compressing.
+        public final byte[] gzipData;
+        public final String etag;
+        public final String gzipEtag;
+
+        Asset(String path, byte[] data) {
+            this.path = path;
+            this.data = data;
+            mimeType = getMimeType(path);
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            cacheControl = (mimeType.startsWith("text/html") || name.startsWith("osd"))
+                    ? CACHE_CONTROL_REVALIDATE : CACHE_CONTROL_LIBRARY;
+            byte[] gz = isCompressible(mimeType) && data.length >= MIN_GZIP_SIZE ? gzip(data) : null;
+            gzipData = (gz != null && gz.length < data.length) ? gz : null;
+            String hash = hash(data);
+            etag = "\"" + hash + "\"";
+            // A strong ETag identifies the exact bytes sent, so the gzipped representation needs its own.
+            gzipEtag = "\"" + hash + "-gz\"";
+        }
+
+        int size() {
+            return data.length + (gzipData != null ? gzipData.length : 0);
+        }
+
+        /**
+         * Return true if ifNoneMatch (the value of a request's If-None-Match header) matches either representation
+         * of this asset.
+         */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) return false;
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag) || tag.equals(gzipEtag)) return true;
+            }
+            return false;
+        }
+    }
+
+    public WebAssetCache(AssetManager assetManager, String root) {
+        mAssetManager = assetManager;
+        mRoot = root;
+    }
+
+    /**
+     * Return the asset at path (relative to the root folder, starting with /), reading it from the asset manager if it
+     * is not already cached.
+     *
+     * @throws IOException if the asset does not exist.
+     */
+    public Asset get(String path) throws IOException {
+        synchronized (this) {
+            Asset asset = mCache.get(path);
+            if (asset != null) return asset;
+        }
+        // Read (and compress) outside the lock so that other requests are not held up - if two requests load the
+        // same asset at once, one copy is kept.
+        Asset asset = new Asset(path, readAsset(mRoot + path));
+        synchronized (this) {
+            mLoadCount++;
+            Asset existing = mCache.get(path);
+            if (existing != null) return existing;
+            if (asset.size() <= MAX_CACHE_BYTES) {
+                mCache.put(path, asset);
+                mCacheBytes += asset.size();
+                Iterator<Asset> it = mCache.values().iterator();
+                while (mCacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+                    Asset eldest = it.next();
+                    if (eldest == asset) continue;
+                    mCacheBytes -= eldest.size();
+                    it.remove();
+                }
+            }
+            Log.v(TAG, "get(" + path + ") - loaded " + asset.data.length + " bytes (gzip "
+                    + (asset.gzipData != null ? asset.gzipData.length : "-") + "), cache " + mCacheBytes + " bytes");
+        }
+        return asset;
+    }
+
+    /**
+     * Number of times an asset has been read from the asset manager.
+     */
+    public synchronized int getLoadCount() {
+        return mLoadCount;
+    }
+
+    public synchronized long getCacheBytes() {
+        return mCacheBytes;
+    }
+
+    /**
+     * Return true if acceptEncoding (the value of a request's Accept-Encoding header) allows a gzipped response.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim().replace(" ", "");
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static String getMimeType(String path) {
+        String ext = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        String mimeType = MIME_TYPES.get(ext);
+        return (mimeType != null) ? mimeType : "application/octet-stream";
+    }
+
+    private static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.startsWith("application/javascript")
+                || mimeType.startsWith("application/json") || mimeType.equals("image/svg+xml")
+                || mimeType.equals("image/x-icon");
+    }
+
+    private byte[] readAsset(String fname) throws IOException {
+        InputStream is = mAssetManager.open(fname, AssetManager.ACCESS_STREAMING);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[16 * 1024];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 3);
+            GZIPOutputStream gos = new GZIPOutputStream(bos);
+            gos.write(data);
+            gos.close();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "gzip() - " + e.toString());
+            return null;
+        }
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1, but fall back to something that still changes with the content.
+            return Integer.toHexString(Arrays.hashCode(data)) + "-" + data.length;
+        }
+    }
+}
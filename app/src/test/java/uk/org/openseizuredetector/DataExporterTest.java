@@ -0,0 +1,200 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports datapoints (one every 5 seconds) to CSV and columnar files with DataExporter, and checks the number of rows
+ * in each and the columnar file's footer, and that an export carries on, and reports to the new listener, when its
+ * listener is replaced (as ExportDataActivity does when it is recreated).   reportExportRate() (a PerformanceTest)
+ * exports several days of data and prints the export rate and file sizes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class DataExporterTest {
+    // More than one row group.
+    private static final int N_DATAPOINTS = 2 * DataExporter.ROW_GROUP_SIZE + 100;
+    private static final int N_BENCH_DAYS = 3;
+    private LogManager mLm;
+    private SQLiteDatabase mDb;
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = new LogManager.OsdDbHelper(ApplicationProvider.getApplicationContext()).getWritableDatabase();
+        mLm = new LogManager(ApplicationProvider.getApplicationContext(), false, false, null,
+                120, 60, false, 1);
+        mDb.execSQL("DELETE FROM datapoints");
+        mDir = Files.createTempDirectory("osdexport").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        LogManager.close();
+    }
+
+    private void insertDatapoints(int n) {
+        SdData sdData = new SdData();
+        sdData.mHR = 72.5;
+        sdData.specPower = 1234;
+        String dataJson = SdDataSnapshot.of(sdData).getDatapointJson(false);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        Calendar cal = Calendar.getInstance();
+        cal.set(2022, 0, 1, 0, 0, 0);
+        SQLiteStatement stmt = mDb.compileStatement(
+                "INSERT INTO datapoints(dataTime, status, dataJSON, uploaded) VALUES(?, 0, ?, 0)");
+        mDb.beginTransaction();
+        for (int i = 0; i < n; i++) {
+            stmt.bindString(1, dateFormat.format(cal.getTime()));
+            stmt.bindString(2, dataJson);
+            stmt.executeInsert();
+            cal.add(Calendar.SECOND, 5);
+        }
+        mDb.setTransactionSuccessful();
+        mDb.endTransaction();
+    }
+
+    // Export nDatapoints datapoints in both formats, and check both files.
+    private DataExporter.Result exportAndCheck(int nDatapoints) throws Exception {
+        insertDatapoints(nDatapoints);
+        DataExporter exporter = new DataExporter(Runnable::run);
+        CountDownLatch done = new CountDownLatch(1);
+        DataExporter.Result[] result = new DataExporter.Result[1];
+        Exception[] error = new Exception[1];
+        exporter.export(mLm, "2022-01-01 00:00:00", "2022-02-01 00:00:00", mDir, "test",
+                DataExporter.FORMAT_CSV | DataExporter.FORMAT_COLUMNAR, new DataExporter.Listener() {
+                    @Override
+                    public void onProgress(double fraction, long nRows) {
+                    }
+
+                    @Override
+                    public void onFinished(DataExporter.Result r, Exception e) {
+                        result[0] = r;
+                        error[0] = e;
+                        done.countDown();
+                    }
+                });
+        done.await(30, TimeUnit.SECONDS);
+        exporter.shutdown();
+        assertNull(error[0]);
+        assertEquals(nDatapoints, result[0].nRows);
+
+        int nLines = 0;
+        try (BufferedReader r = new BufferedReader(new FileReader(result[0].csvFile))) {
+            String header = "id,dataTime,status,alarmState,hr,o2Sat";
+            assertEquals(header, r.readLine().substring(0, header.length()));
+            String line;
+            while ((line = r.readLine()) != null) {
+                // hr is a double, so it is not truncated.
+                assertEquals("72.5", line.split(",")[4]);
+                nLines++;
+            }
+        }
+        assertEquals(nDatapoints, nLines);
+
+        try (RandomAccessFile f = new RandomAccessFile(result[0].columnarFile, "r")) {
+            byte[] magic = new byte[4];
+            f.readFully(magic);
+            assertArrayEquals(DataExporter.MAGIC, magic);
+            f.seek(f.length() - 12);
+            int nGroups = f.readInt();
+            int footerLength = f.readInt();
+            f.readFully(magic);
+            assertArrayEquals(DataExporter.MAGIC, magic);
+            f.seek(f.length() - 8 - footerLength);
+            long nRows = 0;
+            for (int i = 0; i < nGroups; i++) {
+                f.readLong();
+                nRows += f.readInt();
+                f.readLong();
+                f.readLong();
+            }
+            assertEquals(nDatapoints, nRows);
+        }
+        return result[0];
+    }
+
+    @Test
+    public void exportCsvAndColumnar() throws Exception {
+        exportAndCheck(N_DATAPOINTS);
+    }
+
+    @Test
+    public void exportCarriesOnWhenListenerIsReplaced() throws Exception {
+        insertDatapoints(N_DATAPOINTS);
+        LinkedBlockingQueue<Runnable> callbacks = new LinkedBlockingQueue<>();
+        DataExporter exporter = new DataExporter(callbacks::add);
+        boolean[] oldCalled = new boolean[1];
+        DataExporter.Result[] result = new DataExporter.Result[1];
+        exporter.export(mLm, "2022-01-01 00:00:00", "2022-02-01 00:00:00", mDir, "test",
+                DataExporter.FORMAT_CSV, new DataExporter.Listener() {
+                    @Override
+                    public void onProgress(double fraction, long nRows) {
+                        oldCalled[0] = true;
+                    }
+
+                    @Override
+                    public void onFinished(DataExporter.Result r, Exception e) {
+                        oldCalled[0] = true;
+                    }
+                });
+        exporter.setListener(null);
+        exporter.setListener(new DataExporter.Listener() {
+            @Override
+            public void onProgress(double fraction, long nRows) {
+            }
+
+            @Override
+            public void onFinished(DataExporter.Result r, Exception e) {
+                assertNull(e);
+                result[0] = r;
+            }
+        });
+        while (result[0] == null) {
+            Runnable callback = callbacks.poll(30, TimeUnit.SECONDS);
+            if (callback == null) break;
+            callback.run();
+        }
+        exporter.shutdown();
+        assertFalse(oldCalled[0]);
+        assertFalse(exporter.isExporting());
+        assertEquals(N_DATAPOINTS, result[0].nRows);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportExportRate() throws Exception {
+        DataExporter.Result result = exportAndCheck(N_BENCH_DAYS * 24 * 3600 / 5);
+        System.out.printf("%d datapoints in %d ms (%.0f rows/s), csv %d kB, columnar %d kB%n", result.nRows,
+                result.elapsedMs, result.getRowsPerSec(), result.csvFile.length() / 1024,
+                result.columnarFile.length() / 1024);
+    }
+}
@@ -0,0 +1,121 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+import android.text.format.Time;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Tests the compact datapoint upload format.   reportBytesPerEvent() (a PerformanceTest) prints the number of bytes
+ * uploaded for a typical event in the original and compact formats, with and without gzip.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class DatapointCodecTest {
+    private static final int N_DATAPOINTS = 24;   // A 120 second event.
+
+    // A datapoints table row for 5 seconds of simulated wrist movement (in milli-g) with sensor noise.
+    private JSONObject makeDatapoint(int id, Random r) throws Exception {
+        SdData sdData = new SdData();
+        sdData.dataTime = new Time(Time.getCurrentTimezone());
+        sdData.dataTime.setToNow();
+        for (int i = 0; i < sdData.rawData.length; i++) {
+            double t = (id * sdData.rawData.length + i) / 100.0;
+            double x = 150 * Math.sin(2 * Math.PI * 1.3 * t) + r.nextGaussian() * 8;
+            double y = 80 * Math.cos(2 * Math.PI * 0.7 * t) + r.nextGaussian() * 8;
+            double z = 1000 + 40 * Math.sin(2 * Math.PI * 2.1 * t) + r.nextGaussian() * 8;
+            sdData.rawData3D[3 * i] = x;
+            sdData.rawData3D[3 * i + 1] = y;
+            sdData.rawData3D[3 * i + 2] = z;
+            sdData.rawData[i] = Math.sqrt(x * x + y * y + z * z);
+        }
+        JSONObject dp = new JSONObject();
+        dp.put("id", id);
+        dp.put("dataTime", "2022-01-01 10:00:00");
+        dp.put("status", 0);
+        dp.put("dataJSON", sdData.toDatapointJSON());
+        return dp;
+    }
+
+    @Test
+    public void testInt16DeltaRoundTrip() {
+        JSONArray arr = new JSONArray();
+        double[] expected = {0, 1003, -32768, 32767, -1, 12, 40000, -40000, 999.6};
+        for (double v : expected) arr.put(v);
+        double[] decoded = DatapointCodec.decodeInt16Delta(DatapointCodec.encodeInt16Delta(arr));
+        // Values are rounded, and clamped to the 16 bit range.
+        assertArrayEquals(new double[]{0, 1003, -32768, 32767, -1, 12, 32767, -32768, 1000}, decoded, 0);
+    }
+
+    @Test
+    public void testCompactDatapointKeepsData() throws Exception {
+        JSONObject dp = makeDatapoint(1, new Random(1));
+        dp.put(WebApiConnection.IDEMPOTENCY_KEY, "abc");
+        JSONObject item = DatapointCodec.makeCompactDatapointJson(dp, "42", "abc");
+        assertEquals(DatapointCodec.COMPACT_FORMAT, item.getString("dataFormat"));
+        assertEquals("abc", item.getString(WebApiConnection.IDEMPOTENCY_KEY));
+        JSONObject data = item.getJSONObject("data").getJSONObject("dataJSON");
+        JSONObject orig = new JSONObject(dp.getString("dataJSON"));
+        assertEquals(orig.getInt("alarmState"), data.getInt("alarmState"));
+        JSONObject raw3D = data.getJSONObject("rawData3D");
+        assertEquals(DatapointCodec.INT16_DELTA, raw3D.getString("enc"));
+        double[] decoded = DatapointCodec.decodeInt16Delta(raw3D.getString("b64"));
+        JSONArray origArr = orig.getJSONArray("rawData3D");
+        assertEquals(origArr.length(), decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            assertEquals(origArr.getDouble(i), decoded[i], 0.5);
+        }
+        // The original datapoint is not changed.
+        assertTrue(dp.has(WebApiConnection.IDEMPOTENCY_KEY));
+    }
+
+    // The bytes uploaded for an event in the original format, the same gzipped, the compact format and the same gzipped.
+    private int[] measureBytesPerEvent() throws Exception {
+        Random r = new Random(1);
+        JSONArray original = new JSONArray();
+        JSONArray compact = new JSONArray();
+        for (int i = 0; i < N_DATAPOINTS; i++) {
+            JSONObject dp = makeDatapoint(i, r);
+            // The original format, as produced by WebApiConnection_osdapi for servers without the compact format.
+            JSONObject item = new JSONObject();
+            item.put("eventId", "42");
+            item.put("dataTime", dp.getString("dataTime"));
+            item.put("dataJSON", dp.toString());
+            original.put(item);
+            compact.put(DatapointCodec.makeCompactDatapointJson(dp, "42", null));
+        }
+        int originalBytes = original.toString().getBytes(StandardCharsets.UTF_8).length;
+        int originalGzipBytes = WebApiConnection_osdapi.gzip(original.toString()).length;
+        int compactBytes = compact.toString().getBytes(StandardCharsets.UTF_8).length;
+        int compactGzipBytes = WebApiConnection_osdapi.gzip(compact.toString()).length;
+        return new int[]{originalBytes, originalGzipBytes, compactBytes, compactGzipBytes};
+    }
+
+    @Test
+    public void testCompactFormatIsSmaller() throws Exception {
+        int[] bytes = measureBytesPerEvent();
+        assertTrue(bytes[2] < bytes[0]);
+        assertTrue(bytes[3] < bytes[1]);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportBytesPerEvent() throws Exception {
+        int[] bytes = measureBytesPerEvent();
+        System.out.printf("bytes per %d datapoint event: original %d, original+gzip %d, compact %d, compact+gzip %d%n",
+                N_DATAPOINTS, bytes[0], bytes[1], bytes[2], bytes[3]);
+    }
+}
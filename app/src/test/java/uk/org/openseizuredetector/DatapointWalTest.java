@@ -0,0 +1,165 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Build;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Tests for the datapoint write ahead log, plus a benchmark (a PerformanceTest) of the per-datapoint append overhead
+ * and the time taken to recover a full log on start-up.   Timings are printed, not asserted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class DatapointWalTest {
+    private static final int MAX_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private byte[] payload(int i) {
+        return ("datapoint " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testUncommittedRecordsSurviveReopen() throws Exception {
+        File f = mTmp.newFile("dp.wal");
+        DatapointWal wal = new DatapointWal(f, MAX_SIZE);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, wal.append(payload(i)));
+        }
+        wal.markCommitted(3);
+        wal.close();
+
+        // Simulate a restart - records 4 and 5 never reached the database.
+        wal = new DatapointWal(f, MAX_SIZE);
+        assertEquals(3, wal.getCommittedSeq());
+        assertEquals(5, wal.getLastSeq());
+        List<DatapointWal.Record> recs = wal.readUncommitted();
+        assertEquals(2, recs.size());
+        assertEquals(4, recs.get(0).seq);
+        assertArrayEquals(payload(5), recs.get(1).payload);
+
+        // Sequence numbers carry on after the replayed records.
+        for (int i = 6; i <= 12; i++) {
+            assertEquals(i, wal.append(payload(i)));
+        }
+        wal.markCommitted(12);
+        assertEquals(0, wal.readUncommitted().size());
+        wal.close();
+    }
+
+    @Test
+    public void testTornWriteIsIgnored() throws Exception {
+        File f = mTmp.newFile("torn.wal");
+        DatapointWal wal = new DatapointWal(f, MAX_SIZE);
+        wal.append(payload(1));
+        wal.append(payload(2));
+        wal.close();
+
+        // Corrupt the payload of record 2 as if the process died part way through writing it.
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(64 + 16 + payload(1).length + 16);
+        raf.write('X');
+        raf.close();
+
+        wal = new DatapointWal(f, MAX_SIZE);
+        List<DatapointWal.Record> recs = wal.readUncommitted();
+        assertEquals(1, recs.size());
+        assertEquals(1, recs.get(0).seq);
+        wal.close();
+    }
+
+    @Test
+    public void testRecordsBiggerThanTheOldSlotSize() throws Exception {
+        File f = mTmp.newFile("big.wal");
+        DatapointWal wal = new DatapointWal(f, MAX_SIZE);
+        // A datapoint carrying its raw data as JSON, as it does when the raw sample journal is not available.
+        byte[] big = new byte[60000];
+        for (int i = 0; i < big.length; i++) big[i] = (byte) i;
+        wal.append(payload(1));
+        wal.append(big);
+        wal.append(payload(3));
+        wal.close();
+
+        wal = new DatapointWal(f, MAX_SIZE);
+        List<DatapointWal.Record> recs = wal.readUncommitted();
+        assertEquals(3, recs.size());
+        assertArrayEquals(big, recs.get(1).payload);
+        assertArrayEquals(payload(3), recs.get(2).payload);
+        wal.close();
+    }
+
+    @Test
+    public void testLogIsReusedOnceCommitted() throws Exception {
+        File f = mTmp.newFile("reuse.wal");
+        DatapointWal wal = new DatapointWal(f, MAX_SIZE);
+        byte[] p = new byte[100000];
+        wal.append(p);
+        wal.append(p);
+        // The database has fallen too far behind - the record is refused rather than overwriting one.
+        try {
+            wal.append(p);
+            fail("expected the log to be full");
+        } catch (IOException e) {
+            // expected
+        }
+        wal.markCommitted(2);
+        for (int i = 3; i <= 20; i++) {
+            assertEquals(i, wal.append(p));
+            wal.markCommitted(i);
+        }
+        assertTrue(f.length() <= MAX_SIZE);
+        // A short record followed by what is left of a longer, committed one.
+        assertEquals(21, wal.append(payload(21)));
+        wal.close();
+
+        wal = new DatapointWal(f, MAX_SIZE);
+        List<DatapointWal.Record> recs = wal.readUncommitted();
+        assertEquals(1, recs.size());
+        assertArrayEquals(payload(21), recs.get(0).payload);
+        assertEquals(22, wal.append(payload(22)));
+        wal.close();
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void benchmarkAppendAndRecovery() throws Exception {
+        File f = mTmp.newFile("bench.wal");
+        DatapointWal wal = new DatapointWal(f, 4 * 1024 * 1024);
+        // About the size of a datapoint record with 500 + 1500 raw values stored as floats.
+        byte[] p = new byte[10000];
+        int n = 200;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            wal.append(p);
+        }
+        long t1 = System.nanoTime();
+        wal.close();
+
+        long t2 = System.nanoTime();
+        wal = new DatapointWal(f, 4 * 1024 * 1024);
+        List<DatapointWal.Record> recs = wal.readUncommitted();
+        long t3 = System.nanoTime();
+        assertEquals(n, recs.size());
+        System.out.printf("append (fsync): %.3f ms/datapoint; recover %d records: %.2f ms%n",
+                (t1 - t0) / 1e6 / n, recs.size(), (t3 - t2) / 1e6);
+        wal.close();
+    }
+}
@@ -0,0 +1,67 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DbFutureTest {
+    // Run callbacks immediately on the completing thread.
+    private final Executor mDirect = Runnable::run;
+
+    @Test
+    public void thenAcceptAfterComplete() {
+        DbFuture<Long> f = DbFuture.completed(mDirect, 42L);
+        AtomicReference<Long> result = new AtomicReference<>();
+        f.thenAccept(result::set);
+        assertEquals(Long.valueOf(42), result.get());
+    }
+
+    @Test
+    public void thenAcceptBeforeComplete() {
+        DbFuture<String> f = new DbFuture<>(mDirect);
+        AtomicReference<String> result = new AtomicReference<>();
+        f.thenAccept(result::set);
+        assertNull(result.get());
+        f.complete("done");
+        assertEquals("done", result.get());
+    }
+
+    @Test
+    public void thenAcceptReceivesNullOnError() {
+        DbFuture<String> f = new DbFuture<>(mDirect);
+        AtomicReference<String> result = new AtomicReference<>("not called");
+        f.thenAccept(result::set);
+        f.completeExceptionally(new RuntimeException("test"));
+        assertNull(result.get());
+    }
+
+    @Test
+    public void thenApplyAndCompose() throws Exception {
+        DbFuture<Long> f = new DbFuture<>(mDirect);
+        DbFuture<String> g = f.thenApply((Long v) -> v * 2)
+                .thenCompose((Long v) -> DbFuture.completed(mDirect, "id=" + v));
+        f.complete(21L);
+        assertTrue(g.isDone());
+        assertEquals("id=42", g.get());
+    }
+
+    @Test
+    public void errorPropagatesThroughThenApply() throws Exception {
+        DbFuture<Long> f = new DbFuture<>(mDirect);
+        DbFuture<Long> g = f.thenApply((Long v) -> v + 1);
+        f.completeExceptionally(new IllegalStateException("db closed"));
+        try {
+            g.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Pages through datapoints (one every 5 seconds) with LocalDataApi, checking that every row is returned once and in
+ * order.   reportExport24Hours() (a PerformanceTest) pages through a day of them with the largest pages, and prints
+ * the throughput and the peak heap used while the pages are streamed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class LocalDataApiTest {
+    // Three hours, read in several pages.
+    private static final int N_DATAPOINTS = 3 * 3600 / 5;
+    private static final int PAGE_SIZE = 500;
+    private static final int N_BENCH_DATAPOINTS = 24 * 3600 / 5;
+    private LogManager mLm;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = new LogManager.OsdDbHelper(ApplicationProvider.getApplicationContext()).getWritableDatabase();
+        mLm = new LogManager(ApplicationProvider.getApplicationContext(), false, false, null,
+                120, 60, false, 1);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        LogManager.close();
+    }
+
+    private void insertDatapoints(int n) {
+        mDb.execSQL("DELETE FROM datapoints");
+        String dataJson = SdDataSnapshot.of(new SdData()).getDatapointJson(false);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        Calendar cal = Calendar.getInstance();
+        cal.set(2022, 0, 1, 0, 0, 0);
+        SQLiteStatement stmt = mDb.compileStatement(
+                "INSERT INTO datapoints(dataTime, status, dataJSON, uploaded) VALUES(?, 0, ?, 0)");
+        mDb.beginTransaction();
+        for (int i = 0; i < n; i++) {
+            stmt.bindString(1, dateFormat.format(cal.getTime()));
+            stmt.bindString(2, dataJson);
+            stmt.executeInsert();
+            cal.add(Calendar.SECOND, 5);
+        }
+        mDb.setTransactionSuccessful();
+        mDb.endTransaction();
+    }
+
+    private static String read(NanoHTTPD.Response res) throws Exception {
+        assertEquals(NanoHTTPD.Response.Status.OK, res.getStatus());
+        InputStream is = res.getData();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[16 * 1024];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toString("UTF-8");
+    }
+
+    // Read every page, following the 'next' links, and return the number of rows.
+    private int readAllPages(Map<String, String> parameters, long[] bytes) throws Exception {
+        LocalDataApi api = new LocalDataApi(mLm);
+        int nRows = 0;
+        String lastTime = "";
+        long lastId = -1;
+        while (true) {
+            String body = read(api.serve(LocalDataApi.DATAPOINTS_PATH, parameters));
+            bytes[0] += body.length();
+            JSONObject page = new JSONObject(body);
+            JSONArray rows = page.getJSONArray("datapoints");
+            assertEquals(rows.length(), page.getInt("count"));
+            for (int i = 0; i < rows.length(); i++) {
+                JSONObject row = rows.getJSONObject(i);
+                String time = row.getString("dataTime");
+                assertTrue(time.compareTo(lastTime) >= 0);
+                if (row.has("id")) {
+                    assertTrue(row.getLong("id") > lastId);
+                    lastId = row.getLong("id");
+                }
+                lastTime = time;
+            }
+            nRows += rows.length();
+            if (page.isNull("next")) break;
+            String next = page.getString("next");
+            parameters = new HashMap<>();
+            for (String kv : next.substring(next.indexOf('?') + 1).split("&")) {
+                int eq = kv.indexOf('=');
+                parameters.put(kv.substring(0, eq), URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return nRows;
+    }
+
+    private static Map<String, String> exportParameters(int pageSize, String fields) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("from", "2022-01-01");
+        parameters.put("to", "2022-01-02");
+        parameters.put("limit", Integer.toString(pageSize));
+        if (fields != null) parameters.put("fields", fields);
+        return parameters;
+    }
+
+    @Test
+    public void pagesReturnEveryRowOnce() throws Exception {
+        insertDatapoints(N_DATAPOINTS);
+        long[] bytes = {0};
+        assertEquals(N_DATAPOINTS, readAllPages(exportParameters(PAGE_SIZE, null), bytes));
+        assertEquals(N_DATAPOINTS, readAllPages(exportParameters(PAGE_SIZE, "dataTime,hr,alarmState"), bytes));
+    }
+
+    private void reportExport(String name, String fields) throws Exception {
+        Map<String, String> parameters = exportParameters(LocalDataApi.MAX_PAGE_SIZE, fields);
+
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long baseHeap = rt.totalMemory() - rt.freeMemory();
+        long[] peakHeap = {baseHeap};
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap[0] = Math.max(peakHeap[0], rt.totalMemory() - rt.freeMemory());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+        long[] bytes = {0};
+        long t0 = System.nanoTime();
+        int nRows = readAllPages(parameters, bytes);
+        long t = System.nanoTime() - t0;
+        sampler.interrupt();
+        sampler.join();
+        assertEquals(N_BENCH_DATAPOINTS, nRows);
+        System.out.printf("%s: %d rows, %d kB, %.0f ms, %.0f rows/s, peak heap +%d kB%n", name, nRows,
+                bytes[0] / 1024, t / 1e6, nRows / (t / 1e9), (peakHeap[0] - baseHeap) / 1024);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportExport24Hours() throws Exception {
+        insertDatapoints(N_BENCH_DATAPOINTS);
+        reportExport("all columns", null);
+        reportExport("fields=dataTime,hr,alarmState", "dataTime,hr,alarmState");
+    }
+
+    @Test
+    public void badParametersAreRejected() {
+        LocalDataApi api = new LocalDataApi(mLm);
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("from", "yesterday");
+        assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, api.serve(LocalDataApi.DATAPOINTS_PATH, parameters).getStatus());
+        parameters.clear();
+        parameters.put("fields", "id;DROP TABLE datapoints");
+        assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, api.serve(LocalDataApi.DATAPOINTS_PATH, parameters).getStatus());
+        parameters.clear();
+        parameters.put("limit", "0");
+        assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, api.serve(LocalDataApi.DATAPOINTS_PATH, parameters).getStatus());
+    }
+}
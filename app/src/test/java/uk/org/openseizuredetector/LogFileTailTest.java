@@ -0,0 +1,67 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks that a LogFileTail returns what is appended to a log after it is opened, and checks SdWebServer's parsing
+ * of Range headers for /logs downloads.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class LogFileTailTest {
+
+    @Test
+    public void tailReturnsAppendedBytes() throws Exception {
+        File file = File.createTempFile("osdlog", ".txt");
+        try (FileWriter w = new FileWriter(file)) {
+            w.write("old line\n");
+        }
+        LogFileTail tail = new LogFileTail(file, file.length());
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                try (FileWriter w = new FileWriter(file, true)) {
+                    w.write("new line\n");
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        byte[] buf = new byte[64];
+        int n = tail.read(buf, 0, buf.length);
+        writer.join();
+        assertEquals("new line\n", new String(buf, 0, n, StandardCharsets.UTF_8));
+        assertEquals(file.length(), tail.getPosition());
+        tail.close();
+        assertEquals(-1, tail.read(buf, 0, buf.length));
+        file.delete();
+    }
+
+    @Test
+    public void parseRange() {
+        assertArrayEquals(new long[]{0, 9}, SdWebServer.parseRange("bytes=0-9", 100));
+        assertArrayEquals(new long[]{90, 99}, SdWebServer.parseRange("bytes=90-", 100));
+        assertArrayEquals(new long[]{90, 99}, SdWebServer.parseRange("bytes=-10", 100));
+        assertArrayEquals(new long[]{50, 99}, SdWebServer.parseRange("bytes=50-1000", 100));
+        // Not satisfiable.
+        assertEquals(0, SdWebServer.parseRange("bytes=100-", 100).length);
+        // Ignored - the whole file is sent.
+        assertNull(SdWebServer.parseRange("bytes=5-3", 100));
+        assertNull(SdWebServer.parseRange("bytes=0-1,5-6", 100));
+        assertNull(SdWebServer.parseRange("lines=0-1", 100));
+    }
+}
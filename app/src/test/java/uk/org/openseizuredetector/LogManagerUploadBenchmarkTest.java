@@ -0,0 +1,257 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads backlogs of events through LogManager to a local mock server that adds latency to every request, and checks
+ * every event, and each of its datapoints, is created exactly once.   The benchmarks (PerformanceTests) print the upload rate
+ * (events/min and datapoints/s) for different backlog sizes, uploader settings and server conditions (random failures
+ * and throttling).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class LogManagerUploadBenchmarkTest {
+    private static final long LATENCY_MS = 20;
+    private static final int N_EVENTS = 10;
+    private static final int N_DATAPOINTS_PER_EVENT = 24;
+    private MockOsdApiServer mServer;
+    private LogManager mLm;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = new LogManager.OsdDbHelper(ApplicationProvider.getApplicationContext()).getWritableDatabase();
+        mLm = new LogManager(ApplicationProvider.getApplicationContext(), false, false, MockOsdApiServer.TOKEN,
+                120, 60, false, 1);
+        startServer(false);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        mDb.close();
+        LogManager.close();
+    }
+
+    private void startServer(boolean bulkSupported) throws Exception {
+        if (mServer != null) mServer.stop();
+        mServer = new MockOsdApiServer(LATENCY_MS, bulkSupported);
+        mServer.start();
+        LogManager.mWac = new WebApiConnection_osdapi(ApplicationProvider.getApplicationContext(), mServer.getUrlBase());
+        LogManager.mWac.setStoredToken(MockOsdApiServer.TOKEN);
+    }
+
+    // Replace the contents of the database with a backlog of old events, each with its own datapoints.
+    private void fillBacklog(int nEvents) {
+        mDb.execSQL("DELETE FROM events");
+        mDb.execSQL("DELETE FROM datapoints");
+        mDb.execSQL("DELETE FROM event_datapoints");
+        mDb.execSQL("DELETE FROM " + UploadOutbox.TABLE_NAME);
+        for (int e = 0; e < nEvents; e++) {
+            String eventTime = String.format("2022-01-%02d %02d:01:00", 1 + e / 24, e % 24);
+            mDb.execSQL("INSERT INTO events(id, dataTime, status, type, subType, notes, dataJSON) VALUES(?, ?, 2, '', '', '', '{}')",
+                    new Object[]{e + 1, eventTime});
+            for (int d = 0; d < N_DATAPOINTS_PER_EVENT; d++) {
+                long dpId = e * N_DATAPOINTS_PER_EVENT + d + 1;
+                mDb.execSQL("INSERT INTO datapoints(id, dataTime, status, dataJSON, uploaded) VALUES(?, datetime(?, ?), 2, '{}', 0)",
+                        new Object[]{dpId, eventTime, "+" + (d * 5) + " seconds"});
+                mDb.execSQL("INSERT INTO event_datapoints(eventId, datapointId) VALUES(?, ?)", new Object[]{e + 1, dpId});
+            }
+        }
+    }
+
+    // Start uploading and run the main looper (where the upload callbacks are delivered) until every event is
+    // uploaded.   Failed items would normally wait for their retry time, so the retry delay is skipped and another
+    // upload pass started every RETRY_PASS_MS, standing in for the upload scheduler.
+    private static final long RETRY_PASS_MS = 100;
+
+    private long uploadAll() throws InterruptedException {
+        long t0 = System.nanoTime();
+        mLm.uploadSdData();
+        long deadline = System.currentTimeMillis() + 120000;
+        long nextPass = System.currentTimeMillis() + RETRY_PASS_MS;
+        while (DatabaseUtils.queryNumEntries(mDb, "events", "uploaded IS NULL", null) > 0
+                && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(2);
+            if (System.currentTimeMillis() > nextPass) {
+                mDb.execSQL("UPDATE " + UploadOutbox.TABLE_NAME + " SET nextAttemptMs=0");
+                mLm.uploadSdData();
+                nextPass = System.currentTimeMillis() + RETRY_PASS_MS;
+            }
+        }
+        long t1 = System.nanoTime();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "events", "uploaded IS NULL", null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "datapoints", "uploaded=0", null));
+        return t1 - t0;
+    }
+
+    private void report(String name, int nEvents, long t) {
+        double secs = t / 1e9;
+        System.out.printf("%s: %d events, %d requests (%d failed, %d throttled), %.0f ms, %.0f events/min, "
+                        + "%.0f datapoints/s%n", name, nEvents, mServer.mRequestCount.get(), mServer.mFailedCount.get(),
+                mServer.mThrottledCount.get(), t / 1e6, nEvents * 60 / secs, nEvents * N_DATAPOINTS_PER_EVENT / secs);
+    }
+
+    private void assertUploadedOnce(int nEvents) {
+        // Every event and datapoint is created exactly once, however the requests were interleaved or retried.
+        assertEquals(nEvents, mServer.mEventCount.get());
+        assertEquals(nEvents * N_DATAPOINTS_PER_EVENT, mServer.mDatapointCount.get());
+    }
+
+    @Test
+    public void unreliableServerGetsEachItemOnce() throws Exception {
+        mServer.setFailureRate(0.1);
+        fillBacklog(3);
+        mLm.setMaxConcurrentEventUploads(3);
+        LogManager.mWac.setMaxDatapointsInFlight(4);
+        uploadAll();
+        assertUploadedOnce(3);
+    }
+
+    @Test
+    public void eventIsNotCompletedWhenQueueingItsDatapointsFails() throws Exception {
+        fillBacklog(1);
+        mDb.execSQL("CREATE TRIGGER fail_enqueue BEFORE INSERT ON " + UploadOutbox.TABLE_NAME
+                + " WHEN NEW.datapointId<>" + UploadOutbox.EVENT_ITEM + " BEGIN SELECT RAISE(ABORT, 'test'); END");
+        mLm.uploadSdData();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mServer.mEventCount.get() == 0 && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(2);
+        }
+        // Let the failed outbox write, and its callback, run.
+        for (int i = 0; i < 100; i++) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(2);
+        }
+        assertEquals(1, mServer.mEventCount.get());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "events", "uploaded IS NULL", null));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, UploadOutbox.TABLE_NAME, null, null));
+
+        mDb.execSQL("DROP TRIGGER fail_enqueue");
+        uploadAll();
+        assertUploadedOnce(1);
+    }
+
+    @Test
+    public void overlappingEventsEachGetTheirDatapoints() throws Exception {
+        // The second event shares the second half of the first event's datapoints as well as having its own.
+        fillBacklog(2);
+        for (int d = N_DATAPOINTS_PER_EVENT / 2; d < N_DATAPOINTS_PER_EVENT; d++) {
+            mDb.execSQL("INSERT INTO event_datapoints(eventId, datapointId) VALUES(2, ?)", new Object[]{d + 1});
+        }
+        uploadAll();
+        assertEquals(2, mServer.mEventCount.get());
+        ArrayList<Integer> counts = new ArrayList<>();
+        for (AtomicInteger count : mServer.mEventDatapointCounts.values()) counts.add(count.get());
+        Collections.sort(counts);
+        assertEquals(Arrays.asList(N_DATAPOINTS_PER_EVENT, 3 * N_DATAPOINTS_PER_EVENT / 2), counts);
+    }
+
+    @Test
+    public void closingDuringAnUploadStopsItQuietly() throws Exception {
+        fillBacklog(3);
+        mLm.uploadSdData();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mServer.mEventCount.get() == 0 && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(2);
+        }
+        LogManager.close();
+        // The callbacks of the uploads in progress still run, but their database work is refused rather than
+        // throwing.
+        for (int i = 0; i < 100; i++) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(2);
+        }
+        mLm.uploadSdData();
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    @Test
+    public void pruneDeletesOldEventsAndDatapoints() throws Exception {
+        fillBacklog(2);
+        assertEquals(Integer.valueOf(2), mLm.pruneLocalDb().get());
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "events"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "datapoints"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "event_datapoints"));
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void benchmarkSerialUpload() throws Exception {
+        fillBacklog(N_EVENTS);
+        mLm.setMaxConcurrentEventUploads(1);
+        LogManager.mWac.setMaxDatapointsInFlight(1);
+        long t = uploadAll();
+        assertUploadedOnce(N_EVENTS);
+        report("serial", N_EVENTS, t);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void benchmarkPipelinedUpload() throws Exception {
+        fillBacklog(N_EVENTS);
+        mLm.setMaxConcurrentEventUploads(3);
+        LogManager.mWac.setMaxDatapointsInFlight(4);
+        long t = uploadAll();
+        assertUploadedOnce(N_EVENTS);
+        report("pipelined", N_EVENTS, t);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void benchmarkBacklogSizes() throws Exception {
+        for (int nEvents : new int[]{1, 10, 50}) {
+            for (boolean bulk : new boolean[]{false, true}) {
+                startServer(bulk);
+                fillBacklog(nEvents);
+                long t = uploadAll();
+                assertUploadedOnce(nEvents);
+                report(bulk ? "bulk" : "single", nEvents, t);
+            }
+        }
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void benchmarkUnreliableServer() throws Exception {
+        mServer.setFailureRate(0.1);
+        fillBacklog(N_EVENTS);
+        long t = uploadAll();
+        assertUploadedOnce(N_EVENTS);
+        report("10% failures", N_EVENTS, t);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void benchmarkThrottledServer() throws Exception {
+        mServer.setMaxRequestsPerSec(50);
+        fillBacklog(N_EVENTS);
+        long t = uploadAll();
+        assertUploadedOnce(N_EVENTS);
+        report("throttled to 50 requests/s", N_EVENTS, t);
+    }
+}
@@ -0,0 +1,264 @@
+package uk.org.openseizuredetector;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A local stand-in for the OSD web API, used to test and benchmark the upload code.
+ * It implements login, event types, the user profile, and creating and reading events and datapoints.   Apart from
+ * login, the static files and the capabilities check, requests must carry the token returned by login.
+ * It counts the requests it receives, and can be set up to add a fixed delay to each one to simulate network
+ * latency, to fail a proportion of requests at random, and to throttle requests to a maximum rate (replying
+ * 429 Too Many Requests to the rest).
+ * Requests with an Idempotency-Key header that has been seen before get the original reply, without creating
+ * anything again.
+ */
+public class MockOsdApiServer extends NanoHTTPD {
+    public static final String USER = "testuser";
+    public static final String PASSWORD = "testpwd";
+    public static final String TOKEN = "test-token";
+    private static final Response.IStatus TOO_MANY_REQUESTS = new Response.IStatus() {
+        @Override
+        public int getRequestStatus() {
+            return 429;
+        }
+
+        @Override
+        public String getDescription() {
+            return "429 Too Many Requests";
+        }
+    };
+    private final long mLatencyMs;
+    private final boolean mBulkSupported;
+    public final AtomicInteger mRequestCount = new AtomicInteger();
+    public final AtomicInteger mGzipRequestCount = new AtomicInteger();
+    public final AtomicInteger mDatapointCount = new AtomicInteger();
+    public final AtomicInteger mEventCount = new AtomicInteger();
+    public final AtomicInteger mRequestBytes = new AtomicInteger();
+    public final AtomicInteger mCompactDatapointCount = new AtomicInteger();
+    public final AtomicInteger mFailedCount = new AtomicInteger();
+    public final AtomicInteger mThrottledCount = new AtomicInteger();
+    public final AtomicInteger mReplayedCount = new AtomicInteger();
+    public final ConcurrentHashMap<String, AtomicInteger> mEventDatapointCounts = new ConcurrentHashMap<>();
+    // Reply to /api/capabilities/, or null to behave like an older server without that endpoint.
+    private volatile String mCapabilities = null;
+    private volatile double mFailureRate = 0;
+    private final Random mRandom = new Random(1);
+    private volatile int mMaxRequestsPerSec = 0;
+    private long mThrottleWindowStartMs = 0;
+    private int mThrottleWindowCount = 0;
+    private final ConcurrentHashMap<Integer, JSONObject> mEvents = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> mIdempotentReplies = new ConcurrentHashMap<>();
+
+    public MockOsdApiServer(long latencyMs, boolean bulkSupported) {
+        super("127.0.0.1", 0);
+        mLatencyMs = latencyMs;
+        mBulkSupported = bulkSupported;
+    }
+
+    public void setCapabilities(String capabilitiesJson) {
+        mCapabilities = capabilitiesJson;
+    }
+
+    /**
+     * Fail this proportion (0-1) of the upload requests with 500 Internal Server Error.
+     */
+    public void setFailureRate(double failureRate) {
+        mFailureRate = failureRate;
+    }
+
+    /**
+     * Reply 429 Too Many Requests to requests beyond maxRequestsPerSec in any one second (0 for no limit).
+     */
+    public void setMaxRequestsPerSec(int maxRequestsPerSec) {
+        mMaxRequestsPerSec = maxRequestsPerSec;
+    }
+
+    public String getUrlBase() {
+        return "http://127.0.0.1:" + getListeningPort();
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        String uri = session.getUri();
+        Method method = session.getMethod();
+        Map<String, String> headers = session.getHeaders();
+        try {
+            // Requests that are not uploads are not counted, delayed or failed.
+            if (uri.equals("/api/capabilities/")) {
+                return (mCapabilities != null) ? jsonResponse(mCapabilities) : notFound();
+            }
+            if (uri.equals("/static/test.txt")) {
+                return new Response(Response.Status.OK, MIME_PLAINTEXT, "OK");
+            }
+            if (method == Method.POST && uri.equals("/api/accounts/login/")) {
+                return login(readBody(session));
+            }
+            if (!("Token " + TOKEN).equals(headers.get("authorization"))) {
+                return new Response(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "Unauthorized");
+            }
+            if (method == Method.GET) {
+                return serveGet(uri);
+            }
+
+            mRequestCount.incrementAndGet();
+            Thread.sleep(mLatencyMs);
+            String body = readBody(session);
+            if (isThrottled()) {
+                mThrottledCount.incrementAndGet();
+                Response r = new Response(TOO_MANY_REQUESTS, MIME_PLAINTEXT, "Too Many Requests");
+                r.addHeader("Retry-After", "1");
+                return r;
+            }
+            if (mFailureRate > 0 && nextRandom() < mFailureRate) {
+                mFailedCount.incrementAndGet();
+                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Simulated failure");
+            }
+            String key = headers.get("idempotency-key");
+            if (key != null && mIdempotentReplies.containsKey(key)) {
+                mReplayedCount.incrementAndGet();
+                return jsonResponse(mIdempotentReplies.get(key));
+            }
+            String reply;
+            if (method == Method.POST && uri.equals("/api/events/")) {
+                JSONObject event = new JSONObject(body);
+                int id = mEventCount.incrementAndGet();
+                event.put("id", id);
+                mEvents.put(id, event);
+                reply = event.toString();
+            } else if (method == Method.POST && uri.equals("/api/datapoints/")) {
+                reply = createDatapoint(new JSONObject(body)).toString();
+            } else if (method == Method.POST && uri.equals("/api/datapoints/bulk/") && mBulkSupported) {
+                JSONArray reqArr = new JSONArray(body);
+                JSONArray respArr = new JSONArray();
+                for (int i = 0; i < reqArr.length(); i++) {
+                    respArr.put(createDatapoint(reqArr.getJSONObject(i)));
+                }
+                reply = respArr.toString();
+            } else {
+                return notFound();
+            }
+            if (key != null) mIdempotentReplies.put(key, reply);
+            return jsonResponse(reply);
+        } catch (InterruptedException | IOException | JSONException e) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.toString());
+        }
+    }
+
+    private Response serveGet(String uri) throws JSONException {
+        if (uri.equals("/static/eventTypes.json")) {
+            JSONObject types = new JSONObject();
+            types.put("Seizure", new JSONArray().put("Tonic-Clonic").put("Other"));
+            types.put("False Alarm", new JSONArray().put("Sleep").put("Other"));
+            types.put("Unknown", new JSONArray().put(""));
+            return jsonResponse(types.toString());
+        }
+        if (uri.equals("/api/accounts/profile/")) {
+            JSONObject profile = new JSONObject();
+            profile.put("id", 1);
+            profile.put("username", USER);
+            return jsonResponse(profile.toString());
+        }
+        if (uri.equals("/api/events/")) {
+            JSONArray arr = new JSONArray();
+            for (JSONObject event : mEvents.values()) arr.put(event);
+            return jsonResponse(arr.toString());
+        }
+        if (uri.startsWith("/api/events/")) {
+            try {
+                JSONObject event = mEvents.get(Integer.parseInt(uri.substring("/api/events/".length()).replace("/", "")));
+                if (event != null) return jsonResponse(event.toString());
+            } catch (NumberFormatException e) {
+                // Fall through to 404.
+            }
+        }
+        return notFound();
+    }
+
+    private Response login(String body) throws IOException, JSONException {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        if (!USER.equals(params.get("login")) || !PASSWORD.equals(params.get("password"))) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid credentials");
+        }
+        return jsonResponse(new JSONObject().put("token", TOKEN).toString());
+    }
+
+    private synchronized double nextRandom() {
+        return mRandom.nextDouble();
+    }
+
+    private synchronized boolean isThrottled() {
+        if (mMaxRequestsPerSec <= 0) return false;
+        long now = System.currentTimeMillis();
+        if (now - mThrottleWindowStartMs >= 1000) {
+            mThrottleWindowStartMs = now;
+            mThrottleWindowCount = 0;
+        }
+        return ++mThrottleWindowCount > mMaxRequestsPerSec;
+    }
+
+    private JSONObject createDatapoint(JSONObject dp) throws JSONException {
+        dp.put("id", mDatapointCount.incrementAndGet());
+        mEventDatapointCounts.computeIfAbsent(dp.optString("eventId"), (String k) -> new AtomicInteger()).incrementAndGet();
+        if (DatapointCodec.COMPACT_FORMAT.equals(dp.optString("dataFormat"))) {
+            mCompactDatapointCount.incrementAndGet();
+        }
+        dp.remove("dataJSON");
+        dp.remove("data");
+        return dp;
+    }
+
+    private Response jsonResponse(String json) {
+        return new Response(Response.Status.OK, "application/json", json);
+    }
+
+    private Response notFound() {
+        return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+    }
+
+    private String readBody(IHTTPSession session) throws IOException {
+        Map<String, String> headers = session.getHeaders();
+        int len = headers.containsKey("content-length") ? Integer.parseInt(headers.get("content-length")) : 0;
+        byte[] buf = new byte[len];
+        InputStream in = session.getInputStream();
+        int off = 0;
+        while (off < len) {
+            int n = in.read(buf, off, len - off);
+            if (n < 0) break;
+            off += n;
+        }
+        mRequestBytes.addAndGet(len);
+        if ("gzip".equals(headers.get("content-encoding"))) {
+            mGzipRequestCount.incrementAndGet();
+            GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(buf, 0, off));
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = gz.read(b)) > 0) bos.write(b, 0, n);
+            return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+        }
+        return new String(buf, 0, off, StandardCharsets.UTF_8);
+    }
+}
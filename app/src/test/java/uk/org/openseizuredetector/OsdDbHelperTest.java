@@ -0,0 +1,46 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class OsdDbHelperTest {
+
+    @Test
+    public void upgradeFromVersion1LinksExistingEvents() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        // Version 1 schema.
+        db.execSQL("CREATE TABLE datapoints(id INTEGER PRIMARY KEY, dataTime DATETIME, status INT, dataJSON TEXT, uploaded TEXT)");
+        db.execSQL("CREATE TABLE events(id INTEGER PRIMARY KEY, dataTime DATETIME, status INT, type TEXT, subType TEXT,"
+                + " notes TEXT, dataJSON TEXT, uploaded TEXT)");
+        for (int s = 0; s < 60; s += 5) {
+            db.execSQL("INSERT INTO datapoints(dataTime, status, dataJSON) VALUES(?, 0, '{}')",
+                    new Object[]{String.format("2022-01-01 10:01:%02d", s)});
+        }
+        db.execSQL("INSERT INTO datapoints(dataTime, status, dataJSON) VALUES('2022-01-01 12:00:00', 0, '{}')");
+        db.execSQL("INSERT INTO events(dataTime, status) VALUES('2022-01-01 10:01:30', 2)");
+        db.execSQL("INSERT INTO events(dataTime, status) VALUES('2022-01-01 10:01:40', 2)");
+
+        LogManager.OsdDbHelper helper = new LogManager.OsdDbHelper(RuntimeEnvironment.application);
+        helper.onUpgrade(db, 1, 2);
+
+        // Data is kept, and each event is linked to the 12 datapoints within a minute of it, but not the later one.
+        assertEquals(13, DatabaseUtils.queryNumEntries(db, "datapoints"));
+        assertEquals(12, DatabaseUtils.queryNumEntries(db, "event_datapoints", "eventId=1", null));
+        assertEquals(12, DatabaseUtils.queryNumEntries(db, "event_datapoints", "eventId=2", null));
+        // The two overlapping events share the same datapoints rather than copies of them.
+        assertEquals(12, DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(DISTINCT datapointId) FROM event_datapoints", null));
+        db.close();
+    }
+}
@@ -0,0 +1,99 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Build;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Checks that polling through the shared client re-uses one connection.   reportPollTime() (a PerformanceTest)
+ * prints the mean time per poll compared with opening a new HttpURLConnection with keep-alive turned off, as
+ * SdDataSourceNetwork effectively did before.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class OsdHttpClientTest {
+    private static final int N_POLLS = 20;
+    private static final int N_BENCH_POLLS = 200;
+    private static final String DATA = "{\"alarmState\":0,\"hr\":70}";
+    private HttpServer mServer;
+    // The client ports seen by the server - one per TCP connection.
+    private final Set<Integer> mClientPorts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/data", exchange -> {
+            mClientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = DATA.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/data";
+    }
+
+    @Test
+    public void pollingReusesOneConnection() throws Exception {
+        OkHttpClient client = OsdHttpClient.forTimeouts(5000, 5000);
+        for (int i = 0; i < N_POLLS; i++) {
+            assertEquals(DATA, OsdHttpClient.get(client, url()));
+        }
+        assertEquals(1, mClientPorts.size());
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportPollTime() throws Exception {
+        OkHttpClient client = OsdHttpClient.forTimeouts(5000, 5000);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < N_BENCH_POLLS; i++) {
+            assertEquals(DATA, OsdHttpClient.get(client, url()));
+        }
+        long pooledNs = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        for (int i = 0; i < N_BENCH_POLLS; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url()).openConnection();
+            conn.setRequestProperty("Connection", "close");
+            InputStream is = conn.getInputStream();
+            while (is.read() >= 0) ;
+            is.close();
+        }
+        long freshNs = System.nanoTime() - t0;
+        System.out.printf("mean time per poll: pooled %.0f us, new connection %.0f us%n",
+                pooledNs / 1e3 / N_BENCH_POLLS, freshNs / 1e3 / N_BENCH_POLLS);
+    }
+}
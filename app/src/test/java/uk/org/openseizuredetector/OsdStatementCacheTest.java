@@ -0,0 +1,100 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks the statement cache.   The PerformanceTests compare per-call latency of concatenated SQL with cached, bound
+ * statements on a populated database - the timings are printed rather than asserted because they depend on the host.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class OsdStatementCacheTest {
+    private static final int N_ROWS = 2000;
+    private static final int N_CALLS = 2000;
+    private SQLiteDatabase mDb;
+    private OsdStatementCache mCache;
+    private final String mDataJSON = "{\"rawData\":[1.0,2.0,3.0],\"alarmPhrase\":\"it's OK\"}";
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE datapoints(id INTEGER PRIMARY KEY, dataTime DATETIME, status INT, "
+                + "dataJSON TEXT, uploaded TEXT)");
+        mCache = new OsdStatementCache(mDb);
+        for (int i = 0; i < N_ROWS; i++) {
+            mCache.executeInsert("INSERT INTO datapoints(dataTime, status, dataJSON, uploaded) VALUES(?, ?, ?, ?)",
+                    "2022-01-01 00:00:00", i % 3, mDataJSON, 0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mCache.close();
+        mDb.close();
+    }
+
+    @Test
+    public void testBoundValuesAreStoredVerbatim() {
+        long id = mCache.executeInsert("INSERT INTO datapoints(dataTime, status, dataJSON, uploaded) VALUES(?, ?, ?, ?)",
+                "2022-01-02 00:00:00", 2, "'; DROP TABLE datapoints; --", null);
+        Cursor c = mDb.rawQuery("SELECT dataJSON FROM datapoints WHERE id=?", new String[]{String.valueOf(id)});
+        assertTrue(c.moveToFirst());
+        assertEquals("'; DROP TABLE datapoints; --", c.getString(0));
+        c.close();
+        assertEquals(1, mCache.executeUpdateDelete("UPDATE datapoints SET uploaded=? WHERE id=?", "remote1", id));
+        assertEquals(2, mCache.size());
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportInsertLatency() {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < N_CALLS; i++) {
+            mDb.execSQL("INSERT INTO datapoints(dataTime, status, dataJSON, uploaded) VALUES("
+                    + "'2022-01-01 00:00:00'," + (i % 3) + "," + DatabaseUtils.sqlEscapeString(mDataJSON) + ",0)");
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < N_CALLS; i++) {
+            mCache.executeInsert("INSERT INTO datapoints(dataTime, status, dataJSON, uploaded) VALUES(?, ?, ?, ?)",
+                    "2022-01-01 00:00:00", i % 3, mDataJSON, 0);
+        }
+        long t2 = System.nanoTime();
+        System.out.printf("insert: concatenated %.1f us/call, cached %.1f us/call%n",
+                (t1 - t0) / 1000.0 / N_CALLS, (t2 - t1) / 1000.0 / N_CALLS);
+        assertEquals(N_ROWS + 2 * N_CALLS, DatabaseUtils.queryNumEntries(mDb, "datapoints"));
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportSelectByIdLatency() {
+        long t0 = System.nanoTime();
+        for (int i = 1; i <= N_CALLS; i++) {
+            Cursor c = mDb.rawQuery("select * from datapoints where id=" + i + ";", null);
+            c.moveToFirst();
+            c.close();
+        }
+        long t1 = System.nanoTime();
+        for (int i = 1; i <= N_CALLS; i++) {
+            Cursor c = mDb.rawQuery("SELECT * FROM datapoints WHERE id=?", new String[]{String.valueOf(i)});
+            c.moveToFirst();
+            c.close();
+        }
+        long t2 = System.nanoTime();
+        System.out.printf("select by id: concatenated %.1f us/call, parameterised %.1f us/call%n",
+                (t1 - t0) / 1000.0 / N_CALLS, (t2 - t1) / 1000.0 / N_CALLS);
+    }
+}
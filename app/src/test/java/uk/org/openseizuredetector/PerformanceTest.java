@@ -0,0 +1,8 @@
+package uk.org.openseizuredetector;
+
+/**
+ * JUnit category for benchmarks and load tests - tests that print timings, or run for a long time.   They are left
+ * out of the ordinary unit test run, and are run on their own with ./gradlew testDebugUnitTest -PperfTests.
+ */
+public interface PerformanceTest {
+}
@@ -0,0 +1,151 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Tests for the memory mapped raw sample journal, plus a benchmark (a PerformanceTest) comparing sustained write
+ * throughput and read-by-time-range latency with the JSON-in-SQLite storage used previously.   Timings are printed,
+ * not asserted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class RawSampleJournalTest {
+    private static final long T0 = 1640995200000L;   // 2022-01-01 00:00:00 UTC
+    private static final long WINDOW_MS = 5000;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private double[] makeRaw(int n, double offset) {
+        double[] d = new double[n];
+        for (int i = 0; i < n; i++) d[i] = offset + i;
+        return d;
+    }
+
+    @Test
+    public void testAppendAndReadRange() throws Exception {
+        RawSampleJournal j = new RawSampleJournal(mTmp.newFolder("j1"));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(j.append(T0 + i * WINDOW_MS, 125, 25, makeRaw(500, i), makeRaw(1500, i)));
+        }
+        List<ByteBuffer> recs = j.readRange(T0 + 2 * WINDOW_MS, T0 + 4 * WINDOW_MS);
+        assertEquals(3, recs.size());
+        assertEquals(T0 + 2 * WINDOW_MS, RawSampleJournal.getTimestamp(recs.get(0)));
+        assertEquals(125, RawSampleJournal.getNSamp(recs.get(0)));
+        assertEquals(25, RawSampleJournal.getSampleFreq(recs.get(0)));
+        double[] raw = new double[500];
+        RawSampleJournal.getRawData(recs.get(2), raw);
+        assertEquals(4.0, raw[0], 1e-6);
+        assertEquals(503.0, raw[499], 1e-6);
+        assertNull(j.readRecord(T0 + 1));
+        // Out of order writes are rejected.
+        assertFalse(j.append(T0, 125, 25, raw, null));
+        j.close();
+    }
+
+    @Test
+    public void testRolloverReopenAndPrune() throws Exception {
+        File dir = mTmp.newFolder("j2");
+        RawSampleJournal j = new RawSampleJournal(dir);
+        int n = RawSampleJournal.RECORDS_PER_SEGMENT * 2 + 10;
+        for (int i = 0; i < n; i++) {
+            j.append(T0 + i * WINDOW_MS, 125, 25, makeRaw(500, 0), null);
+        }
+        assertEquals(3, j.getSegmentCount());
+        j.close();
+
+        // Re-opening continues appending to the last segment.
+        j = new RawSampleJournal(dir);
+        assertTrue(j.append(T0 + n * WINDOW_MS, 125, 25, makeRaw(500, 0), null));
+        assertEquals(3, j.getSegmentCount());
+        List<ByteBuffer> recs = j.readRange(T0, T0 + n * WINDOW_MS);
+        assertEquals(n + 1, recs.size());
+
+        // Only the first segment is entirely older than the start of the second one.
+        long cutoff = T0 + (RawSampleJournal.RECORDS_PER_SEGMENT + 5) * WINDOW_MS;
+        assertEquals(1, j.pruneOlderThan(cutoff));
+        assertEquals(2, j.getSegmentCount());
+        assertNotNull(j.readRecord(T0 + n * WINDOW_MS));
+        j.close();
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void benchmarkJournalVersusSqliteJson() throws Exception {
+        int nWindows = 2000;   // ~2.8 hours of 5 second windows.
+        double[] raw = makeRaw(500, 0.123);
+        double[] raw3D = makeRaw(1500, 0.456);
+
+        RawSampleJournal j = new RawSampleJournal(mTmp.newFolder("bench"));
+        long t0 = System.nanoTime();
+        for (int i = 0; i < nWindows; i++) {
+            j.append(T0 + i * WINDOW_MS, 500, 100, raw, raw3D);
+        }
+        long t1 = System.nanoTime();
+
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE datapoints(id INTEGER PRIMARY KEY, dataTime INTEGER, dataJSON TEXT)");
+        db.execSQL("CREATE INDEX dp_time ON datapoints(dataTime)");
+        long t2 = System.nanoTime();
+        for (int i = 0; i < nWindows; i++) {
+            JSONObject o = new JSONObject();
+            JSONArray a = new JSONArray();
+            for (double v : raw) a.put(v);
+            JSONArray a3 = new JSONArray();
+            for (double v : raw3D) a3.put(v);
+            o.put("rawData", a);
+            o.put("rawData3D", a3);
+            db.execSQL("INSERT INTO datapoints(dataTime, dataJSON) VALUES(?, ?)",
+                    new Object[]{T0 + i * WINDOW_MS, o.toString()});
+        }
+        long t3 = System.nanoTime();
+
+        // Read a 2 minute event window (24 records) from the middle of the data.
+        long from = T0 + (nWindows / 2) * WINDOW_MS;
+        long to = from + 120000;
+        double[] buf = new double[1500];
+        long t4 = System.nanoTime();
+        List<ByteBuffer> recs = j.readRange(from, to);
+        for (ByteBuffer r : recs) RawSampleJournal.getRawData3D(r, buf);
+        long t5 = System.nanoTime();
+        Cursor c = db.rawQuery("SELECT dataJSON FROM datapoints WHERE dataTime>=? AND dataTime<=?",
+                new String[]{String.valueOf(from), String.valueOf(to)});
+        int nSql = 0;
+        while (c.moveToNext()) {
+            new JSONObject(c.getString(0)).getJSONArray("rawData3D");
+            nSql++;
+        }
+        c.close();
+        long t6 = System.nanoTime();
+
+        assertEquals(nSql, recs.size());
+        System.out.printf("write: journal %.0f windows/s, sqlite json %.0f windows/s%n",
+                nWindows / ((t1 - t0) / 1e9), nWindows / ((t3 - t2) / 1e9));
+        System.out.printf("read %d windows: journal %.2f ms, sqlite json %.2f ms%n",
+                recs.size(), (t5 - t4) / 1e6, (t6 - t5) / 1e6);
+        j.close();
+        db.close();
+    }
+}
@@ -0,0 +1,119 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdDataSnapshotTest {
+    private static final int N_CLIENTS = 4;
+    private static final long RUN_MS = 2000;
+    private static final long UPDATE_PERIOD_MS = 100;
+
+    @Test
+    public void snapshotIsNotChangedByLaterUpdates() throws Exception {
+        SdData sdData = new SdData();
+        sdData.alarmState = 2;
+        sdData.simpleSpec[0] = 5;
+        SdDataSnapshot snapshot = SdDataSnapshot.of(sdData);
+        sdData.alarmState = 0;
+        sdData.simpleSpec[0] = 7;
+        JSONObject status = new JSONObject(snapshot.getStatusJson());
+        assertEquals(2, status.getInt("alarmState"));
+        assertEquals(5, status.getJSONArray("simpleSpec").getInt(0));
+        // Each serialisation is only made once.
+        assertSame(snapshot.getStatusJson(), snapshot.getStatusJson());
+        assertSame(snapshot.getSettingsJson(), snapshot.getSettingsJson());
+    }
+
+    @Test
+    public void dataIsSerialisedOncePerUpdate() throws Exception {
+        SdWebServer webServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        webServer.start();
+        try {
+            String url = "http://127.0.0.1:" + webServer.getListeningPort() + "/data";
+            OkHttpClient client = OsdHttpClient.forTimeouts(5000, 5000);
+            for (int update = 0; update < 3; update++) {
+                SdData sdData = new SdData();
+                sdData.alarmState = update;
+                webServer.setSdData(sdData);
+                long serialisations0 = SdDataSnapshot.getSerialisationCount();
+                for (int i = 0; i < 5; i++) {
+                    try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+                        assertEquals(update, new JSONObject(response.body().string()).getInt("alarmState"));
+                    }
+                }
+                assertTrue(SdDataSnapshot.getSerialisationCount() - serialisations0 <= 1);
+            }
+        } finally {
+            webServer.stop();
+        }
+    }
+
+    /**
+     * Several web clients poll /data as fast as they can while the data is updated every UPDATE_PERIOD_MS, and the
+     * number of requests and serialisations per second is printed.
+     */
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportSerialisationsWithSeveralClients() throws Exception {
+        SdWebServer webServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        webServer.start();
+        String url = "http://127.0.0.1:" + webServer.getListeningPort() + "/data";
+        OkHttpClient client = OsdHttpClient.forTimeouts(5000, 5000);
+        AtomicInteger requests = new AtomicInteger();
+        long deadline = System.currentTimeMillis() + RUN_MS;
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < N_CLIENTS; i++) {
+            Thread t = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+                        response.body().string();
+                        requests.incrementAndGet();
+                    } catch (Exception e) {
+                        break;
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        long serialisations0 = SdDataSnapshot.getSerialisationCount();
+        int updates = 0;
+        while (System.currentTimeMillis() < deadline) {
+            SdData sdData = new SdData();
+            sdData.alarmState = updates % 3;
+            webServer.setSdData(sdData);
+            updates++;
+            Thread.sleep(UPDATE_PERIOD_MS);
+        }
+        for (Thread t : threads) t.join();
+        long serialisations = SdDataSnapshot.getSerialisationCount() - serialisations0;
+        webServer.stop();
+
+        // At most one serialisation per update, however many requests there were.
+        assertTrue(serialisations <= updates);
+        double secs = RUN_MS / 1000.0;
+        System.out.printf("%d clients: %.0f requests/s, %.0f updates/s, %.0f serialisations/s (previously one per "
+                + "request)%n", N_CLIENTS, requests.get() / secs, updates / secs, serialisations / secs);
+    }
+}
@@ -0,0 +1,101 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Subscribes to SdWebServer's /stream endpoint, publishes new SdData, and checks that each is received.
+ * reportStreamLatency() (a PerformanceTest) prints the mean time from publishing to receiving each event, compared
+ * with the mean delay of half the polling period that polling /data adds.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdDataStreamTest {
+    private static final int N_EVENTS = 5;
+    private static final int N_BENCH_EVENTS = 50;
+    private static final long POLL_PERIOD_MS = 2000;
+    private SdWebServer mWebServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mWebServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        mWebServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mWebServer.stop();
+    }
+
+    // Read lines until the end of the next event, and return its data.
+    private static String readEvent(BufferedSource source) throws Exception {
+        StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.startsWith("data:")) {
+                data.append(line.substring(5).trim());
+            } else if (line.isEmpty() && data.length() > 0) {
+                return data.toString();
+            }
+        }
+        return null;
+    }
+
+    // Publish nEvents new SdData, check each arrives on the stream, and return the total time taken to arrive.
+    private long streamEvents(int nEvents) throws Exception {
+        OkHttpClient client = OsdHttpClient.forTimeouts(5000, 5000);
+        Request request = new Request.Builder()
+                .url("http://127.0.0.1:" + mWebServer.getListeningPort() + "/stream").build();
+        try (Response response = client.newCall(request).execute()) {
+            assertTrue(response.header("Content-Type", "").startsWith(SdDataStream.MIME_TYPE));
+            BufferedSource source = response.body().source();
+            // The stream starts with the current data.
+            assertNotNull(readEvent(source));
+
+            long totalNs = 0;
+            for (int i = 0; i < nEvents; i++) {
+                SdData sdData = new SdData();
+                sdData.alarmState = (i % 2 == 0) ? 2 : 0;
+                long t0 = System.nanoTime();
+                mWebServer.setSdData(sdData);
+                String event = readEvent(source);
+                totalNs += System.nanoTime() - t0;
+                assertNotNull(event);
+                assertEquals(sdData.alarmState, new JSONObject(event).getJSONObject("sdData").getInt("alarmState"));
+            }
+            return totalNs;
+        }
+    }
+
+    @Test
+    public void streamDeliversEachSdData() throws Exception {
+        streamEvents(N_EVENTS);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportStreamLatency() throws Exception {
+        long totalNs = streamEvents(N_BENCH_EVENTS);
+        System.out.printf("mean latency: stream %.2f ms, polling every %d ms %d ms%n",
+                totalNs / 1e6 / N_BENCH_EVENTS, POLL_PERIOD_MS, POLL_PERIOD_MS / 2);
+    }
+}
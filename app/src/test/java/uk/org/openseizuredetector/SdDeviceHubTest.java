@@ -0,0 +1,260 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends data from several watches to SdWebServer's /data with device ids, and checks that each device has its own
+ * alarm state and that /devices reports the worst.   reportStreamsPerCore (a PerformanceTest) feeds many simulated
+ * 25 Hz devices through an SdDeviceHub as fast as it will take them, and prints how many such devices one processor
+ * could keep up with.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdDeviceHubTest {
+    // A watch sends 5 seconds of 25 Hz data in each window.
+    private static final int N_SAMP = 125;
+    private static final double WINDOW_SECONDS = 5.0;
+    private static final int N_BENCH_DEVICES = 16;
+    private static final int N_BENCH_WINDOWS = 100;
+    private Context mContext;
+    private SdWebServer mWebServer;
+    private final List<String> mAlarms = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = ApplicationProvider.getApplicationContext();
+        // As StartupActivity does, so that every setting the data source reads has a value.
+        PreferenceManager.setDefaultValues(mContext, R.xml.alarm_prefs, true);
+        PreferenceManager.setDefaultValues(mContext, R.xml.pebble_datasource_prefs, true);
+        PreferenceManager.setDefaultValues(mContext, R.xml.seizure_detector_prefs, true);
+        PreferenceManager.setDefaultValues(mContext, R.xml.network_passive_datasource_prefs, true);
+        mWebServer = new SdWebServer(mContext, new SdData(), null, 0);
+        mWebServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mWebServer.stop();
+    }
+
+    // One window of raw data: still (just gravity), or shaking at 5 Hz, which is in the seizure frequency band.
+    private static String makeWindow(boolean shaking) throws Exception {
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < N_SAMP; i++) {
+            double v = 1000 + (shaking ? 500 * Math.sin(2 * Math.PI * 5 * i / 25.0) : (i % 3));
+            data.put(v);
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("dataType", "raw");
+        obj.put("HR", 70);
+        obj.put("O2sat", 98);
+        obj.put("Mute", 0);
+        obj.put("data", data);
+        return obj.toString();
+    }
+
+    private String request(String method, String path, String body) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:"
+                + mWebServer.getListeningPort() + path).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            OutputStream os = conn.getOutputStream();
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+            os.close();
+        }
+        assertEquals(200, conn.getResponseCode());
+        InputStream is = conn.getInputStream();
+        String answer = new Scanner(is, "UTF-8").useDelimiter("\\A").next();
+        is.close();
+        return answer;
+    }
+
+    @Test
+    public void devicesHaveTheirOwnAlarmState() throws Exception {
+        String still = makeWindow(false);
+        String shaking = makeWindow(true);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(request("POST", "/data?device=bed1", still).matches("OK|sendSettings"));
+            assertTrue(request("POST", "/data?device=bed2", shaking).matches("OK|sendSettings"));
+        }
+        // The warning (second window) and the alarm (third window) from bed2 only.
+        SdDeviceHub hub = mWebServer.getDeviceHub();
+        assertEquals("OK", hub.getSnapshot("bed1").getData().alarmPhrase);
+        assertEquals("ALARM", hub.getSnapshot("bed2").getData().alarmPhrase);
+
+        JSONObject status = new JSONObject(request("GET", "/devices", null));
+        assertEquals(2, status.getInt("nDevices"));
+        assertEquals(2, status.getInt("alarmState"));
+        assertEquals("ALARM", status.getString("alarmPhrase"));
+        JSONArray devices = status.getJSONArray("devices");
+        assertEquals("bed1", devices.getJSONObject(0).getString("id"));
+        assertEquals(0, devices.getJSONObject(0).getInt("alarmState"));
+        assertEquals(3, devices.getJSONObject(1).getInt("windows"));
+
+        JSONObject bed2 = new JSONObject(request("GET", "/devices/bed2", null));
+        assertEquals(2, bed2.getInt("alarmState"));
+
+        // The watch's own settings still come from the main data source, which is untouched.
+        assertEquals(0, new JSONObject(request("GET", "/data", null)).getInt("alarmState"));
+    }
+
+    @Test
+    public void alarmsAreReportedPerDevice() throws Exception {
+        SdDeviceHub hub = new SdDeviceHub(mContext, new Handler(), (deviceId, snapshot) ->
+                mAlarms.add(deviceId + ":" + snapshot.getData().alarmPhrase));
+        try {
+            String still = makeWindow(false);
+            String shaking = makeWindow(true);
+            for (int i = 0; i < 3; i++) {
+                hub.submit("a", still).get();
+                hub.submit("b", shaking).get();
+            }
+            assertEquals(2, mAlarms.size());
+            assertEquals("b:WARNING", mAlarms.get(0));
+            assertEquals("b:ALARM", mAlarms.get(1));
+        } finally {
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void alarmTimesUseTheWatchAnalysisPeriod() throws Exception {
+        SdDeviceHub hub = new SdDeviceHub(mContext, new Handler(), (deviceId, snapshot) ->
+                mAlarms.add(deviceId + ":" + snapshot.getData().alarmPhrase));
+        try {
+            // 10 s windows, rather than the default 5 s, so with the default 5 s warning time and 10 s alarm time the
+            // first window of shaking gives a warning and the second an alarm.
+            JSONObject settings = new JSONObject();
+            settings.put("dataType", "settings");
+            settings.put("analysisPeriod", 10);
+            settings.put("sampleFreq", 25);
+            settings.put("battery", 80);
+            assertEquals("OK", hub.submit("a", settings.toString()).get());
+            String shaking = makeWindow(true);
+            hub.submit("a", shaking).get();
+            assertEquals(Collections.singletonList("a:WARNING"), mAlarms);
+            hub.submit("a", shaking).get();
+            assertEquals("a:ALARM", mAlarms.get(1));
+        } finally {
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void unusedDevicesAreRemoved() throws Exception {
+        SdDeviceHub hub = new SdDeviceHub(mContext, new Handler(), null);
+        try {
+            hub.submit("real", makeWindow(false)).get();
+            // Made up ids that never send a window of data.
+            for (int d = 1; d < SdDeviceHub.MAX_DEVICES; d++) {
+                hub.submit("junk" + d, "{\"dataType\": \"junk\"}").get();
+            }
+            try {
+                hub.submit("watch", makeWindow(false));
+                fail("expected the hub to be full");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            hub.checkDevices(System.currentTimeMillis() + SdDeviceHub.FAULT_TIMEOUT_MS + 1);
+            assertEquals(1, hub.getDeviceCount());
+            assertTrue(hub.submit("watch", makeWindow(false)).get().matches("OK|sendSettings"));
+            // A device that has sent data is kept while it is in FAULT, then forgotten.
+            hub.checkDevices(System.currentTimeMillis() + SdDeviceHub.DEVICE_EXPIRY_MS + 1);
+            assertEquals(0, hub.getDeviceCount());
+        } finally {
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void devicesCanBeDeleted() throws Exception {
+        request("POST", "/data?device=bed1", makeWindow(false));
+        request("POST", "/data?device=bed2", makeWindow(false));
+        request("DELETE", "/devices/bed1", null);
+        JSONObject status = new JSONObject(request("GET", "/devices", null));
+        assertEquals(1, status.getInt("nDevices"));
+        assertEquals("bed2", status.getJSONArray("devices").getJSONObject(0).getString("id"));
+    }
+
+    @Test
+    public void hubIsNotRestartedAfterStop() throws Exception {
+        SdDeviceHub hub = mWebServer.getDeviceHub();
+        mWebServer.stop();
+        assertSame(hub, mWebServer.getDeviceHub());
+        try {
+            hub.submit("bed1", makeWindow(false));
+            fail("expected a stopped hub to refuse data");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportStreamsPerCore() throws Exception {
+        SdDeviceHub hub = new SdDeviceHub(mContext, new Handler(), null);
+        try {
+            String[] windows = {makeWindow(false), makeWindow(true)};
+            // Warm up, and create every device's data source, before timing.
+            for (int d = 0; d < N_BENCH_DEVICES; d++) {
+                hub.submit("dev" + d, windows[d % 2]).get();
+            }
+            long t0 = System.nanoTime();
+            ArrayList<Future<String>> replies = new ArrayList<>();
+            // A window from every device at once, as each device only has SdDeviceHub.MAX_PENDING posts queued.
+            for (int w = 0; w < N_BENCH_WINDOWS; w++) {
+                int first = replies.size();
+                for (int d = 0; d < N_BENCH_DEVICES; d++) {
+                    replies.add(hub.submit("dev" + d, windows[d % 2]));
+                }
+                for (Future<String> reply : replies.subList(first, replies.size())) {
+                    assertTrue(reply.get().matches("OK|sendSettings"));
+                }
+            }
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            int cores = Math.min(SdDeviceHub.SHARDS, Runtime.getRuntime().availableProcessors());
+            double windowsPerCoreSecond = replies.size() / seconds / cores;
+            System.out.printf("%d devices x %d windows on %d workers: %.0f us per window, %.0f windows/s per core,"
+                            + " so one core keeps up with about %.0f devices sending 25 Hz data%n",
+                    N_BENCH_DEVICES, N_BENCH_WINDOWS, SdDeviceHub.SHARDS, 1e6 / windowsPerCoreSecond,
+                    windowsPerCoreSecond, windowsPerCoreSecond * WINDOW_SECONDS);
+            assertEquals(N_BENCH_DEVICES, hub.getDeviceCount());
+        } finally {
+            hub.stop();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Checks the MIME type, compression and caching headers of the web interface's static files.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdWebServerAssetTest {
+    private SdWebServer mWebServer;
+    private OkHttpClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mWebServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        mWebServer.start();
+        mClient = OsdHttpClient.forTimeouts(5000, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        mWebServer.stop();
+    }
+
+    private Request.Builder request(String path) {
+        return new Request.Builder().url("http://127.0.0.1:" + mWebServer.getListeningPort() + path);
+    }
+
+    @Test
+    public void assetsAreCompressedAndCached() throws Exception {
+        // Setting Accept-Encoding ourselves stops OkHttp from transparently decompressing the response.
+        byte[] plain;
+        try (Response response = mClient.newCall(request("/js/jquery.js")
+                .header("Accept-Encoding", "identity").build()).execute()) {
+            assertEquals(200, response.code());
+            assertNull(response.header("Content-Encoding"));
+            plain = response.body().bytes();
+            assertEquals(Long.toString(plain.length), response.header("Content-Length"));
+        }
+        byte[] gzipped;
+        String etag;
+        try (Response response = mClient.newCall(request("/js/jquery.js")
+                .header("Accept-Encoding", "gzip, deflate").build()).execute()) {
+            assertEquals(200, response.code());
+            assertTrue(response.header("Content-Type").startsWith("application/javascript"));
+            assertEquals("gzip", response.header("Content-Encoding"));
+            assertEquals("Accept-Encoding", response.header("Vary"));
+            assertEquals(WebAssetCache.CACHE_CONTROL_LIBRARY, response.header("Cache-Control"));
+            etag = response.header("ETag");
+            assertNotNull(etag);
+            gzipped = response.body().bytes();
+            assertEquals(Long.toString(gzipped.length), response.header("Content-Length"));
+        }
+        assertArrayEquals(plain, gunzip(gzipped));
+
+        try (Response response = mClient.newCall(request("/js/jquery.js")
+                .header("Accept-Encoding", "gzip").header("If-None-Match", etag).build()).execute()) {
+            assertEquals(304, response.code());
+            assertEquals(etag, response.header("ETag"));
+        }
+        // The asset was only read from the asset manager once.
+        assertEquals(1, mWebServer.getAssetCache().getLoadCount());
+        assertTrue(gzipped.length < plain.length);
+    }
+
+    @Test
+    public void mimeTypesAndCacheControl() throws Exception {
+        try (Response response = mClient.newCall(request("/").build()).execute()) {
+            assertEquals(200, response.code());
+            assertTrue(response.header("Content-Type").startsWith("text/html"));
+            assertEquals(WebAssetCache.CACHE_CONTROL_REVALIDATE, response.header("Cache-Control"));
+        }
+        try (Response response = mClient.newCall(request("/css/osd.css").build()).execute()) {
+            assertTrue(response.header("Content-Type").startsWith("text/css"));
+        }
+        try (Response response = mClient.newCall(request("/img/ok.jpg")
+                .header("Accept-Encoding", "gzip").build()).execute()) {
+            assertEquals("image/jpeg", response.header("Content-Type"));
+            // JPEGs are already compressed.
+            assertNull(response.header("Content-Encoding"));
+        }
+        try (Response response = mClient.newCall(request("/js/missing.js").build()).execute()) {
+            assertEquals(404, response.code());
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws Exception {
+        InputStream is = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Checks the conditional (If-None-Match) and delta (?since=) responses from SdWebServer's /data endpoint.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdWebServerDataTest {
+    private SdWebServer mWebServer;
+    private OkHttpClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mWebServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        mWebServer.start();
+        mClient = OsdHttpClient.forTimeouts(5000, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        mWebServer.stop();
+    }
+
+    private HttpUrl dataUrl() {
+        return HttpUrl.get("http://127.0.0.1:" + mWebServer.getListeningPort() + "/data");
+    }
+
+    @Test
+    public void conditionalAndDeltaResponses() throws Exception {
+        String etag;
+        String fullJson;
+        try (Response response = mClient.newCall(new Request.Builder().url(dataUrl()).build()).execute()) {
+            assertEquals(200, response.code());
+            etag = response.header("ETag");
+            assertNotNull(etag);
+            fullJson = response.body().string();
+        }
+
+        // Nothing has changed, so nothing is sent.
+        Request conditional = new Request.Builder()
+                .url(dataUrl().newBuilder().addQueryParameter("since", etag).build())
+                .header("If-None-Match", etag).build();
+        try (Response response = mClient.newCall(conditional).execute()) {
+            assertEquals(304, response.code());
+            assertEquals(etag, response.header("ETag"));
+        }
+
+        // After an update, only the changed fields are sent.
+        SdData sdData = new SdData();
+        sdData.alarmState = 2;
+        mWebServer.setSdData(sdData);
+        String deltaJson;
+        try (Response response = mClient.newCall(conditional).execute()) {
+            assertEquals(200, response.code());
+            assertNotEquals(etag, response.header("ETag"));
+            deltaJson = response.body().string();
+        }
+        JSONObject delta = new JSONObject(deltaJson);
+        assertEquals(etag, delta.getString(SdWebServer.DELTA_FROM));
+        assertEquals(2, delta.getInt("alarmState"));
+        assertFalse(delta.has("alarmFreqMin"));
+
+        // A version the server no longer has gets the whole object.
+        Request unknown = new Request.Builder()
+                .url(dataUrl().newBuilder().addQueryParameter("since", "\"unknown\"").build()).build();
+        try (Response response = mClient.newCall(unknown).execute()) {
+            JSONObject full = new JSONObject(response.body().string());
+            assertFalse(full.has(SdWebServer.DELTA_FROM));
+            assertTrue(full.has("alarmFreqMin"));
+        }
+        assertTrue(deltaJson.length() < fullJson.length());
+    }
+}
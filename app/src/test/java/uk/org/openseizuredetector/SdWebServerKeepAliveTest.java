@@ -0,0 +1,239 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Checks that SdWebServer serves several requests on one connection, including pipelined ones and POSTs whose bodies
+ * serve() reads itself.   reportSequentialRequestLatency() (a PerformanceTest) prints the median and 99th percentile
+ * time for sequential requests on a kept-alive connection and on a new connection each.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdWebServerKeepAliveTest {
+    private static final int N_REQUESTS = 1000;
+    private SdWebServer mWebServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mWebServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        mWebServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mWebServer.stop();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", mWebServer.getListeningPort());
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    /**
+     * Replies with the part of the request body that it read - "all" reads session.getInputStream() to the end,
+     * "some" reads the first 4 bytes and leaves the rest, "parse" uses parseBody().
+     */
+    private static class BodyEchoServer extends NanoHTTPD {
+        BodyEchoServer(boolean useNio) {
+            super("127.0.0.1", 0);
+            setUseNio(useNio);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            try {
+                String read = session.getUri().substring(1);
+                if (read.equals("parse")) {
+                    Map<String, String> files = new HashMap<>();
+                    session.parseBody(files);
+                    return new Response(Response.Status.OK, MIME_PLAINTEXT, files.get("postData"));
+                }
+                InputStream in = session.getInputStream();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                int c;
+                while ((read.equals("all") || body.size() < 4) && (c = in.read()) >= 0) {
+                    body.write(c);
+                }
+                return new Response(Response.Status.OK, MIME_PLAINTEXT, body.toString("UTF-8"));
+            } catch (Exception e) {
+                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.toString());
+            }
+        }
+    }
+
+    private static byte[] post(String path, String body) {
+        return ("POST " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nContent-Length: "
+                + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Read one response, and return its body.
+    private static String readBody(InputStream in) throws IOException {
+        String headers = readResponse(in, true);
+        return headers.substring(headers.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static byte[] request(boolean close) {
+        return ("GET /data HTTP/1.1\r\nHost: localhost\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Read one response, and return its headers.
+    private static String readResponse(InputStream in) throws IOException {
+        return readResponse(in, false);
+    }
+
+    // Read one response, and return its headers, followed by its body if withBody.
+    private static String readResponse(InputStream in, boolean withBody) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        while (!headers.toString("UTF-8").endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) throw new IOException("Connection closed");
+            headers.write(c);
+        }
+        String h = headers.toString("UTF-8");
+        String lower = h.toLowerCase(Locale.US);
+        int i = lower.indexOf("content-length:");
+        int len = Integer.parseInt(lower.substring(i + 15, lower.indexOf('\r', i)).trim());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int n = 0; n < len; n++) {
+            int c = in.read();
+            if (c < 0) throw new IOException("Connection closed");
+            body.write(c);
+        }
+        return withBody ? h + body.toString("UTF-8") : h;
+    }
+
+    @Test
+    public void pipelinedRequestsAreAllAnswered() throws Exception {
+        try (Socket socket = connect()) {
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            for (int i = 0; i < 3; i++) requests.write(request(false));
+            socket.getOutputStream().write(requests.toByteArray());
+            for (int i = 0; i < 3; i++) {
+                assertTrue(readResponse(socket.getInputStream()).startsWith("HTTP/1.1 200"));
+            }
+            // The connection stays open for more.
+            socket.getOutputStream().write(request(true));
+            assertTrue(readResponse(socket.getInputStream()).contains("Connection: close"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void pipelinedPostsWithBodiesReadByServe() throws Exception {
+        for (boolean useNio : new boolean[]{false, true}) {
+            BodyEchoServer server = new BodyEchoServer(useNio);
+            server.start();
+            try (Socket socket = new Socket("127.0.0.1", server.getListeningPort())) {
+                socket.setSoTimeout(5000);
+                ByteArrayOutputStream requests = new ByteArrayOutputStream();
+                requests.write(post("/some", "{\"first\":1}"));
+                requests.write(post("/all", "{\"second\":2}"));
+                requests.write(post("/parse", "{\"third\":3}"));
+                requests.write(post("/all", "{\"fourth\":4}"));
+                socket.getOutputStream().write(requests.toByteArray());
+                InputStream in = socket.getInputStream();
+                // The unread part of the first body is skipped, and no body runs into the next request.
+                assertEquals("{\"fi", readBody(in));
+                assertEquals("{\"second\":2}", readBody(in));
+                assertEquals("{\"third\":3}", readBody(in));
+                assertEquals("{\"fourth\":4}", readBody(in));
+                // One at a time, as the Garmin watch and the upload client send them.
+                for (int i = 0; i < 3; i++) {
+                    socket.getOutputStream().write(post("/all", "{\"n\":" + i + "}"));
+                    assertEquals("{\"n\":" + i + "}", readBody(in));
+                }
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void chunkedBodiesAreRejected() throws Exception {
+        for (boolean useNio : new boolean[]{false, true}) {
+            BodyEchoServer server = new BodyEchoServer(useNio);
+            server.start();
+            try (Socket socket = new Socket("127.0.0.1", server.getListeningPort())) {
+                socket.setSoTimeout(5000);
+                // The chunk looks like a request, but must not be answered as one.
+                String chunk = "GET /all HTTP/1.1\r\nHost: localhost\r\n\r\n";
+                socket.getOutputStream().write(("POST /all HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + Integer.toHexString(chunk.length()) + "\r\n" + chunk + "\r\n0\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                String response = readResponse(socket.getInputStream());
+                assertTrue(response, response.startsWith("HTTP/1.1 501"));
+                assertTrue(response.contains("Connection: close"));
+                assertEquals(-1, socket.getInputStream().read());
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void resetConnectionsDoNotStopTheServer() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Socket socket = connect();
+            socket.getOutputStream().write("GET /data HTTP/1.1\r\nHost: loc".getBytes(StandardCharsets.UTF_8));
+            // Close with a reset rather than a FIN.
+            socket.setSoLinger(true, 0);
+            socket.close();
+        }
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(request(true));
+            assertTrue(readResponse(socket.getInputStream()).startsWith("HTTP/1.1 200"));
+        }
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportSequentialRequestLatency() throws Exception {
+        for (boolean keepAlive : new boolean[]{false, true}) {
+            long[] times = new long[N_REQUESTS];
+            Socket socket = null;
+            for (int i = 0; i < N_REQUESTS; i++) {
+                long t0 = System.nanoTime();
+                if (socket == null) socket = connect();
+                socket.getOutputStream().write(request(!keepAlive));
+                readResponse(socket.getInputStream());
+                if (!keepAlive) {
+                    socket.close();
+                    socket = null;
+                }
+                times[i] = System.nanoTime() - t0;
+            }
+            if (socket != null) socket.close();
+            Arrays.sort(times);
+            System.out.printf("%s: median %.0f us, p99 %.0f us over %d requests%n",
+                    keepAlive ? "kept-alive connection" : "new connection each", times[N_REQUESTS / 2] / 1e3,
+                    times[N_REQUESTS * 99 / 100] / 1e3, N_REQUESTS);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that idle connections to SdWebServer do not use threads.   threadsAreBoundedUnderLoad() (a PerformanceTest)
+ * polls /data from increasing numbers of concurrent clients, and prints the requests per second, the number of 503
+ * (server busy) responses and the peak number of server threads.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdWebServerLoadTest {
+    private static final long RUN_MS = 2000;
+    private SdWebServer mWebServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mWebServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        mWebServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mWebServer.stop();
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void threadsAreBoundedUnderLoad() throws Exception {
+        String url = "http://127.0.0.1:" + mWebServer.getListeningPort() + "/data";
+        for (int nClients : new int[]{4, 16, 64, 256}) {
+            AtomicInteger ok = new AtomicInteger();
+            AtomicInteger busy = new AtomicInteger();
+            AtomicInteger other = new AtomicInteger();
+            long deadline = System.currentTimeMillis() + RUN_MS;
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < nClients; i++) {
+                Thread t = new Thread(() -> {
+                    while (System.currentTimeMillis() < deadline) {
+                        try {
+                            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+                            int code = conn.getResponseCode();
+                            InputStream is = (code < 400) ? conn.getInputStream() : conn.getErrorStream();
+                            if (is != null) {
+                                while (is.read() >= 0) ;
+                                is.close();
+                            }
+                            if (code == 200) ok.incrementAndGet();
+                            else if (code == 503) busy.incrementAndGet();
+                            else other.incrementAndGet();
+                        } catch (IOException e) {
+                            other.incrementAndGet();
+                        }
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            int peakThreads = 0;
+            while (System.currentTimeMillis() < deadline) {
+                peakThreads = Math.max(peakThreads, mWebServer.getAsyncRunner().getThreadCount());
+                Thread.sleep(10);
+            }
+            for (Thread t : threads) t.join();
+
+            assertTrue(peakThreads <= SdWebServer.MAX_THREADS);
+            assertEquals(0, other.get());
+            System.out.printf("%d clients: %.0f requests/s, %d busy (503) responses, peak %d server threads%n",
+                    nClients, ok.get() * 1000.0 / RUN_MS, busy.get(), peakThreads);
+        }
+    }
+
+    /**
+     * Idle kept-alive connections do not hold a server thread, so they do not stop other clients being served.
+     */
+    @Test
+    public void idleConnectionsDoNotUseThreads() throws Exception {
+        int nIdle = 4 * (SdWebServer.MAX_THREADS + SdWebServer.MAX_QUEUED_REQUESTS);
+        ArrayList<Socket> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < nIdle; i++) {
+                idle.add(new Socket("127.0.0.1", mWebServer.getListeningPort()));
+            }
+            for (Socket socket : idle) {
+                socket.getOutputStream().write("GET /data HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .getBytes(StandardCharsets.UTF_8));
+                byte[] buf = new byte[64];
+                int n = socket.getInputStream().read(buf);
+                assertTrue(new String(buf, 0, n, StandardCharsets.UTF_8).startsWith("HTTP/1.1 200"));
+            }
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:"
+                    + mWebServer.getListeningPort() + "/data").openConnection();
+            assertEquals(200, conn.getResponseCode());
+            conn.getInputStream().close();
+            assertTrue(mWebServer.getAsyncRunner().getThreadCount() <= SdWebServer.MAX_THREADS);
+        } finally {
+            for (Socket socket : idle) socket.close();
+        }
+    }
+}
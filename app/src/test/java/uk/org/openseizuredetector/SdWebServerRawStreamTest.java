@@ -0,0 +1,218 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscribes to SdWebServer's /rawstream WebSocket and checks the raw data messages, then checks that subscribers
+ * which never read have messages dropped without holding up setSdData() or the other subscribers.
+ * reportStalledSubscriberLoad() (a PerformanceTest) does the same with many subscribers, and prints the time taken by
+ * setSdData() and the number of messages delivered and dropped.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class SdWebServerRawStreamTest {
+    private static final int N_SAMP = 500;
+    private static final int N_WINDOWS = 400;
+    private static final int N_BENCH_READERS = 48;
+    private static final int N_BENCH_STALLED = 8;
+    private static final long BENCH_WINDOW_INTERVAL_MS = 10;
+    private SdWebServer mWebServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mWebServer = new SdWebServer(ApplicationProvider.getApplicationContext(), new SdData(), null, 0);
+        mWebServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mWebServer.stop();
+    }
+
+    private SdData makeSdData(int window) {
+        SdData sdData = new SdData();
+        sdData.mNsamp = N_SAMP;
+        sdData.mSampleFreq = 100;
+        for (int i = 0; i < N_SAMP; i++) {
+            sdData.rawData[i] = 1000 + window + i;
+            sdData.rawData3D[3 * i] = i;
+            sdData.rawData3D[3 * i + 1] = -i;
+            sdData.rawData3D[3 * i + 2] = window;
+        }
+        return sdData;
+    }
+
+    // Open a WebSocket to /rawstream, checking the handshake response.
+    private Socket connect(int receiveBufferSize) throws IOException {
+        Socket socket = new Socket();
+        if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+        socket.connect(new InetSocketAddress("127.0.0.1", mWebServer.getListeningPort()));
+        socket.getOutputStream().write(("GET /rawstream HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        InputStream is = socket.getInputStream();
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            int b = is.read();
+            if (b < 0) throw new IOException("Connection closed during handshake");
+            response.append((char) b);
+        }
+        assertTrue(response.toString(), response.toString().startsWith("HTTP/1.1 101"));
+        // The example key and accept value from RFC 6455.
+        assertTrue(response.toString().contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        return socket;
+    }
+
+    // Read one server frame and return its payload.
+    private static byte[] readMessage(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        assertEquals(0x82, b0);
+        int len = in.readUnsignedByte();
+        if (len == 126) {
+            len = in.readUnsignedShort();
+        } else if (len == 127) {
+            len = (int) in.readLong();
+        }
+        byte[] payload = new byte[len];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private void awaitSubscribers(int n) throws InterruptedException {
+        RawDataStream stream = mWebServer.getRawDataStream();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stream.getSubscriberCount() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, stream.getSubscriberCount());
+    }
+
+    @Test
+    public void rawDataIsSentAsBinaryMessages() throws Exception {
+        Socket socket = connect(0);
+        try {
+            awaitSubscribers(1);
+            mWebServer.setSdData(makeSdData(7));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            ByteBuffer msg = ByteBuffer.wrap(readMessage(in)).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(RawDataStream.HEADER_SIZE + 16 * N_SAMP, msg.remaining());
+            assertTrue(Math.abs(msg.getLong() - System.currentTimeMillis()) < 10000);
+            assertEquals(1, msg.getInt());
+            assertEquals(N_SAMP, msg.getInt());
+            assertEquals(100, msg.getInt());
+            for (int i = 0; i < N_SAMP; i++) {
+                assertEquals(1007 + i, msg.getFloat(), 0);
+            }
+            for (int i = 0; i < N_SAMP; i++) {
+                assertEquals(i, msg.getFloat(), 0);
+                assertEquals(-i, msg.getFloat(), 0);
+                assertEquals(7, msg.getFloat(), 0);
+            }
+        } finally {
+            socket.close();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mWebServer.getRawDataStream().getSubscriberCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mWebServer.getRawDataStream().getSubscriberCount());
+    }
+
+    /**
+     * Send N_WINDOWS windows, one every intervalMs, to nReaders subscribers that read them all and nStalled that
+     * never read, check every reader got every window in order, and return {mean, max} time taken by setSdData() in
+     * ns, the messages delivered and the messages dropped.
+     */
+    private long[] sendToStalledSubscribers(int nReaders, int nStalled, long intervalMs) throws Exception {
+        ArrayList<Socket> sockets = new ArrayList<>();
+        ArrayList<Thread> readers = new ArrayList<>();
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        try {
+            for (int i = 0; i < nReaders; i++) {
+                Socket socket = connect(0);
+                sockets.add(socket);
+                Thread t = new Thread(() -> {
+                    try {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        for (int seq = 1; seq <= N_WINDOWS; seq++) {
+                            ByteBuffer msg = ByteBuffer.wrap(readMessage(in)).order(ByteOrder.LITTLE_ENDIAN);
+                            if (msg.getInt(8) != seq) outOfOrder.incrementAndGet();
+                            received.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        // Counted as missing messages.
+                    }
+                });
+                readers.add(t);
+                t.start();
+            }
+            // These clients never read, and have small receive buffers so that the server's queue fills quickly.
+            for (int i = 0; i < nStalled; i++) {
+                sockets.add(connect(1024));
+            }
+            awaitSubscribers(nReaders + nStalled);
+
+            ArrayList<SdData> windows = new ArrayList<>();
+            for (int i = 0; i < N_WINDOWS; i++) windows.add(makeSdData(i));
+            long maxNs = 0;
+            long totalNs = 0;
+            for (SdData sdData : windows) {
+                long t0 = System.nanoTime();
+                mWebServer.setSdData(sdData);
+                long dt = System.nanoTime() - t0;
+                totalNs += dt;
+                maxNs = Math.max(maxNs, dt);
+                Thread.sleep(intervalMs);
+            }
+            for (Thread t : readers) t.join(10000);
+
+            assertEquals(nReaders * N_WINDOWS, received.get());
+            assertEquals(0, outOfOrder.get());
+            long dropped = mWebServer.getRawDataStream().getDroppedFrames();
+            // The socket buffers take the first messages to the stalled clients, then they are dropped.
+            assertTrue(dropped > 0);
+            return new long[]{totalNs / N_WINDOWS, maxNs, received.get(), dropped};
+        } finally {
+            for (Socket socket : sockets) socket.close();
+        }
+    }
+
+    @Test
+    public void stalledSubscribersDoNotHoldUpOthers() throws Exception {
+        sendToStalledSubscribers(4, 2, 2);
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportStalledSubscriberLoad() throws Exception {
+        long[] r = sendToStalledSubscribers(N_BENCH_READERS, N_BENCH_STALLED, BENCH_WINDOW_INTERVAL_MS);
+        System.out.printf("%d readers + %d stalled subscribers: setSdData() mean %.0f us, max %.0f us; "
+                        + "%d messages delivered, %d dropped%n", N_BENCH_READERS, N_BENCH_STALLED,
+                r[0] / 1e3, r[1] / 1e3, r[2], r[3]);
+    }
+}
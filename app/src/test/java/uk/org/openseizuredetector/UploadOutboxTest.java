@@ -0,0 +1,62 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class UploadOutboxTest {
+    private static final long NOW = 1640995200000L;
+
+    @Test
+    public void retryDelayBacksOffWithJitter() {
+        Random r = new Random(1);
+        for (int attempts = 1; attempts < 20; attempts++) {
+            long max = Math.min(UploadOutbox.BASE_RETRY_DELAY_MS << Math.min(attempts - 1, 16),
+                    UploadOutbox.MAX_RETRY_DELAY_MS);
+            long delay = UploadOutbox.getRetryDelay(attempts, r);
+            assertTrue(delay >= max / 2 && delay <= max);
+        }
+    }
+
+    @Test
+    public void failedEventIsRetriedAfterBackoffAndKeepsItsKey() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE events(id INTEGER PRIMARY KEY, dataTime DATETIME, status INT, uploaded TEXT)");
+        db.execSQL("INSERT INTO events(dataTime, status) VALUES('2022-01-01 10:00:00', 2)");
+        UploadOutbox.createTable(db);
+        UploadOutbox outbox = new UploadOutbox(new OsdStatementCache(db));
+
+        outbox.enqueueEvents(db, "uploaded IS NULL", new String[0], NOW);
+        // Enqueueing again (e.g. after a restart) does not create a second item or a new key.
+        UploadOutbox.Item item = outbox.getEventItem(db, 1);
+        assertNotNull(item);
+        outbox.enqueueEvents(db, "uploaded IS NULL", new String[0], NOW);
+        assertEquals(item.idempotencyKey, outbox.getEventItem(db, 1).idempotencyKey);
+        assertEquals(1, outbox.getDueEvents(db, NOW, 10).size());
+
+        outbox.recordResult(item, false, null, NOW);
+        assertEquals(0, outbox.getDueEvents(db, NOW, 10).size());
+        List<Long> due = outbox.getDueEvents(db, NOW + UploadOutbox.BASE_RETRY_DELAY_MS, 10);
+        assertEquals(1, due.size());
+
+        outbox.recordResult(item, true, "42", NOW);
+        UploadOutbox.Item sent = outbox.getEventItem(db, 1);
+        assertEquals(UploadOutbox.STATUS_SENT, sent.status);
+        assertEquals("42", sent.remoteId);
+        assertEquals(item.idempotencyKey, sent.idempotencyKey);
+        db.close();
+    }
+}
@@ -0,0 +1,75 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Build;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class UploadSchedulerTest {
+    private int mPasses = 0;
+
+    private void idleFor(long ms) {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(ms));
+    }
+
+    @Test
+    public void backsOffWhenIdleAndSpeedsUpWithBacklogOnWifi() {
+        UploadScheduler s = new UploadScheduler(() -> mPasses++, 60);
+        s.onNetworkChanged(true, false);
+        s.start();
+        idleFor(60 * 1000);
+        assertEquals(1, mPasses);
+
+        // Nothing to upload - the period doubles up to the maximum.
+        s.setBacklog(0);
+        s.onUploadsIdle();
+        assertEquals(120 * 1000, s.getPeriodMs());
+        for (int i = 0; i < 10; i++) s.onUploadsIdle();
+        assertEquals(UploadScheduler.MAX_PERIOD_MS, s.getPeriodMs());
+
+        // Joining a Wifi network triggers a pass soon afterwards, and a backlog is then drained quickly.
+        s.onNetworkChanged(true, true);
+        s.onNetworkChanged(true, true);
+        idleFor(UploadScheduler.COALESCE_MS);
+        assertEquals(2, mPasses);
+        s.setBacklog(5);
+        s.onUploadsIdle();
+        assertEquals(UploadScheduler.MIN_PERIOD_MS, s.getPeriodMs());
+
+        // On a metered network the backlog is uploaded at the configured period.
+        s.onNetworkChanged(true, false);
+        s.onUploadsIdle();
+        assertEquals(60 * 1000, s.getPeriodMs());
+        s.stop();
+    }
+
+    @Test
+    public void radioTimeIncludesTailAndMergesBursts() {
+        UploadScheduler s = new UploadScheduler(() -> mPasses++, 60);
+        s.setBacklog(1);
+        s.onUploadsStarted();
+        idleFor(2000);
+        s.onUploadsIdle();
+        assertEquals(2000 + UploadScheduler.RADIO_TAIL_MS, s.getRadioActiveMs());
+        assertEquals(1, s.getRadioWakeups());
+
+        // A second burst within the tail extends the same radio wake-up.
+        idleFor(1000);
+        s.onUploadsStarted();
+        idleFor(1000);
+        s.onUploadsIdle();
+        assertEquals(4000 + UploadScheduler.RADIO_TAIL_MS, s.getRadioActiveMs());
+        assertEquals(1, s.getRadioWakeups());
+        s.stop();
+    }
+}
@@ -0,0 +1,195 @@
+package uk.org.openseizuredetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Build;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests bulk datapoint upload against a local stand-in server, and the fall back to uploading one datapoint per
+ * request.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {Build.VERSION_CODES.O_MR1}, packageName = "uk.org.openseizuredetector")
+public class WebApiConnectionBulkTest {
+    private static final long LATENCY_MS = 20;
+    private static final int N_DATAPOINTS = 24;   // A 120 second event.
+    private MockOsdApiServer mServer;
+
+    @After
+    public void tearDown() {
+        if (mServer != null) mServer.stop();
+    }
+
+    private List<JSONObject> makeDatapoints(int n) throws Exception {
+        ArrayList<JSONObject> dps = new ArrayList<>();
+        JSONArray raw = new JSONArray();
+        for (int i = 0; i < 125; i++) raw.put(1000 + i);
+        for (int i = 0; i < n; i++) {
+            JSONObject dp = new JSONObject();
+            dp.put("id", i + 1);
+            dp.put("dataTime", String.format("2022-01-01 10:%02d:%02d", (i * 5) / 60, (i * 5) % 60));
+            dp.put("rawData", raw);
+            dps.add(dp);
+        }
+        return dps;
+    }
+
+    private WebApiConnection_osdapi startServer(boolean bulkSupported) throws Exception {
+        mServer = new MockOsdApiServer(LATENCY_MS, bulkSupported);
+        mServer.start();
+        WebApiConnection_osdapi wac = new WebApiConnection_osdapi(ApplicationProvider.getApplicationContext(),
+                mServer.getUrlBase());
+        wac.setStoredToken("test-token");
+        return wac;
+    }
+
+    // Volley delivers its responses on the main looper, so keep running it until the callback has been called.
+    private List<String> waitForResults(AtomicReference<List<String>> ref) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (ref.get() == null && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(2);
+        }
+        assertNotNull("timed out waiting for upload", ref.get());
+        return ref.get();
+    }
+
+    private <T> T waitFor(AtomicReference<T> ref) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (ref.get() == null && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(2);
+        }
+        assertNotNull("timed out waiting for reply", ref.get());
+        return ref.get();
+    }
+
+    @Test
+    public void testMakeChunks() throws Exception {
+        List<JSONObject> dps = makeDatapoints(120);
+        assertEquals(3, WebApiConnection_osdapi.makeChunks(dps, 50, Integer.MAX_VALUE).size());
+        int itemBytes = dps.get(0).toString().length();
+        List<JSONArray> chunks = WebApiConnection_osdapi.makeChunks(dps, 50, itemBytes * 10 + 10);
+        assertEquals(12, chunks.size());
+        // An item bigger than the byte limit still gets sent, on its own.
+        assertEquals(120, WebApiConnection_osdapi.makeChunks(dps, 50, 10).size());
+    }
+
+    @Test
+    public void testBulkUploadMapsResultsToDatapoints() throws Exception {
+        WebApiConnection_osdapi wac = startServer(true);
+        mServer.setCapabilities("{\"datapointFormats\": [\"json\"], \"contentEncodings\": [\"gzip\"]}");
+        AtomicReference<List<String>> results = new AtomicReference<>();
+        wac.createDatapoints(makeDatapoints(N_DATAPOINTS), "event1", results::set);
+        List<String> r = waitForResults(results);
+
+        assertEquals(N_DATAPOINTS, r.size());
+        for (int i = 0; i < N_DATAPOINTS; i++) {
+            JSONObject created = new JSONObject(r.get(i));
+            assertEquals("event1", created.getString("eventId"));
+            assertEquals(i + 1, created.getInt("id"));
+        }
+        assertEquals(1, mServer.mRequestCount.get());
+        assertEquals(1, mServer.mGzipRequestCount.get());
+    }
+
+    @Test
+    public void testBulkRequestsOnlyCompressedIfServerAcceptsGzip() throws Exception {
+        // An older server without the capabilities endpoint.
+        WebApiConnection_osdapi wac = startServer(true);
+        AtomicReference<List<String>> results = new AtomicReference<>();
+        wac.createDatapoints(makeDatapoints(N_DATAPOINTS), "event1", results::set);
+        List<String> r = waitForResults(results);
+        for (String s : r) assertNotNull(s);
+        assertEquals(1, mServer.mRequestCount.get());
+        assertEquals(0, mServer.mGzipRequestCount.get());
+    }
+
+    @Test
+    public void testCompactFormatOnlyUsedIfServerSupportsIt() throws Exception {
+        WebApiConnection_osdapi wac = startServer(true);
+        AtomicReference<List<String>> results = new AtomicReference<>();
+        wac.createDatapoints(makeDatapoints(N_DATAPOINTS), "event1", results::set);
+        waitForResults(results);
+        assertEquals(0, mServer.mCompactDatapointCount.get());
+
+        mServer.stop();
+        WebApiConnection_osdapi wac2 = startServer(true);
+        mServer.setCapabilities("{\"datapointFormats\": [\"json\", \"" + DatapointCodec.COMPACT_FORMAT
+                + "\"], \"contentEncodings\": [\"gzip\"]}");
+        results.set(null);
+        wac2.createDatapoints(makeDatapoints(N_DATAPOINTS), "event1", results::set);
+        assertEquals(N_DATAPOINTS, waitForResults(results).size());
+        assertEquals(N_DATAPOINTS, mServer.mCompactDatapointCount.get());
+    }
+
+    @Test
+    public void testIdempotencyKeyOnlySentToServersThatSupportIt() throws Exception {
+        for (boolean supported : new boolean[]{false, true}) {
+            WebApiConnection_osdapi wac = startServer(true);
+            mServer.setCapabilities("{\"datapointFormats\": [\"json\"], \"idempotencyKeys\": " + supported + "}");
+            List<JSONObject> dps = makeDatapoints(2);
+            for (JSONObject dp : dps) dp.put(WebApiConnection.IDEMPOTENCY_KEY, "key" + dp.getInt("id"));
+            AtomicReference<List<String>> results = new AtomicReference<>();
+            wac.createDatapoints(dps, "event1", results::set);
+            List<String> r = waitForResults(results);
+            // The server echoes the fields it was sent, apart from the data.
+            assertEquals(supported, new JSONObject(r.get(0)).has(WebApiConnection.IDEMPOTENCY_KEY));
+            // The caller's datapoints are not changed.
+            assertEquals("key1", dps.get(0).getString(WebApiConnection.IDEMPOTENCY_KEY));
+            mServer.stop();
+        }
+    }
+
+    @Test
+    public void testLoginAndEventTypes() throws Exception {
+        WebApiConnection_osdapi wac = startServer(true);
+        AtomicReference<String> token = new AtomicReference<>();
+        wac.authenticate(MockOsdApiServer.USER, "wrong", (String t) -> token.set(t == null ? "failed" : t));
+        waitFor(token);
+        assertEquals("failed", token.get());
+
+        token.set(null);
+        wac.authenticate(MockOsdApiServer.USER, MockOsdApiServer.PASSWORD, token::set);
+        assertEquals(MockOsdApiServer.TOKEN, waitFor(token));
+
+        AtomicReference<JSONObject> types = new AtomicReference<>();
+        wac.getEventTypes(types::set);
+        assertNotNull(waitFor(types).getJSONArray("Seizure"));
+    }
+
+    @Test
+    public void testFallbackToSingleUploads() throws Exception {
+        WebApiConnection_osdapi wac = startServer(false);
+        AtomicReference<List<String>> results = new AtomicReference<>();
+        wac.createDatapoints(makeDatapoints(N_DATAPOINTS), "event1", results::set);
+        List<String> r = waitForResults(results);
+
+        assertEquals(N_DATAPOINTS, r.size());
+        for (String s : r) assertNotNull(s);
+        // One rejected bulk request, then one request per datapoint.
+        assertEquals(N_DATAPOINTS + 1, mServer.mRequestCount.get());
+        // The next upload does not try the bulk endpoint again straight away.
+        results.set(null);
+        wac.createDatapoints(makeDatapoints(N_DATAPOINTS), "event1", results::set);
+        waitForResults(results);
+        assertEquals(2 * N_DATAPOINTS + 1, mServer.mRequestCount.get());
+    }
+}
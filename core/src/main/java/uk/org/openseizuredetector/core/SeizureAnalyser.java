@@ -0,0 +1,249 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector.core;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * SeizureAnalyser is the seizure detection algorithm used by SdDataSource, with no Android dependencies so that it can
+ * also be run (and benchmarked) on an ordinary JVM, such as a server receiving data from many watches.
+ * It calculates the spectrum of a window of accelerometer data, the power in the seizure frequency band (the region of
+ * interest) relative to the whole spectrum, and keeps the count of consecutive alarm periods that decides whether we
+ * are in an OK, WARNING or ALARM state.   It also holds the simple threshold fall detection.
+ * An instance keeps state between windows, so it is used for one data stream, from one thread at a time.
+ */
+public class SeizureAnalyser {
+    // Values of SdData.alarmState used by the alarm state machine.
+    public static final long ALARM_STATE_OK = 0;
+    public static final long ALARM_STATE_WARNING = 1;
+    public static final long ALARM_STATE_ALARM = 2;
+
+    public static final int SIMPLE_SPEC_FMAX = 10;
+    // Amount by which to reduce analysis results to scale to be comparable to analysis on Pebble.
+    public static final int ACCEL_SCALE_FACTOR = 1000;
+
+    private int mFreqCutoff = 12;
+    private int mAlarmFreqMin = 3;
+    private int mAlarmFreqMax = 10;
+    private int mAlarmThresh = 100;
+    private int mAlarmRatioThresh = 50;
+    private int mWarnTime = 5;
+    private int mAlarmTime = 10;
+    private int mSamplePeriod = 5;
+    private int mFallThreshMin = 200;
+    private int mFallThreshMax = 1200;
+    private int mFallWindow = 1500;
+
+    private int mAlarmCount;
+    // The FFT plan and its work array are re-used while the window length stays the same.
+    private DoubleFFT_1D mFftDo;
+    private double[] mFft;
+
+    /**
+     * The results of analysing one window of data, scaled as they are stored in SdData.
+     */
+    public static class Result {
+        public long specPower;
+        public long roiPower;
+        public final int[] simpleSpec = new int[SIMPLE_SPEC_FMAX];
+    }
+
+    /**
+     * Set the seizure frequency band (the region of interest), in Hz.
+     */
+    public void setFrequencyBand(int alarmFreqMin, int alarmFreqMax) {
+        mAlarmFreqMin = alarmFreqMin;
+        mAlarmFreqMax = alarmFreqMax;
+    }
+
+    /**
+     * Set the region of interest power that represents an alarm, and the ratio (x10) of region of interest power to
+     * whole spectrum power.
+     */
+    public void setAlarmThresholds(int alarmThresh, int alarmRatioThresh) {
+        mAlarmThresh = alarmThresh;
+        mAlarmRatioThresh = alarmRatioThresh;
+    }
+
+    /**
+     * Set the time (in seconds) that movement must continue before a warning and an alarm are raised, and the time
+     * represented by each window of data.
+     */
+    public void setAlarmTimes(int warnTime, int alarmTime, int samplePeriod) {
+        mWarnTime = warnTime;
+        mAlarmTime = alarmTime;
+        mSamplePeriod = samplePeriod;
+    }
+
+    /**
+     * Set the fall detection thresholds (in milli-g) and the window (in ms) in which the acceleration must drop below
+     * fallThreshMin and rise above fallThreshMax.
+     */
+    public void setFallThresholds(int fallThreshMin, int fallThreshMax, int fallWindow) {
+        mFallThreshMin = fallThreshMin;
+        mFallThreshMax = fallThreshMax;
+        mFallWindow = fallWindow;
+    }
+
+    /**
+     * Calculate the magnitude of entry i in the fft array fft
+     *
+     * @return magnitude ( Re*Re + Im*Im )
+     */
+    private static double getMagnitude(double[] fft, int i) {
+        return (fft[2 * i] * fft[2 * i] + fft[2 * i + 1] * fft[2 * i + 1]);
+    }
+
+    /**
+     * Analyse the first nSamp values of rawData (acceleration magnitude, sampled at sampleFreq Hz).
+     */
+    public Result analyse(double[] rawData, int nSamp, int sampleFreq) {
+        double freqRes = 1.0 * sampleFreq / nSamp;
+        // Set the frequency bounds for the analysis in fft output bin numbers.
+        int nMin = (int) (mAlarmFreqMin / freqRes);
+        int nMax = (int) (mAlarmFreqMax / freqRes);
+        // Calculate the bin number of the cutoff frequency
+        int nFreqCutoff = (int) (mFreqCutoff / freqRes);
+
+        if (mFft == null || mFft.length != nSamp * 2) {
+            mFftDo = new DoubleFFT_1D(nSamp);
+            mFft = new double[nSamp * 2];
+        }
+        double[] fft = mFft;
+        // realForward() only uses (and writes) the first nSamp values - the rest of the array stays zero.
+        System.arraycopy(rawData, 0, fft, 0, nSamp);
+        mFftDo.realForward(fft);
+
+        // Calculate the whole spectrum power (well a value equivalent to it that avoids square root calculations
+        // and zero any readings that are above the frequency cutoff.
+        double specPower = 0;
+        for (int i = 1; i < nSamp / 2; i++) {
+            if (i <= nFreqCutoff) {
+                specPower = specPower + getMagnitude(fft, i);
+            } else {
+                fft[2 * i] = 0.;
+                fft[2 * i + 1] = 0.;
+            }
+        }
+        specPower = specPower / nSamp / 2;
+
+        // Calculate the Region of Interest power.
+        double roiPower = 0;
+        for (int i = nMin; i < nMax; i++) {
+            roiPower = roiPower + getMagnitude(fft, i);
+        }
+        roiPower = roiPower / (nMax - nMin);
+
+        Result result = new Result();
+        // FIXME - I haven't worked out why dividing by 1000 seems necessary to get the graph on scale - we don't seem to do that with the Pebble.
+        result.specPower = (long) specPower / ACCEL_SCALE_FACTOR;
+        result.roiPower = (long) roiPower / ACCEL_SCALE_FACTOR;
+        // Calculate the simplified spectrum - power in 1Hz bins.
+        for (int ifreq = 0; ifreq < SIMPLE_SPEC_FMAX; ifreq++) {
+            int binMin = (int) (1 + ifreq / freqRes);    // add 1 to loose dc component
+            int binMax = (int) (1 + (ifreq + 1) / freqRes);
+            double power = 0;
+            for (int i = binMin; i < binMax; i++) {
+                power = power + getMagnitude(fft, i);
+            }
+            power = power / (binMax - binMin);
+            result.simpleSpec[ifreq] = (int) power / ACCEL_SCALE_FACTOR;
+        }
+        return result;
+    }
+
+    /**
+     * Return true if roiPower and specPower (as returned by analyse()) represent seizure-like movement.
+     */
+    public boolean isAlarmWindow(long roiPower, long specPower) {
+        // Avoid potential divide by zero issue
+        if (specPower == 0) specPower = 1;
+        return (roiPower > mAlarmThresh) && ((10 * roiPower / specPower) > mAlarmRatioThresh);
+    }
+
+    /**
+     * The alarm state machine - given the results of analysing the latest window and the current alarm state, return
+     * the new alarm state.   Movement must continue for longer than the warning time to give a WARNING, and for longer
+     * than the alarm time to give an ALARM.  When it stops, an ALARM reverts to WARNING and then to OK.
+     */
+    public long alarmCheck(long roiPower, long specPower, long alarmState) {
+        if (isAlarmWindow(roiPower, specPower)) {
+            mAlarmCount += mSamplePeriod;
+            if (mAlarmCount > mAlarmTime) {
+                // full alarm
+                return ALARM_STATE_ALARM;
+            } else if (mAlarmCount > mWarnTime) {
+                // warning
+                return ALARM_STATE_WARNING;
+            }
+            return alarmState;
+        }
+        // If we are not in an ALARM state, revert back to WARNING, otherwise
+        // revert back to OK.
+        if (alarmState == ALARM_STATE_ALARM) {
+            mAlarmCount = mWarnTime + 1;  // pretend we have only just entered warning state.
+            return ALARM_STATE_WARNING;
+        }
+        mAlarmCount = 0;
+        return ALARM_STATE_OK;
+    }
+
+    public int getAlarmCount() {
+        return mAlarmCount;
+    }
+
+    /**
+     * Forget any movement counted so far, so that the next alarm window starts the count again.
+     */
+    public void resetAlarmCount() {
+        mAlarmCount = 0;
+    }
+
+    /**
+     * Length of the fall detection window in samples, at sampleFreq Hz.
+     */
+    public long getFallWindowSamples(long sampleFreq) {
+        return (mFallWindow * sampleFreq) / 1000; // Convert ms to samples.
+    }
+
+    /**
+     * Simple threshold fall detection - move a window through the first nSamp values of rawData and return true if
+     * the acceleration within any window goes both below the minimum and above the maximum fall threshold.
+     */
+    public boolean checkFall(double[] rawData, int nSamp, long sampleFreq) {
+        long fallWindowSamp = getFallWindowSamples(sampleFreq);
+        for (int i = 0; i < nSamp - fallWindowSamp; i++) {  // i = window start point
+            // Find max and min acceleration within window.
+            double minAcc = rawData[i];
+            double maxAcc = rawData[i];
+            for (int j = 0; j < fallWindowSamp; j++) {  // j = position within window
+                if (rawData[i + j] < minAcc) minAcc = rawData[i + j];
+                if (rawData[i + j] > maxAcc) maxAcc = rawData[i + j];
+            }
+            if ((minAcc < mFallThreshMin) && (maxAcc > mFallThreshMax)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
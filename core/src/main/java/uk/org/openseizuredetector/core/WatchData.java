@@ -0,0 +1,160 @@
+/*
+  Android_SD - Android host for Garmin or Pebble watch based seizure detectors.
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2019, 2021.
+
+  This file is part of Android_SD.
+
+  Android_SD is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_SD is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_SD.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * WatchData holds the data received from one watch, as sent in the watch's JSON messages, and its alarm status.
+ * It has no Android dependencies (the app's SdData extends it), so the ingestion protocol and the alarm
+ * classification can also be used, and tested, on an ordinary JVM.
+ * <p>
+ * The watch sends two types of message, each a JSON object with a "dataType":
+ * "raw" - a window of acceleration magnitudes ("data"), optionally the 3D values ("data3D", x,y,z for each sample),
+ * heart rate ("HR"), oxygen saturation ("O2sat") and mute state ("Mute");
+ * "settings" - "analysisPeriod" (seconds), "sampleFreq" (Hz), "battery" (%) and (from watch app V3.2) "watchPartNo",
+ * "watchFwVersion", "sdVersion" and "sdName".
+ */
+public class WatchData {
+    public static final String DATA_TYPE_RAW = "raw";
+    public static final String DATA_TYPE_SETTINGS = "settings";
+
+    /* Watch settings */
+    public boolean haveSettings = false;   // flag to say if we have received settings or not.
+    public boolean haveWatchInfo = false;  // flag to say if the settings included the watch and watch app versions.
+    public long mSampleFreq;
+    public long analysisPeriod;
+    public long batteryPc;
+    public String watchPartNo = "";
+    public String watchFwVersion = "";
+    public String watchSdVersion = "";
+    public String watchSdName = "";
+
+    /* Raw data - the owner allocates the arrays, which limit the number of samples in a window */
+    public double rawData[];
+    public double rawData3D[];
+    public int mNsamp = 0;
+    public double mHR = 0;
+    public double mO2Sat = 0;
+    public int mMute = 0;  // !=0 means muted by keypress on watch.
+
+    /* Alarm status */
+    public long alarmState;
+    public boolean alarmStanding = false;
+    public boolean fallAlarmStanding = false;
+    public String alarmPhrase;
+
+    /**
+     * Create a WatchData with no raw data arrays, for subclasses that allocate (or copy) them themselves.
+     */
+    public WatchData() {
+    }
+
+    /**
+     * Create a WatchData that can hold windows of up to nRawData samples.
+     */
+    public WatchData(int nRawData) {
+        rawData = new double[nRawData];
+        rawData3D = new double[nRawData * 3];
+    }
+
+    /**
+     * Update this WatchData from a message from the watch, and return the message's dataType (DATA_TYPE_RAW,
+     * DATA_TYPE_SETTINGS, or another value that was not recognised, in which case nothing is changed).
+     * A null heart rate or oxygen saturation is stored as -1.   If the 3D data is missing or invalid rawData3D is
+     * set to zero; the settings' watch information is only stored if all of it is present (see haveWatchInfo).
+     *
+     * @throws JSONException if the message is not valid, or has more samples than rawData can hold.
+     */
+    public String parseWatchJSON(String jsonStr) throws JSONException {
+        JSONObject dataObject = new JSONObject(jsonStr);
+        String dataType = dataObject.getString("dataType");
+        if (dataType.equals(DATA_TYPE_RAW)) {
+            JSONArray accelVals = dataObject.getJSONArray("data");
+            if (accelVals.length() > rawData.length) {
+                throw new JSONException("Received " + accelVals.length()
+                        + " acceleration values, but rawData storage length is " + rawData.length);
+            }
+            for (int i = 0; i < accelVals.length(); i++) {
+                rawData[i] = accelVals.getDouble(i);
+            }
+            mNsamp = accelVals.length();
+            // if we get 'null' HR or O2 Saturation (For example if the sensor is not working)
+            mHR = dataObject.optDouble("HR", -1);
+            mO2Sat = dataObject.optDouble("O2sat", -1);
+            mMute = dataObject.optInt("Mute", 0);
+            JSONArray accelVals3D = dataObject.optJSONArray("data3D");
+            try {
+                if (accelVals3D == null || accelVals3D.length() > rawData3D.length) {
+                    throw new JSONException("Missing or too many 3D acceleration values");
+                }
+                for (int i = 0; i < accelVals3D.length(); i++) {
+                    rawData3D[i] = accelVals3D.getDouble(i);
+                }
+            } catch (JSONException e) {
+                Arrays.fill(rawData3D, 0.);
+            }
+        } else if (dataType.equals(DATA_TYPE_SETTINGS)) {
+            analysisPeriod = dataObject.getInt("analysisPeriod");
+            mSampleFreq = dataObject.getInt("sampleFreq");
+            batteryPc = dataObject.getInt("battery");
+            haveWatchInfo = dataObject.has("watchPartNo") && dataObject.has("watchFwVersion")
+                    && dataObject.has("sdVersion") && dataObject.has("sdName");
+            if (haveWatchInfo) {
+                watchPartNo = dataObject.getString("watchPartNo");
+                watchFwVersion = dataObject.getString("watchFwVersion");
+                watchSdVersion = dataObject.getString("sdVersion");
+                watchSdName = dataObject.getString("sdName");
+            }
+            haveSettings = true;
+        }
+        return dataType;
+    }
+
+    /**
+     * Set alarmPhrase, and the alarmStanding flags, from alarmState, for a watch whose alarms are accepted by
+     * clearing the flags.   A fall alarm stays until it is accepted.
+     */
+    public void classify() {
+        if (alarmState == 3 || fallAlarmStanding) {
+            fallAlarmStanding = true;
+            alarmPhrase = "FALL";
+        } else if (alarmState == 2 || alarmState == 5) {
+            alarmStanding = true;
+            alarmPhrase = "ALARM";
+        } else {
+            alarmStanding = false;
+            if (alarmState == 1) {
+                alarmPhrase = "WARNING";
+            } else if (alarmState == 6) {
+                alarmPhrase = "MUTE";
+            } else {
+                alarmPhrase = "OK";
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package uk.org.openseizuredetector.core;
+
+/**
+ * JUnit category for benchmarks, which are left out of the ordinary test run and are run on their own with
+ * ./gradlew :core:test -PperfTests.
+ */
+public interface PerformanceTest {
+}
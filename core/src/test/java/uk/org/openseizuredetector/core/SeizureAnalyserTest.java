@@ -0,0 +1,95 @@
+package uk.org.openseizuredetector.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Runs the seizure detection algorithm on a plain JVM: checks the alarm state machine with still and shaking data and
+ * the fall detection.   reportAnalysisTime() (a PerformanceTest) prints how long the analysis of one window takes.
+ */
+public class SeizureAnalyserTest {
+    // A watch sends 5 seconds of 25 Hz data in each window.
+    private static final int N_SAMP = 125;
+    private static final int SAMPLE_FREQ = 25;
+    private static final int N_BENCH_WINDOWS = 20000;
+
+    // Still (just gravity), or shaking at 5 Hz, which is in the seizure frequency band.
+    private static double[] makeWindow(boolean shaking) {
+        double[] data = new double[N_SAMP];
+        for (int i = 0; i < N_SAMP; i++) {
+            data[i] = 1000 + (shaking ? 500 * Math.sin(2 * Math.PI * 5 * i / (double) SAMPLE_FREQ) : (i % 3));
+        }
+        return data;
+    }
+
+    private static long analyse(SeizureAnalyser analyser, double[] data, long alarmState) {
+        SeizureAnalyser.Result result = analyser.analyse(data, N_SAMP, SAMPLE_FREQ);
+        return analyser.alarmCheck(result.roiPower, result.specPower, alarmState);
+    }
+
+    @Test
+    public void stillDataIsOk() {
+        SeizureAnalyser analyser = new SeizureAnalyser();
+        SeizureAnalyser.Result result = analyser.analyse(makeWindow(false), N_SAMP, SAMPLE_FREQ);
+        assertFalse(analyser.isAlarmWindow(result.roiPower, result.specPower));
+        assertEquals(SeizureAnalyser.ALARM_STATE_OK, analyser.alarmCheck(result.roiPower, result.specPower,
+                SeizureAnalyser.ALARM_STATE_OK));
+    }
+
+    @Test
+    public void shakingGivesWarningThenAlarmThenRecovers() {
+        SeizureAnalyser analyser = new SeizureAnalyser();
+        double[] shaking = makeWindow(true);
+        double[] still = makeWindow(false);
+        SeizureAnalyser.Result result = analyser.analyse(shaking, N_SAMP, SAMPLE_FREQ);
+        // The simple spectrum skips the DC bin, so the 5 Hz shaking shows up in simpleSpec[4].
+        assertTrue(result.simpleSpec[4] > 10 * result.simpleSpec[1]);
+
+        long state = SeizureAnalyser.ALARM_STATE_OK;
+        // With the default 5 s windows, 5 s warning time and 10 s alarm time.
+        state = analyse(analyser, shaking, state);
+        assertEquals(SeizureAnalyser.ALARM_STATE_OK, state);
+        state = analyse(analyser, shaking, state);
+        assertEquals(SeizureAnalyser.ALARM_STATE_WARNING, state);
+        state = analyse(analyser, shaking, state);
+        assertEquals(SeizureAnalyser.ALARM_STATE_ALARM, state);
+        state = analyse(analyser, still, state);
+        assertEquals(SeizureAnalyser.ALARM_STATE_WARNING, state);
+        state = analyse(analyser, still, state);
+        assertEquals(SeizureAnalyser.ALARM_STATE_OK, state);
+    }
+
+    @Test
+    public void fallIsDetected() {
+        SeizureAnalyser analyser = new SeizureAnalyser();
+        double[] data = makeWindow(false);
+        assertFalse(analyser.checkFall(data, N_SAMP, SAMPLE_FREQ));
+        // Free fall followed by an impact, within the 1.5 s fall window.
+        for (int i = 50; i < 55; i++) data[i] = 100;
+        for (int i = 55; i < 58; i++) data[i] = 3000;
+        assertTrue(analyser.checkFall(data, N_SAMP, SAMPLE_FREQ));
+    }
+
+    @Test
+    @Category(PerformanceTest.class)
+    public void reportAnalysisTime() {
+        SeizureAnalyser analyser = new SeizureAnalyser();
+        double[][] windows = {makeWindow(false), makeWindow(true)};
+        long state = SeizureAnalyser.ALARM_STATE_OK;
+        // Warm up before timing.
+        for (int i = 0; i < N_BENCH_WINDOWS; i++) {
+            state = analyse(analyser, windows[i % 2], state);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < N_BENCH_WINDOWS; i++) {
+            state = analyse(analyser, windows[i % 2], state);
+        }
+        double usPerWindow = (System.nanoTime() - t0) / 1e3 / N_BENCH_WINDOWS;
+        System.out.printf("%.1f us per %d sample window, so one core could analyse about %.0f watches%n",
+                usPerWindow, N_SAMP, 5e6 / usPerWindow);
+    }
+}
@@ -0,0 +1,103 @@
+package uk.org.openseizuredetector.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+/**
+ * Parses watch messages into a WatchData on a plain JVM, and checks the alarm phrases and standing flags set by
+ * classify(), including that a fall alarm stays until it is accepted.
+ */
+public class WatchDataTest {
+    private static final int N_RAW_DATA = 500;
+
+    @Test
+    public void rawDataIsParsed() throws Exception {
+        WatchData data = new WatchData(N_RAW_DATA);
+        String type = data.parseWatchJSON("{\"dataType\": \"raw\", \"HR\": 72.5, \"O2sat\": null, \"Mute\": 1,"
+                + " \"data\": [1000, 1010, 990], \"data3D\": [1, 2, 3, 4, 5, 6, 7, 8, 9]}");
+        assertEquals(WatchData.DATA_TYPE_RAW, type);
+        assertEquals(3, data.mNsamp);
+        assertEquals(1010, data.rawData[1], 0);
+        assertEquals(9, data.rawData3D[8], 0);
+        assertEquals(72.5, data.mHR, 0);
+        assertEquals(-1, data.mO2Sat, 0);
+        assertEquals(1, data.mMute);
+        assertFalse(data.haveSettings);
+
+        // Without 3D data, the old 3D values are not left behind.
+        data.parseWatchJSON("{\"dataType\": \"raw\", \"data\": [1000]}");
+        assertEquals(1, data.mNsamp);
+        assertEquals(0, data.rawData3D[8], 0);
+        assertEquals(-1, data.mHR, 0);
+        assertEquals(0, data.mMute);
+    }
+
+    @Test
+    public void tooManySamplesAreRejected() {
+        WatchData data = new WatchData(2);
+        try {
+            data.parseWatchJSON("{\"dataType\": \"raw\", \"data\": [1000, 1010, 990]}");
+            fail("expected a JSONException");
+        } catch (JSONException e) {
+            assertEquals(0, data.mNsamp);
+        }
+    }
+
+    @Test
+    public void settingsAreParsed() throws Exception {
+        WatchData data = new WatchData(N_RAW_DATA);
+        assertEquals(WatchData.DATA_TYPE_SETTINGS, data.parseWatchJSON("{\"dataType\": \"settings\","
+                + " \"analysisPeriod\": 5, \"sampleFreq\": 25, \"battery\": 80}"));
+        assertTrue(data.haveSettings);
+        assertFalse(data.haveWatchInfo);
+        assertEquals(5, data.analysisPeriod);
+        assertEquals(25, data.mSampleFreq);
+        assertEquals(80, data.batteryPc);
+
+        data.parseWatchJSON("{\"dataType\": \"settings\", \"analysisPeriod\": 5, \"sampleFreq\": 25, \"battery\": 79,"
+                + " \"watchPartNo\": \"006-B3113-00\", \"watchFwVersion\": \"12.0\", \"sdVersion\": \"1.2\","
+                + " \"sdName\": \"OSD\"}");
+        assertTrue(data.haveWatchInfo);
+        assertEquals("006-B3113-00", data.watchPartNo);
+        assertEquals("1.2", data.watchSdVersion);
+    }
+
+    @Test
+    public void unknownDataTypeChangesNothing() throws Exception {
+        WatchData data = new WatchData(N_RAW_DATA);
+        assertEquals("junk", data.parseWatchJSON("{\"dataType\": \"junk\"}"));
+        assertFalse(data.haveSettings);
+        assertEquals(0, data.mNsamp);
+    }
+
+    @Test
+    public void fallAlarmStaysUntilAccepted() {
+        WatchData data = new WatchData();
+        data.alarmState = 1;
+        data.classify();
+        assertEquals("WARNING", data.alarmPhrase);
+        data.alarmState = 2;
+        data.classify();
+        assertEquals("ALARM", data.alarmPhrase);
+        assertTrue(data.alarmStanding);
+        data.alarmState = 0;
+        data.classify();
+        assertEquals("OK", data.alarmPhrase);
+        assertFalse(data.alarmStanding);
+
+        data.alarmState = 3;
+        data.classify();
+        data.alarmState = 0;
+        data.classify();
+        assertEquals("FALL", data.alarmPhrase);
+        // Accepting the alarm clears the standing flags.
+        data.fallAlarmStanding = false;
+        data.classify();
+        assertEquals("OK", data.alarmPhrase);
+    }
+}